@@ -40,6 +40,7 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -56,6 +57,7 @@ import android.provider.ContactsContract.StreamItemPhotos;
 import android.provider.ContactsContract.StreamItems;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
 import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
@@ -67,6 +69,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Loads a single Contact and all it constituent RawContacts.
@@ -74,6 +82,33 @@ import java.util.Set;
 public class ContactLoader extends Loader<ContactLoader.Result> {
     private static final String TAG = "ContactLoader";
 
+    /** Number of recently loaded contacts kept in {@link #sRecentContacts}. */
+    private static final int RECENT_CONTACTS_CACHE_SIZE = 8;
+
+    /**
+     * Recently loaded contacts by lookup key, so that going back and forth between the
+     * contact detail screens and the editor does not load the same contact again.  Cleared
+     * whenever anything changes in the contacts provider.
+     */
+    private static final LruCache<String, RecentContact> sRecentContacts =
+            new LruCache<String, RecentContact>(RECENT_CONTACTS_CACHE_SIZE);
+
+    /**
+     * Incremented whenever {@link #sRecentContacts} is cleared, so that contacts loaded
+     * before that are not cached.
+     */
+    private static final AtomicInteger sRecentContactsGeneration = new AtomicInteger();
+
+    /** Clears {@link #sRecentContacts}.  Registered once, guarded by the cache. */
+    private static ContentObserver sRecentContactsObserver;
+
+    /**
+     * Runs the queries for the auxiliary data of a contact concurrently.  The contacts are
+     * loaded on {@link AsyncTask#THREAD_POOL_EXECUTOR}, which is bounded, and wait for those
+     * queries, so they must not be run there as well.
+     */
+    private static final ExecutorService sAuxiliaryQueryExecutor = Executors.newCachedThreadPool();
+
     private final Uri mRequestedUri;
     private Uri mLookupUri;
     private boolean mLoadGroupMetaData;
@@ -82,6 +117,7 @@ public class ContactLoader extends Loader<ContactLoader.Result> {
     private Result mContact;
     private ForceLoadContentObserver mObserver;
     private boolean mDestroyed;
+    private int mRecentContactsGeneration;
     private final Set<Long> mNotifiedRawContactIds = Sets.newHashSet();
 
     public interface Listener {
@@ -483,6 +519,25 @@ public class ContactLoader extends Loader<ContactLoader.Result> {
         }
     }
 
+    /**
+     * A contact in {@link #sRecentContacts}, along with what was loaded besides its
+     * entities.
+     */
+    private static final class RecentContact {
+        final Result mResult;
+        final boolean mGroupMetaData;
+        final boolean mStreamItems;
+        final boolean mInvitableAccountTypes;
+
+        public RecentContact(Result result, boolean groupMetaData, boolean streamItems,
+                boolean invitableAccountTypes) {
+            mResult = result;
+            mGroupMetaData = groupMetaData;
+            mStreamItems = streamItems;
+            mInvitableAccountTypes = invitableAccountTypes;
+        }
+    }
+
     /**
      * Projection used for the query that loads all data for the entire contact (except for
      * social stream items).
@@ -686,25 +741,68 @@ public class ContactLoader extends Loader<ContactLoader.Result> {
                         resolver, mLookupUri);
                 Result result = loadContactEntity(resolver, uriCurrentFormat);
                 if (!result.isNotFound()) {
-                    if (result.isDirectoryEntry()) {
+                    loadAuxiliaryData(result);
+                }
+                return result;
+            } catch (Exception e) {
+                Log.e(TAG, "Error loading the contact: " + mLookupUri, e);
+                return Result.forError(mRequestedUri, e);
+            }
+        }
+
+        /**
+         * Loads everything about the contact that is not part of its entities.  Each of the
+         * queries needed runs concurrently with the others, and sets different fields of the
+         * result.
+         */
+        private void loadAuxiliaryData(final Result result)
+                throws InterruptedException, ExecutionException {
+            final ArrayList<Callable<Void>> queries = Lists.newArrayList();
+            if (result.isDirectoryEntry()) {
+                queries.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
                         loadDirectoryMetaData(result);
-                    } else if (mLoadGroupMetaData) {
+                        return null;
+                    }
+                });
+            } else if (mLoadGroupMetaData) {
+                queries.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
                         loadGroupMetaData(result);
+                        return null;
                     }
-                    if (mLoadStreamItems) {
+                });
+            }
+            if (mLoadStreamItems) {
+                queries.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
                         loadStreamItems(result);
+                        return null;
                     }
-                    loadPhotoBinaryData(result);
-
-                    // Note ME profile should never have "Add connection"
-                    if (mLoadInvitableAccountTypes && !result.isUserProfile()) {
+                });
+            }
+            // Note ME profile should never have "Add connection"
+            if (mLoadInvitableAccountTypes && !result.isUserProfile()) {
+                queries.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
                         loadInvitableAccountTypes(result);
+                        return null;
                     }
-                }
-                return result;
-            } catch (Exception e) {
-                Log.e(TAG, "Error loading the contact: " + mLookupUri, e);
-                return Result.forError(mRequestedUri, e);
+                });
+            }
+
+            final ArrayList<Future<Void>> futures = Lists.newArrayList();
+            for (Callable<Void> query : queries) {
+                futures.add(sAuxiliaryQueryExecutor.submit(query));
+            }
+            // The photo is loaded on this thread in the meantime
+            loadPhotoBinaryData(result);
+            for (Future<Void> future : futures) {
+                future.get();
             }
         }
 
@@ -1136,30 +1234,128 @@ public class ContactLoader extends Loader<ContactLoader.Result> {
                 return;
             }
 
-            mContact = result;
+            setContact(result);
+            deliverResult(mContact);
+        }
+    }
+
+    /**
+     * Sets the contact that was loaded, either by {@link LoadContactTask} or from
+     * {@link #sRecentContacts}, and starts observing it.
+     */
+    private void setContact(Result result) {
+        mContact = result;
 
-            if (result.isLoaded()) {
-                mLookupUri = result.getLookupUri();
+        if (result.isLoaded()) {
+            mLookupUri = result.getLookupUri();
 
-                if (!result.isDirectoryEntry()) {
-                    Log.i(TAG, "Registering content observer for " + mLookupUri);
-                    if (mObserver == null) {
-                        mObserver = new ForceLoadContentObserver();
-                    }
-                    getContext().getContentResolver().registerContentObserver(
-                            mLookupUri, true, mObserver);
+            if (!result.isDirectoryEntry()) {
+                Log.i(TAG, "Registering content observer for " + mLookupUri);
+                if (mObserver == null) {
+                    mObserver = new ForceLoadContentObserver();
                 }
+                getContext().getContentResolver().registerContentObserver(
+                        mLookupUri, true, mObserver);
+            }
 
-                if (mContact.getPhotoBinaryData() == null && mContact.getPhotoUri() != null) {
-                    mContact.setLoadingPhoto(true);
-                    new AsyncPhotoLoader().execute(mContact.getPhotoUri());
-                }
+            if (mContact.getPhotoBinaryData() == null && mContact.getPhotoUri() != null) {
+                mContact.setLoadingPhoto(true);
+                new AsyncPhotoLoader().execute(mContact.getPhotoUri());
+            } else {
+                cacheRecentContact();
+            }
+
+            // inform the source of the data that this contact is being looked at
+            postViewNotificationToSyncAdapter();
+        }
+    }
 
-                // inform the source of the data that this contact is being looked at
-                postViewNotificationToSyncAdapter();
+    /**
+     * Puts the contact, which has been loaded completely, in {@link #sRecentContacts} unless
+     * the contacts provider has changed since it started being loaded.
+     */
+    private void cacheRecentContact() {
+        final String key = getRecentContactKey(mContact.getLookupUri());
+        if (mContact.isDirectoryEntry() || key == null) {
+            return;
+        }
+        synchronized (sRecentContacts) {
+            if (mRecentContactsGeneration == sRecentContactsGeneration.get()) {
+                sRecentContacts.put(key, new RecentContact(
+                        new Result(mContact), mLoadGroupMetaData, mLoadStreamItems,
+                        mLoadInvitableAccountTypes));
             }
+        }
+    }
 
-            deliverResult(mContact);
+    /**
+     * Returns a copy of the recently loaded contact for the URI, if it was loaded with at
+     * least the same data as this loader needs.  Only lookup URIs for the local contacts are
+     * looked up.
+     */
+    private Result getRecentContact(Uri uri) {
+        final String key = getRecentContactKey(uri);
+        if (key == null) {
+            return null;
+        }
+
+        final RecentContact recent = sRecentContacts.get(key);
+        if (recent == null
+                || (mLoadGroupMetaData && !recent.mGroupMetaData)
+                || (mLoadStreamItems && !recent.mStreamItems)
+                || (mLoadInvitableAccountTypes && !recent.mInvitableAccountTypes)) {
+            return null;
+        }
+        final List<String> segments = uri.getPathSegments();
+        if (segments.size() == 4
+                && !String.valueOf(recent.mResult.getId()).equals(segments.get(3))) {
+            return null;
+        }
+        return new Result(recent.mResult);
+    }
+
+    /**
+     * Returns the lookup key of a lookup URI for a local contact, with or without the contact
+     * ID, as the contacts provider reads it from the URI.  Returns null for any other URI.
+     */
+    private static String getRecentContactKey(Uri uri) {
+        if (uri == null || uri.getQuery() != null
+                || !ContactsContract.AUTHORITY.equals(uri.getAuthority())) {
+            return null;
+        }
+        final List<String> segments = uri.getPathSegments();
+        if (segments.size() < 3 || segments.size() > 4
+                || !segments.subList(0, 2).equals(Contacts.CONTENT_LOOKUP_URI.getPathSegments())) {
+            return null;
+        }
+        return segments.get(2);
+    }
+
+    /**
+     * Registers the observer that clears {@link #sRecentContacts} when the contacts
+     * provider changes, if that has not been done yet.
+     */
+    private static void ensureRecentContactsObserver(Context context) {
+        synchronized (sRecentContacts) {
+            if (sRecentContactsObserver != null) {
+                return;
+            }
+            sRecentContactsObserver = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    clearRecentContacts();
+                }
+            };
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    ContactsContract.AUTHORITY_URI, true, sRecentContactsObserver);
+        }
+    }
+
+    @VisibleForTesting
+    static void clearRecentContacts() {
+        synchronized (sRecentContacts) {
+            sRecentContactsGeneration.incrementAndGet();
+            sRecentContacts.evictAll();
         }
     }
 
@@ -1236,6 +1432,7 @@ public class ContactLoader extends Loader<ContactLoader.Result> {
                 mContact = new Result(mContact);
                 mContact.setPhotoBinaryData(data);
                 mContact.setLoadingPhoto(false);
+                cacheRecentContact();
                 deliverResult(mContact);
             }
         }
@@ -1268,6 +1465,14 @@ public class ContactLoader extends Loader<ContactLoader.Result> {
 
     @Override
     protected void onStartLoading() {
+        ensureRecentContactsObserver(getContext());
+        if (mContact == null) {
+            final Result recent = getRecentContact(mLookupUri);
+            if (recent != null) {
+                setContact(recent);
+            }
+        }
+
         if (mContact != null) {
             deliverResult(mContact);
         }
@@ -1279,6 +1484,7 @@ public class ContactLoader extends Loader<ContactLoader.Result> {
 
     @Override
     protected void onForceLoad() {
+        mRecentContactsGeneration = sRecentContactsGeneration.get();
         final LoadContactTask task = new LoadContactTask();
         task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void[])null);
     }
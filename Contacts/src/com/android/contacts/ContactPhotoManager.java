@@ -17,6 +17,7 @@
 package com.android.contacts;
 
 import com.android.contacts.model.AccountTypeManager;
+import com.android.contacts.util.BitmapPool;
 import com.android.contacts.util.MemoryUtils;
 import com.android.contacts.util.UriUtils;
 import com.google.android.collect.Lists;
@@ -30,12 +31,12 @@ import android.content.res.Configuration;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Rect;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Handler.Callback;
-import android.os.HandlerThread;
 import android.os.Message;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
@@ -45,16 +46,23 @@ import android.provider.ContactsContract.Directory;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.LruCache;
+import android.view.View;
 import android.widget.ImageView;
 
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -201,6 +209,21 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
 class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
 
+    /**
+     * Number of threads loading photos, so that a slow remote photo or a large batch
+     * does not hold up all the others.
+     */
+    private static final int LOADER_THREAD_COUNT = 2;
+
+    /** Load priority of a photo for a view that is at least partly on screen. */
+    private static final int PRIORITY_VISIBLE = 0;
+
+    /** Load priority of a photo for a view that is in the view hierarchy but off screen. */
+    private static final int PRIORITY_HIDDEN = 1;
+
+    /** The photo for a view that is not in a view hierarchy is not loaded until it is. */
+    private static final int PRIORITY_NONE = -1;
+
     /**
      * Type of message sent by the UI thread to itself to indicate that some photos
      * need to be loaded.
@@ -224,8 +247,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         final byte[] bytes;
 
         volatile boolean fresh;
-        Bitmap bitmap;
-        Reference<Bitmap> bitmapRef;
 
         public BitmapHolder(byte[] bytes) {
             this.bytes = bytes;
@@ -237,8 +258,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     /**
      * An LRU cache for bitmap holders. The cache contains bytes for photos just
-     * as they come from the database. Each holder has a soft reference to the
-     * actual bitmap.
+     * as they come from the database.
      */
     private final LruCache<Object, BitmapHolder> mBitmapHolderCache;
 
@@ -251,9 +271,38 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * Level 2 LRU cache for bitmaps. This is a smaller cache that holds
      * the most recently used bitmaps to save time on decoding
      * them from bytes (the bytes are stored in {@link #mBitmapHolderCache}.
+     * Both caches are keyed by {@link Request#getKey()}.
      */
     private final LruCache<Object, Bitmap> mBitmapCache;
 
+    /**
+     * Bitmaps that are not used anymore, reused when decoding photos of the same size.
+     */
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * Bitmaps removed from {@link #mBitmapCache}, on any thread, that have not been
+     * released to {@link #mBitmapPool} yet.  That is done on the UI thread, which knows
+     * whether they are still displayed.
+     */
+    private final ArrayList<Bitmap> mRemovedBitmaps = new ArrayList<Bitmap>();
+
+    /**
+     * The bitmap last set on each image view by this class.  A bitmap removed from
+     * {@link #mBitmapCache} is only reused once no image view displays it anymore.  Views
+     * that are garbage collected or given another image directly simply keep their
+     * bitmap out of the pool.  Only accessed on the UI thread.
+     */
+    private final WeakHashMap<ImageView, Bitmap> mDisplayedBitmaps =
+            new WeakHashMap<ImageView, Bitmap>();
+
+    /**
+     * Bitmaps removed from {@link #mBitmapCache} while they were still displayed.  The ones
+     * whose views have been garbage collected since are released by
+     * {@link #releaseRemovedBitmaps}.  Only accessed on the UI thread.
+     */
+    private final HashSet<Bitmap> mRemovedDisplayedBitmaps = new HashSet<Bitmap>();
+
     /**
      * A map from ImageView to the corresponding photo ID or uri, encapsulated in a request.
      * The request may swapped out before the photo loading request is started.
@@ -267,10 +316,62 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private final Handler mMainThreadHandler = new Handler(this);
 
     /**
-     * Thread responsible for loading photos from the database. Created upon
+     * Threads responsible for loading photos from the database. Created upon
      * the first request.
      */
-    private LoaderThread mLoaderThread;
+    private LoaderThread[] mLoaderThreads;
+
+    /**
+     * Photos the loader threads should load, most urgent first.  Rebuilt from
+     * {@link #mPendingRequests} on the UI thread whenever photos are requested, which
+     * cancels the photos of views that are not displayed anymore.
+     */
+    private final PriorityBlockingQueue<LoadTask> mLoadQueue =
+            new PriorityBlockingQueue<LoadTask>();
+
+    /**
+     * Keys of the photos the loader threads are currently loading, which are not queued
+     * again.
+     */
+    private final Set<Object> mLoadingKeys =
+            Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+    /**
+     * Photo IDs to preload, in reverse order, shared by the loader threads.  Guarded by
+     * itself, as are {@link #mPreloadStatus} and {@link #mPreloading}.
+     */
+    private final List<Long> mPreloadPhotoIds = Lists.newArrayList();
+
+    private static final int PRELOAD_STATUS_NOT_STARTED = 0;
+    private static final int PRELOAD_STATUS_IN_PROGRESS = 1;
+    private static final int PRELOAD_STATUS_DONE = 2;
+
+    private int mPreloadStatus = PRELOAD_STATUS_NOT_STARTED;
+
+    /** Whether a loader thread is preloading a batch, in which case the others don't. */
+    private boolean mPreloading;
+
+    /** Temporary rectangle for {@link #getLoadPriority}, only used on the UI thread. */
+    private final Rect mVisibleRect = new Rect();
+
+    /**
+     * Requests loading again when a view that was not in a window is attached to one, since
+     * its photo was not loaded meanwhile.
+     */
+    private final View.OnAttachStateChangeListener mAttachStateListener =
+            new View.OnAttachStateChangeListener() {
+        @Override
+        public void onViewAttachedToWindow(View view) {
+            view.removeOnAttachStateChangeListener(this);
+            if (mPendingRequests.containsKey(view) && !mPaused) {
+                requestLoading();
+            }
+        }
+
+        @Override
+        public void onViewDetachedFromWindow(View view) {
+        }
+    };
 
     /**
      * A gate to make sure we only send one instance of MESSAGE_PHOTOS_NEEDED at a time.
@@ -282,13 +383,23 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private boolean mPaused;
 
-    /** Cache size for {@link #mBitmapHolderCache} for devices with "large" RAM. */
+    /** Cache size for {@link #mBitmapHolderCache} for a device with 1G of RAM. */
     private static final int HOLDER_CACHE_SIZE = 2000000;
 
-    /** Cache size for {@link #mBitmapCache} for devices with "large" RAM. */
+    /** Cache size for {@link #mBitmapCache} for a device with 1G of RAM. */
     private static final int BITMAP_CACHE_SIZE = 36864 * 48; // 1728K
 
-    private static final int LARGE_RAM_THRESHOLD = 640 * 1024 * 1024;
+    /**
+     * The cache sizes above are scaled by the total memory of the device relative to this,
+     * between {@link #MIN_CACHE_SIZE_ADJUSTMENT} and {@link #MAX_CACHE_SIZE_ADJUSTMENT}.
+     */
+    private static final long REFERENCE_RAM_SIZE = 1024 * 1024 * 1024;
+
+    private static final float MIN_CACHE_SIZE_ADJUSTMENT = 0.25f;
+    private static final float MAX_CACHE_SIZE_ADJUSTMENT = 2.0f;
+
+    /** Size of {@link #mBitmapPool} relative to the size of {@link #mBitmapCache}. */
+    private static final float BITMAP_POOL_SIZE_RATIO = 0.25f;
 
     /** For debug: How many times we had to reload cached photo for a stale entry */
     private final AtomicInteger mStaleCacheOverwrite = new AtomicInteger();
@@ -299,8 +410,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     public ContactPhotoManagerImpl(Context context) {
         mContext = context;
 
-        final float cacheSizeAdjustment =
-                (MemoryUtils.getTotalMemorySize() >= LARGE_RAM_THRESHOLD) ? 1.0f : 0.5f;
+        final float cacheSizeAdjustment = Math.max(MIN_CACHE_SIZE_ADJUSTMENT,
+                Math.min(MAX_CACHE_SIZE_ADJUSTMENT,
+                        (float) MemoryUtils.getTotalMemorySize() / REFERENCE_RAM_SIZE));
         final int bitmapCacheSize = (int) (cacheSizeAdjustment * BITMAP_CACHE_SIZE);
         mBitmapCache = new LruCache<Object, Bitmap>(bitmapCacheSize) {
             @Override protected int sizeOf(Object key, Bitmap value) {
@@ -309,9 +421,15 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
             @Override protected void entryRemoved(
                     boolean evicted, Object key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    synchronized (mRemovedBitmaps) {
+                        mRemovedBitmaps.add(oldValue);
+                    }
+                }
                 if (DEBUG) dumpStats();
             }
         };
+        mBitmapPool = new BitmapPool((int) (bitmapCacheSize * BITMAP_POOL_SIZE_RATIO));
         final int holderCacheSize = (int) (cacheSizeAdjustment * HOLDER_CACHE_SIZE);
         mBitmapHolderCache = new LruCache<Object, BitmapHolder>(holderCacheSize) {
             @Override protected int sizeOf(Object key, BitmapHolder value) {
@@ -327,7 +445,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         Log.i(TAG, "Cache adj: " + cacheSizeAdjustment);
         if (DEBUG) {
             Log.d(TAG, "Cache size: " + btk(mBitmapHolderCache.maxSize())
-                    + " + " + btk(mBitmapCache.maxSize()));
+                    + " + " + btk(mBitmapCache.maxSize())
+                    + " + " + btk((int) (bitmapCacheSize * BITMAP_POOL_SIZE_RATIO)));
         }
     }
 
@@ -348,24 +467,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         {
             int numHolders = 0;
             int rawBytes = 0;
-            int bitmapBytes = 0;
-            int numBitmaps = 0;
             for (BitmapHolder h : mBitmapHolderCache.snapshot().values()) {
                 numHolders++;
                 if (h.bytes != null) {
                     rawBytes += h.bytes.length;
                 }
-                Bitmap b = h.bitmapRef != null ? h.bitmapRef.get() : null;
-                if (b != null) {
-                    numBitmaps++;
-                    bitmapBytes += b.getByteCount();
-                }
             }
-            Log.d(TAG, "L1: " + btk(rawBytes) + " + " + btk(bitmapBytes) + " = "
-                    + btk(rawBytes + bitmapBytes) + ", " + numHolders + " holders, "
-                    + numBitmaps + " bitmaps, avg: "
-                    + btk(safeDiv(rawBytes, numHolders))
-                    + "," + btk(safeDiv(bitmapBytes,numBitmaps)));
+            Log.d(TAG, "L1: " + btk(rawBytes) + ", " + numHolders + " holders, avg: "
+                    + btk(safeDiv(rawBytes, numHolders)));
             Log.d(TAG, "L1 Stats: " + mBitmapHolderCache.toString()
                     + ", overwrite: fresh=" + mFreshCacheOverwrite.get()
                     + " stale=" + mStaleCacheOverwrite.get());
@@ -380,7 +489,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
             Log.d(TAG, "L2: " + btk(bitmapBytes) + ", " + numBitmaps + " bitmaps"
                     + ", avg: " + btk(safeDiv(bitmapBytes, numBitmaps)));
-            // We don't get from L2 cache, so L2 stats is meaningless.
+            Log.d(TAG, "L2 Stats: " + mBitmapCache.toString());
+            Log.d(TAG, "Pool: " + btk(mBitmapPool.size()));
         }
     }
 
@@ -395,8 +505,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     @Override
     public void preloadPhotosInBackground() {
+        // The loader threads preload photos whenever they are idle
         ensureLoaderThread();
-        mLoaderThread.requestPreloading();
     }
 
     @Override
@@ -405,6 +515,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         if (photoId == 0) {
             // No photo is needed
             defaultProvider.applyDefaultImage(view, hires, darkTheme);
+            setDisplayedBitmap(view, null);
             mPendingRequests.remove(view);
         } else {
             if (DEBUG) Log.d(TAG, "loadPhoto request: " + photoId);
@@ -419,6 +530,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         if (photoUri == null) {
             // No photo is needed
             defaultProvider.applyDefaultImage(view, hires, darkTheme);
+            setDisplayedBitmap(view, null);
             mPendingRequests.remove(view);
         } else {
             if (DEBUG) Log.d(TAG, "loadPhoto request: " + photoUri);
@@ -443,6 +555,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     @Override
     public void removePhoto(ImageView view) {
         view.setImageDrawable(null);
+        setDisplayedBitmap(view, null);
         mPendingRequests.remove(view);
     }
 
@@ -460,78 +573,153 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * @return false if the photo needs to be (re)loaded from the provider.
      */
     private boolean loadCachedPhoto(ImageView view, Request request) {
-        BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
+        releaseRemovedBitmaps();
+
+        final Object key = request.getKey();
+        BitmapHolder holder = mBitmapHolderCache.get(key);
         if (holder == null) {
             // The bitmap has not been loaded - should display the placeholder image.
             request.applyDefaultImage(view);
+            setDisplayedBitmap(view, null);
             return false;
         }
 
         if (holder.bytes == null) {
             request.applyDefaultImage(view);
+            setDisplayedBitmap(view, null);
             return holder.fresh;
         }
 
-        // Optionally decode bytes into a bitmap
-        inflateBitmap(holder);
-
-        view.setImageBitmap(holder.bitmap);
-
-        if (holder.bitmap != null) {
-            // Put the bitmap in the LRU cache
-            mBitmapCache.put(request, holder.bitmap);
+        Bitmap bitmap = mBitmapCache.get(key);
+        if (bitmap == null) {
+            // The photo was preloaded without decoding it, or its bitmap has been evicted
+            bitmap = decodeBitmap(holder.bytes);
+            if (bitmap != null) {
+                mBitmapCache.put(key, bitmap);
+            }
         }
 
-        // Soften the reference
-        holder.bitmap = null;
+        view.setImageBitmap(bitmap);
+        setDisplayedBitmap(view, bitmap);
 
         return holder.fresh;
     }
 
     /**
-     * If necessary, decodes bytes stored in the holder to Bitmap.  As long as the
-     * bitmap is held either by {@link #mBitmapCache} or by a soft reference in
-     * the holder, it will not be necessary to decode the bitmap.
+     * Decodes the bytes of a photo, into a bitmap from {@link #mBitmapPool} if one of the
+     * right size is available.
+     *
+     * @return the bitmap, or null if it could not be decoded.
      */
-    private static void inflateBitmap(BitmapHolder holder) {
-        byte[] bytes = holder.bytes;
+    private Bitmap decodeBitmap(byte[] bytes) {
         if (bytes == null || bytes.length == 0) {
-            return;
-        }
-
-        // Check the soft reference.  If will be retained if the bitmap is also
-        // in the LRU cache, so we don't need to check the LRU cache explicitly.
-        if (holder.bitmapRef != null) {
-            holder.bitmap = holder.bitmapRef.get();
-            if (holder.bitmap != null) {
-                return;
-            }
+            return null;
         }
 
         try {
-            Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, null);
-            holder.bitmap = bitmap;
-            holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
-            if (DEBUG) {
-                Log.d(TAG, "inflateBitmap " + btk(bytes.length) + " -> "
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            options.inJustDecodeBounds = false;
+
+            // Mutable bitmaps can be decoded into again once they are not used anymore
+            options.inMutable = true;
+            options.inBitmap = mBitmapPool.get(options.outWidth, options.outHeight,
+                    options.inPreferredConfig);
+
+            Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            } catch (IllegalArgumentException e) {
+                // The format of the photo does not support decoding into an existing bitmap
+                options.inBitmap = null;
+                bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            }
+            if (DEBUG && bitmap != null) {
+                Log.d(TAG, "decodeBitmap " + btk(bytes.length) + " -> "
                         + bitmap.getWidth() + "x" + bitmap.getHeight()
-                        + ", " + btk(bitmap.getByteCount()));
+                        + ", " + btk(bitmap.getByteCount())
+                        + (bitmap == options.inBitmap ? " (reused)" : ""));
             }
+            return bitmap;
         } catch (OutOfMemoryError e) {
             // Do nothing - the photo will appear to be missing
+            return null;
+        }
+    }
+
+    /**
+     * Records the bitmap now displayed by the view, which is null if it displays anything
+     * else.  If the bitmap previously displayed has been removed from {@link #mBitmapCache}
+     * and no other view displays it, it is released to {@link #mBitmapPool}.
+     */
+    private void setDisplayedBitmap(ImageView view, Bitmap bitmap) {
+        final Bitmap previous = bitmap != null
+                ? mDisplayedBitmaps.put(view, bitmap)
+                : mDisplayedBitmaps.remove(view);
+        if (previous != null && previous != bitmap
+                && mRemovedDisplayedBitmaps.contains(previous)
+                && !mDisplayedBitmaps.containsValue(previous)) {
+            mRemovedDisplayedBitmaps.remove(previous);
+            mBitmapPool.put(previous);
+        }
+    }
+
+    /**
+     * Releases the bitmaps removed from {@link #mBitmapCache} to {@link #mBitmapPool}, unless
+     * they are still displayed, along with the removed bitmaps that were displayed before but
+     * are not anymore.  Must be called on the UI thread.
+     */
+    private void releaseRemovedBitmaps() {
+        final Bitmap[] removed;
+        synchronized (mRemovedBitmaps) {
+            if (mRemovedBitmaps.isEmpty()) {
+                return;
+            }
+            removed = mRemovedBitmaps.toArray(new Bitmap[mRemovedBitmaps.size()]);
+            mRemovedBitmaps.clear();
+        }
+        final HashSet<Bitmap> displayed = new HashSet<Bitmap>(mDisplayedBitmaps.values());
+
+        // setDisplayedBitmap does not see the views that are garbage collected
+        final Iterator<Bitmap> iterator = mRemovedDisplayedBitmaps.iterator();
+        while (iterator.hasNext()) {
+            final Bitmap bitmap = iterator.next();
+            if (!displayed.contains(bitmap)) {
+                iterator.remove();
+                mBitmapPool.put(bitmap);
+            }
+        }
+
+        for (Bitmap bitmap : removed) {
+            if (displayed.contains(bitmap)) {
+                mRemovedDisplayedBitmaps.add(bitmap);
+            } else {
+                mBitmapPool.put(bitmap);
+            }
         }
     }
 
     public void clear() {
         if (DEBUG) Log.d(TAG, "clear");
         mPendingRequests.clear();
+        mLoadQueue.clear();
         mBitmapHolderCache.evictAll();
         mBitmapCache.evictAll();
+
+        // Let the bitmaps that are not displayed be garbage collected
+        synchronized (mRemovedBitmaps) {
+            mRemovedBitmaps.clear();
+        }
+        mRemovedDisplayedBitmaps.clear();
+        mBitmapPool.clear();
     }
 
     @Override
     public void pause() {
         mPaused = true;
+        // The views on screen will be different by the time loading resumes
+        mLoadQueue.clear();
     }
 
     @Override
@@ -566,7 +754,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 mLoadingRequested = false;
                 if (!mPaused) {
                     ensureLoaderThread();
-                    mLoaderThread.requestLoading();
+                    queuePendingRequests();
                 }
                 return true;
             }
@@ -583,10 +771,64 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
 
     public void ensureLoaderThread() {
-        if (mLoaderThread == null) {
-            mLoaderThread = new LoaderThread(mContext.getContentResolver());
-            mLoaderThread.start();
+        if (mLoaderThreads == null) {
+            mLoaderThreads = new LoaderThread[LOADER_THREAD_COUNT];
+            for (int i = 0; i < LOADER_THREAD_COUNT; i++) {
+                mLoaderThreads[i] = new LoaderThread(mContext.getContentResolver(), i);
+                mLoaderThreads[i].start();
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents of {@link #mLoadQueue} with the photos of the pending requests
+     * that still need to be loaded: first those of the views on screen, from top to
+     * bottom, then those of the views that are off screen.  Photos that were queued for
+     * views that are not in a view hierarchy anymore, such as list items that were
+     * scrolled off and recycled, are dropped.
+     */
+    private void queuePendingRequests() {
+        final HashMap<Object, LoadTask> tasks = new HashMap<Object, LoadTask>();
+        for (Map.Entry<ImageView, Request> entry : mPendingRequests.entrySet()) {
+            final ImageView view = entry.getKey();
+            final Object key = entry.getValue().getKey();
+            final int priority = getLoadPriority(view);
+            if (priority == PRIORITY_NONE) {
+                if (view.getWindowToken() == null) {
+                    view.removeOnAttachStateChangeListener(mAttachStateListener);
+                    view.addOnAttachStateChangeListener(mAttachStateListener);
+                }
+                continue;
+            }
+
+            BitmapHolder holder = mBitmapHolderCache.get(key);
+            if ((holder != null && holder.fresh) || mLoadingKeys.contains(key)) {
+                continue;
+            }
+
+            final int position = priority == PRIORITY_VISIBLE ? mVisibleRect.top : 0;
+            final LoadTask task = tasks.get(key);
+            if (task == null || task.mPriority > priority
+                    || (task.mPriority == priority && task.mPosition > position)) {
+                tasks.put(key, new LoadTask(key, priority, position));
+            }
+        }
+
+        mLoadQueue.clear();
+        mLoadQueue.addAll(tasks.values());
+        if (DEBUG) Log.d(TAG, "Queued " + tasks.size() + " of " + mPendingRequests.size());
+    }
+
+    /**
+     * Returns how urgently the photo for the view needs to be loaded, based on where the
+     * view is.
+     */
+    private int getLoadPriority(ImageView view) {
+        if (view.getParent() == null || view.getWindowToken() == null) {
+            return PRIORITY_NONE;
         }
+        return view.isShown() && view.getGlobalVisibleRect(mVisibleRect)
+                ? PRIORITY_VISIBLE : PRIORITY_HIDDEN;
     }
 
     /**
@@ -604,23 +846,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
         }
 
-        softenCache();
-
         if (!mPendingRequests.isEmpty()) {
             requestLoading();
         }
     }
 
-    /**
-     * Removes strong references to loaded bitmaps to allow them to be garbage collected
-     * if needed.  Some of the bitmaps will still be retained by {@link #mBitmapCache}.
-     */
-    private void softenCache() {
-        for (BitmapHolder holder : mBitmapHolderCache.snapshot().values()) {
-            holder.bitmap = null;
-        }
-    }
-
     /**
      * Stores the supplied bitmap in cache.
      */
@@ -642,55 +872,55 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
         // Unless this image is being preloaded, decode it right away while
         // we are still on the background thread.
-        if (!preloading) {
-            inflateBitmap(holder);
+        Bitmap bitmap = preloading ? null : decodeBitmap(bytes);
+        if (bitmap != null) {
+            mBitmapCache.put(key, bitmap);
+        } else {
+            // Do not keep the bitmap of a previous version of the photo
+            mBitmapCache.remove(key);
         }
 
         mBitmapHolderCache.put(key, holder);
+        mLoadingKeys.remove(key);
     }
 
     /**
-     * Populates an array of photo IDs that need to be loaded.
+     * A photo queued for loading, ordered by priority and then by position on screen.
      */
-    private void obtainPhotoIdsAndUrisToLoad(Set<Long> photoIds,
-            Set<String> photoIdsAsStrings, Set<Uri> uris) {
-        photoIds.clear();
-        photoIdsAsStrings.clear();
-        uris.clear();
-
-        /*
-         * Since the call is made from the loader thread, the map could be
-         * changing during the iteration. That's not really a problem:
-         * ConcurrentHashMap will allow those changes to happen without throwing
-         * exceptions. Since we may miss some requests in the situation of
-         * concurrent change, we will need to check the map again once loading
-         * is complete.
-         */
-        Iterator<Request> iterator = mPendingRequests.values().iterator();
-        while (iterator.hasNext()) {
-            Request request = iterator.next();
-            BitmapHolder holder = mBitmapHolderCache.get(request);
-            if (holder == null || !holder.fresh) {
-                if (request.isUriRequest()) {
-                    uris.add(request.mUri);
-                } else {
-                    photoIds.add(request.mId);
-                    photoIdsAsStrings.add(String.valueOf(request.mId));
-                }
+    private static final class LoadTask implements Comparable<LoadTask> {
+        final Object mKey;
+        final int mPriority;
+        final int mPosition;
+
+        public LoadTask(Object key, int priority, int position) {
+            mKey = key;
+            mPriority = priority;
+            mPosition = position;
+        }
+
+        public boolean isUriTask() {
+            return mKey instanceof Uri;
+        }
+
+        @Override
+        public int compareTo(LoadTask another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
             }
+            return mPosition < another.mPosition ? -1 : (mPosition == another.mPosition ? 0 : 1);
         }
     }
 
     /**
-     * The thread that performs loading of photos from the database.
+     * One of the threads that load photos from the database.  They take photos from
+     * {@link #mLoadQueue}, and preload photos when it has been empty for a while.
      */
-    private class LoaderThread extends HandlerThread implements Callback {
+    private class LoaderThread extends Thread {
         private static final int BUFFER_SIZE = 1024*16;
-        private static final int MESSAGE_PRELOAD_PHOTOS = 0;
-        private static final int MESSAGE_LOAD_PHOTOS = 1;
 
         /**
-         * A pause between preload batches that yields to the UI thread.
+         * How long the load queue must have been empty before a batch of photos is preloaded,
+         * to yield to the UI thread and to the photos that are displayed.
          */
         private static final int PHOTO_PRELOAD_DELAY = 1000;
 
@@ -699,6 +929,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
          */
         private static final int PRELOAD_BATCH = 25;
 
+        /**
+         * Maximum number of photos to load from the database at once, so that the most
+         * urgent photos are displayed without waiting for the others.
+         */
+        private static final int LOAD_BATCH = 8;
+
         /**
          * Maximum number of photos to preload.  If the cache size is 2Mb and
          * the expected average size of a photo is 4kb, then this number should be 2Mb/4kb = 500.
@@ -710,131 +946,112 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         private final Set<Long> mPhotoIds = Sets.newHashSet();
         private final Set<String> mPhotoIdsAsStrings = Sets.newHashSet();
         private final Set<Uri> mPhotoUris = Sets.newHashSet();
-        private final List<Long> mPreloadPhotoIds = Lists.newArrayList();
+        /** The keys of the photos taken by the current load, whether loaded or not. */
+        private final ArrayList<Object> mTaskKeys = new ArrayList<Object>();
 
-        private Handler mLoaderThreadHandler;
         private byte mBuffer[];
 
-        private static final int PRELOAD_STATUS_NOT_STARTED = 0;
-        private static final int PRELOAD_STATUS_IN_PROGRESS = 1;
-        private static final int PRELOAD_STATUS_DONE = 2;
-
-        private int mPreloadStatus = PRELOAD_STATUS_NOT_STARTED;
-
-        public LoaderThread(ContentResolver resolver) {
-            super(LOADER_THREAD_NAME);
+        public LoaderThread(ContentResolver resolver, int index) {
+            super(LOADER_THREAD_NAME + "-" + index);
             mResolver = resolver;
         }
 
-        public void ensureHandler() {
-            if (mLoaderThreadHandler == null) {
-                mLoaderThreadHandler = new Handler(getLooper(), this);
-            }
-        }
-
-        /**
-         * Kicks off preloading of the next batch of photos on the background thread.
-         * Preloading will happen after a delay: we want to yield to the UI thread
-         * as much as possible.
-         * <p>
-         * If preloading is already complete, does nothing.
-         */
-        public void requestPreloading() {
-            if (mPreloadStatus == PRELOAD_STATUS_DONE) {
-                return;
-            }
+        @Override
+        public void run() {
+            while (true) {
+                LoadTask task;
+                try {
+                    if (isPreloadingDone()) {
+                        task = mLoadQueue.take();
+                    } else {
+                        task = mLoadQueue.poll(PHOTO_PRELOAD_DELAY, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
 
-            ensureHandler();
-            if (mLoaderThreadHandler.hasMessages(MESSAGE_LOAD_PHOTOS)) {
-                return;
+                if (task == null) {
+                    preloadPhotosInBackground();
+                } else {
+                    loadPhotosInBackground(task);
+                }
             }
-
-            mLoaderThreadHandler.sendEmptyMessageDelayed(
-                    MESSAGE_PRELOAD_PHOTOS, PHOTO_PRELOAD_DELAY);
-        }
-
-        /**
-         * Sends a message to this thread to load requested photos.  Cancels a preloading
-         * request, if any: we don't want preloading to impede loading of the photos
-         * we need to display now.
-         */
-        public void requestLoading() {
-            ensureHandler();
-            mLoaderThreadHandler.removeMessages(MESSAGE_PRELOAD_PHOTOS);
-            mLoaderThreadHandler.sendEmptyMessage(MESSAGE_LOAD_PHOTOS);
         }
 
-        /**
-         * Receives the above message, loads photos and then sends a message
-         * to the main thread to process them.
-         */
-        @Override
-        public boolean handleMessage(Message msg) {
-            switch (msg.what) {
-                case MESSAGE_PRELOAD_PHOTOS:
-                    preloadPhotosInBackground();
-                    break;
-                case MESSAGE_LOAD_PHOTOS:
-                    loadPhotosInBackground();
-                    break;
+        private boolean isPreloadingDone() {
+            synchronized (mPreloadPhotoIds) {
+                return mPreloadStatus == PRELOAD_STATUS_DONE;
             }
-            return true;
         }
 
         /**
          * The first time it is called, figures out which photos need to be preloaded.
-         * Each subsequent call preloads the next batch of photos and requests
-         * another cycle of preloading after a delay.  The whole process ends when
-         * we either run out of photos to preload or fill up cache.
+         * Each subsequent call preloads the next batch of photos.  The whole process ends
+         * when we either run out of photos to preload or fill up cache.
          */
         private void preloadPhotosInBackground() {
-            if (mPreloadStatus == PRELOAD_STATUS_DONE) {
-                return;
-            }
+            mPhotoIds.clear();
+            mPhotoIdsAsStrings.clear();
 
-            if (mPreloadStatus == PRELOAD_STATUS_NOT_STARTED) {
-                queryPhotosForPreload();
-                if (mPreloadPhotoIds.isEmpty()) {
-                    mPreloadStatus = PRELOAD_STATUS_DONE;
-                } else {
-                    mPreloadStatus = PRELOAD_STATUS_IN_PROGRESS;
+            final boolean started;
+            synchronized (mPreloadPhotoIds) {
+                if (mPreloadStatus == PRELOAD_STATUS_DONE || mPreloading) {
+                    return;
                 }
-                requestPreloading();
-                return;
-            }
-
-            if (mBitmapHolderCache.size() > mBitmapHolderCacheRedZoneBytes) {
-                mPreloadStatus = PRELOAD_STATUS_DONE;
-                return;
+                mPreloading = true;
+                started = mPreloadStatus != PRELOAD_STATUS_NOT_STARTED;
             }
 
-            mPhotoIds.clear();
-            mPhotoIdsAsStrings.clear();
+            try {
+                if (!started) {
+                    queryPhotosForPreload();
+                    synchronized (mPreloadPhotoIds) {
+                        if (mPreloadPhotoIds.isEmpty()) {
+                            mPreloadStatus = PRELOAD_STATUS_DONE;
+                        } else {
+                            mPreloadStatus = PRELOAD_STATUS_IN_PROGRESS;
+                        }
+                    }
+                    return;
+                }
 
-            int count = 0;
-            int preloadSize = mPreloadPhotoIds.size();
-            while(preloadSize > 0 && mPhotoIds.size() < PRELOAD_BATCH) {
-                preloadSize--;
-                count++;
-                Long photoId = mPreloadPhotoIds.get(preloadSize);
-                mPhotoIds.add(photoId);
-                mPhotoIdsAsStrings.add(photoId.toString());
-                mPreloadPhotoIds.remove(preloadSize);
-            }
+                if (mBitmapHolderCache.size() > mBitmapHolderCacheRedZoneBytes) {
+                    synchronized (mPreloadPhotoIds) {
+                        mPreloadStatus = PRELOAD_STATUS_DONE;
+                    }
+                    return;
+                }
 
-            loadPhotosFromDatabase(true);
+                int count = 0;
+                synchronized (mPreloadPhotoIds) {
+                    int preloadSize = mPreloadPhotoIds.size();
+                    while (preloadSize > 0 && mPhotoIds.size() < PRELOAD_BATCH) {
+                        preloadSize--;
+                        count++;
+                        Long photoId = mPreloadPhotoIds.get(preloadSize);
+                        mPhotoIds.add(photoId);
+                        mPhotoIdsAsStrings.add(photoId.toString());
+                        mPreloadPhotoIds.remove(preloadSize);
+                    }
 
-            if (preloadSize == 0) {
-                mPreloadStatus = PRELOAD_STATUS_DONE;
-            }
+                    if (preloadSize == 0) {
+                        mPreloadStatus = PRELOAD_STATUS_DONE;
+                    }
+                }
 
-            Log.v(TAG, "Preloaded " + count + " photos.  Cached bytes: "
-                    + mBitmapHolderCache.size());
+                loadPhotosFromDatabase(true);
 
-            requestPreloading();
+                Log.v(TAG, "Preloaded " + count + " photos.  Cached bytes: "
+                        + mBitmapHolderCache.size());
+            } finally {
+                synchronized (mPreloadPhotoIds) {
+                    mPreloading = false;
+                }
+            }
         }
 
         private void queryPhotosForPreload() {
+            final List<Long> photoIds = Lists.newArrayList();
             Cursor cursor = null;
             try {
                 Uri uri = Contacts.CONTENT_URI.buildUpon().appendQueryParameter(
@@ -851,7 +1068,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     while (cursor.moveToNext()) {
                         // Insert them in reverse order, because we will be taking
                         // them from the end of the list for loading.
-                        mPreloadPhotoIds.add(0, cursor.getLong(0));
+                        photoIds.add(0, cursor.getLong(0));
                     }
                 }
             } finally {
@@ -859,13 +1076,51 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     cursor.close();
                 }
             }
+
+            synchronized (mPreloadPhotoIds) {
+                mPreloadPhotoIds.addAll(photoIds);
+            }
         }
 
-        private void loadPhotosInBackground() {
-            obtainPhotoIdsAndUrisToLoad(mPhotoIds, mPhotoIdsAsStrings, mPhotoUris);
-            loadPhotosFromDatabase(false);
-            loadRemotePhotos();
-            requestPreloading();
+        /**
+         * Loads the photo of the task, along with the next queued photos from the
+         * database that have the same priority.  A remote photo is loaded on its own.
+         */
+        private void loadPhotosInBackground(LoadTask task) {
+            mPhotoIds.clear();
+            mPhotoIdsAsStrings.clear();
+            mPhotoUris.clear();
+            mTaskKeys.clear();
+
+            while (task != null) {
+                mLoadingKeys.add(task.mKey);
+                mTaskKeys.add(task.mKey);
+                if (task.isUriTask()) {
+                    mPhotoUris.add((Uri) task.mKey);
+                    break;
+                }
+                mPhotoIds.add((Long) task.mKey);
+                mPhotoIdsAsStrings.add(task.mKey.toString());
+                if (mPhotoIds.size() >= LOAD_BATCH) {
+                    break;
+                }
+
+                LoadTask next = mLoadQueue.peek();
+                if (next == null || next.isUriTask() || next.mPriority != task.mPriority) {
+                    break;
+                }
+                // Another thread may have taken it meanwhile, which is fine
+                task = mLoadQueue.poll();
+            }
+
+            try {
+                loadPhotosFromDatabase(false);
+                loadRemotePhotos();
+            } finally {
+                // The loaded photos are already out of the set.  Let those that failed be
+                // requested again.
+                mLoadingKeys.removeAll(mTaskKeys);
+            }
         }
 
         private void loadPhotosFromDatabase(boolean preloading) {
@@ -875,12 +1130,16 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
             // Remove loaded photos from the preload queue: we don't want
             // the preloading process to load them again.
-            if (!preloading && mPreloadStatus == PRELOAD_STATUS_IN_PROGRESS) {
-                for (Long id : mPhotoIds) {
-                    mPreloadPhotoIds.remove(id);
-                }
-                if (mPreloadPhotoIds.isEmpty()) {
-                    mPreloadStatus = PRELOAD_STATUS_DONE;
+            if (!preloading) {
+                synchronized (mPreloadPhotoIds) {
+                    if (mPreloadStatus == PRELOAD_STATUS_IN_PROGRESS) {
+                        for (Long id : mPhotoIds) {
+                            mPreloadPhotoIds.remove(id);
+                        }
+                        if (mPreloadPhotoIds.isEmpty()) {
+                            mPreloadStatus = PRELOAD_STATUS_DONE;
+                        }
+                    }
                 }
             }
 
@@ -965,7 +1224,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                             is.close();
                         }
                         cacheBitmap(uri, baos.toByteArray(), false);
-                        mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
                     } else {
                         Log.v(TAG, "Cannot load photo " + uri);
                         cacheBitmap(uri, null, false);
@@ -974,6 +1232,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     Log.v(TAG, "Cannot load photo " + uri, ex);
                     cacheBitmap(uri, null, false);
                 }
+                mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
             }
         }
     }
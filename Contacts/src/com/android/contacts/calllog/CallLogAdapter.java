@@ -28,15 +28,19 @@ import com.android.contacts.util.ExpirableCache;
 import com.android.contacts.util.UriUtils;
 import com.google.common.annotations.VisibleForTesting;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
+import android.os.RemoteException;
+import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.PhoneLookup;
@@ -47,6 +51,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewTreeObserver;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 
 import libcore.util.Objects;
@@ -103,6 +108,9 @@ import libcore.util.Objects;
     /** The size of the cache of contact info. */
     private static final int CONTACT_INFO_CACHE_SIZE = 100;
 
+    /** The maximum number of requests looked up together and written back in one batch. */
+    private static final int MAX_REQUESTS_PER_BATCH = 32;
+
     private final Context mContext;
     private final ContactInfoHelper mContactInfoHelper;
     private final CallFetcher mCallFetcher;
@@ -352,37 +360,68 @@ import libcore.util.Objects;
     }
 
     /**
-     * Queries the appropriate content provider for the contact associated with the number.
+     * Queries the appropriate content providers for the contacts associated with the numbers of
+     * a batch of requests.
      * <p>
-     * Upon completion it also updates the cache in the call log, if it is different from
-     * {@code callLogInfo}.
+     * Upon completion it also updates the cache in the call log, with a single batch of
+     * operations for all the numbers whose contact info is different from the one in their
+     * request.
      * <p>
-     * The number might be either a SIP address or a phone number.
+     * The numbers might be either SIP addresses or phone numbers.
      * <p>
      * It returns true if it updated the content of the cache and we should therefore tell the
      * view to update its content.
      */
-    private boolean queryContactInfo(String number, String countryIso, ContactInfo callLogInfo) {
-        final ContactInfo info = mContactInfoHelper.lookupNumber(number, countryIso);
+    private boolean queryContactInfos(ArrayList<ContactInfoRequest> requests) {
+        final int count = requests.size();
+        final String[] numbers = new String[count];
+        final String[] countryIsos = new String[count];
+        for (int i = 0; i < count; i++) {
+            numbers[i] = requests.get(i).number;
+            countryIsos[i] = requests.get(i).countryIso;
+        }
+        final ContactInfo[] infos = mContactInfoHelper.lookupNumbers(numbers, countryIsos);
+
+        boolean updated = false;
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < count; i++) {
+            final ContactInfo info = infos[i];
+            if (info == null) {
+                // The lookup failed, skip it without requesting to update the view.
+                continue;
+            }
 
-        if (info == null) {
-            // The lookup failed, just return without requesting to update the view.
-            return false;
+            // Check the existing entry in the cache: only if it has changed we should update the
+            // view.
+            NumberWithCountryIso numberCountryIso =
+                    new NumberWithCountryIso(numbers[i], countryIsos[i]);
+            ContactInfo existingInfo = mContactInfoCache.getPossiblyExpired(numberCountryIso);
+            updated |= !info.equals(existingInfo);
+            // Store the data in the cache so that the UI thread can use to display it. Store it
+            // even if it has not changed so that it is marked as not expired.
+            mContactInfoCache.put(numberCountryIso, info);
+            // Update the call log even if the cache it is up-to-date: it is possible that the
+            // cache contains the value from a different call log entry.
+            ContentProviderOperation operation = getCallLogContactInfoCacheUpdate(
+                    numbers[i], countryIsos[i], info, requests.get(i).callLogInfo);
+            if (operation != null) {
+                operations.add(operation);
+            }
         }
 
-        // Check the existing entry in the cache: only if it has changed we should update the
-        // view.
-        NumberWithCountryIso numberCountryIso = new NumberWithCountryIso(number, countryIso);
-        ContactInfo existingInfo = mContactInfoCache.getPossiblyExpired(numberCountryIso);
-        boolean updated = !info.equals(existingInfo);
-        // Store the data in the cache so that the UI thread can use to display it. Store it
-        // even if it has not changed so that it is marked as not expired.
-        mContactInfoCache.put(numberCountryIso, info);
-        // Update the call log even if the cache it is up-to-date: it is possible that the cache
-        // contains the value from a different call log entry.
-        updateCallLogContactInfoCache(number, countryIso, info, callLogInfo);
+        if (!operations.isEmpty()) {
+            try {
+                mContext.getContentResolver().applyBatch(CallLog.AUTHORITY, operations);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to update the contact info cached in the call log", e);
+            } catch (OperationApplicationException e) {
+                Log.w(TAG, "Failed to update the contact info cached in the call log", e);
+            }
+        }
         return updated;
     }
+
     /*
      * Handles requests for contact name and number type
      * @see java.lang.Runnable#run()
@@ -390,11 +429,16 @@ import libcore.util.Objects;
     @Override
     public void run() {
         boolean needNotify = false;
+        final ArrayList<ContactInfoRequest> requests = new ArrayList<ContactInfoRequest>();
         while (!mDone) {
-            ContactInfoRequest request = null;
+            requests.clear();
             synchronized (mRequests) {
                 if (!mRequests.isEmpty()) {
-                    request = mRequests.removeFirst();
+                    // Drain the pending requests in batches, so that their numbers are looked up
+                    // and written back to the call log together.
+                    while (!mRequests.isEmpty() && requests.size() < MAX_REQUESTS_PER_BATCH) {
+                        requests.add(mRequests.removeFirst());
+                    }
                 } else {
                     if (needNotify) {
                         needNotify = false;
@@ -408,8 +452,7 @@ import libcore.util.Objects;
                     }
                 }
             }
-            if (!mDone && request != null
-                    && queryContactInfo(request.number, request.countryIso, request.callLogInfo)) {
+            if (!mDone && !requests.isEmpty() && queryContactInfos(requests)) {
                 needNotify = true;
             }
         }
@@ -618,9 +661,12 @@ import libcore.util.Objects;
                 && TextUtils.equals(callLogInfo.label, info.label);
     }
 
-    /** Stores the updated contact info in the call log if it is different from the current one. */
-    private void updateCallLogContactInfoCache(String number, String countryIso,
-            ContactInfo updatedInfo, ContactInfo callLogInfo) {
+    /**
+     * Returns the operation that stores the updated contact info in the call log if it is
+     * different from the current one, or null if there is nothing to update.
+     */
+    private ContentProviderOperation getCallLogContactInfoCacheUpdate(String number,
+            String countryIso, ContactInfo updatedInfo, ContactInfo callLogInfo) {
         final ContentValues values = new ContentValues();
         boolean needsUpdate = false;
 
@@ -673,18 +719,20 @@ import libcore.util.Objects;
         }
 
         if (!needsUpdate) {
-            return;
+            return null;
         }
 
+        final ContentProviderOperation.Builder builder =
+                ContentProviderOperation.newUpdate(Calls.CONTENT_URI_WITH_VOICEMAIL)
+                        .withValues(values);
         if (countryIso == null) {
-            mContext.getContentResolver().update(Calls.CONTENT_URI_WITH_VOICEMAIL, values,
-                    Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " IS NULL",
+            builder.withSelection(Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " IS NULL",
                     new String[]{ number });
         } else {
-            mContext.getContentResolver().update(Calls.CONTENT_URI_WITH_VOICEMAIL, values,
-                    Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " = ?",
+            builder.withSelection(Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " = ?",
                     new String[]{ number, countryIso });
         }
+        return builder.build();
     }
 
     /** Returns the contact information as stored in the call log. */
@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.calllog;
+
+import com.android.contacts.util.Constants;
+import com.android.contacts.util.UriUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Bundle;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Process-wide cache of the contact information looked up for phone numbers, keyed by
+ * normalized number.
+ * <p>
+ * The entries are kept in memory and written through to a small database, so that they
+ * survive the process. Numbers that did not match any contact are cached as well.
+ * <p>
+ * The cache is only valid as long as the caller ids do not change. It registers for change
+ * notifications of the contacts provider and, after one, compares the change token of the
+ * provider with the one its entries were stored under, which also covers the changes made
+ * while this process was not running. The provider only moves the token for the changes that
+ * can affect caller ids, so the entries survive presence, usage and other unrelated changes.
+ * All the entries are dropped when the token differs.
+ * <p>
+ * The entries are also served to the Phone app by {@link CallerIdProvider}.
+ * <p>
+ * The methods may access the disk or the contacts provider and must not be called from the
+ * main thread.
+ */
+public class CallerIdCache {
+    private static final String TAG = "CallerIdCache";
+
+    private static final String DATABASE_NAME = "caller_id.db";
+    // Version 2: ringtone and voicemail options
+    private static final int DATABASE_VERSION = 2;
+
+    /** The maximum number of entries, both in memory and on disk. */
+    private static final int MAX_ENTRIES = 500;
+
+    private static final String PROPERTY_CHANGE_TOKEN = "change_token";
+
+    private interface Tables {
+        static final String CALLER_ID = "caller_id";
+        static final String PROPERTIES = "properties";
+    }
+
+    private interface CallerIdColumns {
+        static final String NUMBER = "number";
+        static final String NAME = "name";
+        static final String NUMBER_TYPE = "number_type";
+        static final String NUMBER_LABEL = "number_label";
+        static final String MATCHED_NUMBER = "matched_number";
+        static final String FORMATTED_NUMBER = "formatted_number";
+        static final String NORMALIZED_NUMBER = "normalized_number";
+        static final String LOOKUP_URI = "lookup_uri";
+        static final String PHOTO_ID = "photo_id";
+        static final String PHOTO_URI = "photo_uri";
+        static final String CUSTOM_RINGTONE = "custom_ringtone";
+        static final String SEND_TO_VOICEMAIL = "send_to_voicemail";
+        static final String LAST_UPDATED = "last_updated";
+    }
+
+    private interface PropertiesColumns {
+        static final String PROPERTY_KEY = "property_key";
+        static final String PROPERTY_VALUE = "property_value";
+    }
+
+    private interface CallerIdQuery {
+        static final String[] COLUMNS = new String[] {
+                CallerIdColumns.NUMBER,
+                CallerIdColumns.NAME,
+                CallerIdColumns.NUMBER_TYPE,
+                CallerIdColumns.NUMBER_LABEL,
+                CallerIdColumns.MATCHED_NUMBER,
+                CallerIdColumns.FORMATTED_NUMBER,
+                CallerIdColumns.NORMALIZED_NUMBER,
+                CallerIdColumns.LOOKUP_URI,
+                CallerIdColumns.PHOTO_ID,
+                CallerIdColumns.PHOTO_URI,
+                CallerIdColumns.CUSTOM_RINGTONE,
+                CallerIdColumns.SEND_TO_VOICEMAIL,
+        };
+
+        static final int NUMBER = 0;
+        static final int NAME = 1;
+        static final int NUMBER_TYPE = 2;
+        static final int NUMBER_LABEL = 3;
+        static final int MATCHED_NUMBER = 4;
+        static final int FORMATTED_NUMBER = 5;
+        static final int NORMALIZED_NUMBER = 6;
+        static final int LOOKUP_URI = 7;
+        static final int PHOTO_ID = 8;
+        static final int PHOTO_URI = 9;
+        static final int CUSTOM_RINGTONE = 10;
+        static final int SEND_TO_VOICEMAIL = 11;
+    }
+
+    private static final class DatabaseHelper extends SQLiteOpenHelper {
+        public DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + Tables.CALLER_ID + " (" +
+                    CallerIdColumns.NUMBER + " TEXT PRIMARY KEY," +
+                    CallerIdColumns.NAME + " TEXT," +
+                    CallerIdColumns.NUMBER_TYPE + " INTEGER," +
+                    CallerIdColumns.NUMBER_LABEL + " TEXT," +
+                    CallerIdColumns.MATCHED_NUMBER + " TEXT," +
+                    CallerIdColumns.FORMATTED_NUMBER + " TEXT," +
+                    CallerIdColumns.NORMALIZED_NUMBER + " TEXT," +
+                    CallerIdColumns.LOOKUP_URI + " TEXT," +
+                    CallerIdColumns.PHOTO_ID + " INTEGER," +
+                    CallerIdColumns.PHOTO_URI + " TEXT," +
+                    CallerIdColumns.CUSTOM_RINGTONE + " TEXT," +
+                    CallerIdColumns.SEND_TO_VOICEMAIL + " INTEGER," +
+                    CallerIdColumns.LAST_UPDATED + " INTEGER" +
+            ");");
+            db.execSQL("CREATE TABLE " + Tables.PROPERTIES + " (" +
+                    PropertiesColumns.PROPERTY_KEY + " TEXT PRIMARY KEY," +
+                    PropertiesColumns.PROPERTY_VALUE + " TEXT" +
+            ");");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // Only a cache: start over.
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.CALLER_ID);
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.PROPERTIES);
+            onCreate(db);
+        }
+    }
+
+    private static CallerIdCache sInstance;
+
+    private final Context mContext;
+    private final DatabaseHelper mDbHelper;
+
+    /** All the entries in least recently used order, loaded from disk on first use. */
+    private final LinkedHashMap<String, ContactInfo> mEntries =
+            new LinkedHashMap<String, ContactInfo>(MAX_ENTRIES, 0.75f, true);
+    private boolean mLoaded;
+
+    /** The change token of the contacts provider the entries are valid for. */
+    private String mChangeToken;
+
+    /** Set when the contacts have changed since the change token was last checked. */
+    private volatile boolean mContactsChanged = true;
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onContactsChanged();
+        }
+    };
+
+    public static synchronized CallerIdCache getInstance(Context context) {
+        if (sInstance == null) {
+            Context applicationContext = context.getApplicationContext();
+            sInstance = new CallerIdCache(applicationContext, DATABASE_NAME);
+            applicationContext.getContentResolver().registerContentObserver(
+                    ContactsContract.AUTHORITY_URI, true, sInstance.mContactsObserver);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    /* package */ CallerIdCache(Context context, String databaseName) {
+        mContext = context;
+        mDbHelper = new DatabaseHelper(context, databaseName);
+    }
+
+    /**
+     * Marks the change token to be checked again before the entries are used.
+     */
+    /* package */ void onContactsChanged() {
+        mContactsChanged = true;
+    }
+
+    /**
+     * Makes sure the entries are still valid for the current contacts and returns the change
+     * token they are valid for, to be passed to {@link #put}. Returns null if the contacts
+     * provider could not tell, in which case the cache is empty.
+     */
+    public synchronized String validate() {
+        ensureLoaded();
+        if (!mContactsChanged) {
+            return mChangeToken;
+        }
+
+        // Clear the flag first, so that a change while reading the token is not missed.
+        mContactsChanged = false;
+        String changeToken = queryChangeToken();
+        if (changeToken == null || !changeToken.equals(mChangeToken)) {
+            mEntries.clear();
+            mChangeToken = changeToken;
+            SQLiteDatabase db = getWritableDatabase();
+            if (db != null) {
+                db.beginTransaction();
+                try {
+                    db.delete(Tables.CALLER_ID, null, null);
+                    ContentValues values = new ContentValues();
+                    values.put(PropertiesColumns.PROPERTY_KEY, PROPERTY_CHANGE_TOKEN);
+                    values.put(PropertiesColumns.PROPERTY_VALUE, changeToken);
+                    db.replace(Tables.PROPERTIES, null, values);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
+        if (changeToken == null) {
+            // Try again next time.
+            mContactsChanged = true;
+        }
+        return changeToken;
+    }
+
+    /**
+     * Returns a copy of the cached contact information for the normalized number, or null if
+     * it is not cached. Call {@link #validate} first.
+     * <p>
+     * The number and formatted number are the ones of the number that was looked up, which may
+     * have been written differently from the one the caller is looking up.
+     */
+    public synchronized ContactInfo get(String normalizedNumber) {
+        if (mChangeToken == null) {
+            return null;
+        }
+        ContactInfo info = mEntries.get(normalizedNumber);
+        return info == null ? null : copyOf(info);
+    }
+
+    /**
+     * Stores the contact information looked up for the given normalized numbers, in a single
+     * transaction.
+     *
+     * @param changeToken the token returned by {@link #validate} before the numbers were looked
+     *        up; nothing is stored if the contacts have changed since
+     * @param normalizedNumbers the numbers, null elements are skipped
+     * @param infos the contact information of each number, null elements are skipped
+     */
+    public synchronized void put(String changeToken, String[] normalizedNumbers,
+            ContactInfo[] infos) {
+        if (changeToken == null || !changeToken.equals(mChangeToken)) {
+            return;
+        }
+
+        SQLiteDatabase db = getWritableDatabase();
+        if (db == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < normalizedNumbers.length; i++) {
+                String number = normalizedNumbers[i];
+                ContactInfo info = infos[i];
+                if (number == null || info == null) {
+                    continue;
+                }
+                info = copyOf(info);
+                mEntries.put(number, info);
+
+                values.clear();
+                values.put(CallerIdColumns.NUMBER, number);
+                values.put(CallerIdColumns.NAME, info.name);
+                values.put(CallerIdColumns.NUMBER_TYPE, info.type);
+                values.put(CallerIdColumns.NUMBER_LABEL, info.label);
+                values.put(CallerIdColumns.MATCHED_NUMBER, info.number);
+                values.put(CallerIdColumns.FORMATTED_NUMBER, info.formattedNumber);
+                values.put(CallerIdColumns.NORMALIZED_NUMBER, info.normalizedNumber);
+                values.put(CallerIdColumns.LOOKUP_URI, UriUtils.uriToString(info.lookupUri));
+                values.put(CallerIdColumns.PHOTO_ID, info.photoId);
+                values.put(CallerIdColumns.PHOTO_URI, UriUtils.uriToString(info.photoUri));
+                values.put(CallerIdColumns.CUSTOM_RINGTONE, info.customRingtone);
+                values.put(CallerIdColumns.SEND_TO_VOICEMAIL, info.sendToVoicemail ? 1 : 0);
+                values.put(CallerIdColumns.LAST_UPDATED, now);
+                db.replace(Tables.CALLER_ID, null, values);
+            }
+
+            // Evict the least recently used entries.
+            Iterator<String> iterator = mEntries.keySet().iterator();
+            while (mEntries.size() > MAX_ENTRIES && iterator.hasNext()) {
+                db.delete(Tables.CALLER_ID, CallerIdColumns.NUMBER + "=?",
+                        new String[] { iterator.next() });
+                iterator.remove();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the change token of the contacts provider, or null if it cannot be read.
+     */
+    @VisibleForTesting
+    /* package */ String queryChangeToken() {
+        try {
+            Bundle result = mContext.getContentResolver().call(ContactsContract.AUTHORITY_URI,
+                    Constants.CONTACTS_CHANGE_TOKEN_METHOD, null, null);
+            return result == null ? null : result.getString(Constants.KEY_CONTACTS_CHANGE_TOKEN);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to read the contacts change token", e);
+            return null;
+        }
+    }
+
+    /**
+     * Loads the entries and the change token they were stored under from disk.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        SQLiteDatabase db = getWritableDatabase();
+        if (db == null) {
+            return;
+        }
+        Cursor cursor = db.query(Tables.PROPERTIES,
+                new String[] { PropertiesColumns.PROPERTY_VALUE },
+                PropertiesColumns.PROPERTY_KEY + "=?", new String[] { PROPERTY_CHANGE_TOKEN },
+                null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                mChangeToken = cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        cursor = db.query(Tables.CALLER_ID, CallerIdQuery.COLUMNS, null, null, null, null,
+                CallerIdColumns.LAST_UPDATED);
+        try {
+            while (cursor.moveToNext()) {
+                ContactInfo info = new ContactInfo();
+                info.name = cursor.getString(CallerIdQuery.NAME);
+                info.type = cursor.getInt(CallerIdQuery.NUMBER_TYPE);
+                info.label = cursor.getString(CallerIdQuery.NUMBER_LABEL);
+                info.number = cursor.getString(CallerIdQuery.MATCHED_NUMBER);
+                info.formattedNumber = cursor.getString(CallerIdQuery.FORMATTED_NUMBER);
+                info.normalizedNumber = cursor.getString(CallerIdQuery.NORMALIZED_NUMBER);
+                info.lookupUri =
+                        UriUtils.parseUriOrNull(cursor.getString(CallerIdQuery.LOOKUP_URI));
+                info.photoId = cursor.getLong(CallerIdQuery.PHOTO_ID);
+                info.photoUri = UriUtils.parseUriOrNull(cursor.getString(CallerIdQuery.PHOTO_URI));
+                info.customRingtone = cursor.getString(CallerIdQuery.CUSTOM_RINGTONE);
+                info.sendToVoicemail = cursor.getInt(CallerIdQuery.SEND_TO_VOICEMAIL) != 0;
+                mEntries.put(cursor.getString(CallerIdQuery.NUMBER), info);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private SQLiteDatabase getWritableDatabase() {
+        try {
+            return mDbHelper.getWritableDatabase();
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Failed to open the caller id cache", e);
+            return null;
+        }
+    }
+
+    private static ContactInfo copyOf(ContactInfo info) {
+        ContactInfo copy = new ContactInfo();
+        copy.lookupUri = info.lookupUri;
+        copy.name = info.name;
+        copy.type = info.type;
+        copy.label = info.label;
+        copy.number = info.number;
+        copy.formattedNumber = info.formattedNumber;
+        copy.normalizedNumber = info.normalizedNumber;
+        copy.photoId = info.photoId;
+        copy.photoUri = info.photoUri;
+        copy.customRingtone = info.customRingtone;
+        copy.sendToVoicemail = info.sendToVoicemail;
+        return copy;
+    }
+
+    /**
+     * Closes the database, for tests.
+     */
+    @VisibleForTesting
+    /* package */ synchronized void close() {
+        mDbHelper.close();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.calllog;
+
+import com.android.contacts.ContactsUtils;
+
+import android.content.ContentProvider;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract.PhoneLookup;
+
+import java.util.List;
+
+/**
+ * Read-only access to the {@link CallerIdCache} for other processes, so that the Phone app can
+ * show an incoming call without waiting for a contacts lookup.
+ * <p>
+ * {@code content://com.android.contacts.callerid/lookup/<number>} returns the contact the
+ * number was last looked up to, with the same columns as {@link PhoneLookup}. The cursor is
+ * empty if the number is not cached or did not match any contact: this never looks the number
+ * up in the contacts provider, the caller is expected to do so instead.
+ * <p>
+ * Reading requires the READ_CONTACTS permission, see the manifest.
+ */
+public class CallerIdProvider extends ContentProvider {
+    public static final String AUTHORITY = "com.android.contacts.callerid";
+
+    private static final String[] COLUMNS = new String[] {
+            PhoneLookup._ID,
+            PhoneLookup.DISPLAY_NAME,
+            PhoneLookup.TYPE,
+            PhoneLookup.LABEL,
+            PhoneLookup.NUMBER,
+            PhoneLookup.NORMALIZED_NUMBER,
+            PhoneLookup.PHOTO_ID,
+            PhoneLookup.LOOKUP_KEY,
+            PhoneLookup.PHOTO_URI,
+            PhoneLookup.CUSTOM_RINGTONE,
+            PhoneLookup.SEND_TO_VOICEMAIL,
+    };
+
+    private static final int LOOKUP = 1;
+
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    static {
+        sUriMatcher.addURI(AUTHORITY, "lookup/*", LOOKUP);
+    }
+
+    @Override
+    public boolean onCreate() {
+        // The cache is only opened on the first lookup.
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        if (sUriMatcher.match(uri) != LOOKUP) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        if (projection == null) {
+            projection = COLUMNS;
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+
+        String key = ContactInfoHelper.getCacheKey(uri.getLastPathSegment(),
+                ContactsUtils.getCurrentCountryIso(getContext()));
+        if (key == null) {
+            return cursor;
+        }
+        CallerIdCache cache = CallerIdCache.getInstance(getContext());
+        cache.validate();
+        ContactInfo info = cache.get(key);
+        if (info == null || info.lookupUri == null) {
+            return cursor;
+        }
+
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            row[i] = getColumnValue(info, projection[i]);
+        }
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    private static Object getColumnValue(ContactInfo info, String column) {
+        if (PhoneLookup._ID.equals(column)) {
+            return ContentUris.parseId(info.lookupUri);
+        } else if (PhoneLookup.DISPLAY_NAME.equals(column)) {
+            return info.name;
+        } else if (PhoneLookup.TYPE.equals(column)) {
+            return info.type;
+        } else if (PhoneLookup.LABEL.equals(column)) {
+            return info.label;
+        } else if (PhoneLookup.NUMBER.equals(column)) {
+            return info.number;
+        } else if (PhoneLookup.NORMALIZED_NUMBER.equals(column)) {
+            return info.normalizedNumber;
+        } else if (PhoneLookup.PHOTO_ID.equals(column)) {
+            return info.photoId;
+        } else if (PhoneLookup.LOOKUP_KEY.equals(column)) {
+            // content://com.android.contacts/contacts/lookup/<key>/<id>
+            List<String> segments = info.lookupUri.getPathSegments();
+            return segments.size() >= 4 ? segments.get(2) : null;
+        } else if (PhoneLookup.PHOTO_URI.equals(column)) {
+            return info.photoUri == null ? null : info.photoUri.toString();
+        } else if (PhoneLookup.CUSTOM_RINGTONE.equals(column)) {
+            return info.customRingtone;
+        } else if (PhoneLookup.SEND_TO_VOICEMAIL.equals(column)) {
+            return info.sendToVoicemail ? 1 : 0;
+        }
+        throw new IllegalArgumentException("Unknown column " + column);
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("The caller id cache is read-only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("The caller id cache is read-only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("The caller id cache is read-only");
+    }
+}
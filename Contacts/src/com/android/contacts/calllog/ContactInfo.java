@@ -36,6 +36,12 @@ public final class ContactInfo {
     public long photoId;
     /** The high-res photo for the contact, if available. */
     public Uri photoUri;
+    /**
+     * The ringtone and voicemail options of the contact.  Not shown in the Call Log, only kept
+     * for the other users of the {@link CallerIdCache}, and not compared by {@link #equals}.
+     */
+    public String customRingtone;
+    public boolean sendToVoicemail;
 
     public static ContactInfo EMPTY = new ContactInfo();
 
@@ -21,11 +21,15 @@ import com.android.contacts.util.UriUtils;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 /**
  * Utility class to look up the contact information for a given number.
  */
@@ -50,6 +54,14 @@ public class ContactInfoHelper {
      * @param countryIso the country associated with this number
      */
     public ContactInfo lookupNumber(String number, String countryIso) {
+        return lookupNumbers(new String[] { number }, new String[] { countryIso })[0];
+    }
+
+    /**
+     * Looks up the contact information for the given number in the contacts provider, without
+     * going through the {@link CallerIdCache}. Returns the same as {@link #lookupNumber}.
+     */
+    private ContactInfo queryContactInfo(String number, String countryIso) {
         final ContactInfo info;
 
         // Determine the contact info.
@@ -94,6 +106,156 @@ public class ContactInfoHelper {
         return updatedInfo;
     }
 
+    /**
+     * Returns the contact information for each of the given numbers, in the same order.
+     * <p>
+     * Phone numbers are first looked up in the {@link CallerIdCache}. Those which are not cached
+     * and can be formatted to E164, using the current country if theirs is not known, are then
+     * resolved all together, with a single query matching their normalized form. A number which
+     * matches no phone that way is taken as not matching any contact, without looking it up
+     * again. Only the numbers that cannot be normalized, including SIP addresses, are looked up
+     * one at a time.
+     * <p>
+     * An element is null if the lookup of the corresponding number failed.
+     *
+     * @param numbers the numbers to look up
+     * @param countryIsos the countries associated with these numbers
+     */
+    public ContactInfo[] lookupNumbers(String[] numbers, String[] countryIsos) {
+        final ContactInfo[] infos = new ContactInfo[numbers.length];
+        final CallerIdCache cache = CallerIdCache.getInstance(mContext);
+        final String changeToken = cache.validate();
+        final String[] cacheKeys = new String[numbers.length];
+        for (int i = 0; i < numbers.length; i++) {
+            cacheKeys[i] = getCacheKey(numbers[i], countryIsos[i]);
+            ContactInfo cachedInfo = cacheKeys[i] == null ? null : cache.get(cacheKeys[i]);
+            if (cachedInfo != null) {
+                if (cachedInfo.lookupUri == null) {
+                    // Did not match a contact, use the number as it was given.
+                    cachedInfo.number = numbers[i];
+                }
+                if (cachedInfo.formattedNumber != null) {
+                    cachedInfo.formattedNumber =
+                            formatPhoneNumber(numbers[i], null, countryIsos[i]);
+                }
+                infos[i] = cachedInfo;
+                // Already cached, no need to store it again.
+                cacheKeys[i] = null;
+            }
+        }
+
+        final HashMap<String, ArrayList<Integer>> indexesByNumberE164 =
+                new HashMap<String, ArrayList<Integer>>();
+        for (int i = 0; i < numbers.length; i++) {
+            if (infos[i] != null || TextUtils.isEmpty(numbers[i])
+                    || PhoneNumberUtils.isUriNumber(numbers[i])) {
+                continue;
+            }
+            String numberE164 = PhoneNumberUtils.formatNumberToE164(numbers[i],
+                    TextUtils.isEmpty(countryIsos[i]) ? mCurrentCountryIso : countryIsos[i]);
+            if (TextUtils.isEmpty(numberE164)) {
+                continue;
+            }
+            ArrayList<Integer> indexes = indexesByNumberE164.get(numberE164);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                indexesByNumberE164.put(numberE164, indexes);
+            }
+            indexes.add(i);
+        }
+
+        if (!indexesByNumberE164.isEmpty()
+                && queryContactInfosForNumbersE164(numbers, countryIsos, indexesByNumberE164,
+                        infos)) {
+            for (ArrayList<Integer> indexes : indexesByNumberE164.values()) {
+                for (int index : indexes) {
+                    if (infos[index] == null) {
+                        // Did not match a contact.
+                        ContactInfo info = new ContactInfo();
+                        info.number = numbers[index];
+                        info.formattedNumber =
+                                formatPhoneNumber(numbers[index], null, countryIsos[index]);
+                        infos[index] = info;
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < numbers.length; i++) {
+            if (infos[i] == null) {
+                infos[i] = queryContactInfo(numbers[i], countryIsos[i]);
+            }
+        }
+
+        cache.put(changeToken, cacheKeys, infos);
+        return infos;
+    }
+
+    /**
+     * Returns the key of the given number in the {@link CallerIdCache}: its E164 form if it has
+     * one, or else its normalized form. Returns null for SIP addresses, which are not cached.
+     */
+    /* package */ static String getCacheKey(String number, String countryIso) {
+        if (TextUtils.isEmpty(number) || PhoneNumberUtils.isUriNumber(number)) {
+            return null;
+        }
+        if (!TextUtils.isEmpty(countryIso)) {
+            String numberE164 = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+            if (!TextUtils.isEmpty(numberE164)) {
+                return numberE164;
+            }
+        }
+        String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+        return TextUtils.isEmpty(normalizedNumber) ? null : normalizedNumber;
+    }
+
+    /**
+     * Fills in the contact information of the numbers whose E164 form matches the normalized
+     * number of a phone data row. Numbers that do not match any row are left untouched.
+     *
+     * @param indexesByNumberE164 the indexes in {@code numbers} of each E164 number to look up
+     * @return false if the query failed
+     */
+    private boolean queryContactInfosForNumbersE164(String[] numbers, String[] countryIsos,
+            HashMap<String, ArrayList<Integer>> indexesByNumberE164, ContactInfo[] infos) {
+        final String[] selectionArgs = indexesByNumberE164.keySet().toArray(
+                new String[indexesByNumberE164.size()]);
+        final StringBuilder selection = new StringBuilder();
+        selection.append(Phone.NORMALIZED_NUMBER).append(" IN (");
+        for (int i = 0; i < selectionArgs.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(")");
+
+        Cursor phonesCursor = mContext.getContentResolver().query(Phone.CONTENT_URI,
+                PhoneQuery._DATA_PROJECTION, selection.toString(), selectionArgs, null);
+        if (phonesCursor == null) {
+            // Failed to fetch the data, the numbers will be looked up one at a time instead.
+            return false;
+        }
+        try {
+            while (phonesCursor.moveToNext()) {
+                ArrayList<Integer> indexes = indexesByNumberE164.get(
+                        phonesCursor.getString(PhoneQuery.NORMALIZED_NUMBER));
+                if (indexes == null) {
+                    continue;
+                }
+                for (int index : indexes) {
+                    // Keep the first contact found for a number, as a single lookup would.
+                    if (infos[index] == null) {
+                        ContactInfo info = getContactInfo(phonesCursor);
+                        info.formattedNumber =
+                                formatPhoneNumber(numbers[index], null, countryIsos[index]);
+                        infos[index] = info;
+                    }
+                }
+            }
+        } finally {
+            phonesCursor.close();
+        }
+        return true;
+    }
+
     /**
      * Looks up a contact using the given URI.
      * <p>
@@ -112,19 +274,7 @@ public class ContactInfoHelper {
         if (phonesCursor != null) {
             try {
                 if (phonesCursor.moveToFirst()) {
-                    info = new ContactInfo();
-                    long contactId = phonesCursor.getLong(PhoneQuery.PERSON_ID);
-                    String lookupKey = phonesCursor.getString(PhoneQuery.LOOKUP_KEY);
-                    info.lookupUri = Contacts.getLookupUri(contactId, lookupKey);
-                    info.name = phonesCursor.getString(PhoneQuery.NAME);
-                    info.type = phonesCursor.getInt(PhoneQuery.PHONE_TYPE);
-                    info.label = phonesCursor.getString(PhoneQuery.LABEL);
-                    info.number = phonesCursor.getString(PhoneQuery.MATCHED_NUMBER);
-                    info.normalizedNumber = phonesCursor.getString(PhoneQuery.NORMALIZED_NUMBER);
-                    info.photoId = phonesCursor.getLong(PhoneQuery.PHOTO_ID);
-                    info.photoUri =
-                            UriUtils.parseUriOrNull(phonesCursor.getString(PhoneQuery.PHOTO_URI));
-                    info.formattedNumber = null;
+                    info = getContactInfo(phonesCursor);
                 } else {
                     info = ContactInfo.EMPTY;
                 }
@@ -138,6 +288,28 @@ public class ContactInfoHelper {
         return info;
     }
 
+    /**
+     * Returns the contact information in the current row of a cursor with the columns of
+     * {@link PhoneQuery#_PROJECTION}, without a formatted number.
+     */
+    private ContactInfo getContactInfo(Cursor phonesCursor) {
+        ContactInfo info = new ContactInfo();
+        long contactId = phonesCursor.getLong(PhoneQuery.PERSON_ID);
+        String lookupKey = phonesCursor.getString(PhoneQuery.LOOKUP_KEY);
+        info.lookupUri = Contacts.getLookupUri(contactId, lookupKey);
+        info.name = phonesCursor.getString(PhoneQuery.NAME);
+        info.type = phonesCursor.getInt(PhoneQuery.PHONE_TYPE);
+        info.label = phonesCursor.getString(PhoneQuery.LABEL);
+        info.number = phonesCursor.getString(PhoneQuery.MATCHED_NUMBER);
+        info.normalizedNumber = phonesCursor.getString(PhoneQuery.NORMALIZED_NUMBER);
+        info.photoId = phonesCursor.getLong(PhoneQuery.PHOTO_ID);
+        info.photoUri = UriUtils.parseUriOrNull(phonesCursor.getString(PhoneQuery.PHOTO_URI));
+        info.customRingtone = phonesCursor.getString(PhoneQuery.CUSTOM_RINGTONE);
+        info.sendToVoicemail = phonesCursor.getInt(PhoneQuery.SEND_TO_VOICEMAIL) != 0;
+        info.formattedNumber = null;
+        return info;
+    }
+
     /**
      * Determines the contact information for the given SIP address.
      * <p>
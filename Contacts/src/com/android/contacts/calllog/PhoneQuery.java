@@ -16,6 +16,7 @@
 
 package com.android.contacts.calllog;
 
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.PhoneLookup;
 
 /**
@@ -31,7 +32,26 @@ final class PhoneQuery {
             PhoneLookup.NORMALIZED_NUMBER,
             PhoneLookup.PHOTO_ID,
             PhoneLookup.LOOKUP_KEY,
-            PhoneLookup.PHOTO_URI};
+            PhoneLookup.PHOTO_URI,
+            PhoneLookup.CUSTOM_RINGTONE,
+            PhoneLookup.SEND_TO_VOICEMAIL};
+
+    /**
+     * The same columns as {@link #_PROJECTION}, in the same order, for querying phone data rows
+     * directly when looking up several numbers at once.
+     */
+    public static final String[] _DATA_PROJECTION = new String[] {
+            Phone.CONTACT_ID,
+            Phone.DISPLAY_NAME,
+            Phone.TYPE,
+            Phone.LABEL,
+            Phone.NUMBER,
+            Phone.NORMALIZED_NUMBER,
+            Phone.PHOTO_ID,
+            Phone.LOOKUP_KEY,
+            Phone.PHOTO_URI,
+            Phone.CUSTOM_RINGTONE,
+            Phone.SEND_TO_VOICEMAIL};
 
     public static final int PERSON_ID = 0;
     public static final int NAME = 1;
@@ -42,4 +62,6 @@ final class PhoneQuery {
     public static final int PHOTO_ID = 6;
     public static final int LOOKUP_KEY = 7;
     public static final int PHOTO_URI = 8;
+    public static final int CUSTOM_RINGTONE = 9;
+    public static final int SEND_TO_VOICEMAIL = 10;
 }
\ No newline at end of file
@@ -47,7 +47,6 @@ import android.widget.TextView;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
 
 import com.android.contacts.ContactPhotoManager;
 import com.android.contacts.editor.AggregationSuggestionEngine.RawContact;
@@ -80,6 +79,7 @@ public class FilteredPhoneNumberAdapter extends CursorAdapter{
             Phone.PHOTO_ID,                     // 6
             Phone.DISPLAY_NAME_PRIMARY,         // 7
             Phone.SORT_KEY_PRIMARY,             // 8
+            Phone.TIMES_CONTACTED,              // 9
         };
 
         private static final String[] PROJECTION_ALTERNATIVE = new String[] {
@@ -92,6 +92,7 @@ public class FilteredPhoneNumberAdapter extends CursorAdapter{
             Phone.PHOTO_ID,                     // 6
             Phone.DISPLAY_NAME_ALTERNATIVE,     // 7
             Phone.SORT_KEY_ALTERNATIVE,         // 8
+            Phone.TIMES_CONTACTED,              // 9
         };
 
         public static final int PHONE_ID           = 0;
@@ -103,6 +104,7 @@ public class FilteredPhoneNumberAdapter extends CursorAdapter{
         public static final int PHONE_PHOTO_ID     = 6;
         public static final int PHONE_DISPLAY_NAME = 7;
         public static final int PHONE_SORT_KEY     = 8;
+        public static final int PHONE_TIMES_CONTACTED = 9;
     }
 
     private final CharSequence mUnknownNameText;
@@ -185,9 +187,6 @@ public class FilteredPhoneNumberAdapter extends CursorAdapter{
     }
 
     public void configureLoader(CursorLoader loader, long directoryId) {
-        configureLoader(loader, directoryId, null);
-    }
-    public void configureLoader(CursorLoader loader, long directoryId, Set<Long> ids) {
         Uri uri;
 
         mDirectoryId = directoryId;
@@ -202,12 +201,7 @@ public class FilteredPhoneNumberAdapter extends CursorAdapter{
                 .appendQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY,
                         String.valueOf(Directory.DEFAULT)).build();
 
-        if (ids == null) {
-            configureSelection(loader, directoryId, getContactFilter());
-        } else {
-            configureSelectionWithContactIds(loader, directoryId,
-                    getContactFilter(), ids);
-        }
+        configureSelection(loader, directoryId, getContactFilter());
 
         // Remove duplicates when it is possible.
         uri = uri.buildUpon()
@@ -216,11 +210,7 @@ public class FilteredPhoneNumberAdapter extends CursorAdapter{
         loader.setUri(uri);
 
         // TODO a projection that includes the search snippet
-        if (getContactNameDisplayOrder() == ContactsContract.Preferences.DISPLAY_ORDER_PRIMARY) {
-            loader.setProjection(PhoneQuery.PROJECTION_PRIMARY);
-        } else {
-            loader.setProjection(PhoneQuery.PROJECTION_ALTERNATIVE);
-        }
+        loader.setProjection(getProjection());
 
         if (getSortOrder() == ContactsContract.Preferences.SORT_ORDER_PRIMARY) {
             loader.setSortOrder(Phone.SORT_KEY_PRIMARY);
@@ -229,69 +219,17 @@ public class FilteredPhoneNumberAdapter extends CursorAdapter{
         }
     }
 
-    private void configureSelectionWithContactIds(
-            CursorLoader loader, long directoryId, ContactListFilter filter, Set<Long> ids) {
-        if (ids == null) {
-            throw new IllegalArgumentException("Contact ids should not be null.");
-        }
-
-        if (filter == null || directoryId != Directory.DEFAULT) {
-            return;
-        }
-
-        final StringBuilder selection = new StringBuilder();
-        final List<String> selectionArgs = new ArrayList<String>();
-
-        switch (filter.filterType) {
-            case ContactListFilter.FILTER_TYPE_CUSTOM: {
-                selection.append(Contacts.IN_VISIBLE_GROUP + "=1");
-                selection.append(" AND " + Contacts.HAS_PHONE_NUMBER + "=1");
-                break;
-            }
-            case ContactListFilter.FILTER_TYPE_ACCOUNT: {
-                selection.append("(");
-
-                selection.append(RawContacts.ACCOUNT_TYPE + "=?"
-                        + " AND " + RawContacts.ACCOUNT_NAME + "=?");
-                selectionArgs.add(filter.accountType);
-                selectionArgs.add(filter.accountName);
-                if (filter.dataSet != null) {
-                    selection.append(" AND " + RawContacts.DATA_SET + "=?");
-                    selectionArgs.add(filter.dataSet);
-                } else {
-                    selection.append(" AND " + RawContacts.DATA_SET + " IS NULL");
-                }
-                selection.append(")");
-                break;
-            }
-            default:
-                Log.w(TAG, "Unsupported filter type came " +
-                        "(type: " + filter.filterType + ", toString: " + filter + ")" +
-                        " showing all contacts.");
-                // No selection.
-                break;
-        }
-
-        if (filter.filterType == ContactListFilter.FILTER_TYPE_CUSTOM 
-                || filter.filterType == ContactListFilter.FILTER_TYPE_ACCOUNT) {
-            selection.append(" AND ");
-        }
-        selection.append(Phone._ID + " IN (");
-        for (Long id : ids) {
-            selection.append(id).append(',');
-        }
-        if (ids.size() > 0) {
-            selection.delete(selection.length() - 1, selection.length());
-        }
-        selection.append(")");
-
-        if (DEBUG) {
-            Log.i(TAG, "selection is : " + selection);
+    /**
+     * Returns the columns of {@link PhoneQuery} for the current display order.
+     */
+    public String[] getProjection() {
+        if (getContactNameDisplayOrder() == ContactsContract.Preferences.DISPLAY_ORDER_PRIMARY) {
+            return PhoneQuery.PROJECTION_PRIMARY;
+        } else {
+            return PhoneQuery.PROJECTION_ALTERNATIVE;
         }
-        loader.setSelection(selection.toString());
-        loader.setSelectionArgs(selectionArgs.toArray(new String[0]));
     }
-    
+
     private void configureSelection(
             CursorLoader loader, long directoryId, ContactListFilter filter) {
         if (filter == null || directoryId != Directory.DEFAULT) {
@@ -96,7 +96,11 @@ public class FilteredResultsFragment extends Fragment implements ViewPagerVisibi
      * Used with LoaderManager.
      */
     private static int LOADER_ID_PHONE_NUMBER = 1;
-    private static int LOADER_ID_RESULT_CONTACTS = 2;
+
+    /**
+     * Maximum number of phone numbers shown for a query.
+     */
+    private static final int MAX_SEARCH_RESULTS = 50;
 
     private static final String KEY_FILTER = "filter";
 
@@ -106,45 +110,6 @@ public class FilteredResultsFragment extends Fragment implements ViewPagerVisibi
         public void onContactSelected(Uri contactUri);
     }
 
-    private HashMap<Long, String> mResult;
-
-    //TODO
-    private class ResultContactsLoaderListener implements LoaderManager.LoaderCallbacks<Cursor> {
-        @Override
-        public CursorLoader onCreateLoader(int id, Bundle args) {
-            if (DEBUG_LOAD) {
-                Log.d(TAG, "ResultContactsLoaderListener#onCreateLoader");
-            }
-            CursorLoader loader = new CursorLoader(getActivity(), null, null, null, null, null);
-            mPhoneNumberAdapter.configureLoader(loader, Directory.DEFAULT, (mResult == null) ? null : mResult.keySet());
-            mPhoneNumberAdapter.setId2Match(mResult);
-            mResult = null;
-            return loader;
-        }
-
-        @Override
-        public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-            if (DEBUG_LOAD) {
-                Log.d(TAG, "ResultContactsLoaderListener#onLoadFinished");
-            }
-            if (data != null) {
-            	Log.i(TAG, "cursor.count = " + data.getCount() + data);
-            } else {
-            	Log.i(TAG, "cursor is null!!!");
-            }
-            
-            mPatternAndResultHelper.loadPhoneNumberRefInfos(data, true);
-            mPhoneNumberAdapter.changeCursor(data);
-        }
-
-        @Override
-        public void onLoaderReset(Loader<Cursor> loader) {
-            if (DEBUG_LOAD) {
-                Log.d(TAG, "ResultContactsLoaderListener#onLoaderReset. ");
-            }
-        }
-    }
-
     private class PhoneNumberLoaderListener implements LoaderManager.LoaderCallbacks<Cursor> {
         @Override
         public Loader<Cursor> onCreateLoader(int id, Bundle args) {
@@ -162,7 +127,8 @@ public class FilteredResultsFragment extends Fragment implements ViewPagerVisibi
                 Log.d(TAG, "PhoneNumberLoaderListener#onLoadFinished");
             }
 
-            mPatternAndResultHelper.loadPhoneNumberRefInfos(data, false);
+            // Names that did not change keep their index.
+            mPatternAndResultHelper.loadPhoneNumberRefInfos(data, true);
 
             startSearchTask(mQueryString, true);
         }
@@ -183,30 +149,36 @@ public class FilteredResultsFragment extends Fragment implements ViewPagerVisibi
         if (mSearchTask != null) {
             mSearchTask.cancel(mayInterruptIfRunning);
         }
-        mSearchTask = new SearchTask();
+        mSearchTask = new SearchTask(mPhoneNumberAdapter.getProjection());
         mSearchTask.execute(mQueryString);
     }
-    class SearchTask extends AsyncTask<String, Void, HashMap<Long, String>> {
+
+    /**
+     * Searches the cached phone numbers and shows the best matches, straight from the cache.
+     */
+    class SearchTask extends AsyncTask<String, Void, Cursor> {
+        private final String[] mProjection;
+        private HashMap<Long, String> mMatches;
+
+        public SearchTask(String[] projection) {
+            mProjection = projection;
+        }
+
         @Override
         protected void onPreExecute() {
             super.onPreExecute();
         }
 
         @Override
-        protected void onPostExecute(HashMap<Long, String> result) {
+        protected void onPostExecute(Cursor result) {
             if (DEBUG_LOAD) {
                 Log.i(TAG, "onPostExecute().");
             }
-            mResult = result;
-            //start result query.
-            if (mResultContactsLoaderStarted) {
-                getLoaderManager().restartLoader(
-                        LOADER_ID_RESULT_CONTACTS, null, mResultContactsLoaderListener);
-            } else {
-                getLoaderManager().initLoader(
-                        LOADER_ID_RESULT_CONTACTS, null, mResultContactsLoaderListener);
+            if (result == null) {
+                return;
             }
-            mResultContactsLoaderStarted = true;
+            mPhoneNumberAdapter.setId2Match(mMatches);
+            mPhoneNumberAdapter.changeCursor(result);
         }
 
         @Override
@@ -215,7 +187,7 @@ public class FilteredResultsFragment extends Fragment implements ViewPagerVisibi
         }
 
         @Override
-        protected HashMap<Long, String> doInBackground(String... params) {
+        protected Cursor doInBackground(String... params) {
             if (DEBUG_LOAD) {
                 Log.i(TAG, "doInBackground().");
             }
@@ -223,12 +195,15 @@ public class FilteredResultsFragment extends Fragment implements ViewPagerVisibi
             if (DEBUG_LOAD) {
                 Log.i(TAG, "query is " + query);
             }
-            if (mPatternAndResultHelper == null || TextUtils.isEmpty(query)) {
-                Log.e(TAG, "Cache is null or query key is null.");
+            if (mPatternAndResultHelper == null) {
+                Log.e(TAG, "Cache is null.");
                 return null;
             }
-            return mPatternAndResultHelper.search(
-                    mPatternAndResultHelper.getCachedInfos(), query);
+            // Without a query all numbers are listed in the order of the contact list.
+            PatternAndResultHelper.SearchResult result = mPatternAndResultHelper.search(query);
+            mMatches = result.getMatches();
+            return result.newCursor(mProjection, TextUtils.isEmpty(query)
+                    ? result.getCount() : MAX_SEARCH_RESULTS);
         }
     };
 
@@ -258,8 +233,6 @@ public class FilteredResultsFragment extends Fragment implements ViewPagerVisibi
      * true when the loader for {@link FilteredPhoneNumberAdapter} has started already.
      */
     private boolean mPhoneNumberLoaderStarted;
-    
-    private boolean mResultContactsLoaderStarted;
     /**
      * true when the loader for {@link FilteredPhoneNumberAdapter} must reload "all" contacts again.
      * It typically happens when {@link ContactsPreferences} has changed its settings
@@ -282,8 +255,6 @@ public class FilteredResultsFragment extends Fragment implements ViewPagerVisibi
 
     private final LoaderManager.LoaderCallbacks<Cursor> mPhoneNumberLoaderListener =
             new PhoneNumberLoaderListener();
-    private final LoaderManager.LoaderCallbacks<Cursor> mResultContactsLoaderListener =
-            new ResultContactsLoaderListener();
     private final OnClickListener mFilterHeaderClickListener = new FilterHeaderClickListener();
     private final ContactsPreferenceChangeListener mContactsPreferenceChangeListener =
             new ContactsPreferenceChangeListener();
@@ -346,7 +317,10 @@ public class FilteredResultsFragment extends Fragment implements ViewPagerVisibi
         mQueryString = newText;
 
         refreshData();
-        if (newText != null && oldText != null && newText.startsWith(oldText)) {
+        // Typing or deleting digits narrows or widens the current query session, which needs
+        // no reload of the phone numbers.
+        if (newText != null && oldText != null
+                && (newText.startsWith(oldText) || oldText.startsWith(newText))) {
             mSearchFromResultNeeded = true;
         } else {
             mPhoneNumberForceReload = true;
@@ -1,9 +1,11 @@
 package com.android.contacts.list;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.PriorityQueue;
 
 import com.android.contacts.list.FilteredPhoneNumberAdapter.PhoneQuery;
 import com.android.contacts.util.Constants;
@@ -11,6 +13,7 @@ import com.android.contacts.util.SimpleHanziToPinyin;
 import com.android.contacts.util.SimpleHanziToPinyin.Token;
 
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -21,7 +24,11 @@ public class PatternAndResultHelper {
 
     private HashMap<Long, PhoneNumberRefInfo> mPhoneNumberRefInfos = new HashMap<Long, PhoneNumberRefInfo>();
     private HashMap<Long, PhoneNumberRefInfo> mOldInfos;
-    private HashMap<Long, String> mResultCache = new HashMap<Long, String>();
+
+    // State of the query session, see search(String).
+    private HashMap<Long, PhoneNumberRefInfo> mSessionInfos;
+    private final ArrayList<SearchResult> mSessionSteps = new ArrayList<SearchResult>();
+    private final int[] mMatchEnd = new int[1];
 
     private Object mLock = new Object();
 
@@ -38,6 +45,17 @@ public class PatternAndResultHelper {
         "9wxyz"
 	};
 
+    private static final char[] LETTER_TO_NUMBER = new char[26];
+
+    static {
+        for (int i = 0; i < NUMBER_TO_LETTER.length; i++) {
+            String letters = NUMBER_TO_LETTER[i];
+            for (int j = 1; j < letters.length(); j++) {
+                LETTER_TO_NUMBER[letters.charAt(j) - 'a'] = letters.charAt(0);
+            }
+        }
+    }
+
     public PatternAndResultHelper() {
     }
 
@@ -47,58 +65,297 @@ public class PatternAndResultHelper {
         }
     }
 
-    public HashMap<Long, String> search(
-            HashMap<Long, PhoneNumberRefInfo> infos, String key) {
-        HashMap<Long, String> result = mResultCache;
-        result.clear();
-
-        if (TextUtils.isEmpty(key)) {
-            if (DEBUG) {
-                Log.w(TAG, "key is null.");
-            }
-            return result;
+    /**
+     * Searches the cached numbers for the key as part of a query session. If the key extends
+     * the one searched before, only the numbers that matched that one are searched again, and
+     * if the key was searched earlier in the session its result is returned as it was.
+     * The session restarts when the cached numbers are reloaded.
+     * <p>
+     * An empty key matches all numbers. Returned results are not changed by later searches.
+     */
+    public SearchResult search(String key) {
+        final HashMap<Long, PhoneNumberRefInfo> infos = getCachedInfos();
+        if (infos != mSessionInfos || TextUtils.isEmpty(key)) {
+            mSessionInfos = infos;
+            mSessionSteps.clear();
         }
-
         if (infos == null || infos.size() <= 0) {
             if (DEBUG) {
                 Log.w(TAG, "cache infos is null or 0 size.");
             }
+            return new SearchResult("", 0);
+        }
+        if (TextUtils.isEmpty(key)) {
+            // Nothing matched, so the numbers keep the order of the contact list
+            SearchResult result = new SearchResult("", infos.size());
+            for (PhoneNumberRefInfo info : infos.values()) {
+                result.add(info, -1, rankBySortIndex(info), null);
+            }
             return result;
         }
 
-        key = key.toLowerCase();
-
         long start = System.currentTimeMillis();
 
-        // setup pattern.
-        String lettersPatternString = createLetterPatternFromKey(key);
-        String keyWithoutBlank = removeAll(key, ' ');
-        if (DEBUG) {
-            Log.i(TAG, "search: letters pattern is " + lettersPatternString);
+        // Deleting digits goes back to an earlier step of the session.
+        final String keyWithoutBlank = removeAll(key.toLowerCase(), ' ');
+        SearchResult previous = null;
+        while (!mSessionSteps.isEmpty()) {
+            previous = mSessionSteps.get(mSessionSteps.size() - 1);
+            if (keyWithoutBlank.startsWith(previous.mKey)) {
+                break;
+            }
+            mSessionSteps.remove(mSessionSteps.size() - 1);
+            previous = null;
+        }
+        if (previous != null && previous.mKey.equals(keyWithoutBlank)) {
+            if (DEBUG) {
+                Log.i(TAG, "search: reused result of " + keyWithoutBlank);
+            }
+            return previous;
         }
 
-        Pattern lettersPattern = Pattern.compile(lettersPatternString);
-        Matcher lettersMatcher = lettersPattern.matcher("");
-        String group;
-        for (PhoneNumberRefInfo info : infos.values()) {
-            lettersMatcher.reset(info.mLowerCasePinYinOfDisplayName);
-            if (lettersMatcher.find()) {
-                group = lettersMatcher.group();
-                result.put(info.mDataId, group);
-            } else if (onlyDightsAndPlus(info.mNumber)
-                    .contains(keyWithoutBlank)) {
-                result.put(info.mDataId, keyWithoutBlank);
+        // A number matching the key also matched every prefix of it, by name or by number.
+        // Names were not matched for a key without digits though.
+        SearchResult result;
+        if (previous != null && (previous.mMatchNames || !isNameKey(keyWithoutBlank))) {
+            final int count = previous.mInfos.size();
+            result = new SearchResult(keyWithoutBlank, count);
+            for (int i = 0; i < count; i++) {
+                matchInfo(result, previous.mInfos.get(i), previous.mNameStarts[i]);
+            }
+        } else {
+            result = new SearchResult(keyWithoutBlank, infos.size());
+            for (PhoneNumberRefInfo info : infos.values()) {
+                matchInfo(result, info, 0);
             }
         }
+        mSessionSteps.add(result);
 
         long end = System.currentTimeMillis();
         if (DEBUG) {
-            Log.i(TAG, "cost time-------" + (end - start)
-                    + "ms, search result-------" + result.size());
+            Log.i(TAG, "cost time-------" + (end - start) + "ms, searched "
+                    + (previous != null ? previous.mInfos.size() : infos.size())
+                    + ", search result-------" + result.mMatches.size());
+        }
+        return result;
+    }
+
+    /**
+     * Matches one number and adds it to the result if it matches.
+     *
+     * @param fromOffset offset in the name where a match may start, or -1 if the name
+     *     cannot match
+     */
+    private void matchInfo(SearchResult result, PhoneNumberRefInfo info, int fromOffset) {
+        final NameIndex name = info.mNameIndex;
+        int start = -1;
+        if (result.mMatchNames && fromOffset >= 0) {
+            start = name.matchName(result.mDigits, fromOffset, mMatchEnd);
+        }
+        if (start >= 0) {
+            final int end = mMatchEnd[0];
+            final int word = name.getWordIndex(start);
+            final int tier;
+            if (name.getWordIndex(end - 1) - word + 1 == result.mDigits.length) {
+                tier = TIER_NAME_INITIALS;
+            } else if (word == 0) {
+                tier = TIER_NAME_FIRST_WORD;
+            } else {
+                tier = TIER_NAME;
+            }
+            result.add(info, start, rank(info, tier, word),
+                    name.mLowerCasePinYin.substring(start, end));
+            return;
+        }
+        final int offset = info.mNumberDigits.indexOf(result.mKey);
+        if (offset >= 0) {
+            result.add(info, -1,
+                    rank(info, offset == 0 ? TIER_NUMBER_PREFIX : TIER_NUMBER, offset),
+                    result.mKey);
+        }
+    }
+
+    private static boolean isNameKey(String keyWithoutBlank) {
+        return !keyWithoutBlank.startsWith("+")
+                && createDigitsFromKey(keyWithoutBlank).length > 0;
+    }
+
+    // How well a number matched, best first: every digit matched the initial of a word of the
+    // name, the match starts at the first word of the name, it starts at a later word, the
+    // number starts with the key, or it contains the key.
+    private static final int TIER_NAME_INITIALS = 4;
+    private static final int TIER_NAME_FIRST_WORD = 3;
+    private static final int TIER_NAME = 2;
+    private static final int TIER_NUMBER_PREFIX = 1;
+    private static final int TIER_NUMBER = 0;
+
+    private static final int MAX_POSITION = (1 << 7) - 1;
+    private static final int MAX_TIMES_CONTACTED = (1 << 20) - 1;
+    private static final int MAX_SORT_INDEX = (1 << 20) - 1;
+
+    /**
+     * Returns the rank of a match, a larger rank being a better match. Ranks compare by the
+     * tier of the match, then by where it starts, then by how often the contact was contacted,
+     * and finally by the sort order of the contact list.
+     *
+     * @param position index of the word the name match starts at, or offset of the key in the
+     *     number
+     */
+    private static long rank(PhoneNumberRefInfo info, int tier, int position) {
+        return ((long) tier << 47)
+                | ((long) (MAX_POSITION - Math.min(position, MAX_POSITION)) << 40)
+                | ((long) Math.min(info.mTimesContacted, MAX_TIMES_CONTACTED) << 20)
+                | rankBySortIndex(info);
+    }
+
+    /**
+     * Returns a rank that only orders by the sort order of the contact list.
+     */
+    private static long rankBySortIndex(PhoneNumberRefInfo info) {
+        return MAX_SORT_INDEX - Math.min(info.mSortIndex, MAX_SORT_INDEX);
+    }
+
+    /**
+     * The numbers matching one key, and how they matched.
+     */
+    public static class SearchResult {
+        final String mKey;
+        final char[] mDigits;
+        final boolean mMatchNames;
+        final ArrayList<PhoneNumberRefInfo> mInfos;
+        /** Where the name match of each info starts, or -1 if only the number matched. */
+        final int[] mNameStarts;
+        /** The rank of the match of each info, see {@link #rank}. */
+        final long[] mRanks;
+        final HashMap<Long, String> mMatches = new HashMap<Long, String>();
+
+        SearchResult(String key, int capacity) {
+            mKey = removeAll(key.toLowerCase(), ' ');
+            mDigits = createDigitsFromKey(mKey);
+            mMatchNames = mDigits.length > 0 && !mKey.startsWith("+");
+            mInfos = new ArrayList<PhoneNumberRefInfo>(capacity);
+            mNameStarts = new int[capacity];
+            mRanks = new long[capacity];
+        }
+
+        void add(PhoneNumberRefInfo info, int nameStart, long rank, String match) {
+            final int index = mInfos.size();
+            mNameStarts[index] = nameStart;
+            mRanks[index] = rank;
+            mInfos.add(info);
+            if (match != null) {
+                mMatches.put(info.mDataId, match);
+            }
+        }
+
+        /**
+         * Returns the matched part of the name or number of each matching data id.
+         */
+        public HashMap<Long, String> getMatches() {
+            return mMatches;
+        }
+
+        public int getCount() {
+            return mInfos.size();
+        }
+
+        /**
+         * Returns the best matching numbers, best first.
+         */
+        public List<PhoneNumberRefInfo> getTopResults(int maxResults) {
+            final int count = mInfos.size();
+            final int resultCount = Math.min(count, maxResults);
+            if (resultCount <= 0) {
+                return new ArrayList<PhoneNumberRefInfo>();
+            }
+
+            // Keep the best matches in a heap with the worst of them on top.
+            PriorityQueue<Integer> top = new PriorityQueue<Integer>(resultCount,
+                    new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    long lhsRank = mRanks[lhs];
+                    long rhsRank = mRanks[rhs];
+                    return lhsRank < rhsRank ? -1 : (lhsRank == rhsRank ? 0 : 1);
+                }
+            });
+            for (int i = 0; i < count; i++) {
+                if (top.size() < resultCount) {
+                    top.add(i);
+                } else if (mRanks[i] > mRanks[top.peek()]) {
+                    top.poll();
+                    top.add(i);
+                }
+            }
+
+            PhoneNumberRefInfo[] results = new PhoneNumberRefInfo[top.size()];
+            for (int i = results.length - 1; i >= 0; i--) {
+                results[i] = mInfos.get(top.poll());
+            }
+            return Arrays.asList(results);
         }
+
+        /**
+         * Returns a cursor over the best matching numbers, best first, with the columns of
+         * {@link PhoneQuery}.
+         */
+        public Cursor newCursor(String[] projection, int maxResults) {
+            List<PhoneNumberRefInfo> infos = getTopResults(maxResults);
+            MatrixCursor cursor = new MatrixCursor(projection, infos.size());
+            for (PhoneNumberRefInfo info : infos) {
+                Object[] row = new Object[projection.length];
+                row[PhoneQuery.PHONE_ID] = info.mDataId;
+                row[PhoneQuery.PHONE_TYPE] = info.mType;
+                row[PhoneQuery.PHONE_LABEL] = info.mLabel;
+                row[PhoneQuery.PHONE_NUMBER] = info.mNumber;
+                row[PhoneQuery.PHONE_CONTACT_ID] = info.mContactId;
+                row[PhoneQuery.PHONE_LOOKUP_KEY] = info.mLookupKey;
+                row[PhoneQuery.PHONE_PHOTO_ID] = info.mPhotoId;
+                row[PhoneQuery.PHONE_DISPLAY_NAME] = info.mDisplayName;
+                row[PhoneQuery.PHONE_SORT_KEY] = info.mSortKey;
+                row[PhoneQuery.PHONE_TIMES_CONTACTED] = info.mTimesContacted;
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+
+    /**
+     * Returns the characters of the key that can match a name: digits, '*' and '#'.
+     */
+    static char[] createDigitsFromKey(String key) {
+        char[] digits = new char[key.length()];
+        int count = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if ((c >= '0' && c <= '9') || c == '*' || c == '#') {
+                digits[count++] = c;
+            }
+        }
+        if (count == digits.length) {
+            return digits;
+        }
+        char[] result = new char[count];
+        System.arraycopy(digits, 0, result, 0, count);
         return result;
     }
 
+    /**
+     * Returns the dialpad key for a character of a name, or 0 if no key matches it.
+     */
+    static char toDialpadKey(char c) {
+        if (c >= 'a' && c <= 'z') {
+            return LETTER_TO_NUMBER[c - 'a'];
+        } else if ((c >= '0' && c <= '9') || c == '*' || c == '#') {
+            return c;
+        }
+        return 0;
+    }
+
+    private static boolean isLetterOrDigit(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+    }
+
     SimpleHanziToPinyin mHanziToPinyin;
 
     private String toLowCasePinYin(String input) {
@@ -112,7 +369,7 @@ public class PatternAndResultHelper {
         StringBuilder output = new StringBuilder();
         if (tokens != null && tokens.size() > 0) {
             for (Token token : tokens) {
-                output.append(token.target).append(' ');
+                output.append(token.target.toLowerCase()).append(' ');
             }
         }
         // Log.i(TAG, "toPinYin(): input(" + input + "), output(" +
@@ -120,50 +377,6 @@ public class PatternAndResultHelper {
         return output.toString();
     }
 
-    public String createLetterPatternFromKey(String key) {
-        StringBuilder builder = new StringBuilder();
-        // remove all blank ' '.
-        key = removeAll(key, ' ');
-        // keep the first '+'.
-        if (key.startsWith("+")) {
-            builder.append("\\+");
-        }
-
-        char[] s = key.toLowerCase().toCharArray();
-        for (int i = 0; i < s.length; i++) {
-            char c = s[i];
-            if (c >= '0' && c <= '9') {
-                if (i == 0) {
-                    builder.append("\\b");
-                } else {
-                    builder.append("([a-z0-9]*[^a-z0-9]*\\s+)?");
-                }
-                builder.append('[').append(NUMBER_TO_LETTER[c - '0'])
-                        .append(']');
-            } else if ("*#".indexOf(c) >= 0) {
-                if (i == 0) {
-                    builder.append("\\b");
-                } else {
-                    builder.append("([a-z0-9]*[^a-z0-9]*\\s+)?");
-                }
-                builder.append("\\").append(c);
-            }
-        }
-        return builder.toString();
-    }
-
-    public String createDightsPatternFromKey(String key) {
-        StringBuilder builder = new StringBuilder(".*");
-        char[] s = key.toLowerCase().toCharArray();
-        for (char c : s) {
-            if (c >= '0' && c <= '9') { // just number is legal.
-                builder.append(c - '0').append("[\\- ]*");
-            }
-        }
-        builder.append(".*");
-        return builder.toString();
-    }
-
     public static String removeAll(String from, char charToRemove) {
         int i = 0;
         int j = 0;
@@ -214,6 +427,13 @@ public class PatternAndResultHelper {
         }
     }
 
+    /**
+     * Caches the numbers of a cursor with the columns of {@link PhoneQuery}, in the order
+     * of the cursor.
+     *
+     * @param withCache whether to reuse the name index of numbers cached before if their
+     *     display name has not changed
+     */
     public void loadPhoneNumberRefInfos(Cursor cursor, boolean withCache) {
         swapCache();
 
@@ -228,24 +448,184 @@ public class PatternAndResultHelper {
             return;
         }
         do {
-            addInCache(
-                    toLowCasePinYin(cursor
-                            .getString(PhoneQuery.PHONE_DISPLAY_NAME)),
-                    cursor.getString(PhoneQuery.PHONE_NUMBER), cursor
-                            .getLong(PhoneQuery.PHONE_ID), withCache);
+            final long dataId = cursor.getLong(PhoneQuery.PHONE_ID);
+            final String displayName = cursor.getString(PhoneQuery.PHONE_DISPLAY_NAME);
+            NameIndex nameIndex = null;
+            if (withCache && mOldInfos != null) {
+                PhoneNumberRefInfo old = mOldInfos.get(dataId);
+                if (old != null && TextUtils.equals(old.mDisplayName, displayName)) {
+                    nameIndex = old.mNameIndex;
+                }
+            }
+            if (nameIndex == null) {
+                nameIndex = new NameIndex(toLowCasePinYin(displayName));
+            }
+            addInCache(new PhoneNumberRefInfo(nameIndex, cursor, cursor.getPosition()));
         } while (cursor.moveToNext());
     }
 
-    class PhoneNumberRefInfo {
-        private String mLowerCasePinYinOfDisplayName;
-        private String mNumber;
-        private long mDataId;
+    /**
+     * A phone number with the values shown for it in the result list and the T9 index of
+     * its display name, all read once when the number is loaded.
+     */
+    public static class PhoneNumberRefInfo {
+        private final NameIndex mNameIndex;
+        private final String mNumber;
+        private final long mDataId;
+        /** The number with everything but digits and '+' removed. */
+        private final String mNumberDigits;
+
+        private Integer mType;
+        private String mLabel;
+        private long mContactId;
+        private String mLookupKey;
+        private long mPhotoId;
+        private String mDisplayName;
+        private String mSortKey;
+        private int mTimesContacted;
+        /** Position of the number in the contact list. */
+        private int mSortIndex;
 
         public PhoneNumberRefInfo(String lowerCasePinYinOfDisplayName,
                 String number, long dataId) {
-            mLowerCasePinYinOfDisplayName = lowerCasePinYinOfDisplayName;
+            this(new NameIndex(lowerCasePinYinOfDisplayName), number, dataId);
+        }
+
+        private PhoneNumberRefInfo(NameIndex nameIndex, String number, long dataId) {
+            mNameIndex = nameIndex;
             mNumber = number;
             mDataId = dataId;
+            mNumberDigits = number == null ? "" : onlyDightsAndPlus(number);
+        }
+
+        /**
+         * Creates an info for the current row of a cursor with the columns of
+         * {@link PhoneQuery}.
+         */
+        PhoneNumberRefInfo(NameIndex nameIndex, Cursor cursor, int sortIndex) {
+            this(nameIndex, cursor.getString(PhoneQuery.PHONE_NUMBER),
+                    cursor.getLong(PhoneQuery.PHONE_ID));
+            mType = cursor.isNull(PhoneQuery.PHONE_TYPE)
+                    ? null : cursor.getInt(PhoneQuery.PHONE_TYPE);
+            mLabel = cursor.getString(PhoneQuery.PHONE_LABEL);
+            mContactId = cursor.getLong(PhoneQuery.PHONE_CONTACT_ID);
+            mLookupKey = cursor.getString(PhoneQuery.PHONE_LOOKUP_KEY);
+            mPhotoId = cursor.getLong(PhoneQuery.PHONE_PHOTO_ID);
+            mDisplayName = cursor.getString(PhoneQuery.PHONE_DISPLAY_NAME);
+            mSortKey = cursor.getString(PhoneQuery.PHONE_SORT_KEY);
+            mTimesContacted = cursor.getInt(PhoneQuery.PHONE_TIMES_CONTACTED);
+            mSortIndex = sortIndex;
+        }
+
+        public long getDataId() {
+            return mDataId;
+        }
+    }
+
+    /**
+     * The T9 index of the pinyin of a display name, computed once so that a search only
+     * compares chars.
+     */
+    static class NameIndex {
+        private final String mLowerCasePinYin;
+        /** The dialpad key of each char of the name, or 0 for chars no key matches. */
+        private final char[] mNameDigits;
+        /** Offsets of the first char of each word in the name. */
+        private final int[] mWordStarts;
+        /**
+         * For each offset, where the next word starts if the rest of the current word is
+         * skipped, or -1 if there is no next word.
+         */
+        private final int[] mNextWordStarts;
+
+        NameIndex(String lowerCasePinYin) {
+            mLowerCasePinYin = lowerCasePinYin;
+
+            final String name = lowerCasePinYin;
+            final int length = name.length();
+            mNameDigits = new char[length];
+            mNextWordStarts = new int[length + 1];
+            int[] wordStarts = new int[length];
+            int wordCount = 0;
+            for (int i = 0; i < length; i++) {
+                char c = name.charAt(i);
+                mNameDigits[i] = toDialpadKey(c);
+                if (mNameDigits[i] != 0 && (i == 0 || !isLetterOrDigit(name.charAt(i - 1)))) {
+                    wordStarts[wordCount++] = i;
+                }
+            }
+            mWordStarts = new int[wordCount];
+            System.arraycopy(wordStarts, 0, mWordStarts, 0, wordCount);
+
+            // A word may be left for the next one if they are separated by whitespace.
+            mNextWordStarts[length] = -1;
+            int separatorEnd = length;
+            boolean separatorHasSpace = false;
+            for (int i = length - 1; i >= 0; i--) {
+                char c = name.charAt(i);
+                if (isLetterOrDigit(c)) {
+                    mNextWordStarts[i] = mNextWordStarts[i + 1];
+                    continue;
+                }
+                if (i == length - 1 || isLetterOrDigit(name.charAt(i + 1))) {
+                    separatorEnd = i + 1;
+                    separatorHasSpace = false;
+                }
+                separatorHasSpace |= Character.isWhitespace(c);
+                mNextWordStarts[i] = separatorHasSpace && separatorEnd < length
+                        ? separatorEnd : -1;
+            }
+        }
+
+        /**
+         * Matches the digits against the name. The first digit has to match the initial of a
+         * word; each following digit either continues the word or matches the initial of the
+         * next one.
+         *
+         * @param fromOffset offset in the name where the match may start at the earliest
+         * @param outEnd receives the offset after the end of the match
+         * @return the offset the match starts at, or -1 if the name does not match
+         */
+        int matchName(char[] digits, int fromOffset, int[] outEnd) {
+            final char first = digits[0];
+            for (int start : mWordStarts) {
+                if (start < fromOffset || mNameDigits[start] != first) {
+                    continue;
+                }
+                int end = matchFrom(digits, 1, start + 1);
+                if (end >= 0) {
+                    outEnd[0] = end;
+                    return start;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the index of the word the char at the offset belongs to.
+         */
+        int getWordIndex(int offset) {
+            int index = Arrays.binarySearch(mWordStarts, offset);
+            return index >= 0 ? index : Math.max(0, -index - 2);
+        }
+
+        private int matchFrom(char[] digits, int index, int offset) {
+            if (index == digits.length) {
+                return offset;
+            }
+            final char digit = digits[index];
+            // Prefer moving on to the next word, like the greedy regular expression did.
+            int next = mNextWordStarts[offset];
+            if (next >= 0 && mNameDigits[next] == digit) {
+                int end = matchFrom(digits, index + 1, next + 1);
+                if (end >= 0) {
+                    return end;
+                }
+            }
+            if (offset < mNameDigits.length && mNameDigits[offset] == digit) {
+                return matchFrom(digits, index + 1, offset + 1);
+            }
+            return -1;
         }
     }
 }
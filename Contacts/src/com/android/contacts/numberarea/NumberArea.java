@@ -40,7 +40,7 @@ public class NumberArea {
 
     static final String DB_FILE = "callv1.1.db";
 
-    private static final int NUMBER_PREFIX_LENGTH = 7;
+    static final int NUMBER_PREFIX_LENGTH = 7;
 
     public static boolean isValidPhoneNumber(String number) {
         // Should be longer than NUMBER_PREFIX_LENGTH and start with 1(mobile phone number).
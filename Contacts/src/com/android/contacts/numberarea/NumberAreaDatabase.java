@@ -0,0 +1,379 @@
+package com.android.contacts.numberarea;
+
+import com.android.contacts.numberarea.NumberArea.Area;
+import com.android.contacts.numberarea.NumberArea.PhoneNumber;
+import com.android.contacts.numberarea.NumberArea.Tables;
+import com.android.contacts.util.Constants;
+import com.google.common.annotations.VisibleForTesting;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A read-only, memory-mapped copy of the number area database.
+ * <p>
+ * The file is converted from the SQLite database once, and converted again when the SQLite
+ * database changes. It contains the sorted number prefixes, the index of the area of each
+ * prefix and a table of the area names:
+ * <pre>
+ * int     magic, version
+ * long    last modification time of the SQLite database it was converted from
+ * int     prefix length, prefix count, area count
+ * int[]   prefixes, in ascending order
+ * char[]  area index of each prefix
+ * int[]   offset of each area name in the name bytes, plus the end of the last one
+ * byte[]  area names, in UTF-8
+ * </pre>
+ * Looking up a number is a binary search over the mapped prefixes and does not allocate. An
+ * area name is only decoded the first time it is looked up.
+ */
+public class NumberAreaDatabase {
+
+    private static final String TAG = NumberAreaDatabase.class.getSimpleName();
+
+    private static final boolean DEBUG = Constants.TOTAL_DEBUG;
+
+    /** Name of the converted file in the files directory of the application. */
+    private static final String FILE_NAME = "number_area.bin";
+
+    private static final String CONVERTER_THREAD_NAME = "NumberAreaConverter";
+
+    private static final int MAGIC = 0x4e414442; // "NADB"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static NumberAreaDatabase sInstance;
+    private static boolean sConverting;
+    private static boolean sConversionFailed;
+
+    private final int mPrefixLength;
+    private final int mPrefixCount;
+    private final IntBuffer mPrefixes;
+    private final CharBuffer mAreaIndexes;
+    private final IntBuffer mAreaOffsets;
+    private final ByteBuffer mAreaBytes;
+    private final String[] mAreas;
+
+    /**
+     * Returns the number area database, or null if it is not available yet. The first call
+     * starts converting the SQLite database in the background if needed.
+     */
+    public static synchronized NumberAreaDatabase getInstance(Context context) {
+        if (sInstance != null || sConverting || sConversionFailed) {
+            return sInstance;
+        }
+
+        final File source = new File(NumberArea.DB_DIR + NumberArea.DB_FILE);
+        final File file = context.getFileStreamPath(FILE_NAME);
+        // Keep using the converted file while the SQLite database is not available.
+        final long sourceLastModified = source.lastModified();
+        sInstance = open(file, sourceLastModified);
+        if (sInstance == null && sourceLastModified != 0) {
+            sConverting = true;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    boolean converted = convert(source, file);
+                    synchronized (NumberAreaDatabase.class) {
+                        sConverting = false;
+                        sInstance = converted ? open(file, sourceLastModified) : null;
+                        sConversionFailed = sInstance == null;
+                    }
+                }
+            }, CONVERTER_THREAD_NAME).start();
+        }
+        return sInstance;
+    }
+
+    private NumberAreaDatabase(ByteBuffer buffer) {
+        mPrefixLength = buffer.getInt(16);
+        mPrefixCount = buffer.getInt(20);
+        final int areaCount = buffer.getInt(24);
+
+        int offset = HEADER_SIZE;
+        mPrefixes = slice(buffer, offset, mPrefixCount * 4).asIntBuffer();
+        offset += mPrefixCount * 4;
+        mAreaIndexes = slice(buffer, offset, mPrefixCount * 2).asCharBuffer();
+        offset += align(mPrefixCount * 2);
+        mAreaOffsets = slice(buffer, offset, (areaCount + 1) * 4).asIntBuffer();
+        offset += (areaCount + 1) * 4;
+        mAreaBytes = slice(buffer, offset, buffer.limit() - offset);
+        mAreas = new String[areaCount];
+    }
+
+    /**
+     * Maps the converted file, or returns null if it does not exist, is not valid or was not
+     * converted from the SQLite database with the given modification time.
+     *
+     * @param sourceLastModified the modification time of the SQLite database, or 0 to accept
+     *        the file whatever it was converted from
+     */
+    @VisibleForTesting
+    static NumberAreaDatabase open(File file, long sourceLastModified) {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            MappedByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (!isValid(buffer)) {
+                Log.w(TAG, "Ignoring invalid number area file " + file);
+                return null;
+            }
+            if (sourceLastModified != 0 && buffer.getLong(8) != sourceLastModified) {
+                if (DEBUG) Log.d(TAG, "Number area file is out of date");
+                return null;
+            }
+            return new NumberAreaDatabase(buffer);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map number area file " + file, e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    // The mapping stays valid once the file is closed.
+                    raf.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static boolean isValid(ByteBuffer buffer) {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            return false;
+        }
+        final int prefixCount = buffer.getInt(20);
+        final int areaCount = buffer.getInt(24);
+        if (prefixCount < 0 || areaCount < 0 || areaCount > Character.MAX_VALUE + 1) {
+            return false;
+        }
+        final long namesOffset = HEADER_SIZE + prefixCount * 4L + align(prefixCount * 2L)
+                + (areaCount + 1) * 4L;
+        return namesOffset <= buffer.limit()
+                && namesOffset + buffer.getInt((int) namesOffset - 4) <= buffer.limit();
+    }
+
+    /**
+     * Returns the area of the number, or null if it is not known. Only the first digits of the
+     * number, as many as the length of the prefixes, are looked at.
+     */
+    public String getArea(CharSequence number) {
+        final int prefix = parsePrefix(number, mPrefixLength);
+        if (prefix < 0) {
+            return null;
+        }
+
+        int low = 0;
+        int high = mPrefixCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midPrefix = mPrefixes.get(mid);
+            if (midPrefix < prefix) {
+                low = mid + 1;
+            } else if (midPrefix > prefix) {
+                high = mid - 1;
+            } else {
+                return getAreaName(mAreaIndexes.get(mid));
+            }
+        }
+        return null;
+    }
+
+    private String getAreaName(int index) {
+        synchronized (mAreas) {
+            String area = mAreas[index];
+            if (area == null) {
+                int start = mAreaOffsets.get(index);
+                byte[] bytes = new byte[mAreaOffsets.get(index + 1) - start];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = mAreaBytes.get(start + i);
+                }
+                area = new String(bytes, UTF_8);
+                mAreas[index] = area;
+            }
+            return area;
+        }
+    }
+
+    /**
+     * Converts the SQLite number area database into the binary format. The file is only
+     * replaced once it has been written completely.
+     *
+     * @return whether the conversion succeeded
+     */
+    @VisibleForTesting
+    static boolean convert(File source, File file) {
+        final long start = System.currentTimeMillis();
+        final long sourceLastModified = source.lastModified();
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(source.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY);
+
+            // Number the areas in the order of their ids.
+            HashMap<Long, Integer> areaIndexes = new HashMap<Long, Integer>();
+            String[] areas;
+            Cursor cursor = db.query(Tables.AREA, new String[] { Area._ID, Area.AREA },
+                    null, null, null, null, Area._ID);
+            try {
+                areas = new String[cursor.getCount()];
+                while (cursor.moveToNext()) {
+                    areaIndexes.put(cursor.getLong(0), cursor.getPosition());
+                    areas[cursor.getPosition()] = cursor.getString(1);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            // Each entry holds a prefix in its high half and the index of its area in its low
+            // half, so that sorting the entries sorts the prefixes.
+            long[] entries;
+            int count = 0;
+            cursor = db.query(Tables.PHONE_NUMBER,
+                    new String[] { PhoneNumber.NUMBER, PhoneNumber.AREA_ID },
+                    null, null, null, null, null);
+            try {
+                entries = new long[cursor.getCount()];
+                while (cursor.moveToNext()) {
+                    String number = cursor.getString(0);
+                    int prefix = parsePrefix(number, NumberArea.NUMBER_PREFIX_LENGTH);
+                    Integer areaIndex = areaIndexes.get(cursor.getLong(1));
+                    if (prefix < 0 || areaIndex == null
+                            || number.length() != NumberArea.NUMBER_PREFIX_LENGTH) {
+                        continue;
+                    }
+                    entries[count++] = ((long) prefix << 32) | areaIndex;
+                }
+            } finally {
+                cursor.close();
+            }
+            entries = Arrays.copyOf(entries, count);
+            Arrays.sort(entries);
+
+            write(file, sourceLastModified, NumberArea.NUMBER_PREFIX_LENGTH, entries, areas);
+            if (DEBUG) {
+                Log.d(TAG, "Converted " + count + " prefixes and " + areas.length + " areas in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            }
+            return true;
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to read number area database " + source, e);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write number area file " + file, e);
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the binary file.
+     *
+     * @param entries the sorted prefixes, each shifted left by 32 bits and combined with the
+     *        index of its area
+     * @param areas the area names
+     */
+    @VisibleForTesting
+    static void write(File file, long sourceLastModified, int prefixLength, long[] entries,
+            String[] areas) throws IOException {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceLastModified);
+            out.writeInt(prefixLength);
+            out.writeInt(entries.length);
+            out.writeInt(areas.length);
+            for (long entry : entries) {
+                out.writeInt((int) (entry >>> 32));
+            }
+            for (long entry : entries) {
+                out.writeChar((int) entry);
+            }
+            for (int i = entries.length * 2; i < align(entries.length * 2); i++) {
+                out.writeByte(0);
+            }
+
+            byte[][] names = new byte[areas.length][];
+            int offset = 0;
+            for (int i = 0; i < areas.length; i++) {
+                names[i] = areas[i] == null ? new byte[0] : areas[i].getBytes(UTF_8);
+                out.writeInt(offset);
+                offset += names[i].length;
+            }
+            out.writeInt(offset);
+            for (byte[] name : names) {
+                out.write(name);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Cannot rename " + tempFile + " to " + file);
+        }
+    }
+
+    /**
+     * Returns the value of the first digits of the number, or -1 if it is shorter or they are
+     * not all digits.
+     */
+    private static int parsePrefix(CharSequence number, int length) {
+        if (number == null || number.length() < length) {
+            return -1;
+        }
+        int prefix = 0;
+        for (int i = 0; i < length; i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            prefix = prefix * 10 + (c - '0');
+        }
+        return prefix;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+
+    private static int align(int size) {
+        return (size + 3) & ~3;
+    }
+
+    private static long align(long size) {
+        return (size + 3) & ~3L;
+    }
+}
@@ -20,9 +20,9 @@ import android.provider.ContactsContract;
 import android.provider.ContactsContract.Directory;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 import android.widget.TextView;
 
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -95,9 +95,17 @@ class NumberAreaManagerImpl extends NumberAreaManager implements Callback {
 
     private static final String[] COLUMNS = new String[] {PhoneNumber.NUMBER, Area.AREA};
 
+    /**
+     * Maximum number of areas kept in the cache.
+     */
+    private static final int AREA_CACHE_SIZE = 500;
+
     private final Context mContext;
 
-    private HashMap<String, String> mAreaCache;
+    /**
+     * Cache of areas by number prefix, shared by the UI and the loader thread.
+     */
+    private final LruCache<String, String> mAreaCache;
     /**
      * A map from TextView to the corresponding number, encapsulated in a request.
      * The request may swapped out before the area loading request is started.
@@ -128,7 +136,7 @@ class NumberAreaManagerImpl extends NumberAreaManager implements Callback {
 
     public NumberAreaManagerImpl(Context context) {
         mContext = context;
-        mAreaCache = new HashMap<String, String>();
+        mAreaCache = new LruCache<String, String>(AREA_CACHE_SIZE);
     }
 
     @Override
@@ -193,7 +201,7 @@ class NumberAreaManagerImpl extends NumberAreaManager implements Callback {
     public void clear() {
         if (DEBUG) Log.d(TAG, "clear");
         mPendingRequests.clear();
-        mAreaCache.clear();
+        mAreaCache.evictAll();
     }
 
     @Override
@@ -279,7 +287,7 @@ class NumberAreaManagerImpl extends NumberAreaManager implements Callback {
      */
     private void cacheArea(String number, String area) {
         if (DEBUG) Log.d(TAG, "cache : number = " + number + ", area = " + area);
-        mAreaCache.put(number, area);
+        mAreaCache.put(number, area == null ? DEFAULT_STRING : area);
     }
 
     /**
@@ -500,6 +508,18 @@ class NumberAreaManagerImpl extends NumberAreaManager implements Callback {
                 }
             }
 
+            NumberAreaDatabase database = NumberAreaDatabase.getInstance(mContext);
+            if (database != null) {
+                for (String number : mNumbers) {
+                    String area = database.getArea(number);
+                    cacheArea(number, area == null ? DEFAULT_STRING : area);
+                }
+                mNumbers.clear();
+                mMainThreadHandler.sendEmptyMessage(MESSAGE_AREAS_LOADED);
+                return;
+            }
+
+            // Not converted yet, query the provider instead.
             mStringBuilder.setLength(0);
             mStringBuilder.append(PhoneNumber.NUMBER + " IN(");
             for (int i = 0; i < mNumbers.size(); i++) {
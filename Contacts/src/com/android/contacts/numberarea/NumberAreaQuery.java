@@ -29,9 +29,25 @@ public class NumberAreaQuery {
     public static String query(Context context, CharSequence number) {
         if (number != null && NumberArea.isValidPhoneNumber(number.toString())) {
             String numberStr = NumberArea.cropValidPhoneNumber(number.toString());
-            Cursor cursor = context.getContentResolver().query(NumberArea.Area.CONTENT_URI, PROJECTION, SELECTION, new String[] {numberStr}, null);
-            if (cursor != null && cursor.moveToFirst()) {
-                String area = cursor.getString(COLUMN_INDEX_AREA);
+            String area = null;
+            NumberAreaDatabase database = NumberAreaDatabase.getInstance(context);
+            if (database != null) {
+                area = database.getArea(numberStr);
+            } else {
+                // Not converted yet, query the provider instead.
+                Cursor cursor = context.getContentResolver().query(NumberArea.Area.CONTENT_URI,
+                        PROJECTION, SELECTION, new String[] {numberStr}, null);
+                if (cursor != null) {
+                    try {
+                        if (cursor.moveToFirst()) {
+                            area = cursor.getString(COLUMN_INDEX_AREA);
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            }
+            if (area != null) {
                 if (DEBUG) {
                     Log.d(TAG, "query: area is " + area);
                 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A pool of unused mutable bitmaps, bucketed by dimensions and configuration, that can be
+ * decoded into with {@link android.graphics.BitmapFactory.Options#inBitmap} instead of
+ * allocating new ones.
+ * <p>
+ * The pool is bounded in bytes. When it is full, the bitmaps that were put in first are
+ * dropped.
+ */
+public class BitmapPool {
+    private final int mMaxBytes;
+    private int mBytes;
+
+    private final HashMap<Long, ArrayList<Bitmap>> mBuckets = new HashMap<Long, ArrayList<Bitmap>>();
+
+    /** All the pooled bitmaps, in the order they were put in. */
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+
+    public BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    private static long getBucketKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 40) | ((long) height << 8) | config.ordinal();
+    }
+
+    /**
+     * Returns a pooled bitmap with the given dimensions and configuration, removing it from
+     * the pool, or null if there is none.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayList<Bitmap> bucket = mBuckets.get(getBucketKey(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+        Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        mBitmaps.remove(bitmap);
+        mBytes -= bitmap.getByteCount();
+        return bitmap;
+    }
+
+    /**
+     * Puts a bitmap that is not used anymore in the pool. Bitmaps that are immutable, recycled
+     * or larger than the whole pool are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()
+                || bitmap.getConfig() == null || bitmap.getByteCount() > mMaxBytes) {
+            return;
+        }
+
+        final long key = getBucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(key, bucket);
+        } else if (bucket.contains(bitmap)) {
+            return;
+        }
+        bucket.add(bitmap);
+        mBitmaps.add(bitmap);
+        mBytes += bitmap.getByteCount();
+
+        while (mBytes > mMaxBytes) {
+            Bitmap eldest = mBitmaps.removeFirst();
+            mBuckets.get(getBucketKey(eldest.getWidth(), eldest.getHeight(), eldest.getConfig()))
+                    .remove(eldest);
+            mBytes -= eldest.getByteCount();
+        }
+    }
+
+    public synchronized void clear() {
+        mBuckets.clear();
+        mBitmaps.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Returns the number of bytes used by the pooled bitmaps.
+     */
+    public synchronized int size() {
+        return mBytes;
+    }
+}
@@ -107,4 +107,11 @@ public class Constants {
     public static final String SIM_READING_STATE = "sim_reading_state";
 	//Ended by gangzhou.qi at 2012-7-13 10:09:04
     public static final String MMS_SEND_TO = "android.intent.action.COMPOSE_MESSAGE";
+
+    /**
+     * Method of the contacts provider returning, under {@link #KEY_CONTACTS_CHANGE_TOKEN}, a
+     * token that changes whenever contacts change.
+     */
+    public static final String CONTACTS_CHANGE_TOKEN_METHOD = "change_token";
+    public static final String KEY_CONTACTS_CHANGE_TOKEN = "change_token";
 }
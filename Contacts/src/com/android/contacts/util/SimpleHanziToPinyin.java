@@ -238,11 +238,25 @@ public class SimpleHanziToPinyin {
     private static final String LAST_PINYIN_UNIHAN = "\u84D9";
     /** The first Chinese character in Unicode block */
     private static final char FIRST_UNIHAN = '\u3400';
+    /** The last Chinese character of the CJK Unified Ideographs block */
+    private static final char LAST_UNIHAN = '\u9FFF';
     private static final Collator COLLATOR = Collator.getInstance(Locale.CHINA);
 
+    /** Marks a character without pinyin in {@link #mPinyinIndexes} */
+    private static final short NO_PINYIN = -1;
+
     private static SimpleHanziToPinyin sInstance;
     private final boolean mHasChinaCollator;
 
+    /**
+     * For each character from {@link #FIRST_UNIHAN} to {@link #LAST_UNIHAN}, the index of its
+     * pinyin in {@link #PINYINS} plus one, {@link #NO_PINYIN}, or 0 if the character has not
+     * been looked up with the collator yet.
+     */
+    private final short[] mPinyinIndexes = new short[LAST_UNIHAN - FIRST_UNIHAN + 1];
+    /** Strings of the entries of {@link #PINYINS}, created when first used. */
+    private final String[] mPinyinStrings = new String[PINYINS.length];
+
     public static class Token {
         /**
          * Separator between target string for each source char
@@ -343,39 +357,96 @@ public class SimpleHanziToPinyin {
         token.source = letter;
         token.firstIndexOfSourceInOriInput = index;
         token.lastIndexOfSourceInOriInput = index;
-        int offset = -1;
-        int cmp;
         if (character < 256) {
             token.type = Token.LATIN;
             token.target = letter;
             return token;
-        } else if (character < FIRST_UNIHAN) {
+        }
+        final int offset = getPinyinIndex(character);
+        if (offset < 0) {
             token.type = Token.UNKNOWN;
             token.target = letter;
-            return token;
         } else {
-            cmp = COLLATOR.compare(letter, FIRST_PINYIN_UNIHAN);
-            if (cmp < 0) {
-                token.type = Token.UNKNOWN;
-                token.target = letter;
-                return token;
+            token.type = Token.PINYIN;
+            token.target = getPinyinString(offset);
+        }
+        return token;
+    }
+
+    /**
+     * Appends the pinyin of a Chinese character to the buffer. Nothing is allocated once the
+     * character has been converted before.
+     *
+     * @return false if the character has no pinyin, in which case nothing is appended
+     */
+    public boolean appendPinyin(char character, StringBuilder out) {
+        if (!mHasChinaCollator) {
+            return false;
+        }
+        final int offset = getPinyinIndex(character);
+        if (offset < 0) {
+            return false;
+        }
+        final byte[] pinyin = PINYINS[offset];
+        for (int j = 0; j < pinyin.length && pinyin[j] != 0; j++) {
+            out.append((char) pinyin[j]);
+        }
+        return true;
+    }
+
+    private String getPinyinString(int offset) {
+        String pinyin = mPinyinStrings[offset];
+        if (pinyin == null) {
+            final StringBuilder sb = new StringBuilder(PINYINS[offset].length);
+            for (int j = 0; j < PINYINS[offset].length && PINYINS[offset][j] != 0; j++) {
+                sb.append((char) PINYINS[offset][j]);
+            }
+            pinyin = sb.toString();
+            mPinyinStrings[offset] = pinyin;
+        }
+        return pinyin;
+    }
+
+    /**
+     * Returns the index of the pinyin of the character in {@link #PINYINS}, or -1 if it has no
+     * pinyin.
+     */
+    private int getPinyinIndex(char character) {
+        if (character < FIRST_UNIHAN) {
+            return -1;
+        } else if (character > LAST_UNIHAN) {
+            return lookupPinyinIndex(character);
+        }
+        final int slot = character - FIRST_UNIHAN;
+        int index = mPinyinIndexes[slot];
+        if (index == 0) {
+            final int offset = lookupPinyinIndex(character);
+            index = offset < 0 ? NO_PINYIN : offset + 1;
+            mPinyinIndexes[slot] = (short) index;
+        }
+        return index == NO_PINYIN ? -1 : index - 1;
+    }
+
+    /**
+     * Finds the pinyin of a character with the collator.
+     */
+    private static int lookupPinyinIndex(char character) {
+        final String letter = Character.toString(character);
+        int offset = -1;
+        int cmp = COLLATOR.compare(letter, FIRST_PINYIN_UNIHAN);
+        if (cmp < 0) {
+            return -1;
+        } else if (cmp == 0) {
+            offset = 0;
+        } else {
+            cmp = COLLATOR.compare(letter, LAST_PINYIN_UNIHAN);
+            if (cmp > 0) {
+                return -1;
             } else if (cmp == 0) {
-                token.type = Token.PINYIN;
-                offset = 0;
-            } else {
-                cmp = COLLATOR.compare(letter, LAST_PINYIN_UNIHAN);
-                if (cmp > 0) {
-                    token.type = Token.UNKNOWN;
-                    token.target = letter;
-                    return token;
-                } else if (cmp == 0) {
-                    token.type = Token.PINYIN;
-                    offset = UNIHANS.length - 1;
-                }
+                offset = UNIHANS.length - 1;
             }
         }
 
-        token.type = Token.PINYIN;
         if (offset < 0) {
             int begin = 0;
             int end = UNIHANS.length - 1;
@@ -395,12 +466,7 @@ public class SimpleHanziToPinyin {
         if (cmp < 0) {
             offset--;
         }
-        StringBuilder pinyin = new StringBuilder();
-        for (int j = 0; j < PINYINS[offset].length && PINYINS[offset][j] != 0; j++) {
-            pinyin.append((char) PINYINS[offset][j]);
-        }
-        token.target = pinyin.toString();
-        return token;
+        return offset;
     }
 
     /**
@@ -23,11 +23,18 @@ import com.android.vcard.VCardConfig;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
+import android.content.Entity;
+import android.content.Entity.NamedContentValues;
+import android.content.EntityIterator;
 import android.content.Intent;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.net.Uri;
 import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.RawContactsEntity;
 import android.text.TextUtils;
 import android.util.Log;
@@ -38,6 +45,10 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Class for processing one export request from a user. Dropped after exporting requested Uri(s).
@@ -96,6 +107,7 @@ public class ExportProcessor extends ProcessorBase {
         if (DEBUG) Log.d(LOG_TAG, String.format("vCard export (id: %d) has started.", mJobId));
         final ExportRequest request = mExportRequest;
         VCardComposer composer = null;
+        EntityIterator iterator = null;
         Writer writer = null;
         boolean successful = false;
         try {
@@ -135,25 +147,11 @@ public class ExportProcessor extends ProcessorBase {
             // composer = new VCardComposer(ExportVCardActivity.this, vcardType, true);
 
             writer = new BufferedWriter(new OutputStreamWriter(outputStream));
-            final Uri contentUriForRawContactsEntity = RawContactsEntity.CONTENT_URI.buildUpon()
-                    .appendQueryParameter(RawContactsEntity.FOR_EXPORT_ONLY, "1")
-                    .build();
-            // TODO: should provide better selection.
-            if (!composer.init(Contacts.CONTENT_URI, new String[] {Contacts._ID},
-                    null, null,
-                    null, contentUriForRawContactsEntity)) {
-                final String errorReason = composer.getErrorReason();
-                Log.e(LOG_TAG, "initialization of vCard composer failed: " + errorReason);
-                final String translatedErrorReason =
-                        translateComposerError(errorReason);
-                final String title =
-                        mService.getString(R.string.fail_reason_could_not_initialize_exporter,
-                                translatedErrorReason);
-                doFinishNotification(title, null);
+            final int total = queryContactCount();
+            if (total < 0) {
+                doDatabaseErrorNotification();
                 return;
             }
-
-            final int total = composer.getCount();
             if (total == 0) {
                 final String title =
                         mService.getString(R.string.fail_reason_no_exportable_contact);
@@ -161,32 +159,60 @@ public class ExportProcessor extends ProcessorBase {
                 return;
             }
 
+            // All raw contacts are read with one cursor sorted by contact, and each contact
+            // is written out as soon as its last raw contact has been read.
+            final Uri contentUriForRawContactsEntity = RawContactsEntity.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(RawContactsEntity.FOR_EXPORT_ONLY, "1")
+                    .build();
+            final Cursor cursor = mResolver.query(contentUriForRawContactsEntity, null,
+                    RawContacts.CONTACT_ID + " IS NOT NULL", null,
+                    RawContacts.CONTACT_ID + ", " + RawContacts._ID);
+            if (cursor == null) {
+                doDatabaseErrorNotification();
+                return;
+            }
+            iterator = RawContacts.newEntityIterator(cursor);
+
+            final Map<String, List<ContentValues>> contentValuesListMap =
+                    new HashMap<String, List<ContentValues>>();
+            long currentContactId = -1;
             int current = 1;  // 1-origin
-            while (!composer.isAfterLast()) {
+            while (true) {
                 if (isCancelled()) {
                     Log.i(LOG_TAG, "Export request is cancelled during composing vCard");
                     return;
                 }
-                try {
-                    writer.write(composer.createOneEntry());
-                } catch (IOException e) {
-                    final String errorReason = composer.getErrorReason();
-                    Log.e(LOG_TAG, "Failed to read a contact: " + errorReason);
-                    final String translatedErrorReason =
-                            translateComposerError(errorReason);
-                    final String title =
-                            mService.getString(R.string.fail_reason_error_occurred_during_export,
-                                    translatedErrorReason);
-                    doFinishNotification(title, null);
-                    return;
-                }
 
-                // vCard export is quite fast (compared to import), and frequent notifications
-                // bother notification bar too much.
-                if (current % 100 == 1) {
-                    doProgressNotification(uri, total, current);
+                final Entity entity = iterator.hasNext() ? iterator.next() : null;
+                final long contactId = entity != null
+                        ? entity.getEntityValues().getAsLong(RawContacts.CONTACT_ID) : -1;
+                if (contactId != currentContactId && currentContactId != -1) {
+                    try {
+                        writer.write(composer.buildVCard(contentValuesListMap));
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Failed to write a contact: " + e);
+                        final String translatedErrorReason =
+                                translateComposerError(e.getMessage());
+                        final String title = mService.getString(
+                                R.string.fail_reason_error_occurred_during_export,
+                                translatedErrorReason);
+                        doFinishNotification(title, null);
+                        return;
+                    }
+                    contentValuesListMap.clear();
+
+                    // vCard export is quite fast (compared to import), and frequent notifications
+                    // bother notification bar too much.
+                    if (current % 100 == 1) {
+                        doProgressNotification(uri, total, current);
+                    }
+                    current++;
+                }
+                if (entity == null) {
+                    break;
                 }
-                current++;
+                currentContactId = contactId;
+                addEntityValues(entity, contentValuesListMap);
             }
             Log.i(LOG_TAG, "Successfully finished exporting vCard " + request.destUri);
 
@@ -201,6 +227,9 @@ public class ExportProcessor extends ProcessorBase {
                     filename);
             doFinishNotification(title, null);
         } finally {
+            if (iterator != null) {
+                iterator.close();
+            }
             if (composer != null) {
                 composer.terminate();
             }
@@ -215,6 +244,52 @@ public class ExportProcessor extends ProcessorBase {
         }
     }
 
+    /**
+     * Returns the number of contacts to export, or -1 if the count could not be read.
+     */
+    private int queryContactCount() {
+        final Cursor cursor = mResolver.query(Contacts.CONTENT_URI,
+                new String[] {Contacts._COUNT}, null, null, null);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Adds the data rows of a raw contact to the values of the contact being composed, grouped
+     * by MIME type the way {@link VCardComposer#buildVCard} expects them.
+     */
+    private static void addEntityValues(Entity entity,
+            Map<String, List<ContentValues>> contentValuesListMap) {
+        for (NamedContentValues namedContentValues : entity.getSubValues()) {
+            final ContentValues contentValues = namedContentValues.values;
+            final String mimeType = contentValues.getAsString(Data.MIMETYPE);
+            if (mimeType == null) {
+                continue;
+            }
+            List<ContentValues> contentValuesList = contentValuesListMap.get(mimeType);
+            if (contentValuesList == null) {
+                contentValuesList = new ArrayList<ContentValues>();
+                contentValuesListMap.put(mimeType, contentValuesList);
+            }
+            contentValuesList.add(contentValues);
+        }
+    }
+
+    private void doDatabaseErrorNotification() {
+        final String errorReason = VCardComposer.FAILURE_REASON_FAILED_TO_GET_DATABASE_INFO;
+        Log.e(LOG_TAG, "initialization of vCard composer failed: " + errorReason);
+        final String translatedErrorReason = translateComposerError(errorReason);
+        final String title = mService.getString(
+                R.string.fail_reason_could_not_initialize_exporter, translatedErrorReason);
+        doFinishNotification(title, null);
+    }
+
     private String translateComposerError(String errorMessage) {
         final Resources resources = mService.getResources();
         if (VCardComposer.FAILURE_REASON_FAILED_TO_GET_DATABASE_INFO.equals(errorMessage)) {
@@ -47,6 +47,8 @@ public class ContactLoaderTest extends LoaderTestCase {
     @Override
     protected void setUp() throws Exception {
         super.setUp();
+        // Contacts loaded by other tests must not be served from the cache
+        ContactLoader.clearRecentContacts();
         mMockContext = new ContactsMockContext(getContext());
         mContactsProvider = mMockContext.getContactsProvider();
 
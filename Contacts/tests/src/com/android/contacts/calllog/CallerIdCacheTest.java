@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.calllog;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Unit tests for {@link CallerIdCache}.
+ */
+@SmallTest
+public class CallerIdCacheTest extends AndroidTestCase {
+    private static final String DATABASE_NAME = "caller_id_test.db";
+
+    private static final String NUMBER = "+16502530000";
+    private static final String OTHER_NUMBER = "+16502531111";
+
+    /** The change token of the fake contacts provider. */
+    private String mChangeToken;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mChangeToken = "a";
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private CallerIdCache createCache() {
+        return new CallerIdCache(getContext(), DATABASE_NAME) {
+            @Override
+            String queryChangeToken() {
+                return mChangeToken;
+            }
+        };
+    }
+
+    private static ContactInfo createContactInfo(String name, String number) {
+        ContactInfo info = new ContactInfo();
+        info.lookupUri = Uri.parse("content://com.android.contacts/contacts/lookup/key/1");
+        info.name = name;
+        info.number = number;
+        info.formattedNumber = number;
+        info.normalizedNumber = number;
+        return info;
+    }
+
+    public void testPutAndGet() {
+        CallerIdCache cache = createCache();
+        String changeToken = cache.validate();
+        assertNull(cache.get(NUMBER));
+
+        ContactInfo info = createContactInfo("John Doe", NUMBER);
+        cache.put(changeToken, new String[] { NUMBER, null }, new ContactInfo[] { info, null });
+        assertEquals(info, cache.get(NUMBER));
+        assertNull(cache.get(OTHER_NUMBER));
+        cache.close();
+    }
+
+    public void testSurvivesNewInstance() {
+        CallerIdCache cache = createCache();
+        ContactInfo info = createContactInfo("John Doe", NUMBER);
+        cache.put(cache.validate(), new String[] { NUMBER }, new ContactInfo[] { info });
+        cache.close();
+
+        cache = createCache();
+        cache.validate();
+        assertEquals(info, cache.get(NUMBER));
+        cache.close();
+    }
+
+    public void testContactsChanged() {
+        CallerIdCache cache = createCache();
+        String changeToken = cache.validate();
+        cache.put(changeToken, new String[] { NUMBER },
+                new ContactInfo[] { createContactInfo("John Doe", NUMBER) });
+
+        // Not checked again until notified.
+        mChangeToken = "b";
+        assertEquals(changeToken, cache.validate());
+        assertNotNull(cache.get(NUMBER));
+
+        cache.onContactsChanged();
+        assertEquals("b", cache.validate());
+        assertNull(cache.get(NUMBER));
+
+        // Looked up before the change, must not be stored.
+        cache.put(changeToken, new String[] { NUMBER },
+                new ContactInfo[] { createContactInfo("John Doe", NUMBER) });
+        assertNull(cache.get(NUMBER));
+        cache.close();
+    }
+
+    public void testContactsChangedKeepingToken() {
+        CallerIdCache cache = createCache();
+        String changeToken = cache.validate();
+        cache.put(changeToken, new String[] { NUMBER },
+                new ContactInfo[] { createContactInfo("John Doe", NUMBER) });
+
+        // A change that does not affect caller ids leaves the token alone.
+        cache.onContactsChanged();
+        assertEquals(changeToken, cache.validate());
+        assertNotNull(cache.get(NUMBER));
+        cache.close();
+    }
+
+    public void testKeepsRingtoneAndVoicemailOptions() {
+        CallerIdCache cache = createCache();
+        ContactInfo info = createContactInfo("John Doe", NUMBER);
+        info.customRingtone = "content://media/internal/audio/media/1";
+        info.sendToVoicemail = true;
+        cache.put(cache.validate(), new String[] { NUMBER }, new ContactInfo[] { info });
+        cache.close();
+
+        cache = createCache();
+        cache.validate();
+        ContactInfo cachedInfo = cache.get(NUMBER);
+        assertEquals(info.customRingtone, cachedInfo.customRingtone);
+        assertTrue(cachedInfo.sendToVoicemail);
+        cache.close();
+    }
+
+    public void testContactsChangedWhileNotRunning() {
+        CallerIdCache cache = createCache();
+        cache.put(cache.validate(), new String[] { NUMBER },
+                new ContactInfo[] { createContactInfo("John Doe", NUMBER) });
+        cache.close();
+
+        mChangeToken = "b";
+        cache = createCache();
+        cache.validate();
+        assertNull(cache.get(NUMBER));
+        cache.close();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import com.android.contacts.list.PatternAndResultHelper.SearchResult;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * Performance test for the dialpad search of {@link PatternAndResultHelper}. Types keys one
+ * digit at a time against a few thousand contacts, checks that the T9 index finds the same
+ * matches as the regular expression it replaced, also when a query session narrows the search
+ * down, and logs the time each keystroke takes.  The timings are not checked, since they
+ * depend on the device and its load.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument \
+ *         -e class com.android.contacts.list.PatternAndResultHelperPerformanceTest \
+ *         -w com.android.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+public class PatternAndResultHelperPerformanceTest extends TestCase {
+
+    private static final String TAG = "PatternAndResultHelperPerformanceTest";
+
+    private static final int CONTACT_COUNT = 3000;
+    private static final int ITERATIONS = 5;
+    private static final int MAX_RESULTS = 50;
+
+    private static final String[] KEYS = {
+            "9", "94", "942", "9426", "94264", "7", "72", "726", "5", "56", "564", "5646",
+            "138", "1380", "13800", "0", "2", "22", "227", "8", "84", "843", "8436",
+    };
+
+    /** The letters of each dialpad key, as the regular expression search used them. */
+    private static final String[] NUMBER_TO_LETTER = {
+            "0", "1", "2abc", "3def", "4ghi", "5jkl", "6mno", "7pqrs", "8tuv", "9wxyz",
+    };
+
+    private static final String[] PINYIN_FAMILY_NAMES = {
+            "wang", "li", "zhang", "liu", "chen", "yang", "huang", "zhao", "wu", "zhou",
+            "xu", "sun", "ma", "zhu", "hu", "guo", "he", "gao", "lin", "luo",
+    };
+
+    private static final String[] PINYIN_GIVEN_NAMES = {
+            "wei", "fang", "na", "xiu", "ying", "min", "jing", "li", "qiang", "lei", "jun",
+            "yang", "yong", "yan", "jie", "juan", "tao", "ming", "chao", "lan", "xia",
+    };
+
+    private static final String[] LATIN_NAMES = {
+            "james", "john", "robert", "michael", "mary", "linda", "smith", "johnson",
+            "brown", "jones", "miller", "davis", "taylor", "thomas", "moore", "martin",
+    };
+
+    private PatternAndResultHelper mHelper;
+    private Map<Long, String> mNames;
+    private Map<Long, String> mNumbers;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHelper = new PatternAndResultHelper();
+        mNames = new HashMap<Long, String>();
+        mNumbers = new HashMap<Long, String>();
+
+        Random random = new Random(1);
+        for (long id = 1; id <= CONTACT_COUNT; id++) {
+            StringBuilder name = new StringBuilder();
+            if (random.nextInt(4) == 0) {
+                name.append(pick(random, LATIN_NAMES)).append(' ')
+                        .append(pick(random, LATIN_NAMES)).append(' ');
+            } else {
+                name.append(pick(random, PINYIN_FAMILY_NAMES)).append(' ');
+                int givenNames = 1 + random.nextInt(2);
+                for (int i = 0; i < givenNames; i++) {
+                    name.append(pick(random, PINYIN_GIVEN_NAMES)).append(' ');
+                }
+            }
+            String number = String.format("138-%04d-%04d",
+                    random.nextInt(10000), random.nextInt(10000));
+            mNames.put(id, name.toString());
+            mNumbers.put(id, number);
+            mHelper.addInCache(name.toString(), number, id, false);
+        }
+    }
+
+    private static String pick(Random random, String[] names) {
+        return names[random.nextInt(names.length)];
+    }
+
+    public void testSameMatchesAsRegularExpression() {
+        for (String key : KEYS) {
+            // Starts over whenever the key does not extend the previous one.
+            assertEquals("Key " + key, searchWithRegularExpression(key),
+                    new HashMap<Long, String>(mHelper.search(key).getMatches()));
+        }
+    }
+
+    public void testQuerySession() {
+        for (String key : KEYS) {
+            // Type the key one digit at a time, then delete it again.
+            ArrayList<SearchResult> results = new ArrayList<SearchResult>();
+            for (int i = 1; i <= key.length(); i++) {
+                String prefix = key.substring(0, i);
+                results.add(mHelper.search(prefix));
+                assertEquals("Key " + prefix, searchWithRegularExpression(prefix),
+                        new HashMap<Long, String>(results.get(i - 1).getMatches()));
+            }
+            for (int i = key.length(); i >= 1; i--) {
+                assertSame(results.get(i - 1), mHelper.search(key.substring(0, i)));
+            }
+        }
+    }
+
+    public void testKeystrokeTime() {
+        // Warm up.
+        for (String key : KEYS) {
+            mHelper.search(key);
+        }
+
+        long regexTime = 0;
+        long sessionTime = 0;
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            long start = System.nanoTime();
+            for (String key : KEYS) {
+                searchWithRegularExpression(key);
+            }
+            regexTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (String key : KEYS) {
+                mHelper.search(key).getTopResults(MAX_RESULTS);
+            }
+            sessionTime += System.nanoTime() - start;
+        }
+
+        long keystrokes = (long) ITERATIONS * KEYS.length;
+        Log.i(TAG, CONTACT_COUNT + " contacts, " + keystrokes + " keystrokes; us per keystroke:"
+                + " index " + (sessionTime / keystrokes / 1000)
+                + ", regex " + (regexTime / keystrokes / 1000));
+    }
+
+    /**
+     * Searches the way {@link PatternAndResultHelper} did before it had a T9 index.
+     */
+    private HashMap<Long, String> searchWithRegularExpression(String key) {
+        HashMap<Long, String> result = new HashMap<Long, String>();
+        String keyWithoutBlank = PatternAndResultHelper.removeAll(key, ' ');
+        Matcher matcher = Pattern.compile(createLetterPatternFromKey(key)).matcher("");
+        for (Map.Entry<Long, String> entry : mNames.entrySet()) {
+            Long id = entry.getKey();
+            matcher.reset(entry.getValue());
+            if (matcher.find()) {
+                result.put(id, matcher.group());
+            } else if (PatternAndResultHelper.onlyDightsAndPlus(mNumbers.get(id))
+                    .contains(keyWithoutBlank)) {
+                result.put(id, keyWithoutBlank);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The regular expression {@link PatternAndResultHelper} used to match names.
+     */
+    private static String createLetterPatternFromKey(String key) {
+        StringBuilder builder = new StringBuilder();
+        key = PatternAndResultHelper.removeAll(key, ' ');
+        // Keep the first '+'.
+        if (key.startsWith("+")) {
+            builder.append("\\+");
+        }
+
+        char[] s = key.toLowerCase().toCharArray();
+        for (int i = 0; i < s.length; i++) {
+            char c = s[i];
+            if (c >= '0' && c <= '9') {
+                if (i == 0) {
+                    builder.append("\\b");
+                } else {
+                    builder.append("([a-z0-9]*[^a-z0-9]*\\s+)?");
+                }
+                builder.append('[').append(NUMBER_TO_LETTER[c - '0']).append(']');
+            } else if ("*#".indexOf(c) >= 0) {
+                if (i == 0) {
+                    builder.append("\\b");
+                } else {
+                    builder.append("([a-z0-9]*[^a-z0-9]*\\s+)?");
+                }
+                builder.append("\\").append(c);
+            }
+        }
+        return builder.toString();
+    }
+}
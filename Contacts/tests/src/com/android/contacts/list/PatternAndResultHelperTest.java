@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import com.android.contacts.list.PatternAndResultHelper.PhoneNumberRefInfo;
+import com.android.contacts.list.PatternAndResultHelper.SearchResult;
+
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link PatternAndResultHelper}.
+ */
+@SmallTest
+public class PatternAndResultHelperTest extends TestCase {
+
+    private PatternAndResultHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHelper = new PatternAndResultHelper();
+        mHelper.addInCache("wang zhang san ", "010-8888", 1, false);
+        mHelper.addInCache("zhang san ", "010-7777", 2, false);
+        mHelper.addInCache("zhu hao an ning ", "010-6666", 3, false);
+        mHelper.addInCache("li si ", "9426-0000", 4, false);
+        mHelper.addInCache("li wu ", "010-9426", 5, false);
+    }
+
+    public void testMatches() {
+        SearchResult result = mHelper.search("9426");
+        assertEquals(5, result.getCount());
+        assertEquals("zhan", result.getMatches().get(1L));
+        assertEquals("zhu hao an n", result.getMatches().get(3L));
+        assertEquals("9426", result.getMatches().get(4L));
+    }
+
+    public void testTopResults() {
+        List<PhoneNumberRefInfo> results = mHelper.search("9426").getTopResults(10);
+        // Initials first, then matches at the first word, at a later word, number prefixes
+        // and number substrings.
+        assertEquals(3, results.get(0).getDataId());
+        assertEquals(2, results.get(1).getDataId());
+        assertEquals(1, results.get(2).getDataId());
+        assertEquals(4, results.get(3).getDataId());
+        assertEquals(5, results.get(4).getDataId());
+    }
+
+    public void testTopResultsBounded() {
+        List<PhoneNumberRefInfo> results = mHelper.search("9426").getTopResults(2);
+        assertEquals(2, results.size());
+        assertEquals(3, results.get(0).getDataId());
+        assertEquals(2, results.get(1).getDataId());
+    }
+
+    public void testEmptyKeyMatchesAll() {
+        SearchResult result = mHelper.search("");
+        assertEquals(5, result.getCount());
+        assertTrue(result.getMatches().isEmpty());
+    }
+
+    public void testEmptyKeyKeepsContactListOrder() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                Phone._ID, Phone.TYPE, Phone.LABEL, Phone.NUMBER, Phone.CONTACT_ID,
+                Phone.LOOKUP_KEY, Phone.PHOTO_ID, Phone.DISPLAY_NAME_PRIMARY,
+                Phone.SORT_KEY_PRIMARY, Phone.TIMES_CONTACTED });
+        addRow(cursor, 11, "alice", 0);
+        addRow(cursor, 12, "bob", 50);
+        addRow(cursor, 13, "carol", 10);
+        mHelper.loadPhoneNumberRefInfos(cursor, false);
+
+        // How often the contacts were contacted only breaks ties between matches
+        List<PhoneNumberRefInfo> results = mHelper.search("").getTopResults(10);
+        assertEquals(3, results.size());
+        assertEquals(11, results.get(0).getDataId());
+        assertEquals(12, results.get(1).getDataId());
+        assertEquals(13, results.get(2).getDataId());
+    }
+
+    private static void addRow(MatrixCursor cursor, long dataId, String name,
+            int timesContacted) {
+        cursor.addRow(new Object[] {
+                dataId, Phone.TYPE_MOBILE, null, "010-" + dataId, dataId, "lookup" + dataId,
+                0, name, name, timesContacted });
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.numberarea;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+
+/**
+ * Unit tests for {@link NumberAreaDatabase}.
+ */
+@SmallTest
+public class NumberAreaDatabaseTest extends AndroidTestCase {
+    private File mSource;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSource = getContext().getDatabasePath("number_area_test.db");
+        mSource.getParentFile().mkdirs();
+        mFile = getContext().getFileStreamPath("number_area_test.bin");
+        mSource.delete();
+        mFile.delete();
+
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mSource, null);
+        db.execSQL("CREATE TABLE area (_id INTEGER PRIMARY KEY, area TEXT)");
+        db.execSQL("CREATE TABLE phone_number (number TEXT, area_id INTEGER)");
+        db.execSQL("INSERT INTO area VALUES (1, '北京')");
+        db.execSQL("INSERT INTO area VALUES (5, '上海')");
+        db.execSQL("INSERT INTO phone_number VALUES ('1380010', 1)");
+        db.execSQL("INSERT INTO phone_number VALUES ('1390210', 5)");
+        db.execSQL("INSERT INTO phone_number VALUES ('1300010', 1)");
+        // Not valid: unknown area, wrong length, not a number.
+        db.execSQL("INSERT INTO phone_number VALUES ('1310010', 7)");
+        db.execSQL("INSERT INTO phone_number VALUES ('131001', 1)");
+        db.execSQL("INSERT INTO phone_number VALUES ('13a0010', 1)");
+        db.close();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSource.delete();
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testGetArea() {
+        assertTrue(NumberAreaDatabase.convert(mSource, mFile));
+        NumberAreaDatabase database = NumberAreaDatabase.open(mFile, mSource.lastModified());
+        assertNotNull(database);
+
+        assertEquals("北京", database.getArea("13800100000"));
+        assertEquals("北京", database.getArea("1300010"));
+        assertEquals("上海", database.getArea("1390210"));
+        assertNull(database.getArea("1310010"));
+        assertNull(database.getArea("1380011"));
+        assertNull(database.getArea("138001"));
+        assertNull(database.getArea("13a0010"));
+    }
+
+    public void testOpen_OutOfDate() {
+        assertTrue(NumberAreaDatabase.convert(mSource, mFile));
+        assertNull(NumberAreaDatabase.open(mFile, mSource.lastModified() + 1000));
+        // Accepted whatever it was converted from when the source is not available.
+        assertNotNull(NumberAreaDatabase.open(mFile, 0));
+    }
+
+    public void testOpen_NotConverted() {
+        assertNull(NumberAreaDatabase.open(mFile, 0));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Unit tests for {@link BitmapPool}.
+ */
+@SmallTest
+public class BitmapPoolTest extends AndroidTestCase {
+    private static final int BITMAP_BYTES = 96 * 96 * 4;
+
+    public void testGet_BucketedByDimensions() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_BYTES);
+        Bitmap bitmap = Bitmap.createBitmap(96, 96, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+        assertEquals(BITMAP_BYTES, pool.size());
+
+        assertNull(pool.get(48, 48, Bitmap.Config.ARGB_8888));
+        assertNull(pool.get(96, 96, Bitmap.Config.RGB_565));
+        assertSame(bitmap, pool.get(96, 96, Bitmap.Config.ARGB_8888));
+        assertNull(pool.get(96, 96, Bitmap.Config.ARGB_8888));
+        assertEquals(0, pool.size());
+    }
+
+    public void testPut_DropsEldestWhenFull() {
+        BitmapPool pool = new BitmapPool(2 * BITMAP_BYTES);
+        Bitmap first = Bitmap.createBitmap(96, 96, Bitmap.Config.ARGB_8888);
+        Bitmap second = Bitmap.createBitmap(96, 96, Bitmap.Config.ARGB_8888);
+        Bitmap third = Bitmap.createBitmap(96, 96, Bitmap.Config.ARGB_8888);
+        pool.put(first);
+        pool.put(second);
+        pool.put(third);
+        assertEquals(2 * BITMAP_BYTES, pool.size());
+
+        Bitmap a = pool.get(96, 96, Bitmap.Config.ARGB_8888);
+        Bitmap b = pool.get(96, 96, Bitmap.Config.ARGB_8888);
+        assertNull(pool.get(96, 96, Bitmap.Config.ARGB_8888));
+        assertTrue(a != first && b != first);
+    }
+
+    public void testPut_IgnoresUnusableBitmaps() {
+        BitmapPool pool = new BitmapPool(10 * BITMAP_BYTES);
+        Bitmap bitmap = Bitmap.createBitmap(96, 96, Bitmap.Config.ARGB_8888);
+
+        pool.put(bitmap.copy(Bitmap.Config.ARGB_8888, false));
+        Bitmap recycled = Bitmap.createBitmap(96, 96, Bitmap.Config.ARGB_8888);
+        recycled.recycle();
+        pool.put(recycled);
+        assertEquals(0, pool.size());
+
+        // The same bitmap is only pooled once
+        pool.put(bitmap);
+        pool.put(bitmap);
+        assertEquals(BITMAP_BYTES, pool.size());
+    }
+}
@@ -237,10 +237,13 @@ public abstract class AbstractContactsProvider extends ContentProvider
         ContactsTransaction transaction = mTransactionHolder.get();
         if (transaction != null && (!transaction.isBatch() || callerIsBatch)) {
             try {
-                if (transaction.isDirty()) {
+                final boolean dirty = transaction.isDirty();
+                transaction.finish(callerIsBatch);
+                // Only notify once the changes are committed, so that the observers reading
+                // them right away do not miss them.
+                if (dirty) {
                     notifyChange();
                 }
-                transaction.finish(callerIsBatch);
             } finally {
                 // No matter what, make sure we clear out the thread-local transaction reference.
                 mTransactionHolder.set(null);
@@ -48,6 +48,7 @@ import android.provider.ContactsContract.FullNameStyle;
 import android.provider.ContactsContract.PhotoFiles;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.StatusUpdates;
+import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.EventLog;
 import android.util.Log;
@@ -117,6 +118,14 @@ public class ContactAggregator {
     // suggestion lookup, ignore the remaining results.
     private static final int FIRST_LETTER_SUGGESTION_HIT_LIMIT = 100;
 
+    // If at least this many raw contacts are marked for aggregation in one transaction (e.g. during
+    // the initial sync of an account), their lookup keys and match candidates are loaded with a
+    // handful of set-based queries instead of being queried one raw contact at a time.
+    private static final int BATCH_AGGREGATION_THRESHOLD = 50;
+
+    // Maximum number of raw contact IDs included in a single batch prefetch query
+    private static final int BATCH_QUERY_CHUNK_SIZE = 500;
+
     private final ContactsProvider2 mContactsProvider;
     private final ContactsDatabaseHelper mDbHelper;
     private PhotoPriorityResolver mPhotoPriorityResolver;
@@ -158,6 +167,10 @@ public class ContactAggregator {
     private MatchCandidateList mCandidates = new MatchCandidateList();
     private ContactMatcher mMatcher = new ContactMatcher();
     private DisplayNameCandidate mDisplayNameCandidate = new DisplayNameCandidate();
+    private final NameDistance mApproximateNameDistance =
+            new NameDistance(ContactMatcher.MAX_MATCHED_NAME_LENGTH);
+    private final NameDistance.PackedNames mApproximateCandidateNames =
+            new NameDistance.PackedNames();
 
     /**
      * Parameter for the suggestion lookup query.
@@ -437,9 +450,14 @@ public class ContactAggregator {
             c.close();
         }
 
-        for (int i = 0; i < count; i++) {
-            aggregateContact(txContext, db, rawContactIds[i], accountTypes[i], accountNames[i],
-                    dataSets[i], contactIds[i], mCandidates, mMatcher);
+        if (count >= BATCH_AGGREGATION_THRESHOLD) {
+            aggregateInBatch(txContext, db, rawContactIds, accountTypes, accountNames, dataSets,
+                    contactIds, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                aggregateContact(txContext, db, rawContactIds[i], accountTypes[i],
+                        accountNames[i], dataSets[i], contactIds[i], mCandidates, mMatcher);
+            }
         }
 
         long elapsedTime = System.currentTimeMillis() - start;
@@ -685,6 +703,22 @@ public class ContactAggregator {
             return;
         }
 
+        applyAggregation(txContext, db, rawContactId, currentContactId, contactId,
+                contactIdToSplit, aggregationMode, null);
+    }
+
+    /**
+     * Moves the raw contact to the aggregate chosen by the matching algorithm, creating a new
+     * aggregate if {@code contactId} is -1, and splits {@code contactIdToSplit} if needed.
+     * <p>
+     * If {@code batch} is not null, the aggregated flag and the recomputation of joined
+     * aggregates are deferred until {@link #flushBatch} is called.
+     *
+     * @return the ID of the aggregate that now contains the raw contact
+     */
+    private long applyAggregation(TransactionContext txContext, SQLiteDatabase db,
+            long rawContactId, long currentContactId, long contactId, long contactIdToSplit,
+            int aggregationMode, AggregationBatch batch) {
         long currentContactContentsCount = 0;
 
         if (currentContactId != 0) {
@@ -704,12 +738,20 @@ public class ContactAggregator {
 
         if (contactId == currentContactId) {
             // Aggregation unchanged
-            markAggregated(rawContactId);
+            if (batch != null) {
+                batch.mAggregatedRawContactIds.add(rawContactId);
+            } else {
+                markAggregated(rawContactId);
+            }
         } else if (contactId == -1) {
             // Splitting an aggregate
-            createNewContactForRawContact(txContext, db, rawContactId);
+            contactId = createNewContactForRawContact(txContext, db, rawContactId);
             if (currentContactContentsCount > 0) {
-                updateAggregateData(txContext, currentContactId);
+                if (batch != null) {
+                    batch.mContactIdsToUpdate.add(currentContactId);
+                } else {
+                    updateAggregateData(txContext, currentContactId);
+                }
             }
         } else {
             // Joining with an existing aggregate
@@ -720,19 +762,645 @@ public class ContactAggregator {
 
                 mAggregatedPresenceDelete.bindLong(1, currentContactId);
                 mAggregatedPresenceDelete.execute();
+
+                if (batch != null) {
+                    batch.mContactIdsToUpdate.remove(currentContactId);
+                }
             }
 
             setContactIdAndMarkAggregated(rawContactId, contactId);
-            computeAggregateData(db, contactId, mContactUpdate);
-            mContactUpdate.bindLong(ContactReplaceSqlStatement.CONTACT_ID, contactId);
-            mContactUpdate.execute();
-            mDbHelper.updateContactVisible(txContext, contactId);
-            updateAggregatedStatusUpdate(contactId);
+            if (batch != null) {
+                batch.mContactIdsToUpdate.add(contactId);
+            } else {
+                computeAggregateData(db, contactId, mContactUpdate);
+                mContactUpdate.bindLong(ContactReplaceSqlStatement.CONTACT_ID, contactId);
+                mContactUpdate.execute();
+                mDbHelper.updateContactVisible(txContext, contactId);
+                updateAggregatedStatusUpdate(contactId);
+            }
         }
 
         if (contactIdToSplit != -1) {
-            splitAutomaticallyAggregatedRawContacts(txContext, db, contactIdToSplit);
+            boolean split = splitAutomaticallyAggregatedRawContacts(
+                    txContext, db, contactIdToSplit);
+            if (split && batch != null) {
+                // Raw contacts of the split aggregate now belong to new aggregates, which
+                // invalidates the match candidates loaded for the batch
+                batch.mCandidatesStale = true;
+            }
+        }
+
+        return contactId;
+    }
+
+    /**
+     * Lookup keys of the raw contacts aggregated in one batch, along with an in-memory index
+     * of the already aggregated raw contacts sharing any of those keys.
+     */
+    private static final class AggregationBatch {
+
+        // Lookup keys of the raw contacts in the batch, by raw contact ID
+        final HashMap<Long, ArrayList<NameMatchCandidate>> mNames =
+                new HashMap<Long, ArrayList<NameMatchCandidate>>();
+        final HashMap<Long, ArrayList<String>> mIdentities = new HashMap<Long, ArrayList<String>>();
+        final HashMap<Long, ArrayList<String>> mEmails = new HashMap<Long, ArrayList<String>>();
+        final HashMap<Long, ArrayList<PhoneKey>> mPhones = new HashMap<Long, ArrayList<PhoneKey>>();
+
+        // Match candidates: lookup key to the aggregates that contain it
+        final HashMap<String, ArrayList<NameCandidate>> mNameCandidates =
+                new HashMap<String, ArrayList<NameCandidate>>();
+        final HashMap<String, ArrayList<Long>> mIdentityCandidates =
+                new HashMap<String, ArrayList<Long>>();
+        final HashMap<String, ArrayList<Long>> mEmailCandidates =
+                new HashMap<String, ArrayList<Long>>();
+        final HashMap<String, ArrayList<PhoneCandidate>> mPhoneCandidates =
+                new HashMap<String, ArrayList<PhoneCandidate>>();
+        boolean mCandidatesStale;
+
+        // Writes deferred until the batch is flushed
+        final ArrayList<Long> mAggregatedRawContactIds = new ArrayList<Long>();
+        final HashSet<Long> mContactIdsToUpdate = new HashSet<Long>();
+
+        void clearCandidates() {
+            mNameCandidates.clear();
+            mIdentityCandidates.clear();
+            mEmailCandidates.clear();
+            mPhoneCandidates.clear();
+            mCandidatesStale = false;
+        }
+
+        static <K, V> void put(HashMap<K, ArrayList<V>> map, K key, V value) {
+            ArrayList<V> list = map.get(key);
+            if (list == null) {
+                list = new ArrayList<V>();
+                map.put(key, list);
+            }
+            list.add(value);
+        }
+    }
+
+    private static final class PhoneKey {
+        final String mMinMatch;
+        final String mNumber;
+
+        public PhoneKey(String minMatch, String number) {
+            mMinMatch = minMatch;
+            mNumber = number;
+        }
+    }
+
+    private static final class NameCandidate {
+        final long mContactId;
+        final int mNameType;
+
+        public NameCandidate(long contactId, int nameType) {
+            mContactId = contactId;
+            mNameType = nameType;
+        }
+    }
+
+    private static final class PhoneCandidate {
+        final long mContactId;
+        final String mNumber;
+
+        public PhoneCandidate(long contactId, String number) {
+            mContactId = contactId;
+            mNumber = number;
+        }
+    }
+
+    private static String identityKey(String namespace, String identity) {
+        return namespace + '\u0000' + identity;
+    }
+
+    private interface BatchNameLookupQuery {
+        String SQL_KEYS =
+                "SELECT " + NameLookupColumns.RAW_CONTACT_ID + ","
+                        + NameLookupColumns.NORMALIZED_NAME + "," + NameLookupColumns.NAME_TYPE +
+                " FROM " + Tables.NAME_LOOKUP +
+                " WHERE " + NameLookupColumns.RAW_CONTACT_ID + " IN (%s)";
+
+        String SQL_CANDIDATES =
+                "SELECT " + RawContacts.CONTACT_ID + ","
+                        + NameLookupColumns.NORMALIZED_NAME + "," + NameLookupColumns.NAME_TYPE +
+                " FROM " + Tables.NAME_LOOKUP +
+                " JOIN " + Tables.RAW_CONTACTS +
+                " ON (" + NameLookupColumns.RAW_CONTACT_ID + "="
+                        + RawContactsColumns.CONCRETE_ID + ")" +
+                " WHERE " + NameLookupColumns.NORMALIZED_NAME + " IN ("
+                        + "SELECT " + NameLookupColumns.NORMALIZED_NAME
+                        + " FROM " + Tables.NAME_LOOKUP
+                        + " WHERE " + NameLookupColumns.RAW_CONTACT_ID + " IN (%s))" +
+                " AND " + RawContactsColumns.AGGREGATION_NEEDED + "=0" +
+                " AND " + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY;
+
+        int ID = 0;
+        int NORMALIZED_NAME = 1;
+        int NAME_TYPE = 2;
+    }
+
+    private interface BatchIdentityLookupQuery {
+        String SQL_KEYS =
+                "SELECT " + Data.RAW_CONTACT_ID + ","
+                        + Identity.NAMESPACE + "," + Identity.IDENTITY +
+                " FROM " + Tables.DATA +
+                " WHERE " + DataColumns.MIMETYPE_ID + "=%d" +
+                " AND " + Identity.NAMESPACE + " NOT NULL" +
+                " AND " + Identity.IDENTITY + " NOT NULL" +
+                " AND " + Data.RAW_CONTACT_ID + " IN (%s)";
+
+        String SQL_CANDIDATES =
+                "SELECT " + RawContacts.CONTACT_ID + ","
+                        + Identity.NAMESPACE + "," + Identity.IDENTITY +
+                " FROM " + Tables.DATA_JOIN_RAW_CONTACTS +
+                " WHERE " + DataColumns.MIMETYPE_ID + "=%1$d" +
+                " AND " + Identity.IDENTITY + " IN ("
+                        + "SELECT " + Identity.IDENTITY
+                        + " FROM " + Tables.DATA
+                        + " WHERE " + DataColumns.MIMETYPE_ID + "=%1$d"
+                        + " AND " + Data.RAW_CONTACT_ID + " IN (%2$s))" +
+                " AND " + RawContactsColumns.AGGREGATION_NEEDED + "=0" +
+                " AND " + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY;
+
+        int ID = 0;
+        int NAMESPACE = 1;
+        int IDENTITY = 2;
+    }
+
+    private interface BatchEmailLookupQuery {
+        String SQL_KEYS =
+                "SELECT " + Data.RAW_CONTACT_ID + "," + Email.DATA +
+                " FROM " + Tables.DATA +
+                " WHERE " + DataColumns.MIMETYPE_ID + "=%d" +
+                " AND " + Email.DATA + " NOT NULL" +
+                " AND " + Data.RAW_CONTACT_ID + " IN (%s)";
+
+        String SQL_CANDIDATES =
+                "SELECT " + RawContacts.CONTACT_ID + "," + Email.DATA +
+                " FROM " + Tables.DATA_JOIN_RAW_CONTACTS +
+                " WHERE " + DataColumns.MIMETYPE_ID + "=%1$d" +
+                " AND " + Email.DATA + " IN ("
+                        + "SELECT " + Email.DATA
+                        + " FROM " + Tables.DATA
+                        + " WHERE " + DataColumns.MIMETYPE_ID + "=%1$d"
+                        + " AND " + Data.RAW_CONTACT_ID + " IN (%2$s))" +
+                " AND " + RawContactsColumns.AGGREGATION_NEEDED + "=0" +
+                " AND " + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY;
+
+        int ID = 0;
+        int ADDRESS = 1;
+    }
+
+    private interface BatchPhoneLookupQuery {
+        String SQL_KEYS =
+                "SELECT " + Tables.PHONE_LOOKUP + "." + PhoneLookupColumns.RAW_CONTACT_ID + ","
+                        + PhoneLookupColumns.MIN_MATCH + "," + Phone.NUMBER +
+                " FROM " + Tables.PHONE_LOOKUP +
+                " JOIN " + Tables.DATA +
+                " ON (" + DataColumns.CONCRETE_ID + "="
+                        + Tables.PHONE_LOOKUP + "." + PhoneLookupColumns.DATA_ID + ")" +
+                " WHERE " + Tables.PHONE_LOOKUP + "." + PhoneLookupColumns.RAW_CONTACT_ID
+                        + " IN (%s)";
+
+        String SQL_CANDIDATES =
+                "SELECT " + RawContacts.CONTACT_ID + ","
+                        + PhoneLookupColumns.MIN_MATCH + "," + Phone.NUMBER +
+                " FROM " + Tables.PHONE_LOOKUP +
+                " JOIN " + Tables.DATA +
+                " ON (" + DataColumns.CONCRETE_ID + "="
+                        + Tables.PHONE_LOOKUP + "." + PhoneLookupColumns.DATA_ID + ")" +
+                " JOIN " + Tables.RAW_CONTACTS +
+                " ON (" + DataColumns.CONCRETE_RAW_CONTACT_ID + "="
+                        + RawContactsColumns.CONCRETE_ID + ")" +
+                " WHERE " + PhoneLookupColumns.MIN_MATCH + " IN ("
+                        + "SELECT " + PhoneLookupColumns.MIN_MATCH
+                        + " FROM " + Tables.PHONE_LOOKUP
+                        + " WHERE " + PhoneLookupColumns.RAW_CONTACT_ID + " IN (%s))" +
+                " AND " + RawContactsColumns.AGGREGATION_NEEDED + "=0" +
+                " AND " + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY;
+
+        int ID = 0;
+        int MIN_MATCH = 1;
+        int NUMBER = 2;
+    }
+
+    /**
+     * Aggregates a large number of raw contacts marked for aggregation in the current
+     * transaction. The outcome is the same as calling {@link #aggregateContact} for each of
+     * them in turn, but the lookup keys and the match candidates for the entire batch are
+     * loaded with a few set-based queries and scored in memory. Raw contacts that have been
+     * processed are added to the in-memory candidates, so that they can be joined by the raw
+     * contacts that follow them in the batch.
+     */
+    private synchronized void aggregateInBatch(TransactionContext txContext, SQLiteDatabase db,
+            long[] rawContactIds, String[] accountTypes, String[] accountNames, String[] dataSets,
+            long[] contactIds, int count) {
+        if (!mAggregationExceptionIdsValid) {
+            prefetchAggregationExceptionIds(db);
+        }
+
+        final AggregationBatch batch = new AggregationBatch();
+        final boolean useStrictPhoneNumberComparison =
+                "1".equals(mDbHelper.getUseStrictPhoneNumberComparisonParameter());
+
+        for (int start = 0; start < count; start += BATCH_QUERY_CHUNK_SIZE) {
+            String rawContactIdList = buildRawContactIdList(rawContactIds, start,
+                    Math.min(count, start + BATCH_QUERY_CHUNK_SIZE));
+            loadBatchLookupKeys(db, batch, rawContactIdList);
+            loadBatchMatchCandidates(db, batch, rawContactIdList);
+        }
+
+        for (int i = 0; i < count; i++) {
+            final long rawContactId = rawContactIds[i];
+            final long currentContactId = contactIds[i];
+
+            if (batch.mCandidatesStale) {
+                // Reload the candidates for the remainder of the batch from the database
+                flushBatch(txContext, db, batch);
+                batch.clearCandidates();
+                for (int start = i; start < count; start += BATCH_QUERY_CHUNK_SIZE) {
+                    loadBatchMatchCandidates(db, batch, buildRawContactIdList(rawContactIds,
+                            start, Math.min(count, start + BATCH_QUERY_CHUNK_SIZE)));
+                }
+            }
+
+            int aggregationMode = RawContacts.AGGREGATION_MODE_DEFAULT;
+            Integer aggModeObject = mRawContactsMarkedForAggregation.get(rawContactId);
+            if (aggModeObject != null) {
+                aggregationMode = aggModeObject;
+            }
+
+            if (aggregationMode != RawContacts.AGGREGATION_MODE_DEFAULT
+                    || mAggregationExceptionIds.contains(rawContactId)) {
+                // Aggregation exceptions and non-default modes depend on the current state
+                // of the database, so the raw contact is aggregated on its own.
+                flushBatch(txContext, db, batch);
+                aggregateContact(txContext, db, rawContactId, accountTypes[i], accountNames[i],
+                        dataSets[i], currentContactId, mCandidates, mMatcher);
+                if (aggregationMode == RawContacts.AGGREGATION_MODE_SUSPENDED) {
+                    long contactId = mDbHelper.getContactId(rawContactId);
+                    if (contactId != 0 && mDbHelper.isContactInDefaultDirectory(db, contactId)) {
+                        addToBatchMatchCandidates(batch, rawContactId, contactId);
+                    }
+                } else if (aggregationMode == RawContacts.AGGREGATION_MODE_DEFAULT) {
+                    batch.mCandidatesStale = true;
+                }
+                continue;
+            }
+
+            mRawContactsMarkedForAggregation.remove(rawContactId);
+            mMatcher.clear();
+            mCandidates.clear();
+
+            long contactId = -1;
+            long contactIdToSplit = -1;
+
+            // If this is a newly inserted contact or a visible contact, look for data matches.
+            final boolean currentContactVisible = currentContactId != 0
+                    && mDbHelper.isContactInDefaultDirectory(db, currentContactId);
+            if (currentContactId == 0 || currentContactVisible) {
+                contactId = pickBestMatchInBatch(db, batch, rawContactId,
+                        useStrictPhoneNumberComparison, mCandidates, mMatcher);
+            }
+
+            // If we found an aggregate to join, but it already contains raw contacts from
+            // the same account, not only will we not join it, but also we will split
+            // that other aggregate
+            if (contactId != -1 && contactId != currentContactId &&
+                    containsRawContactsFromAccount(db, contactId, accountTypes[i],
+                            accountNames[i], dataSets[i])) {
+                contactIdToSplit = contactId;
+                contactId = -1;
+            }
+
+            final boolean joining = contactId != -1;
+            contactId = applyAggregation(txContext, db, rawContactId, currentContactId,
+                    contactId, contactIdToSplit, aggregationMode, batch);
+
+            // Aggregates found among the candidates are known to be visible
+            final boolean visible;
+            if (joining && contactId != currentContactId) {
+                visible = true;
+            } else if (contactId == currentContactId) {
+                visible = currentContactVisible;
+            } else {
+                visible = mDbHelper.isContactInDefaultDirectory(db, contactId);
+            }
+            if (visible) {
+                addToBatchMatchCandidates(batch, rawContactId, contactId);
+            }
+        }
+
+        flushBatch(txContext, db, batch);
+    }
+
+    private String buildRawContactIdList(long[] rawContactIds, int start, int end) {
+        mSb.setLength(0);
+        for (int i = start; i < end; i++) {
+            if (i != start) {
+                mSb.append(',');
+            }
+            mSb.append(rawContactIds[i]);
+        }
+        return mSb.toString();
+    }
+
+    /**
+     * Loads names, identities, email addresses and phone numbers of the specified raw contacts.
+     */
+    private void loadBatchLookupKeys(SQLiteDatabase db, AggregationBatch batch,
+            String rawContactIdList) {
+        Cursor c = db.rawQuery(
+                String.format(Locale.US, BatchNameLookupQuery.SQL_KEYS, rawContactIdList), null);
+        try {
+            while (c.moveToNext()) {
+                AggregationBatch.put(batch.mNames, c.getLong(BatchNameLookupQuery.ID),
+                        new NameMatchCandidate(c.getString(BatchNameLookupQuery.NORMALIZED_NAME),
+                                c.getInt(BatchNameLookupQuery.NAME_TYPE)));
+            }
+        } finally {
+            c.close();
+        }
+
+        c = db.rawQuery(String.format(Locale.US, BatchIdentityLookupQuery.SQL_KEYS,
+                mMimeTypeIdIdentity, rawContactIdList), null);
+        try {
+            while (c.moveToNext()) {
+                AggregationBatch.put(batch.mIdentities, c.getLong(BatchIdentityLookupQuery.ID),
+                        identityKey(c.getString(BatchIdentityLookupQuery.NAMESPACE),
+                                c.getString(BatchIdentityLookupQuery.IDENTITY)));
+            }
+        } finally {
+            c.close();
+        }
+
+        c = db.rawQuery(String.format(Locale.US, BatchEmailLookupQuery.SQL_KEYS,
+                mMimeTypeIdEmail, rawContactIdList), null);
+        try {
+            while (c.moveToNext()) {
+                AggregationBatch.put(batch.mEmails, c.getLong(BatchEmailLookupQuery.ID),
+                        c.getString(BatchEmailLookupQuery.ADDRESS));
+            }
+        } finally {
+            c.close();
+        }
+
+        c = db.rawQuery(
+                String.format(Locale.US, BatchPhoneLookupQuery.SQL_KEYS, rawContactIdList), null);
+        try {
+            while (c.moveToNext()) {
+                AggregationBatch.put(batch.mPhones, c.getLong(BatchPhoneLookupQuery.ID),
+                        new PhoneKey(c.getString(BatchPhoneLookupQuery.MIN_MATCH),
+                                c.getString(BatchPhoneLookupQuery.NUMBER)));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Loads all visible, already aggregated contacts that share a name, identity, email
+     * address or phone number with any of the specified raw contacts.
+     */
+    private void loadBatchMatchCandidates(SQLiteDatabase db, AggregationBatch batch,
+            String rawContactIdList) {
+        Cursor c = db.rawQuery(String.format(Locale.US, BatchNameLookupQuery.SQL_CANDIDATES,
+                rawContactIdList), null);
+        try {
+            while (c.moveToNext()) {
+                AggregationBatch.put(batch.mNameCandidates,
+                        c.getString(BatchNameLookupQuery.NORMALIZED_NAME),
+                        new NameCandidate(c.getLong(BatchNameLookupQuery.ID),
+                                c.getInt(BatchNameLookupQuery.NAME_TYPE)));
+            }
+        } finally {
+            c.close();
+        }
+
+        c = db.rawQuery(String.format(Locale.US, BatchIdentityLookupQuery.SQL_CANDIDATES,
+                mMimeTypeIdIdentity, rawContactIdList), null);
+        try {
+            while (c.moveToNext()) {
+                AggregationBatch.put(batch.mIdentityCandidates,
+                        identityKey(c.getString(BatchIdentityLookupQuery.NAMESPACE),
+                                c.getString(BatchIdentityLookupQuery.IDENTITY)),
+                        c.getLong(BatchIdentityLookupQuery.ID));
+            }
+        } finally {
+            c.close();
+        }
+
+        c = db.rawQuery(String.format(Locale.US, BatchEmailLookupQuery.SQL_CANDIDATES,
+                mMimeTypeIdEmail, rawContactIdList), null);
+        try {
+            while (c.moveToNext()) {
+                AggregationBatch.put(batch.mEmailCandidates,
+                        c.getString(BatchEmailLookupQuery.ADDRESS),
+                        c.getLong(BatchEmailLookupQuery.ID));
+            }
+        } finally {
+            c.close();
+        }
+
+        c = db.rawQuery(String.format(Locale.US, BatchPhoneLookupQuery.SQL_CANDIDATES,
+                rawContactIdList), null);
+        try {
+            while (c.moveToNext()) {
+                AggregationBatch.put(batch.mPhoneCandidates,
+                        c.getString(BatchPhoneLookupQuery.MIN_MATCH),
+                        new PhoneCandidate(c.getLong(BatchPhoneLookupQuery.ID),
+                                c.getString(BatchPhoneLookupQuery.NUMBER)));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Makes the lookup keys of a raw contact that has just been aggregated available as match
+     * candidates for the rest of the batch.
+     */
+    private void addToBatchMatchCandidates(AggregationBatch batch, long rawContactId,
+            long contactId) {
+        ArrayList<NameMatchCandidate> names = batch.mNames.get(rawContactId);
+        if (names != null) {
+            for (NameMatchCandidate name : names) {
+                AggregationBatch.put(batch.mNameCandidates, name.mName,
+                        new NameCandidate(contactId, name.mLookupType));
+            }
+        }
+        ArrayList<String> identities = batch.mIdentities.get(rawContactId);
+        if (identities != null) {
+            for (String identity : identities) {
+                AggregationBatch.put(batch.mIdentityCandidates, identity, contactId);
+            }
+        }
+        ArrayList<String> emails = batch.mEmails.get(rawContactId);
+        if (emails != null) {
+            for (String email : emails) {
+                AggregationBatch.put(batch.mEmailCandidates, email, contactId);
+            }
+        }
+        ArrayList<PhoneKey> phones = batch.mPhones.get(rawContactId);
+        if (phones != null) {
+            for (PhoneKey phone : phones) {
+                AggregationBatch.put(batch.mPhoneCandidates, phone.mMinMatch,
+                        new PhoneCandidate(contactId, phone.mNumber));
+            }
+        }
+    }
+
+    /**
+     * In-memory counterpart of {@link #pickBestMatchBasedOnData}, which scores the match
+     * candidates loaded for the batch instead of querying them for the raw contact.
+     */
+    private long pickBestMatchInBatch(SQLiteDatabase db, AggregationBatch batch,
+            long rawContactId, boolean useStrictPhoneNumberComparison,
+            MatchCandidateList candidates, ContactMatcher matcher) {
+        ArrayList<String> identities = batch.mIdentities.get(rawContactId);
+        if (identities != null) {
+            HashSet<Long> matchedContactIds = new HashSet<Long>();
+            for (String identity : identities) {
+                ArrayList<Long> contactIds = batch.mIdentityCandidates.get(identity);
+                if (contactIds != null) {
+                    matchedContactIds.addAll(contactIds);
+                }
+            }
+            for (long contactId : matchedContactIds) {
+                matcher.matchIdentity(contactId);
+            }
+        }
+
+        ArrayList<NameMatchCandidate> names = batch.mNames.get(rawContactId);
+        if (names != null) {
+            int hits = 0;
+            nameLoop: for (NameMatchCandidate name : names) {
+                ArrayList<NameCandidate> matches = batch.mNameCandidates.get(name.mName);
+                if (matches == null) {
+                    continue;
+                }
+                for (NameCandidate match : matches) {
+                    if (hits++ == PRIMARY_HIT_LIMIT) {
+                        break nameLoop;
+                    }
+                    matcher.matchName(match.mContactId, name.mLookupType, name.mName,
+                            match.mNameType, name.mName, ContactMatcher.MATCHING_ALGORITHM_EXACT);
+                    if (name.mLookupType == NameLookupType.NICKNAME
+                            && match.mNameType == NameLookupType.NICKNAME) {
+                        matcher.updateScoreWithNicknameMatch(match.mContactId);
+                    }
+                }
+            }
+        }
+
+        long bestMatch = matcher.pickBestMatch(ContactMatcher.SCORE_THRESHOLD_PRIMARY, false);
+        if (bestMatch == ContactMatcher.MULTIPLE_MATCHES) {
+            // We found multiple matches on the name - do not aggregate because of the ambiguity
+            return -1;
+        } else if (bestMatch != -1) {
+            return bestMatch;
+        }
+
+        ArrayList<String> emails = batch.mEmails.get(rawContactId);
+        if (emails != null) {
+            int hits = 0;
+            emailLoop: for (String email : emails) {
+                ArrayList<Long> contactIds = batch.mEmailCandidates.get(email);
+                if (contactIds == null) {
+                    continue;
+                }
+                for (long contactId : contactIds) {
+                    if (hits++ == SECONDARY_HIT_LIMIT) {
+                        break emailLoop;
+                    }
+                    matcher.updateScoreWithEmailMatch(contactId);
+                }
+            }
+        }
+
+        ArrayList<PhoneKey> phones = batch.mPhones.get(rawContactId);
+        if (phones != null) {
+            int hits = 0;
+            phoneLoop: for (PhoneKey phone : phones) {
+                ArrayList<PhoneCandidate> matches = batch.mPhoneCandidates.get(phone.mMinMatch);
+                if (matches == null) {
+                    continue;
+                }
+                for (PhoneCandidate match : matches) {
+                    if (!PhoneNumberUtils.compare(phone.mNumber, match.mNumber,
+                            useStrictPhoneNumberComparison)) {
+                        continue;
+                    }
+                    if (hits++ == SECONDARY_HIT_LIMIT) {
+                        break phoneLoop;
+                    }
+                    matcher.updateScoreWithPhoneNumberMatch(match.mContactId);
+                }
+            }
+        }
+
+        // We haven't found a good match on name, see if we have any matches on phone, email etc
+        List<Long> secondaryContactIds = matcher.prepareSecondaryMatchCandidates(
+                ContactMatcher.SCORE_THRESHOLD_PRIMARY);
+        if (secondaryContactIds == null || secondaryContactIds.size() > SECONDARY_HIT_LIMIT) {
+            return -1;
         }
+
+        // We only want to compare structured names to structured names
+        candidates.clear();
+        if (names != null) {
+            for (NameMatchCandidate name : names) {
+                if (NameLookupType.isBasedOnStructuredName(name.mLookupType)) {
+                    candidates.add(name.mName, name.mLookupType);
+                }
+            }
+        }
+
+        mSb.setLength(0);
+        mSb.append(RawContacts.CONTACT_ID).append(" IN (");
+        for (int i = 0; i < secondaryContactIds.size(); i++) {
+            if (i != 0) {
+                mSb.append(',');
+            }
+            mSb.append(secondaryContactIds.get(i));
+        }
+        mSb.append(") AND " + STRUCTURED_NAME_BASED_LOOKUP_SQL);
+
+        matchAllCandidates(db, mSb.toString(), candidates, matcher,
+                ContactMatcher.MATCHING_ALGORITHM_CONSERVATIVE, null);
+
+        bestMatch = matcher.pickBestMatch(ContactMatcher.SCORE_THRESHOLD_SECONDARY, false);
+        return bestMatch == ContactMatcher.MULTIPLE_MATCHES ? -1 : bestMatch;
+    }
+
+    /**
+     * Writes the deferred aggregated flags in bulk and recomputes the aggregates that were
+     * joined by raw contacts in the batch.
+     */
+    private void flushBatch(TransactionContext txContext, SQLiteDatabase db,
+            AggregationBatch batch) {
+        final ArrayList<Long> rawContactIds = batch.mAggregatedRawContactIds;
+        for (int start = 0; start < rawContactIds.size(); start += BATCH_QUERY_CHUNK_SIZE) {
+            int end = Math.min(rawContactIds.size(), start + BATCH_QUERY_CHUNK_SIZE);
+            mSb.setLength(0);
+            mSb.append("UPDATE " + Tables.RAW_CONTACTS +
+                    " SET " + RawContactsColumns.AGGREGATION_NEEDED + "=0" +
+                    " WHERE " + RawContacts._ID + " IN (");
+            for (int i = start; i < end; i++) {
+                if (i != start) {
+                    mSb.append(',');
+                }
+                mSb.append(rawContactIds.get(i));
+            }
+            mSb.append(')');
+            db.execSQL(mSb.toString());
+        }
+        rawContactIds.clear();
+
+        for (long contactId : batch.mContactIdsToUpdate) {
+            updateAggregateData(txContext, contactId);
+        }
+        batch.mContactIdsToUpdate.clear();
     }
 
     /**
@@ -786,7 +1454,7 @@ public class ContactAggregator {
      * Breaks up an existing aggregate when a new raw contact is inserted that has
      * come from the same account as one of the raw contacts in this aggregate.
      */
-    private void splitAutomaticallyAggregatedRawContacts(
+    private boolean splitAutomaticallyAggregatedRawContacts(
             TransactionContext txContext, SQLiteDatabase db, long contactId) {
         mSelectionArgs1[0] = String.valueOf(contactId);
         int count = (int) DatabaseUtils.longForQuery(db,
@@ -795,7 +1463,7 @@ public class ContactAggregator {
                 " WHERE " + RawContacts.CONTACT_ID + "=?", mSelectionArgs1);
         if (count < 2) {
             // A single-raw-contact aggregate does not need to be split up
-            return;
+            return false;
         }
 
         // Find all constituent raw contacts that are not held together by
@@ -831,12 +1499,13 @@ public class ContactAggregator {
         if (contactId > 0) {
             updateAggregateData(txContext, contactId);
         }
+        return true;
     }
 
     /**
-     * Creates a stand-alone Contact for the given raw contact ID.
+     * Creates a stand-alone Contact for the given raw contact ID and returns its ID.
      */
-    private void createNewContactForRawContact(
+    private long createNewContactForRawContact(
             TransactionContext txContext, SQLiteDatabase db, long rawContactId) {
         mSelectionArgs1[0] = String.valueOf(rawContactId);
         computeAggregateData(db, mRawContactsQueryByRawContactId, mSelectionArgs1,
@@ -846,6 +1515,7 @@ public class ContactAggregator {
         mDbHelper.updateContactVisible(txContext, contactId);
         setPresenceContactId(rawContactId, contactId);
         updateAggregatedStatusUpdate(contactId);
+        return contactId;
     }
 
     private static class RawContactIdQuery {
@@ -1362,6 +2032,12 @@ public class ContactAggregator {
             return;
         }
 
+        final NameLookupIndex index = mDbHelper.getNameLookupIndex();
+        if (index != null) {
+            updateMatchScoresBasedOnNameMatches(db, index, candidates, matcher);
+            return;
+        }
+
         Cursor c = db.query(NameLookupMatchQueryWithParameter.TABLE,
                 NameLookupMatchQueryWithParameter.COLUMNS, builder.getSelection(), null, null, null,
                 null, PRIMARY_HIT_LIMIT_STRING);
@@ -1382,6 +2058,45 @@ public class ContactAggregator {
         }
     }
 
+    /**
+     * Finds contacts with names matching the specified candidates in the in-memory name lookup
+     * index.
+     */
+    private void updateMatchScoresBasedOnNameMatches(SQLiteDatabase db, NameLookupIndex index,
+            MatchCandidateList candidates, ContactMatcher matcher) {
+        ArrayList<NameLookupIndex.Entry> entries = new ArrayList<NameLookupIndex.Entry>();
+        int count = 0;
+        for (int i = 0; i < candidates.mCount && count < PRIMARY_HIT_LIMIT; i++) {
+            NameMatchCandidate candidate = candidates.mList.get(i);
+            entries.clear();
+            index.findExactMatches(candidate.mName, entries);
+            if (entries.isEmpty()) {
+                continue;
+            }
+
+            // Like the query, only count the hits on raw contacts that exist
+            HashMap<Long, Long> contactIds = queryContactIdsForIndexEntries(db,
+                    Tables.RAW_CONTACTS, entries);
+            for (int j = 0; j < entries.size() && count < PRIMARY_HIT_LIMIT; j++) {
+                NameLookupIndex.Entry entry = entries.get(j);
+                Long contactId = contactIds.get(entry.rawContactId);
+                if (contactId == null) {
+                    continue;
+                }
+                count++;
+
+                int nameTypeA = candidate.mLookupType;
+                int nameTypeB = entry.nameType;
+                matcher.matchName(contactId, nameTypeA, entry.normalizedName, nameTypeB,
+                        entry.normalizedName, ContactMatcher.MATCHING_ALGORITHM_EXACT);
+                if (nameTypeA == NameLookupType.NICKNAME
+                        && nameTypeB == NameLookupType.NICKNAME) {
+                    matcher.updateScoreWithNicknameMatch(contactId);
+                }
+            }
+        }
+    }
+
     private interface EmailLookupQuery {
         String TABLE = Tables.DATA + " dataA"
                 + " JOIN " + Tables.DATA + " dataB" +
@@ -1470,6 +2185,7 @@ public class ContactAggregator {
      */
     private void lookupApproximateNameMatches(SQLiteDatabase db, MatchCandidateList candidates,
             ContactMatcher matcher) {
+        final NameLookupIndex index = mDbHelper.getNameLookupIndex();
         HashSet<String> firstLetters = new HashSet<String>();
         for (int i = 0; i < candidates.mCount; i++) {
             final NameMatchCandidate candidate = candidates.mList.get(i);
@@ -1477,6 +2193,10 @@ public class ContactAggregator {
                 String firstLetter = candidate.mName.substring(0, 2);
                 if (!firstLetters.contains(firstLetter)) {
                     firstLetters.add(firstLetter);
+                    if (index != null) {
+                        matchAllCandidates(db, index, firstLetter, candidates, matcher);
+                        continue;
+                    }
                     final String selection = "(" + NameLookupColumns.NORMALIZED_NAME + " GLOB '"
                             + firstLetter + "*') AND "
                             + NameLookupColumns.NAME_TYPE + " IN("
@@ -1491,6 +2211,118 @@ public class ContactAggregator {
         }
     }
 
+    // Name lookup types considered by the approximate name matching
+    private static final int APPROXIMATE_MATCH_NAME_TYPES =
+            (1 << NameLookupType.NAME_COLLATION_KEY)
+            | (1 << NameLookupType.EMAIL_BASED_NICKNAME)
+            | (1 << NameLookupType.NICKNAME);
+
+    /**
+     * Finds name lookup rows with the specified prefix in the in-memory name lookup index,
+     * discarding those that are not within the approximate match threshold of any candidate,
+     * and updates match scores based on the remaining ones.
+     */
+    private void matchAllCandidates(SQLiteDatabase db, NameLookupIndex index, String prefix,
+            MatchCandidateList candidates, ContactMatcher matcher) {
+        NameDistance.PackedNames candidateNames = mApproximateCandidateNames;
+        candidateNames.clear();
+        for (int i = 0; i < candidates.mCount; i++) {
+            candidateNames.add(Hex.decodeHex(candidates.mList.get(i).mName));
+        }
+
+        ArrayList<NameLookupIndex.Entry> entries = new ArrayList<NameLookupIndex.Entry>();
+        HashMap<Long, Long> contactIds;
+        int limit = FIRST_LETTER_SUGGESTION_HIT_LIMIT;
+        while (true) {
+            entries.clear();
+            index.findApproximateMatches(prefix, APPROXIMATE_MATCH_NAME_TYPES, candidateNames,
+                    mApproximateNameDistance, ContactMatcher.APPROXIMATE_MATCH_THRESHOLD,
+                    limit, entries);
+            if (entries.isEmpty()) {
+                return;
+            }
+
+            // Like the query, only count the hits on raw contacts that are not deleted, so
+            // look further if some of the entries are left out
+            contactIds = queryContactIdsForIndexEntries(db, Views.RAW_CONTACTS, entries);
+            if (entries.size() < limit
+                    || countResolvedEntries(entries, contactIds)
+                            >= FIRST_LETTER_SUGGESTION_HIT_LIMIT) {
+                break;
+            }
+            limit *= 2;
+        }
+
+        int count = 0;
+        for (NameLookupIndex.Entry entry : entries) {
+            Long contactId = contactIds.get(entry.rawContactId);
+            if (contactId == null) {
+                continue;
+            }
+            if (count++ == FIRST_LETTER_SUGGESTION_HIT_LIMIT) {
+                break;
+            }
+
+            for (int i = 0; i < candidates.mCount; i++) {
+                NameMatchCandidate candidate = candidates.mList.get(i);
+                matcher.matchName(contactId, candidate.mLookupType, candidate.mName,
+                        entry.nameType, entry.normalizedName,
+                        ContactMatcher.MATCHING_ALGORITHM_APPROXIMATE);
+            }
+        }
+    }
+
+    private static int countResolvedEntries(List<NameLookupIndex.Entry> entries,
+            HashMap<Long, Long> contactIds) {
+        int count = 0;
+        for (NameLookupIndex.Entry entry : entries) {
+            if (contactIds.containsKey(entry.rawContactId)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Maps the raw contact IDs of name lookup index entries to contact IDs. Entries that refer
+     * to raw contacts that are no longer in the specified table are left out.
+     */
+    private HashMap<Long, Long> queryContactIdsForIndexEntries(SQLiteDatabase db, String table,
+            List<NameLookupIndex.Entry> entries) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(RawContacts._ID + " IN (");
+        for (int i = 0; i < entries.size(); i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(entries.get(i).rawContactId);
+        }
+        sb.append(')');
+
+        HashMap<Long, Long> contactIds = new HashMap<Long, Long>();
+        Cursor c = db.query(table, RawContactIdAndContactIdQuery.COLUMNS, sb.toString(), null,
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                contactIds.put(c.getLong(RawContactIdAndContactIdQuery._ID),
+                        c.getLong(RawContactIdAndContactIdQuery.CONTACT_ID));
+            }
+        } finally {
+            c.close();
+        }
+        return contactIds;
+    }
+
+    private interface RawContactIdAndContactIdQuery {
+        String[] COLUMNS = new String[] {
+                RawContacts._ID,
+                RawContacts.CONTACT_ID
+        };
+
+        int _ID = 0;
+        int CONTACT_ID = 1;
+    }
+
     private interface ContactNameLookupQuery {
         String TABLE = Tables.NAME_LOOKUP_JOIN_RAW_CONTACTS;
 
@@ -1742,7 +2574,8 @@ public class ContactAggregator {
                             // Lookup the metadata for the photo, if available.  Note that data set
                             // does not come into play here, since accounts are looked up in the
                             // account manager in the priority resolver.
-                            PhotoEntry photoEntry = getPhotoMetadata(db, photoFileId);
+                            PhotoEntry photoEntry = getPhotoMetadata(db, photoFileId,
+                                    bestPhotoFileId, bestPhotoEntry);
                             String accountType = c.getString(RawContactsQuery.ACCOUNT_TYPE);
                             int priority = mPhotoPriorityResolver.getPhotoPriority(accountType);
                             if (superPrimary || hasHigherPhotoPriority(
@@ -1887,7 +2720,8 @@ public class ContactAggregator {
                 long dataId = c.getLong(PhotoIdQuery.DATA_ID);
                 long photoFileId = c.getLong(PhotoIdQuery.PHOTO_FILE_ID);
                 boolean superPrimary = c.getInt(PhotoIdQuery.IS_SUPER_PRIMARY) != 0;
-                PhotoEntry photoEntry = getPhotoMetadata(db, photoFileId);
+                PhotoEntry photoEntry = getPhotoMetadata(db, photoFileId, bestPhotoFileId,
+                        bestPhotoEntry);
 
                 // Note that data set does not come into play here, since accounts are looked up in
                 // the account manager in the priority resolver.
@@ -1961,6 +2795,19 @@ public class ContactAggregator {
         }
     }
 
+    /**
+     * Returns the metadata of the photo file, reusing the metadata of the best photo found so far
+     * if it is stored in the same photo file. Raw contacts from several accounts often carry the
+     * same photo, which the photo store keeps in a single file.
+     */
+    private PhotoEntry getPhotoMetadata(SQLiteDatabase db, long photoFileId,
+            long bestPhotoFileId, PhotoEntry bestPhotoEntry) {
+        if (photoFileId != 0 && photoFileId == bestPhotoFileId && bestPhotoEntry != null) {
+            return bestPhotoEntry;
+        }
+        return getPhotoMetadata(db, photoFileId);
+    }
+
     private PhotoEntry getPhotoMetadata(SQLiteDatabase db, long photoFileId) {
         if (photoFileId == 0) {
             // Assume standard thumbnail size.  Don't bother getting a file size for priority;
@@ -119,6 +119,23 @@ public class ContactLocaleUtils {
                 keys.add(keyPinyin.toString());
                 keys.add(keyInitial.toString());
             }
+            // Surnames are often read differently from how the collator sorts them, so
+            // make the name findable by the other readings of its first character too.
+            if (tokenCount > 0 && Token.PINYIN == tokens.get(0).type) {
+                final Token token = tokens.get(0);
+                final String[] readings = HanziToPinyin.getInstance().getPolyphonicReadings(
+                        token.source.charAt(0));
+                if (readings != null) {
+                    final String pinyinRest = keyPinyin.substring(token.target.length());
+                    final String initialRest = keyInitial.substring(1);
+                    for (String reading : readings) {
+                        if (!reading.equals(token.target)) {
+                            keys.add(reading + pinyinRest);
+                            keys.add(reading.charAt(0) + initialRest);
+                        }
+                    }
+                }
+            }
             return keys.iterator();
         }
     }
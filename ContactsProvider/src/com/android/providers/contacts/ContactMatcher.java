@@ -18,8 +18,8 @@ package com.android.providers.contacts;
 import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -53,7 +53,7 @@ public class ContactMatcher {
     private static final int NICKNAME_MATCH_SCORE = 71;
 
     // Maximum number of characters in a name to be considered by the matching algorithm.
-    private static final int MAX_MATCHED_NAME_LENGTH = 30;
+    /* package */ static final int MAX_MATCHED_NAME_LENGTH = 30;
 
     // Scores a multiplied by this number to allow room for "fractional" scores
     private static final int SCORE_SCALE = 1000;
@@ -237,29 +237,80 @@ public class ContactMatcher {
         }
     }
 
-    private final HashMap<Long, MatchScore> mScores = new HashMap<Long, MatchScore>();
+    // Initial capacity of the contact ID to MatchScore hash table. Must be a power of two.
+    private static final int INITIAL_SCORE_TABLE_CAPACITY = 64;
+
+    /**
+     * Open-addressing (linear probing) hash table keyed by contact ID, which avoids boxing
+     * contact IDs on every score update. {@link #mScoreTableSlots} holds the index of the
+     * corresponding MatchScore in {@link #mScoreList} plus one, zero marking an empty slot.
+     * The table is kept at most half full.
+     */
+    private long[] mScoreTableKeys = new long[INITIAL_SCORE_TABLE_CAPACITY];
+    private int[] mScoreTableSlots = new int[INITIAL_SCORE_TABLE_CAPACITY];
+
+    // MatchScore objects are pooled: the first mScoreCount elements are in use
     private final ArrayList<MatchScore> mScoreList = new ArrayList<MatchScore>();
     private int mScoreCount = 0;
 
+    private final ArrayList<MatchScore> mBestMatches = new ArrayList<MatchScore>();
+
     private final NameDistance mNameDistanceConservative = new NameDistance();
     private final NameDistance mNameDistanceApproximate = new NameDistance(MAX_MATCHED_NAME_LENGTH);
 
+    private static int hash(long contactId) {
+        int h = (int) (contactId ^ (contactId >>> 32));
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
     private MatchScore getMatchingScore(long contactId) {
-        MatchScore matchingScore = mScores.get(contactId);
-        if (matchingScore == null) {
-            if (mScoreList.size() > mScoreCount) {
-                matchingScore = mScoreList.get(mScoreCount);
-                matchingScore.reset(contactId);
-            } else {
-                matchingScore = new MatchScore(contactId);
-                mScoreList.add(matchingScore);
+        int mask = mScoreTableKeys.length - 1;
+        int index = hash(contactId) & mask;
+        int slot;
+        while ((slot = mScoreTableSlots[index]) != 0) {
+            if (mScoreTableKeys[index] == contactId) {
+                return mScoreList.get(slot - 1);
             }
-            mScoreCount++;
-            mScores.put(contactId, matchingScore);
+            index = (index + 1) & mask;
+        }
+
+        MatchScore matchingScore;
+        if (mScoreList.size() > mScoreCount) {
+            matchingScore = mScoreList.get(mScoreCount);
+            matchingScore.reset(contactId);
+        } else {
+            matchingScore = new MatchScore(contactId);
+            mScoreList.add(matchingScore);
+        }
+        mScoreCount++;
+        mScoreTableKeys[index] = contactId;
+        mScoreTableSlots[index] = mScoreCount;
+
+        if (mScoreCount * 2 > mScoreTableKeys.length) {
+            resizeScoreTable(mScoreTableKeys.length * 2);
         }
         return matchingScore;
     }
 
+    /**
+     * Rehashes the scores that are in use into a table of the specified capacity.
+     */
+    private void resizeScoreTable(int capacity) {
+        mScoreTableKeys = new long[capacity];
+        mScoreTableSlots = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < mScoreCount; i++) {
+            long contactId = mScoreList.get(i).mContactId;
+            int index = hash(contactId) & mask;
+            while (mScoreTableSlots[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            mScoreTableKeys[index] = contactId;
+            mScoreTableSlots[index] = i + 1;
+        }
+    }
+
     /**
      * Marks the contact as a full match, because we found an Identity match
      */
@@ -302,12 +353,12 @@ public class ContactMatcher {
                 mNameDistanceConservative : mNameDistanceApproximate;
 
         int score;
-        float distance = nameDistance.getDistance(decodedCandidateName, decodedName);
         boolean emailBased = candidateNameType == NameLookupType.EMAIL_BASED_NICKNAME
                 || nameType == NameLookupType.EMAIL_BASED_NICKNAME;
         float threshold = emailBased
                 ? APPROXIMATE_MATCH_THRESHOLD_FOR_EMAIL
                 : APPROXIMATE_MATCH_THRESHOLD;
+        float distance = nameDistance.getDistance(decodedCandidateName, decodedName, threshold);
         if (distance > threshold) {
             score = (int)(minScore +  (maxScore - minScore) * (1.0f - distance));
         } else {
@@ -346,7 +397,7 @@ public class ContactMatcher {
     }
 
     public void clear() {
-        mScores.clear();
+        Arrays.fill(mScoreTableSlots, 0);
         mScoreCount = 0;
     }
 
@@ -414,23 +465,21 @@ public class ContactMatcher {
     }
 
     /**
-     * Returns matches in the order of descending score.
+     * Returns matches in the order of descending score. Only the matches over the threshold
+     * are sorted. The returned list is reused by subsequent calls.
      */
     public List<MatchScore> pickBestMatches(int threshold) {
         int scaledThreshold = threshold * SCORE_SCALE;
-        List<MatchScore> matches = mScoreList.subList(0, mScoreCount);
-        Collections.sort(matches);
-        int count = 0;
+        mBestMatches.clear();
         for (int i = 0; i < mScoreCount; i++) {
-            MatchScore matchScore = matches.get(i);
+            MatchScore matchScore = mScoreList.get(i);
             if (matchScore.getScore() >= scaledThreshold) {
-                count++;
-            } else {
-                break;
+                mBestMatches.add(matchScore);
             }
         }
 
-        return matches.subList(0, count);
+        Collections.sort(mBestMatches);
+        return mBestMatches;
     }
 
     @Override
@@ -108,7 +108,7 @@ import com.android.providers.contacts.R;
      *   600-699 Ice Cream Sandwich
      * </pre>
      */
-    static final int DATABASE_VERSION = 625;
+    static final int DATABASE_VERSION = 627;
 
     private static final String DATABASE_NAME = "contacts2.db";
     private static final String DATABASE_PRESENCE = "presence_db";
@@ -590,6 +590,9 @@ import com.android.providers.contacts.R;
         String CONCRETE_HEIGHT = Tables.PHOTO_FILES + "." + PhotoFiles.HEIGHT;
         String CONCRETE_WIDTH = Tables.PHOTO_FILES + "." + PhotoFiles.WIDTH;
         String CONCRETE_FILESIZE = Tables.PHOTO_FILES + "." + PhotoFiles.FILESIZE;
+
+        /** Hash of the stored display photo, used to share files between identical photos. */
+        String HASH = "hash";
     }
 
     public interface PropertiesColumns {
@@ -682,6 +685,10 @@ import com.android.providers.contacts.R;
 
     private SQLiteStatement mNameLookupInsert;
     private SQLiteStatement mNameLookupDelete;
+
+    /** Optional in-memory copy of the name lookup table, null if disabled */
+    private NameLookupIndex mNameLookupIndex;
+
     private SQLiteStatement mStatusUpdateAutoTimestamp;
     private SQLiteStatement mStatusUpdateInsert;
     private SQLiteStatement mStatusUpdateReplace;
@@ -759,6 +766,9 @@ import com.android.providers.contacts.R;
         mNameLookupInsert = null;
         mNameLookupDelete = null;
         mDataMimetypeQuery = null;
+        if (mNameLookupIndex != null) {
+            mNameLookupIndex.invalidate();
+        }
         mActivitiesMimetypeQuery = null;
         mContactIdQuery = null;
         mAggregationModeQuery = null;
@@ -989,7 +999,12 @@ import com.android.providers.contacts.R;
                 PhotoFiles._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                 PhotoFiles.HEIGHT + " INTEGER NOT NULL, " +
                 PhotoFiles.WIDTH + " INTEGER NOT NULL, " +
-                PhotoFiles.FILESIZE + " INTEGER NOT NULL);");
+                PhotoFiles.FILESIZE + " INTEGER NOT NULL, " +
+                PhotoFilesColumns.HASH + " TEXT);");
+
+        db.execSQL("CREATE INDEX photo_files_hash_index ON " + Tables.PHOTO_FILES + " (" +
+                PhotoFilesColumns.HASH +
+        ");");
 
         // TODO readd the index and investigate a controlled use of it
 //        db.execSQL("CREATE INDEX raw_contacts_agg_index ON " + Tables.RAW_CONTACTS + " (" +
@@ -2364,6 +2379,20 @@ import com.android.providers.contacts.R;
             oldVersion = 625;
         }
 
+        if (oldVersion < 626) {
+            upgradeToVersion626(db);
+            oldVersion = 626;
+        }
+
+        if (oldVersion < 627) {
+            // Chinese names gained lookup keys for the other readings of polyphonic surnames
+            if (Locale.CHINESE.getLanguage().equals(Locale.getDefault().getLanguage())) {
+                upgradeNameLookup = true;
+                upgradeSearchIndex = true;
+            }
+            oldVersion = 627;
+        }
+
         if (upgradeViewsAndTriggers) {
             createContactsViews(db);
             createGroupsView(db);
@@ -2385,6 +2414,7 @@ import com.android.providers.contacts.R;
         if (upgradeSearchIndex) {
             createSearchIndexTable(db);
             setProperty(db, SearchIndexManager.PROPERTY_SEARCH_INDEX_VERSION, "0");
+            setProperty(db, SearchIndexManager.PROPERTY_SEARCH_INDEX_WATERMARK, "-1");
         }
 
         if (oldVersion != newVersion) {
@@ -2998,6 +3028,9 @@ import com.android.providers.contacts.R;
     }
 
     private void insertNameLookup(SQLiteDatabase db) {
+        if (mNameLookupIndex != null) {
+            mNameLookupIndex.invalidate();
+        }
         db.execSQL("DELETE FROM " + Tables.NAME_LOOKUP);
 
         SQLiteStatement nameLookupInsert = db.compileStatement(
@@ -3594,6 +3627,14 @@ import com.android.providers.contacts.R;
         db.execSQL("ALTER TABLE calls ADD formatted_number TEXT DEFAULT NULL;");
     }
 
+    private void upgradeToVersion626(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + Tables.PHOTO_FILES + " ADD " + PhotoFilesColumns.HASH
+                + " TEXT;");
+        db.execSQL("CREATE INDEX photo_files_hash_index ON " + Tables.PHOTO_FILES + " (" +
+                PhotoFilesColumns.HASH +
+        ");");
+    }
+
     public String extractHandleFromEmailAddress(String email) {
         Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(email);
         if (tokens.length == 0) {
@@ -3820,6 +3861,9 @@ import com.android.providers.contacts.R;
         db.execSQL("DELETE FROM " + Tables.DATA + ";");
         db.execSQL("DELETE FROM " + Tables.PHONE_LOOKUP + ";");
         db.execSQL("DELETE FROM " + Tables.NAME_LOOKUP + ";");
+        if (mNameLookupIndex != null) {
+            mNameLookupIndex.invalidate();
+        }
         db.execSQL("DELETE FROM " + Tables.GROUPS + ";");
         db.execSQL("DELETE FROM " + Tables.AGGREGATION_EXCEPTIONS + ";");
         db.execSQL("DELETE FROM " + Tables.SETTINGS + ";");
@@ -4931,7 +4975,10 @@ import com.android.providers.contacts.R;
         mNameLookupInsert.bindLong(2, dataId);
         mNameLookupInsert.bindLong(3, lookupType);
         bindString(mNameLookupInsert, 4, name);
-        mNameLookupInsert.executeInsert();
+        long rowId = mNameLookupInsert.executeInsert();
+        if (rowId != -1 && mNameLookupIndex != null) {
+            mNameLookupIndex.insert(rawContactId, dataId, lookupType, name);
+        }
     }
 
     /**
@@ -4945,6 +4992,84 @@ import com.android.providers.contacts.R;
         }
         mNameLookupDelete.bindLong(1, dataId);
         mNameLookupDelete.execute();
+        if (mNameLookupIndex != null) {
+            mNameLookupIndex.deleteData(dataId);
+        }
+    }
+
+    /**
+     * Removes the {@link Tables#NAME_LOOKUP} rows of the raw contact from the in-memory
+     * {@link NameLookupIndex}.  Must be called before the raw contact is deleted: the rows are
+     * deleted along with it by triggers, which the index does not see.
+     */
+    public void deleteNameLookupIndexForRawContact(long rawContactId) {
+        final NameLookupIndex index = mNameLookupIndex;
+        if (index == null || !index.isLoaded()) {
+            return;
+        }
+
+        Cursor c = getReadableDatabase().query(true, Tables.NAME_LOOKUP,
+                new String[] { NameLookupColumns.DATA_ID },
+                NameLookupColumns.RAW_CONTACT_ID + "=" + rawContactId,
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                index.deleteData(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Discards the in-memory {@link NameLookupIndex} after a bulk deletion of raw contacts.
+     * It is reloaded on next use.
+     */
+    public void invalidateNameLookupIndex() {
+        if (mNameLookupIndex != null) {
+            mNameLookupIndex.invalidate();
+        }
+    }
+
+    /**
+     * Enables or disables the in-memory {@link NameLookupIndex}.
+     */
+    public void setNameLookupIndexEnabled(boolean enabled) {
+        if (enabled && mNameLookupIndex == null) {
+            mNameLookupIndex = new NameLookupIndex();
+        } else if (!enabled) {
+            mNameLookupIndex = null;
+        }
+    }
+
+    /**
+     * Returns the in-memory copy of the {@link Tables#NAME_LOOKUP} table, loading it if
+     * necessary, or null if the index is disabled.
+     */
+    public NameLookupIndex getNameLookupIndex() {
+        final NameLookupIndex index = mNameLookupIndex;
+        if (index != null && !index.isLoaded()) {
+            index.load(getReadableDatabase());
+        }
+        return index;
+    }
+
+    /**
+     * Notifies the name lookup index that the current transaction is about to be committed.
+     */
+    public void onNameLookupTransactionCommitted() {
+        if (mNameLookupIndex != null) {
+            mNameLookupIndex.onTransactionCommitted();
+        }
+    }
+
+    /**
+     * Notifies the name lookup index that the current transaction has been rolled back.
+     */
+    public void onNameLookupTransactionRolledBack() {
+        if (mNameLookupIndex != null) {
+            mNameLookupIndex.onTransactionRolledBack();
+        }
     }
 
     public String insertNameLookupForEmail(long rawContactId, long dataId, String email) {
@@ -64,6 +64,9 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Entity;
+import android.content.Entity.NamedContentValues;
+import android.content.EntityIterator;
 import android.content.IContentService;
 import android.content.Intent;
 import android.content.OperationApplicationException;
@@ -191,6 +194,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private static final int BACKGROUND_TASK_UPDATE_DIRECTORIES = 8;
     private static final int BACKGROUND_TASK_CHANGE_LOCALE = 9;
     private static final int BACKGROUND_TASK_CLEANUP_PHOTOS = 10;
+    private static final int BACKGROUND_TASK_PROCESS_PENDING_PHOTOS = 11;
 
     /** Default for the maximum number of returned aggregation suggestions. */
     private static final int DEFAULT_MAX_SUGGESTIONS = 5;
@@ -212,6 +216,15 @@ public class ContactsProvider2 extends AbstractContactsProvider
      */
     private static final String PREAUTHORIZED_URI_TOKEN = "perm_token";
 
+    /**
+     * Method of {@link #call} returning, under {@link #KEY_CHANGE_TOKEN}, a token that changes
+     * whenever contacts change in a way that can affect the caller id of a phone number. Lets
+     * other processes tell whether the caller ids they cached persistently are still valid,
+     * including after they have been restarted. Requires the READ_CONTACTS permission.
+     */
+    public static final String CHANGE_TOKEN_METHOD = "change_token";
+    public static final String KEY_CHANGE_TOKEN = "change_token";
+
     /**
      * Property key for the legacy contact import version. The need for a version
      * as opposed to a boolean flag is that if we discover bugs in the contact import process,
@@ -226,6 +239,27 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private static final String AGGREGATE_CONTACTS = "sync.contacts.aggregate";
 
+    // Keep an in-memory copy of the name lookup table for approximate aggregation matches
+    private static final String NAME_LOOKUP_INDEX = "sync.contacts.name_lookup_index";
+
+    // Scale and compress photos written to data rows on background threads
+    private static final String ASYNC_PHOTO_PROCESSING = "sync.contacts.async_photo_processing";
+    private static final int PHOTO_PROCESSING_THREADS = 2;
+    private static final int PHOTO_PROCESSING_CAPACITY = 32;
+
+    // How many times a processed photo is written back before giving up on concurrent updates
+    private static final int PHOTO_PROCESSING_MAX_ATTEMPTS = 3;
+
+    // Set in the transactions that leave photos to the photo processing queue, and cleared once
+    // the photos left unprocessed by an earlier process have been processed
+    @VisibleForTesting
+    /* package */ static final String PROPERTY_PHOTOS_PENDING = "photos_pending";
+
+    // The token returned by CHANGE_TOKEN_METHOD.  Replaced by a new random value in every
+    // transaction that can change caller ids, so that a reset database never repeats a token.
+    @VisibleForTesting
+    /* package */ static final String PROPERTY_CHANGE_TOKEN = "caller_id_change_token";
+
     private static final ProfileAwareUriMatcher sUriMatcher =
             new ProfileAwareUriMatcher(UriMatcher.NO_MATCH);
 
@@ -390,6 +424,32 @@ public class ContactsProvider2 extends AbstractContactsProvider
             STREAM_ITEMS_ID_PHOTOS_ID
     );
 
+    // Changes made through these URIs cannot change the contact a phone number is looked up to,
+    // nor the name, label, photo or options shown for it, so they leave the change token alone.
+    private static final List<Integer> CALLER_ID_NEUTRAL_URIS = Lists.newArrayList(
+            STATUS_UPDATES,
+            STATUS_UPDATES_ID,
+            PROFILE_STATUS_UPDATES,
+            SETTINGS,
+            GROUPS,
+            GROUPS_ID,
+            SYNCSTATE,
+            SYNCSTATE_ID,
+            PROFILE_SYNCSTATE,
+            PROFILE_SYNCSTATE_ID,
+            DATA_USAGE_FEEDBACK_ID,
+            CONTACTS_ID_STREAM_ITEMS,
+            CONTACTS_LOOKUP_STREAM_ITEMS,
+            CONTACTS_LOOKUP_ID_STREAM_ITEMS,
+            RAW_CONTACTS_ID_STREAM_ITEMS,
+            RAW_CONTACTS_ID_STREAM_ITEMS_ID,
+            STREAM_ITEMS,
+            STREAM_ITEMS_PHOTOS,
+            STREAM_ITEMS_ID,
+            STREAM_ITEMS_ID_PHOTOS,
+            STREAM_ITEMS_ID_PHOTOS_ID
+    );
+
     private static final String SELECTION_FAVORITES_GROUPS_BY_RAW_CONTACT_ID =
             RawContactsColumns.CONCRETE_ID + "=? AND "
                     + GroupsColumns.CONCRETE_ACCOUNT_NAME
@@ -1353,6 +1413,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private GlobalSearchSupport mGlobalSearchSupport;
     private CommonNicknameCache mCommonNicknameCache;
     private SearchIndexManager mSearchIndexManager;
+    private final QuerySqlCache mQuerySqlCache = new QuerySqlCache();
+    private final PhotoProcessingQueue mPhotoProcessingQueue =
+            new PhotoProcessingQueue(PHOTO_PROCESSING_THREADS, PHOTO_PROCESSING_CAPACITY);
 
     private ContentValues mValues = new ContentValues();
     private HashMap<String, Boolean> mAccountWritability = Maps.newHashMap();
@@ -1452,6 +1515,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         scheduleBackgroundTask(BACKGROUND_TASK_UPDATE_PROVIDER_STATUS);
         scheduleBackgroundTask(BACKGROUND_TASK_OPEN_WRITE_ACCESS);
         scheduleBackgroundTask(BACKGROUND_TASK_CLEANUP_PHOTOS);
+        scheduleBackgroundTask(BACKGROUND_TASK_PROCESS_PENDING_PHOTOS);
 
         return true;
     }
@@ -1475,6 +1539,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
         mProfileAggregator = new ProfileAggregator(this, mProfileHelper,
                 createPhotoPriorityResolver(context), mNameSplitter, mCommonNicknameCache);
         mProfileAggregator.setEnabled(SystemProperties.getBoolean(AGGREGATE_CONTACTS, true));
+        mContactsHelper.setNameLookupIndexEnabled(
+                SystemProperties.getBoolean(NAME_LOOKUP_INDEX, false));
+        mPhotoProcessingQueue.setEnabled(
+                SystemProperties.getBoolean(ASYNC_PHOTO_PROCESSING, false));
         mSearchIndexManager = new SearchIndexManager(this);
 
         mContactsPhotoStore = new PhotoStore(getContext().getFilesDir(), mContactsHelper);
@@ -1516,7 +1584,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 new DataRowHandlerForGroupMembership(context, dbHelper, contactAggregator,
                         mGroupIdCache));
         handlerMap.put(Photo.CONTENT_ITEM_TYPE,
-                new DataRowHandlerForPhoto(context, dbHelper, contactAggregator, photoStore));
+                new DataRowHandlerForPhoto(context, dbHelper, contactAggregator, photoStore,
+                        mPhotoProcessingQueue));
         handlerMap.put(Note.CONTENT_ITEM_TYPE,
                 new DataRowHandlerForNote(context, dbHelper, contactAggregator));
     }
@@ -1624,8 +1693,21 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     cleanupPhotoStore();
                     switchToProfileMode();
                     cleanupPhotoStore();
+                }
+                break;
+            }
+
+            case BACKGROUND_TASK_PROCESS_PENDING_PHOTOS: {
+                // The photos are written back through update(), which would wait for write
+                // access on this thread.  They are left for the next start in that case.
+                if (mWriteAccessLatch != null) {
                     break;
                 }
+                switchToContactMode();
+                processPendingPhotos();
+                switchToProfileMode();
+                processPendingPhotos();
+                break;
             }
         }
     }
@@ -1737,14 +1819,16 @@ public class ContactsProvider2 extends AbstractContactsProvider
         Cursor c = db.query(Views.DATA, new String[]{Data._ID, Photo.PHOTO_FILE_ID},
                 DataColumns.MIMETYPE_ID + "=" + photoMimeTypeId + " AND "
                         + Photo.PHOTO_FILE_ID + " IS NOT NULL", null, null, null, null);
+        // Identical photos share a photo file, so a photo file can be referenced by any number
+        // of data rows and stream item photos.
         Set<Long> usedPhotoFileIds = Sets.newHashSet();
-        Map<Long, Long> photoFileIdToDataId = Maps.newHashMap();
+        Map<Long, List<Long>> photoFileIdToDataIds = Maps.newHashMap();
         try {
             while (c.moveToNext()) {
                 long dataId = c.getLong(0);
                 long photoFileId = c.getLong(1);
                 usedPhotoFileIds.add(photoFileId);
-                photoFileIdToDataId.put(photoFileId, dataId);
+                addPhotoFileReference(photoFileIdToDataIds, photoFileId, dataId);
             }
         } finally {
             c.close();
@@ -1763,7 +1847,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                         RawContacts.ACCOUNT_NAME
                 },
                 null, null, null, null, null);
-        Map<Long, Long> photoFileIdToStreamItemPhotoId = Maps.newHashMap();
+        Map<Long, List<Long>> photoFileIdToStreamItemPhotoIds = Maps.newHashMap();
         Map<Long, Long> streamItemPhotoIdToStreamItemId = Maps.newHashMap();
         Map<Long, Account> streamItemPhotoIdToAccount = Maps.newHashMap();
         try {
@@ -1774,7 +1858,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 String accountType = c.getString(3);
                 String accountName = c.getString(4);
                 usedPhotoFileIds.add(photoFileId);
-                photoFileIdToStreamItemPhotoId.put(photoFileId, streamItemPhotoId);
+                addPhotoFileReference(photoFileIdToStreamItemPhotoIds, photoFileId,
+                        streamItemPhotoId);
                 streamItemPhotoIdToStreamItemId.put(streamItemPhotoId, streamItemId);
                 Account account = new Account(accountName, accountType);
                 streamItemPhotoIdToAccount.put(photoFileId, account);
@@ -1792,19 +1877,22 @@ public class ContactsProvider2 extends AbstractContactsProvider
             try {
                 db.beginTransactionWithListener(this);
                 for (long missingPhotoId : missingPhotoIds) {
-                    if (photoFileIdToDataId.containsKey(missingPhotoId)) {
-                        long dataId = photoFileIdToDataId.get(missingPhotoId);
-                        ContentValues updateValues = new ContentValues();
-                        updateValues.putNull(Photo.PHOTO_FILE_ID);
-                        updateData(ContentUris.withAppendedId(Data.CONTENT_URI, dataId),
-                                updateValues, null, null, false);
+                    if (photoFileIdToDataIds.containsKey(missingPhotoId)) {
+                        for (long dataId : photoFileIdToDataIds.get(missingPhotoId)) {
+                            ContentValues updateValues = new ContentValues();
+                            updateValues.putNull(Photo.PHOTO_FILE_ID);
+                            updateData(ContentUris.withAppendedId(Data.CONTENT_URI, dataId),
+                                    updateValues, null, null, false);
+                        }
                     }
-                    if (photoFileIdToStreamItemPhotoId.containsKey(missingPhotoId)) {
+                    if (photoFileIdToStreamItemPhotoIds.containsKey(missingPhotoId)) {
                         // For missing photos that were in stream item photos, just delete the
                         // stream item photo.
-                        long streamItemPhotoId = photoFileIdToStreamItemPhotoId.get(missingPhotoId);
-                        db.delete(Tables.STREAM_ITEM_PHOTOS, StreamItemPhotos._ID + "=?",
-                                new String[]{String.valueOf(streamItemPhotoId)});
+                        for (long streamItemPhotoId :
+                                photoFileIdToStreamItemPhotoIds.get(missingPhotoId)) {
+                            db.delete(Tables.STREAM_ITEM_PHOTOS, StreamItemPhotos._ID + "=?",
+                                    new String[]{String.valueOf(streamItemPhotoId)});
+                        }
                     }
                 }
                 db.setTransactionSuccessful();
@@ -1817,6 +1905,16 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
     }
 
+    private static void addPhotoFileReference(Map<Long, List<Long>> references, long photoFileId,
+            long id) {
+        List<Long> ids = references.get(photoFileId);
+        if (ids == null) {
+            ids = Lists.newArrayList();
+            references.put(photoFileId, ids);
+        }
+        ids.add(id);
+    }
+
     @Override
     protected ContactsDatabaseHelper getDatabaseHelper(final Context context) {
         return ContactsDatabaseHelper.getInstance(context);
@@ -1836,6 +1934,16 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return mContactsPhotoStore;
     }
 
+    @VisibleForTesting
+    /* package */ QuerySqlCache getQuerySqlCache() {
+        return mQuerySqlCache;
+    }
+
+    @VisibleForTesting
+    /* package */ PhotoProcessingQueue getPhotoProcessingQueue() {
+        return mPhotoProcessingQueue;
+    }
+
     @VisibleForTesting
     /* package */ PhotoStore getProfilePhotoStore() {
         return mProfilePhotoStore;
@@ -1967,6 +2075,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
     /* package */ void wipeData() {
         mContactsHelper.wipeData();
         mProfileHelper.wipeData();
+        mQuerySqlCache.clear();
         mContactsPhotoStore.clear();
         mProfilePhotoStore.clear();
         mProviderStatus = ProviderStatus.STATUS_NO_ACCOUNTS_NO_CONTACTS;
@@ -2152,6 +2261,17 @@ public class ContactsProvider2 extends AbstractContactsProvider
             Bundle response = new Bundle();
             response.putParcelable(Authorization.KEY_AUTHORIZED_URI, authUri);
             return response;
+        } else if (method.equals(CHANGE_TOKEN_METHOD)) {
+            getContext().enforceCallingOrSelfPermission(
+                    android.Manifest.permission.READ_CONTACTS, null);
+            waitForAccess(mReadAccessLatch);
+            String token = mContactsHelper.getProperty(PROPERTY_CHANGE_TOKEN, null);
+            if (token == null) {
+                token = changeCallerIdToken();
+            }
+            Bundle response = new Bundle();
+            response.putString(KEY_CHANGE_TOKEN, token);
+            return response;
         }
         return null;
     }
@@ -2266,11 +2386,51 @@ public class ContactsProvider2 extends AbstractContactsProvider
             updateProviderStatus();
             mProviderStatusUpdateNeeded = false;
         }
+
+        // The contacts database commits first, so the token is changed along with the changes
+        // to either database.
+        ContactsTransaction transaction = mTransactionHolder.get();
+        if (transaction != null && transaction.areCallerIdsChanged()) {
+            changeCallerIdToken();
+            transaction.clearCallerIdsChanged();
+        }
+
+        mDbHelper.get().onNameLookupTransactionCommitted();
+        submitPendingPhotos();
     }
 
     @Override
     public void onRollback() {
-        // Not used.
+        mDbHelper.get().onNameLookupTransactionRolledBack();
+
+        // Nothing was written, so there is nothing to process.
+        TransactionContext txContext = mTransactionContext.get();
+        for (int i = txContext.getPendingPhotos().size(); i > 0; i--) {
+            mPhotoProcessingQueue.release();
+        }
+        txContext.clearPendingPhotos();
+    }
+
+    /**
+     * Hands the photos written in the transaction over to the photo processing queue.
+     */
+    private void submitPendingPhotos() {
+        TransactionContext txContext = mTransactionContext.get();
+        Set<Map.Entry<Long, byte[]>> pendingPhotos = txContext.getPendingPhotos();
+        if (pendingPhotos.isEmpty()) {
+            return;
+        }
+
+        // The photos are only queued in memory, so in case the process dies before they are
+        // processed, the next one looks for them
+        mDbHelper.get().setProperty(PROPERTY_PHOTOS_PENDING, "1");
+
+        PhotoStore photoStore = mPhotoStore.get();
+        for (Map.Entry<Long, byte[]> entry : pendingPhotos) {
+            mPhotoProcessingQueue.submit(
+                    new ProcessPhotoTask(entry.getKey(), entry.getValue(), photoStore));
+        }
+        txContext.clearPendingPhotos();
     }
 
     private void updateSearchIndexInTransaction() {
@@ -2337,6 +2497,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     @Override
     protected void notifyChange() {
+        // Changes made outside of a transaction are not tracked, so they always change the token.
+        if (mTransactionHolder.get() == null) {
+            changeCallerIdToken();
+        }
         notifyChange(mSyncToNetwork);
         mSyncToNetwork = false;
     }
@@ -2346,6 +2510,26 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 syncToNetwork);
     }
 
+    /**
+     * Stores a new change token in the contacts database and returns it.
+     */
+    private String changeCallerIdToken() {
+        String token = Long.toHexString(mRandom.nextLong());
+        mContactsHelper.setProperty(PROPERTY_CHANGE_TOKEN, token);
+        return token;
+    }
+
+    /**
+     * Records in the current transaction that a change is being made through a URI of the given
+     * match, unless such changes cannot affect caller ids.
+     */
+    private void noteCallerIdChange(int match) {
+        ContactsTransaction transaction = mTransactionHolder.get();
+        if (transaction != null && !CALLER_ID_NEUTRAL_URIS.contains(match)) {
+            transaction.markCallerIdsChanged();
+        }
+    }
+
     protected void setProviderStatus(int status) {
         if (mProviderStatus != status) {
             mProviderStatus = status;
@@ -2392,6 +2576,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
         final int match = sUriMatcher.match(uri);
         long id = 0;
+        noteCallerIdChange(match);
 
         switch (match) {
             case SYNCSTATE:
@@ -3467,6 +3652,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         final boolean callerIsSyncAdapter =
                 readBooleanQueryParameter(uri, ContactsContract.CALLER_IS_SYNCADAPTER, false);
         final int match = sUriMatcher.match(uri);
+        noteCallerIdChange(match);
         switch (match) {
             case SYNCSTATE:
             case PROFILE_SYNCSTATE:
@@ -3737,6 +3923,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         if (callerIsSyncAdapter || rawContactIsLocal(rawContactId)) {
             mActiveDb.get().delete(Tables.PRESENCE,
                     PresenceColumns.RAW_CONTACT_ID + "=" + rawContactId, null);
+            mDbHelper.get().deleteNameLookupIndexForRawContact(rawContactId);
             int count = mActiveDb.get().delete(Tables.RAW_CONTACTS,
                     RawContacts._ID + "=" + rawContactId, null);
             mAggregator.get().updateAggregateData(mTransactionContext.get(), contactId);
@@ -3846,6 +4033,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         int count = 0;
 
         final int match = sUriMatcher.match(uri);
+        noteCallerIdChange(match);
         if (match == SYNCSTATE_ID && selection == null) {
             long rowId = ContentUris.parseId(uri);
             Object data = values.get(ContactsContract.SyncState.DATA);
@@ -4638,6 +4826,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                                     " AND " + RawContacts.ACCOUNT_TYPE + " = ?" +
                                     rawContactsDataSetClause + ")",
                             accountWithDataSetParams);
+                    mDbHelper.get().invalidateNameLookupIndex();
                     db.execSQL(
                             "DELETE FROM " + Tables.RAW_CONTACTS +
                             " WHERE " + RawContacts.ACCOUNT_NAME + " = ?" +
@@ -5015,6 +5204,20 @@ public class ContactsProvider2 extends AbstractContactsProvider
         String addressBookIndexerCountExpression = null;
 
         final int match = sUriMatcher.match(uri);
+
+        // Frequently used URIs are served from the SQL cache, bypassing the query builder
+        final String sqlCacheKey = getQuerySqlCacheKey(match, uri, projection, selection,
+                sortOrder, limit, directoryId);
+        long buildStart = 0;
+        if (sqlCacheKey != null) {
+            String sql = mQuerySqlCache.get(match, sqlCacheKey);
+            if (sql != null) {
+                return queryCachedSql(sql, getQuerySqlCacheSelectionArgs(match, uri,
+                        selectionArgs));
+            }
+            buildStart = System.nanoTime();
+        }
+
         switch (match) {
             case SYNCSTATE:
             case PROFILE_SYNCSTATE:
@@ -5952,9 +6155,16 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
         qb.setStrict(true);
 
+        long buildTime = sqlCacheKey != null ? System.nanoTime() - buildStart : 0;
         Cursor cursor =
                 query(mActiveDb.get(), qb, projection, selection, selectionArgs, sortOrder, groupBy,
                         limit);
+        if (sqlCacheKey != null) {
+            buildStart = System.nanoTime();
+            String sql = qb.buildQuery(projection, selection, groupBy, null, sortOrder, limit);
+            buildTime += System.nanoTime() - buildStart;
+            mQuerySqlCache.put(match, sqlCacheKey, sql, buildTime);
+        }
         if (readBooleanQueryParameter(uri, ContactCounts.ADDRESS_BOOK_INDEX_EXTRAS, false)) {
             cursor = bundleLetterCountExtras(cursor, mActiveDb.get(), qb, selection,
                     selectionArgs, sortOrder, addressBookIndexerCountExpression);
@@ -5965,6 +6175,61 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return cursor;
     }
 
+    /**
+     * Returns the key under which the SQL for the query is cached, or null if the query
+     * should not be cached. Only URIs whose SQL is entirely determined by the key, and
+     * whose IDs are passed as selection arguments, are cached.
+     */
+    private String getQuerySqlCacheKey(int match, Uri uri, String[] projection,
+            String selection, String sortOrder, String limit, long directoryId) {
+        switch (match) {
+            case CONTACTS:
+            case CONTACTS_ID:
+            case RAW_CONTACTS:
+            case RAW_CONTACTS_ID:
+            case DATA:
+            case DATA_ID:
+            case PHONES:
+            case PHONES_ID:
+                break;
+            default:
+                return null;
+        }
+
+        // The address book index needs the query builder
+        if (readBooleanQueryParameter(uri, ContactCounts.ADDRESS_BOOK_INDEX_EXTRAS, false)) {
+            return null;
+        }
+
+        return QuerySqlCache.buildKey(match, inProfileMode(), directoryId,
+                uri.getEncodedQuery(), projection, selection, sortOrder, limit);
+    }
+
+    /**
+     * Adds the selection arguments that {@link #queryLocal} derives from the URI for
+     * cacheable queries.
+     */
+    private String[] getQuerySqlCacheSelectionArgs(int match, Uri uri, String[] selectionArgs) {
+        switch (match) {
+            case CONTACTS_ID:
+            case RAW_CONTACTS_ID:
+                return insertSelectionArg(selectionArgs, String.valueOf(ContentUris.parseId(uri)));
+            case DATA_ID:
+            case PHONES_ID:
+                return insertSelectionArg(selectionArgs, uri.getLastPathSegment());
+            default:
+                return selectionArgs;
+        }
+    }
+
+    private Cursor queryCachedSql(String sql, String[] selectionArgs) {
+        final Cursor c = mActiveDb.get().rawQuery(sql, selectionArgs);
+        if (c != null) {
+            c.setNotificationUri(getContext().getContentResolver(), ContactsContract.AUTHORITY_URI);
+        }
+        return c;
+    }
+
     private Cursor query(final SQLiteDatabase db, SQLiteQueryBuilder qb, String[] projection,
             String selection, String[] selectionArgs, String sortOrder, String groupBy,
             String limit) {
@@ -7349,6 +7614,141 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
     }
 
+    /**
+     * Processes the photos that were left to the photo processing queue but are still stored
+     * in their data rows as is, because the process died before it got to them.  These are
+     * the photos larger than a thumbnail without a display photo.
+     */
+    @VisibleForTesting
+    /* package */ void processPendingPhotos() {
+        ContactsDatabaseHelper dbHelper = mDbHelper.get();
+        if (!"1".equals(dbHelper.getProperty(PROPERTY_PHOTOS_PENDING, null))) {
+            return;
+        }
+        // Cleared first, so that the photos deferred from now on mark it again
+        dbHelper.setProperty(PROPERTY_PHOTOS_PENDING, "0");
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        mActiveDb.set(db);
+        long photoMimeTypeId = dbHelper.getMimeTypeId(Photo.CONTENT_ITEM_TYPE);
+        ArrayList<Long> dataIds = Lists.newArrayList();
+        Cursor c = db.query(Tables.DATA, new String[] { Data._ID },
+                DataColumns.MIMETYPE_ID + "=" + photoMimeTypeId + " AND "
+                        + Photo.PHOTO_FILE_ID + " IS NULL AND "
+                        + Photo.PHOTO + " IS NOT NULL", null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                dataIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        // The photos are read one at a time, so that a cursor never holds more than one of them
+        PhotoStore photoStore = mPhotoStore.get();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        for (long dataId : dataIds) {
+            byte[] photo = null;
+            c = db.query(Tables.DATA, new String[] { Photo.PHOTO },
+                    Data._ID + "=" + dataId, null, null, null, null);
+            try {
+                if (c.moveToFirst()) {
+                    photo = c.getBlob(0);
+                }
+            } finally {
+                c.close();
+            }
+            if (photo == null) {
+                continue;
+            }
+            BitmapFactory.decodeByteArray(photo, 0, photo.length, options);
+            if (options.outWidth > mMaxThumbnailPhotoDim
+                    || options.outHeight > mMaxThumbnailPhotoDim) {
+                new ProcessPhotoTask(dataId, photo, photoStore).run();
+            }
+        }
+    }
+
+    /**
+     * Processes a photo that was stored in a data row as is and writes the thumbnail and the
+     * display photo back to the row, unless the photo of the row has been changed in the
+     * meantime.  If the photo cannot be processed it is removed from the row, rather than
+     * left there in full size as the thumbnail.
+     */
+    private class ProcessPhotoTask implements Runnable {
+        private final long mDataId;
+        private final byte[] mOriginalPhoto;
+        private final PhotoStore mTaskPhotoStore;
+
+        private ProcessPhotoTask(long dataId, byte[] originalPhoto, PhotoStore photoStore) {
+            mDataId = dataId;
+            mOriginalPhoto = originalPhoto;
+            mTaskPhotoStore = photoStore;
+        }
+
+        @Override
+        public void run() {
+            ContentValues values = new ContentValues();
+
+            // Signal that photo processing has already been handled.
+            values.put(DataRowHandlerForPhoto.SKIP_PROCESSING_KEY, true);
+            try {
+                PhotoProcessor processor = new PhotoProcessor(mOriginalPhoto, mMaxDisplayPhotoDim,
+                        mMaxThumbnailPhotoDim);
+                values.put(Photo.PHOTO, processor.getThumbnailPhotoBytes());
+                try {
+                    long photoFileId = mTaskPhotoStore.insert(processor);
+                    if (photoFileId != 0) {
+                        values.put(Photo.PHOTO_FILE_ID, photoFileId);
+                    }
+                } catch (IOException e) {
+                    // The thumbnail can still be used
+                    Log.e(TAG, "Could not store display photo for data row " + mDataId, e);
+                }
+            } catch (IOException e) {
+                // The writer would have failed if it had processed the photo itself
+                Log.e(TAG, "Could not process photo for data row " + mDataId
+                        + ", removing it", e);
+                values.putNull(Photo.PHOTO);
+            }
+
+            // Only replace the original photo.  The row version guards against changes made
+            // between the check and the update.
+            Uri dataUri = ContentUris.withAppendedId(Data.CONTENT_URI, mDataId).buildUpon()
+                    .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+                    .build();
+            for (int attempt = 0; attempt < PHOTO_PROCESSING_MAX_ATTEMPTS; attempt++) {
+                String dataVersion = getDataVersionIfPhotoUnchanged(dataUri);
+                if (dataVersion == null) {
+                    return;
+                }
+                if (update(dataUri, new ContentValues(values), Data.DATA_VERSION + "=?",
+                        new String[] { dataVersion }) != 0) {
+                    return;
+                }
+            }
+            Log.w(TAG, "Gave up writing processed photo to data row " + mDataId);
+        }
+
+        /**
+         * Returns the data version of the row if it still contains the original photo,
+         * null otherwise.
+         */
+        private String getDataVersionIfPhotoUnchanged(Uri dataUri) {
+            Cursor c = query(dataUri, new String[] { Data.DATA_VERSION, Photo.PHOTO }, null, null,
+                    null);
+            try {
+                if (c.moveToFirst() && Arrays.equals(mOriginalPhoto, c.getBlob(1))) {
+                    return c.getString(0);
+                }
+            } finally {
+                c.close();
+            }
+            return null;
+        }
+    }
+
     private static final String CONTACT_MEMORY_FILE_NAME = "contactAssetFile";
 
     /**
@@ -7382,6 +7782,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
      * Output {@link RawContacts} matching the requested selection in the vCard
      * format to the given {@link OutputStream}. This method returns silently if
      * any errors encountered.
+     * <p>
+     * The raw contacts of all requested contacts are read with one cursor sorted by contact
+     * ID, and vCards are composed one contact at a time while the cursor is consumed.
      */
     private void outputRawContactsAsVCard(Uri uri, OutputStream stream,
             String selection, String[] selectionArgs) {
@@ -7404,15 +7807,22 @@ public class ContactsProvider2 extends AbstractContactsProvider
             rawContactsUri = RawContactsEntity.CONTENT_URI;
         }
         try {
-            writer = new BufferedWriter(new OutputStreamWriter(stream));
-            if (!composer.init(uri, selection, selectionArgs, null, rawContactsUri)) {
-                Log.w(TAG, "Failed to init VCardComposer");
+            final String contactIds = queryContactIdsForVCard(uri, selection, selectionArgs);
+            if (contactIds == null) {
+                Log.w(TAG, "No contacts to output as vCard: " + uri);
                 return;
             }
 
-            while (!composer.isAfterLast()) {
-                writer.write(composer.createOneEntry());
+            final Cursor cursor = context.getContentResolver().query(rawContactsUri, null,
+                    RawContacts.CONTACT_ID + " IN (" + contactIds + ")", null,
+                    RawContacts.CONTACT_ID + ", " + RawContacts._ID);
+            if (cursor == null) {
+                Log.w(TAG, "Failed to query raw contact entities for vCard");
+                return;
             }
+
+            writer = new BufferedWriter(new OutputStreamWriter(stream));
+            writeRawContactEntitiesAsVCard(composer, cursor, writer);
         } catch (IOException e) {
             Log.e(TAG, "IOException: " + e);
         } finally {
@@ -7427,6 +7837,75 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
     }
 
+    /**
+     * Returns a comma separated list of the IDs of the contacts matched by the URI and
+     * selection, or null if there are none.
+     */
+    private String queryContactIdsForVCard(Uri uri, String selection, String[] selectionArgs) {
+        final Cursor cursor = getContext().getContentResolver().query(uri,
+                new String[] {Contacts._ID}, selection, selectionArgs, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        try {
+            while (cursor.moveToNext()) {
+                if (sb.length() != 0) {
+                    sb.append(',');
+                }
+                sb.append(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Writes one vCard per contact for the raw contact entities in the cursor, which has to be
+     * sorted by contact ID and raw contact ID. Only the data of the current contact is held in
+     * memory. Closes the cursor.
+     */
+    private void writeRawContactEntitiesAsVCard(VCardComposer composer, Cursor cursor,
+            Writer writer) throws IOException {
+        final EntityIterator iterator = RawContacts.newEntityIterator(cursor);
+        final Map<String, List<ContentValues>> contentValuesListMap = Maps.newHashMap();
+        long currentContactId = -1;
+        try {
+            while (iterator.hasNext()) {
+                final Entity entity = iterator.next();
+                final long contactId = entity.getEntityValues().getAsLong(RawContacts.CONTACT_ID);
+                if (contactId != currentContactId) {
+                    if (currentContactId != -1) {
+                        writer.write(composer.buildVCard(contentValuesListMap));
+                        contentValuesListMap.clear();
+                    }
+                    currentContactId = contactId;
+                }
+
+                for (NamedContentValues namedContentValues : entity.getSubValues()) {
+                    final ContentValues contentValues = namedContentValues.values;
+                    final String mimeType = contentValues.getAsString(Data.MIMETYPE);
+                    if (mimeType == null) {
+                        continue;
+                    }
+                    List<ContentValues> contentValuesList = contentValuesListMap.get(mimeType);
+                    if (contentValuesList == null) {
+                        contentValuesList = Lists.newArrayList();
+                        contentValuesListMap.put(mimeType, contentValuesList);
+                    }
+                    contentValuesList.add(contentValues);
+                }
+            }
+            if (currentContactId != -1) {
+                writer.write(composer.buildVCard(contentValuesListMap));
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
     @Override
     public String getType(Uri uri) {
 
@@ -53,6 +53,12 @@ public class ContactsTransaction {
      */
     private boolean mIsDirty;
 
+    /**
+     * Whether any of the changes made in this transaction since it was last committed can change
+     * the contact a phone number is looked up to, or what is shown for it.
+     */
+    private boolean mCallerIdsChanged;
+
     /**
      * Whether a yield operation failed with an exception.  If this occurred, we may not have a
      * lock on one of the databases that we started the transaction with (the yield code cleans
@@ -83,6 +89,18 @@ public class ContactsTransaction {
         mIsDirty = true;
     }
 
+    public boolean areCallerIdsChanged() {
+        return mCallerIdsChanged;
+    }
+
+    public void markCallerIdsChanged() {
+        mCallerIdsChanged = true;
+    }
+
+    public void clearCallerIdsChanged() {
+        mCallerIdsChanged = false;
+    }
+
     public void markYieldFailed() {
         mYieldFailed = true;
     }
@@ -174,6 +192,7 @@ public class ContactsTransaction {
             mDatabasesForTransaction.clear();
             mDatabaseTagMap.clear();
             mIsDirty = false;
+            mCallerIdsChanged = false;
         }
     }
 }
@@ -78,6 +78,11 @@ public abstract class DataRowHandler {
     protected final String mMimetype;
     protected long mMimetypeId;
 
+    // Data row as loaded by the last call to getAugmentedValues, used to find out which
+    // columns an update actually changes
+    private ContentValues mCurrentValues;
+    private long mCurrentValuesDataId;
+
     @SuppressWarnings("all")
     public DataRowHandler(Context context, ContactsDatabaseHelper dbHelper,
             ContactAggregator aggregator, String mimetype) {
@@ -157,7 +162,7 @@ public abstract class DataRowHandler {
             db.update(Tables.DATA, values, Data._ID + " =?", mSelectionArgs1);
         }
 
-        if (containsSearchableColumns(values)) {
+        if (containsSearchableColumns(getChangedValues(dataId, values))) {
             txContext.invalidateSearchIndexForRawContact(rawContactId);
         }
 
@@ -168,6 +173,31 @@ public abstract class DataRowHandler {
         return true;
     }
 
+    /**
+     * Returns the subset of the values that differ from the current data row, if the row
+     * was loaded by {@link #getAugmentedValues}. Otherwise returns all values.
+     */
+    private ContentValues getChangedValues(long dataId, ContentValues values) {
+        final ContentValues currentValues = mCurrentValues;
+        mCurrentValues = null;
+        if (currentValues == null || mCurrentValuesDataId != dataId) {
+            return values;
+        }
+
+        ContentValues changedValues = null;
+        for (String key : values.keySet()) {
+            Object newValue = values.get(key);
+            String newString = newValue == null ? null : newValue.toString();
+            if (TextUtils.equals(newString, currentValues.getAsString(key))) {
+                if (changedValues == null) {
+                    changedValues = new ContentValues(values);
+                }
+                changedValues.remove(key);
+            }
+        }
+        return changedValues != null ? changedValues : values;
+    }
+
     public boolean hasSearchableData() {
         return false;
     }
@@ -344,6 +374,8 @@ public abstract class DataRowHandler {
             return null;
         }
 
+        mCurrentValues = new ContentValues(values);
+        mCurrentValuesDataId = dataId;
         values.putAll(update);
         return values;
     }
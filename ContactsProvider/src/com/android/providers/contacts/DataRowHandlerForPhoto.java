@@ -20,6 +20,7 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.graphics.BitmapFactory;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.CommonDataKinds.Photo;
 import android.util.Log;
@@ -34,6 +35,7 @@ public class DataRowHandlerForPhoto extends DataRowHandler {
     private static final String TAG = "DataRowHandlerForPhoto";
 
     private final PhotoStore mPhotoStore;
+    private final PhotoProcessingQueue mPhotoProcessingQueue;
 
     /**
      * If this is set in the ContentValues passed in, it indicates that the caller has
@@ -43,27 +45,46 @@ public class DataRowHandlerForPhoto extends DataRowHandler {
      */
     /* package */ static final String SKIP_PROCESSING_KEY = "skip_processing";
 
+    /**
+     * The largest photo left to the photo processing queue.  Until it is processed, the photo
+     * is stored in the row as the thumbnail, so larger ones are processed right away rather
+     * than returned by queries and loaded as thumbnails.
+     */
+    private static final int MAX_DEFERRED_PHOTO_BYTES = 64 * 1024;
+
     public DataRowHandlerForPhoto(
             Context context, ContactsDatabaseHelper dbHelper, ContactAggregator aggregator,
-            PhotoStore photoStore) {
+            PhotoStore photoStore, PhotoProcessingQueue photoProcessingQueue) {
         super(context, dbHelper, aggregator, Photo.CONTENT_ITEM_TYPE);
         mPhotoStore = photoStore;
+        mPhotoProcessingQueue = photoProcessingQueue;
     }
 
     @Override
     public long insert(SQLiteDatabase db, TransactionContext txContext, long rawContactId,
             ContentValues values) {
 
+        byte[] deferredPhoto = null;
         if (values.containsKey(SKIP_PROCESSING_KEY)) {
             values.remove(SKIP_PROCESSING_KEY);
         } else {
-            // Pre-process the photo if one exists.
-            if (!preProcessPhoto(values)) {
+            // Pre-process the photo if one exists, unless it can be processed in the background.
+            deferredPhoto = deferPhotoProcessing(values);
+            if (deferredPhoto == null && !preProcessPhoto(values)) {
                 return 0;
             }
         }
 
-        long dataId = super.insert(db, txContext, rawContactId, values);
+        long dataId = 0;
+        try {
+            dataId = super.insert(db, txContext, rawContactId, values);
+        } finally {
+            // Hands the reserved slot over to the transaction, or gives it back if the row
+            // was not written
+            if (deferredPhoto != null) {
+                photoPendingProcessing(txContext, dataId, deferredPhoto);
+            }
+        }
         if (!txContext.isNewRawContact(rawContactId)) {
             mContactAggregator.updatePhotoId(db, rawContactId);
         }
@@ -75,17 +96,28 @@ public class DataRowHandlerForPhoto extends DataRowHandler {
             Cursor c, boolean callerIsSyncAdapter) {
         long rawContactId = c.getLong(DataUpdateQuery.RAW_CONTACT_ID);
 
+        byte[] deferredPhoto = null;
         if (values.containsKey(SKIP_PROCESSING_KEY)) {
             values.remove(SKIP_PROCESSING_KEY);
         } else {
-            // Pre-process the photo if one exists.
-            if (!preProcessPhoto(values)) {
+            // Pre-process the photo if one exists, unless it can be processed in the background.
+            deferredPhoto = deferPhotoProcessing(values);
+            if (deferredPhoto == null && !preProcessPhoto(values)) {
                 return false;
             }
         }
 
         // Do the actual update.
-        if (!super.update(db, txContext, values, c, callerIsSyncAdapter)) {
+        boolean updated = false;
+        try {
+            updated = super.update(db, txContext, values, c, callerIsSyncAdapter);
+        } finally {
+            if (deferredPhoto != null) {
+                photoPendingProcessing(txContext,
+                        updated ? c.getLong(DataUpdateQuery._ID) : 0, deferredPhoto);
+            }
+        }
+        if (!updated) {
             return false;
         }
 
@@ -118,6 +150,48 @@ public class DataRowHandlerForPhoto extends DataRowHandler {
         return true;
     }
 
+    /**
+     * Leaves the processing of the photo in the values to the photo processing queue if it is
+     * small enough and the queue has room for it. The original photo is stored in the row as a
+     * placeholder until the processed thumbnail replaces it. The slot reserved in the queue must
+     * be passed on to {@link #photoPendingProcessing} whether the row is written or not.
+     * @return The photo to process once the transaction commits, or null if the photo has to be
+     *     processed right away.
+     */
+    private byte[] deferPhotoProcessing(ContentValues values) {
+        if (!hasNonNullPhoto(values)) {
+            return null;
+        }
+
+        byte[] photo = values.getAsByteArray(Photo.PHOTO);
+        if (photo.length > MAX_DEFERRED_PHOTO_BYTES) {
+            return null;
+        }
+
+        // Only check that the photo can be decoded, processing happens in the background.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(photo, 0, photo.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        if (!mPhotoProcessingQueue.tryReserve()) {
+            return null;
+        }
+        values.putNull(Photo.PHOTO_FILE_ID);
+        return photo;
+    }
+
+    private void photoPendingProcessing(TransactionContext txContext, long dataId,
+            byte[] photo) {
+        if (dataId == 0 || txContext.photoPendingProcessing(dataId, photo) != null) {
+            // Either the row was not written or it already had a photo pending, which is
+            // superseded by this one.
+            mPhotoProcessingQueue.release();
+        }
+    }
+
     private boolean hasNonNullPhoto(ContentValues values) {
         byte[] photoBytes = values.getAsByteArray(Photo.PHOTO);
         return photoBytes != null && photoBytes.length > 0;
@@ -21,16 +21,21 @@ import android.util.Log;
 
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Locale;
 
 /**
  * An object to convert Chinese character to its corresponding pinyin string. For characters with
- * multiple possible pinyin string, only one is selected according to collator. Polyphone is not
- * supported in this implementation. This class is implemented to achieve the best runtime
+ * multiple possible pinyin string, only one is selected according to collator. Additional
+ * readings are only known for a few characters common in names, see
+ * {@link #getPolyphonicReadings}. This class is implemented to achieve the best runtime
  * performance and minimum runtime resources with tolerable sacrifice of accuracy. This
  * implementation highly depends on zh_CN ICU collation data and must be always synchronized with
  * ICU.
  *
+ * The collator is only consulted the first time a character is converted; the result is kept
+ * in a table indexed by the character.
+ *
  * Currently this file is aligned to zh.txt in ICU 4.6
  */
 public class HanziToPinyin {
@@ -243,11 +248,39 @@ public class HanziToPinyin {
     private static final String LAST_PINYIN_UNIHAN = "\u84D9";
     /** The first Chinese character in Unicode block */
     private static final char FIRST_UNIHAN = '\u3400';
+    /** The last Chinese character of the CJK Unified Ideographs block */
+    private static final char LAST_UNIHAN = '\u9FFF';
     private static final Collator COLLATOR = Collator.getInstance(Locale.CHINA);
 
+    /**
+     * Characters common in names that have more than one pinyin, sorted, and their readings.
+     */
+    private static final char[] POLYPHONIC_UNIHANS = {
+            '\u4E50', '\u4EC7', '\u4FDE', '\u533A', '\u5355', '\u5C09', '\u5F3A', '\u66FE',
+            '\u6734', '\u67E5', '\u6C88', '\u76D6', '\u79D8', '\u7F2A', '\u884C', '\u8983',
+            '\u89E3', '\u8D3E', '\u91CD', '\u957F', };
+    private static final String[][] POLYPHONIC_READINGS = {
+            { "YUE", "LE" }, { "QIU", "CHOU" }, { "YU", "SHU" }, { "OU", "QU" },
+            { "SHAN", "DAN", "CHAN" }, { "YU", "WEI" }, { "QIANG", "JIANG" }, { "ZENG", "CENG" },
+            { "PIAO", "PU" }, { "ZHA", "CHA" }, { "SHEN", "CHEN" }, { "GE", "GAI" },
+            { "BI", "MI" }, { "MIAO", "MIU", "MOU" }, { "XING", "HANG" }, { "QIN", "TAN" },
+            { "XIE", "JIE" }, { "JIA", "GU" }, { "ZHONG", "CHONG" }, { "CHANG", "ZHANG" }, };
+
+    /** Marks a character without pinyin in {@link #mPinyinIndexes} */
+    private static final short NO_PINYIN = -1;
+
     private static HanziToPinyin sInstance;
     private final boolean mHasChinaCollator;
 
+    /**
+     * For each character from {@link #FIRST_UNIHAN} to {@link #LAST_UNIHAN}, the index of its
+     * pinyin in {@link #PINYINS} plus one, {@link #NO_PINYIN}, or 0 if the character has not
+     * been looked up yet.
+     */
+    private final short[] mPinyinIndexes = new short[LAST_UNIHAN - FIRST_UNIHAN + 1];
+    /** Strings of the entries of {@link #PINYINS}, created when first used. */
+    private final String[] mPinyinStrings = new String[PINYINS.length];
+
     public static class Token {
         /**
          * Separator between target string for each source char
@@ -337,39 +370,105 @@ public class HanziToPinyin {
         Token token = new Token();
         final String letter = Character.toString(character);
         token.source = letter;
-        int offset = -1;
-        int cmp;
         if (character < 256) {
             token.type = Token.LATIN;
             token.target = letter;
             return token;
-        } else if (character < FIRST_UNIHAN) {
+        }
+        final int index = getPinyinIndex(character);
+        if (index < 0) {
             token.type = Token.UNKNOWN;
             token.target = letter;
-            return token;
         } else {
-            cmp = COLLATOR.compare(letter, FIRST_PINYIN_UNIHAN);
-            if (cmp < 0) {
-                token.type = Token.UNKNOWN;
-                token.target = letter;
-                return token;
+            token.type = Token.PINYIN;
+            token.target = getPinyinString(index);
+        }
+        return token;
+    }
+
+    /**
+     * Appends the pinyin of a Chinese character to the buffer. Nothing is allocated once the
+     * character has been converted before.
+     *
+     * @return false if the character has no pinyin, in which case nothing is appended
+     */
+    public boolean appendPinyin(char character, StringBuilder out) {
+        if (!mHasChinaCollator) {
+            return false;
+        }
+        final int index = getPinyinIndex(character);
+        if (index < 0) {
+            return false;
+        }
+        final byte[] pinyin = PINYINS[index];
+        for (int j = 0; j < pinyin.length && pinyin[j] != 0; j++) {
+            out.append((char) pinyin[j]);
+        }
+        return true;
+    }
+
+    /**
+     * Returns all known readings of a character that has more than one pinyin, or null if
+     * only one reading is known. The returned array must not be modified.
+     */
+    public String[] getPolyphonicReadings(char character) {
+        final int index = Arrays.binarySearch(POLYPHONIC_UNIHANS, character);
+        return index >= 0 ? POLYPHONIC_READINGS[index] : null;
+    }
+
+    private String getPinyinString(int index) {
+        String pinyin = mPinyinStrings[index];
+        if (pinyin == null) {
+            final StringBuilder sb = new StringBuilder(PINYINS[index].length);
+            for (int j = 0; j < PINYINS[index].length && PINYINS[index][j] != 0; j++) {
+                sb.append((char) PINYINS[index][j]);
+            }
+            pinyin = sb.toString();
+            mPinyinStrings[index] = pinyin;
+        }
+        return pinyin;
+    }
+
+    /**
+     * Returns the index of the pinyin of the character in {@link #PINYINS}, or -1 if it has no
+     * pinyin.
+     */
+    private int getPinyinIndex(char character) {
+        if (character < FIRST_UNIHAN) {
+            return -1;
+        } else if (character > LAST_UNIHAN) {
+            return lookupPinyinIndex(character);
+        }
+        final int slot = character - FIRST_UNIHAN;
+        int index = mPinyinIndexes[slot];
+        if (index == 0) {
+            final int pinyinIndex = lookupPinyinIndex(character);
+            index = pinyinIndex < 0 ? NO_PINYIN : pinyinIndex + 1;
+            mPinyinIndexes[slot] = (short) index;
+        }
+        return index == NO_PINYIN ? -1 : index - 1;
+    }
+
+    /**
+     * Finds the pinyin of a character with the collator.
+     */
+    private static int lookupPinyinIndex(char character) {
+        final String letter = Character.toString(character);
+        int offset = -1;
+        int cmp = COLLATOR.compare(letter, FIRST_PINYIN_UNIHAN);
+        if (cmp < 0) {
+            return -1;
+        } else if (cmp == 0) {
+            offset = 0;
+        } else {
+            cmp = COLLATOR.compare(letter, LAST_PINYIN_UNIHAN);
+            if (cmp > 0) {
+                return -1;
             } else if (cmp == 0) {
-                token.type = Token.PINYIN;
-                offset = 0;
-            } else {
-                cmp = COLLATOR.compare(letter, LAST_PINYIN_UNIHAN);
-                if (cmp > 0) {
-                    token.type = Token.UNKNOWN;
-                    token.target = letter;
-                    return token;
-                } else if (cmp == 0) {
-                    token.type = Token.PINYIN;
-                    offset = UNIHANS.length - 1;
-                }
+                offset = UNIHANS.length - 1;
             }
         }
 
-        token.type = Token.PINYIN;
         if (offset < 0) {
             int begin = 0;
             int end = UNIHANS.length - 1;
@@ -389,12 +488,7 @@ public class HanziToPinyin {
         if (cmp < 0) {
             offset--;
         }
-        StringBuilder pinyin = new StringBuilder();
-        for (int j = 0; j < PINYINS[offset].length && PINYINS[offset][j] != 0; j++) {
-            pinyin.append((char) PINYINS[offset][j]);
-        }
-        token.target = pinyin.toString();
-        return token;
+        return offset;
     }
 
     /**
@@ -62,21 +62,68 @@ public class NameDistance {
      * Computes a string distance between two normalized strings passed as byte arrays.
      */
     public float getDistance(byte bytes1[], byte bytes2[]) {
+        return getDistance(bytes1, 0, bytes1.length, bytes2, 0, bytes2.length, 0);
+    }
+
+    /**
+     * Computes a string distance between two normalized strings passed as byte arrays,
+     * giving up as soon as the distance is known to be below the threshold.
+     *
+     * @return the distance if it is at or above the threshold, otherwise a value below
+     *         the threshold (0 if the computation was abandoned early)
+     */
+    public float getDistance(byte bytes1[], byte bytes2[], float threshold) {
+        return getDistance(bytes1, 0, bytes1.length, bytes2, 0, bytes2.length, threshold);
+    }
+
+    /**
+     * Computes the distances between a normalized string and each of the packed candidate
+     * strings. See {@link #getDistance(byte[], byte[], float)} for the meaning of the
+     * threshold.
+     *
+     * @param distances receives the distance for each candidate, must be at least
+     *         {@link PackedNames#size()} long
+     * @return the number of candidates whose distance is at or above the threshold
+     */
+    public int getDistances(byte bytes[], PackedNames candidates, float threshold,
+            float distances[]) {
+        final byte[] buffer = candidates.mBuffer;
+        final int[] offsets = candidates.mOffsets;
+        int count = 0;
+        for (int i = 0; i < candidates.mCount; i++) {
+            int offset = offsets[i];
+            float distance = getDistance(bytes, 0, bytes.length,
+                    buffer, offset, offsets[i + 1] - offset, threshold);
+            distances[i] = distance;
+            if (distance >= threshold) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private float getDistance(byte bytes1[], int offset1, int length1,
+            byte bytes2[], int offset2, int length2, float threshold) {
         byte[] array1, array2;
 
-        if (bytes1.length > bytes2.length) {
+        if (length1 > length2) {
             array2 = bytes1;
             array1 = bytes2;
+            int tmp = offset1;
+            offset1 = offset2;
+            offset2 = tmp;
+            tmp = length1;
+            length1 = length2;
+            length2 = tmp;
         } else {
             array2 = bytes2;
             array1 = bytes1;
         }
 
-        int length1 = array1.length;
         if (length1 >= MIN_EXACT_PREFIX_LENGTH) {
             boolean prefix = true;
-            for (int i = 0; i < array1.length; i++) {
-                if (array1[i] != array2[i]) {
+            for (int i = 0; i < length1; i++) {
+                if (array1[offset1 + i] != array2[offset2 + i]) {
                     prefix = false;
                     break;
                 }
@@ -94,11 +141,23 @@ public class NameDistance {
             length1 = mMaxLength;
         }
 
-        int length2 = array2.length;
         if (length2 > mMaxLength) {
             length2 = mMaxLength;
         }
 
+        // The common prefix is known upfront, which lets us bound the Winkler bonus
+        int prefix = 0;
+        while (prefix < length1 && array1[offset1 + prefix] == array2[offset2 + prefix]) {
+            prefix++;
+        }
+        float bonus = Math.min(0.1f, 1f / length2) * prefix;
+
+        // Even if every character matched without transpositions we might not make it
+        boolean bounded = threshold > 0;
+        if (bounded && getMaxDistance(length1, length1, length2, bonus) < threshold) {
+            return 0f;
+        }
+
         Arrays.fill(mMatchFlags1, 0, length1, false);
         Arrays.fill(mMatchFlags2, 0, length2, false);
 
@@ -108,8 +167,9 @@ public class NameDistance {
         }
 
         int matches = 0;
+        int maxMatches = length1;
         for (int i = 0; i < length1; i++) {
-            byte c1 = array1[i];
+            byte c1 = array1[offset1 + i];
 
             int from = i - range;
             if (from < 0) {
@@ -121,13 +181,23 @@ public class NameDistance {
                 to = length2;
             }
 
+            boolean matched = false;
             for (int j = from; j < to; j++) {
-                if (!mMatchFlags2[j] && c1 == array2[j]) {
+                if (!mMatchFlags2[j] && c1 == array2[offset2 + j]) {
                     mMatchFlags1[i] = mMatchFlags2[j] = true;
                     matches++;
+                    matched = true;
                     break;
                 }
             }
+
+            if (!matched) {
+                maxMatches--;
+                if (bounded
+                        && getMaxDistance(maxMatches, length1, length2, bonus) < threshold) {
+                    return 0f;
+                }
+            }
         }
 
         if (matches == 0) {
@@ -141,7 +211,7 @@ public class NameDistance {
                 while (!mMatchFlags2[j]) {
                     j++;
                 }
-                if (array1[i] != array2[j]) {
+                if (array1[offset1 + i] != array2[offset2 + j]) {
                     transpositions++;
                 }
                 j++;
@@ -156,14 +226,51 @@ public class NameDistance {
         }
 
         // Add Winkler bonus
-        int prefix = 0;
-        for (int i = 0; i < length1; i++) {
-            if (bytes1[i] != bytes2[i]) {
-                break;
-            }
-            prefix++;
+        return jaro + bonus * (1 - jaro);
+    }
+
+    /**
+     * Returns the highest distance two strings of the specified lengths can have if at most
+     * {@code maxMatches} characters match.
+     */
+    private static float getMaxDistance(float maxMatches, int length1, int length2,
+            float bonus) {
+        float jaro = (maxMatches / length1 + maxMatches / length2 + 1) / 3;
+        if (jaro < WINKLER_BONUS_THRESHOLD) {
+            return jaro;
+        }
+        return jaro + bonus * (1 - jaro);
+    }
+
+    /**
+     * A list of normalized names packed into a single byte buffer, suitable for scoring one
+     * name against many with {@link NameDistance#getDistances}. The buffers are reused when
+     * the list is cleared.
+     */
+    public static final class PackedNames {
+        private byte[] mBuffer = new byte[256];
+        private int[] mOffsets = new int[17];
+        private int mCount;
+
+        public int size() {
+            return mCount;
         }
 
-        return jaro + Math.min(0.1f, 1f / length2) * prefix * (1 - jaro);
+        public void clear() {
+            mCount = 0;
+        }
+
+        public void add(byte[] name) {
+            int offset = mOffsets[mCount];
+            int end = offset + name.length;
+            if (end > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(end, mBuffer.length * 2));
+            }
+            if (mCount + 2 > mOffsets.length) {
+                mOffsets = Arrays.copyOf(mOffsets, mOffsets.length * 2);
+            }
+            System.arraycopy(name, 0, mBuffer, offset, name.length);
+            mOffsets[++mCount] = end;
+        }
     }
 }
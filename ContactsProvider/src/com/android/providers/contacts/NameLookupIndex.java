@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory copy of the {@link Tables#NAME_LOOKUP} table, which answers exact, prefix and
+ * approximate name lookups for the aggregator without querying the database.
+ * <p>
+ * The index is loaded lazily and kept up to date by {@link ContactsDatabaseHelper} as name
+ * lookup rows are inserted and deleted. Changes made in a transaction are applied immediately
+ * and recorded, so that they can be undone if the transaction is rolled back. Any bulk
+ * regeneration of the name lookup table (database upgrade, locale change) invalidates the
+ * index, which is then reloaded on next use.
+ * <p>
+ * Rows deleted by database triggers along with their raw contacts are removed by
+ * {@link ContactsDatabaseHelper} before the raw contacts are deleted. The index does not know
+ * which raw contacts are marked as deleted though, so callers must still resolve the returned
+ * raw contact IDs against the database, and apply their limits to the resolved entries.
+ */
+public class NameLookupIndex {
+
+    /**
+     * A row of the name lookup table.
+     */
+    public static final class Entry {
+        public final long rawContactId;
+        public final long dataId;
+        public final int nameType;
+        public final String normalizedName;
+
+        // Lazily decoded normalized name, used for approximate matching
+        private byte[] mDecodedName;
+
+        public Entry(long rawContactId, long dataId, int nameType, String normalizedName) {
+            this.rawContactId = rawContactId;
+            this.dataId = dataId;
+            this.nameType = nameType;
+            this.normalizedName = normalizedName;
+        }
+
+        byte[] getDecodedName() {
+            if (mDecodedName == null) {
+                mDecodedName = Hex.decodeHex(normalizedName);
+            }
+            return mDecodedName;
+        }
+
+        @Override
+        public String toString() {
+            return rawContactId + "/" + dataId + ": " + normalizedName + "(" + nameType + ")";
+        }
+    }
+
+    /**
+     * A change made to the index in the current transaction.
+     */
+    private static final class Change {
+        final Entry entry;
+        final boolean inserted;
+
+        public Change(Entry entry, boolean inserted) {
+            this.entry = entry;
+            this.inserted = inserted;
+        }
+    }
+
+    private interface NameLookupQuery {
+        String TABLE = Tables.NAME_LOOKUP;
+
+        String[] COLUMNS = new String[] {
+                NameLookupColumns.RAW_CONTACT_ID,
+                NameLookupColumns.DATA_ID,
+                NameLookupColumns.NAME_TYPE,
+                NameLookupColumns.NORMALIZED_NAME,
+        };
+
+        int RAW_CONTACT_ID = 0;
+        int DATA_ID = 1;
+        int NAME_TYPE = 2;
+        int NORMALIZED_NAME = 3;
+    }
+
+    private final TreeMap<String, ArrayList<Entry>> mEntriesByName =
+            new TreeMap<String, ArrayList<Entry>>();
+    private final HashMap<Long, ArrayList<Entry>> mEntriesByDataId =
+            new HashMap<Long, ArrayList<Entry>>();
+    private final ArrayList<Change> mChanges = new ArrayList<Change>();
+
+    /** Receives the distances in {@link #findApproximateMatches}, grown as needed. */
+    private float[] mDistances = new float[0];
+
+    private boolean mLoaded;
+
+    // If the index was loaded inside of a transaction it may contain uncommitted rows
+    private boolean mLoadedInTransaction;
+
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Loads the index from the database, unless it is already loaded.
+     */
+    public synchronized void load(SQLiteDatabase db) {
+        if (mLoaded) {
+            return;
+        }
+
+        Cursor cursor = db.query(NameLookupQuery.TABLE, NameLookupQuery.COLUMNS,
+                null, null, null, null, null);
+        try {
+            load(cursor, db.inTransaction());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* package */ synchronized void load(Cursor cursor, boolean inTransaction) {
+        clear();
+        while (cursor.moveToNext()) {
+            add(new Entry(cursor.getLong(NameLookupQuery.RAW_CONTACT_ID),
+                    cursor.getLong(NameLookupQuery.DATA_ID),
+                    cursor.getInt(NameLookupQuery.NAME_TYPE),
+                    cursor.getString(NameLookupQuery.NORMALIZED_NAME)));
+        }
+        mLoaded = true;
+        mLoadedInTransaction = inTransaction;
+    }
+
+    /**
+     * Discards the contents of the index. It will be reloaded on next use.
+     */
+    public synchronized void invalidate() {
+        clear();
+        mLoaded = false;
+        mLoadedInTransaction = false;
+    }
+
+    private void clear() {
+        mEntriesByName.clear();
+        mEntriesByDataId.clear();
+        mChanges.clear();
+    }
+
+    /**
+     * Records a row inserted in the name lookup table.
+     */
+    public synchronized void insert(long rawContactId, long dataId, int nameType,
+            String normalizedName) {
+        if (!mLoaded) {
+            return;
+        }
+
+        Entry entry = new Entry(rawContactId, dataId, nameType, normalizedName);
+        add(entry);
+        mChanges.add(new Change(entry, true));
+    }
+
+    /**
+     * Records the deletion of all name lookup rows associated with the data element.
+     */
+    public synchronized void deleteData(long dataId) {
+        if (!mLoaded) {
+            return;
+        }
+
+        ArrayList<Entry> entries = mEntriesByDataId.remove(dataId);
+        if (entries == null) {
+            return;
+        }
+
+        for (Entry entry : entries) {
+            removeByName(entry);
+            mChanges.add(new Change(entry, false));
+        }
+    }
+
+    /**
+     * Makes the changes recorded in the current transaction permanent.
+     */
+    public synchronized void onTransactionCommitted() {
+        mChanges.clear();
+        mLoadedInTransaction = false;
+    }
+
+    /**
+     * Undoes the changes recorded in the current transaction.
+     */
+    public synchronized void onTransactionRolledBack() {
+        if (mLoadedInTransaction) {
+            invalidate();
+            return;
+        }
+
+        for (int i = mChanges.size() - 1; i >= 0; i--) {
+            Change change = mChanges.get(i);
+            if (change.inserted) {
+                remove(change.entry);
+            } else {
+                add(change.entry);
+            }
+        }
+        mChanges.clear();
+    }
+
+    private void add(Entry entry) {
+        ArrayList<Entry> entries = mEntriesByName.get(entry.normalizedName);
+        if (entries == null) {
+            entries = new ArrayList<Entry>(1);
+            mEntriesByName.put(entry.normalizedName, entries);
+        }
+        entries.add(entry);
+
+        entries = mEntriesByDataId.get(entry.dataId);
+        if (entries == null) {
+            entries = new ArrayList<Entry>(4);
+            mEntriesByDataId.put(entry.dataId, entries);
+        }
+        entries.add(entry);
+    }
+
+    private void remove(Entry entry) {
+        removeByName(entry);
+        ArrayList<Entry> entries = mEntriesByDataId.get(entry.dataId);
+        if (entries != null) {
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                mEntriesByDataId.remove(entry.dataId);
+            }
+        }
+    }
+
+    private void removeByName(Entry entry) {
+        ArrayList<Entry> entries = mEntriesByName.get(entry.normalizedName);
+        if (entries != null) {
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                mEntriesByName.remove(entry.normalizedName);
+            }
+        }
+    }
+
+    /**
+     * Adds all entries with the specified normalized name to {@code result}.
+     */
+    public synchronized void findExactMatches(String normalizedName, List<Entry> result) {
+        ArrayList<Entry> entries = mEntriesByName.get(normalizedName);
+        if (entries != null) {
+            result.addAll(entries);
+        }
+    }
+
+    /**
+     * Adds up to {@code limit} entries whose normalized name starts with the specified prefix
+     * and whose type is included in {@code nameTypeMask} (a bit mask of
+     * {@code 1 << nameType}) to {@code result}.
+     */
+    public synchronized void findPrefixMatches(String prefix, int nameTypeMask, int limit,
+            List<Entry> result) {
+        int count = 0;
+        for (ArrayList<Entry> entries : getPrefixMap(prefix).values()) {
+            for (Entry entry : entries) {
+                if ((nameTypeMask & (1 << entry.nameType)) == 0) {
+                    continue;
+                }
+                if (count++ == limit) {
+                    return;
+                }
+                result.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #findPrefixMatches}, but only returns entries that are within the specified
+     * Jaro-Winkler distance threshold from at least one of the candidate names.
+     *
+     * @param candidateNames decoded normalized names, see {@link Hex#decodeHex}
+     */
+    public synchronized void findApproximateMatches(String prefix, int nameTypeMask,
+            NameDistance.PackedNames candidateNames, NameDistance nameDistance, float threshold,
+            int limit, List<Entry> result) {
+        if (mDistances.length < candidateNames.size()) {
+            mDistances = new float[candidateNames.size()];
+        }
+        final float[] distances = mDistances;
+        int count = 0;
+        for (Map.Entry<String, ArrayList<Entry>> mapEntry : getPrefixMap(prefix).entrySet()) {
+            ArrayList<Entry> entries = mapEntry.getValue();
+            boolean matched = false;
+            boolean evaluated = false;
+            for (Entry entry : entries) {
+                if ((nameTypeMask & (1 << entry.nameType)) == 0) {
+                    continue;
+                }
+
+                // All entries in the list share the same name, so compute the distance once
+                if (!evaluated) {
+                    evaluated = true;
+                    matched = nameDistance.getDistances(entry.getDecodedName(), candidateNames,
+                            threshold, distances) != 0;
+                }
+                if (!matched) {
+                    break;
+                }
+                if (count++ == limit) {
+                    return;
+                }
+                result.add(entry);
+            }
+        }
+    }
+
+    private SortedMap<String, ArrayList<Entry>> getPrefixMap(String prefix) {
+        return mEntriesByName.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    /* package */ synchronized int sizeForTest() {
+        int size = 0;
+        for (ArrayList<Entry> entries : mEntriesByName.values()) {
+            size += entries.size();
+        }
+        return size;
+    }
+}
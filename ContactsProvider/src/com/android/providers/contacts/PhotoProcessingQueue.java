@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of background threads that scale and compress photos written to photo data rows,
+ * so that the writing transaction does not have to.
+ * <p>
+ * A writer first reserves a slot with {@link #tryReserve}. If all slots are taken the writer is
+ * expected to process the photo itself, which slows it down to the pace of the pool. A reserved
+ * slot is either handed to {@link #submit} once the transaction has committed or given back with
+ * {@link #release}.
+ */
+public class PhotoProcessingQueue {
+    private static final String TAG = "PhotoProcessingQueue";
+
+    private static final int KEEP_ALIVE_SECONDS = 10;
+
+    private final int mCapacity;
+    private final Semaphore mSlots;
+    private final ThreadPoolExecutor mExecutor;
+    private volatile boolean mEnabled;
+
+    /**
+     * @param threadCount number of worker threads
+     * @param capacity maximum number of photos that may be reserved or waiting for processing
+     */
+    public PhotoProcessingQueue(int threadCount, int capacity) {
+        mCapacity = capacity;
+        mSlots = new Semaphore(capacity);
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, TAG + " #" + mCount.incrementAndGet());
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Reserves a slot for one photo. Returns false if background processing is disabled or
+     * the queue is full, in which case the caller should process the photo itself.
+     */
+    public boolean tryReserve() {
+        return mEnabled && mSlots.tryAcquire();
+    }
+
+    /**
+     * Gives back a reserved slot that will not be used.
+     */
+    public void release() {
+        mSlots.release();
+    }
+
+    /**
+     * Runs the task for a reserved slot on a worker thread. The slot is freed once the task
+     * has finished.
+     */
+    public void submit(final Runnable task) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to process photo", e);
+                } finally {
+                    mSlots.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Blocks until all reserved photos have been processed or released.
+     */
+    @VisibleForTesting
+    /* package */ void waitForIdle() throws InterruptedException {
+        mSlots.acquire(mCapacity);
+        mSlots.release(mCapacity);
+    }
+}
@@ -21,6 +21,7 @@ import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.google.common.annotations.VisibleForTesting;
 
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.provider.ContactsContract.PhotoFiles;
@@ -29,6 +30,8 @@ import android.util.Log;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -37,6 +40,14 @@ import java.util.Set;
 /**
  * Photo storage system that stores the files directly onto the hard disk
  * in the specified directory.
+ *
+ * Files are content-addressed: inserting a photo whose display photo is identical to one
+ * already in the store returns the existing photo file ID, so several data rows may refer to
+ * the same entry.  An entry is only deleted by {@link #cleanup} once none of them does.
+ *
+ * Photos may be inserted from the photo processing threads as well as from the threads writing
+ * to the provider, so the in-memory entries are guarded by their own lock.  The lock is never
+ * held while accessing the database.
  */
 public class PhotoStore {
 
@@ -60,6 +71,12 @@ public class PhotoStore {
     /** The database to use for storing metadata for the photo files. */
     private SQLiteDatabase mDb;
 
+    private interface PhotoFileIdByHashQuery {
+        String[] COLUMNS = new String[] { PhotoFiles._ID };
+
+        int _ID = 0;
+    }
+
     /**
      * Constructs an instance of the PhotoStore under the specified directory.
      * @param rootDirectory The root directory of the storage.
@@ -92,20 +109,26 @@ public class PhotoStore {
             mDb = mDatabaseHelper.getWritableDatabase();
         }
         mDb.delete(Tables.PHOTO_FILES, null, null);
-        mEntries.clear();
-        mTotalSize = 0;
+        synchronized (mEntries) {
+            mEntries.clear();
+            mTotalSize = 0;
+        }
     }
 
     @VisibleForTesting
     public long getTotalSize() {
-        return mTotalSize;
+        synchronized (mEntries) {
+            return mTotalSize;
+        }
     }
 
     /**
      * Returns the entry with the specified key if it exists, null otherwise.
      */
     public Entry get(long key) {
-        return mEntries.get(key);
+        synchronized (mEntries) {
+            return mEntries.get(key);
+        }
     }
 
     /**
@@ -144,7 +167,9 @@ public class PhotoStore {
      */
     public Set<Long> cleanup(Set<Long> keysInUse) {
         Set<Long> keysToRemove = new HashSet<Long>();
-        keysToRemove.addAll(mEntries.keySet());
+        synchronized (mEntries) {
+            keysToRemove.addAll(mEntries.keySet());
+        }
         keysToRemove.removeAll(keysInUse);
         if (!keysToRemove.isEmpty()) {
             Log.d(TAG, "cleanup removing " + keysToRemove.size() + " entries");
@@ -155,7 +180,9 @@ public class PhotoStore {
 
         Set<Long> missingKeys = new HashSet<Long>();
         missingKeys.addAll(keysInUse);
-        missingKeys.removeAll(mEntries.keySet());
+        synchronized (mEntries) {
+            missingKeys.removeAll(mEntries.keySet());
+        }
         return missingKeys;
     }
 
@@ -186,15 +213,25 @@ public class PhotoStore {
         int height = displayPhoto.getHeight();
         int thumbnailDim = photoProcessor.getMaxThumbnailPhotoDim();
         if (allowSmallImageStorage || width > thumbnailDim || height > thumbnailDim) {
+            byte[] photoBytes = photoProcessor.getDisplayPhotoBytes();
+
+            // Share the entry of an identical photo if there is one.
+            String hash = computeHash(photoBytes);
+            if (hash != null) {
+                long id = findPhotoFileId(hash, photoBytes.length);
+                if (id != 0) {
+                    return id;
+                }
+            }
+
             // Write the photo to a temp file, create the DB record for tracking it, and rename the
             // temp file to match.
             File file = null;
             try {
                 // Write the display photo to a temp file.
-                byte[] photoBytes = photoProcessor.getDisplayPhotoBytes();
                 file = File.createTempFile("img", null, mStorePath);
                 FileOutputStream fos = new FileOutputStream(file);
-                fos.write(photoProcessor.getDisplayPhotoBytes());
+                fos.write(photoBytes);
                 fos.close();
 
                 // Create the DB entry.
@@ -202,6 +239,7 @@ public class PhotoStore {
                 values.put(PhotoFiles.HEIGHT, height);
                 values.put(PhotoFiles.WIDTH, width);
                 values.put(PhotoFiles.FILESIZE, photoBytes.length);
+                values.put(PhotoFilesColumns.HASH, hash);
                 long id = mDb.insert(Tables.PHOTO_FILES, null, values);
                 if (id != 0) {
                     // Rename the temp file.
@@ -224,6 +262,41 @@ public class PhotoStore {
         return 0;
     }
 
+    /**
+     * Returns the ID of a stored photo file with the given hash and size, or 0 if there is none.
+     * The database is consulted rather than an in-memory table so that photo file records of
+     * rolled back transactions are never reused.
+     */
+    private long findPhotoFileId(String hash, long size) {
+        Cursor c = mDb.query(Tables.PHOTO_FILES, PhotoFileIdByHashQuery.COLUMNS,
+                PhotoFilesColumns.HASH + "=?", new String[] { hash }, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(PhotoFileIdByHashQuery._ID);
+                Entry entry = get(id);
+                if (entry != null && entry.size == size) {
+                    return id;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the hex encoded SHA-1 hash of the photo, or null if it cannot be computed.
+     */
+    private String computeHash(byte[] photoBytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return Hex.encodeHex(digest.digest(photoBytes), false);
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(TAG, "SHA-1 is not available, photos will not be shared", e);
+            return null;
+        }
+    }
+
     private void cleanupFile(File file) {
         boolean deleted = file.delete();
         if (!deleted) {
@@ -252,13 +325,15 @@ public class PhotoStore {
      * @param entry The entry to store.
      */
     private void putEntry(long id, Entry entry) {
-        if (!mEntries.containsKey(id)) {
-            mTotalSize += entry.size;
-        } else {
-            Entry oldEntry = mEntries.get(id);
-            mTotalSize += (entry.size - oldEntry.size);
+        synchronized (mEntries) {
+            if (!mEntries.containsKey(id)) {
+                mTotalSize += entry.size;
+            } else {
+                Entry oldEntry = mEntries.get(id);
+                mTotalSize += (entry.size - oldEntry.size);
+            }
+            mEntries.put(id, entry);
         }
-        mEntries.put(id, entry);
     }
 
     /**
@@ -266,10 +341,12 @@ public class PhotoStore {
      * the associated photo file entry from the database.
      */
     private void removeEntry(long id) {
-        Entry entry = mEntries.get(id);
-        if (entry != null) {
-            mTotalSize -= entry.size;
-            mEntries.remove(id);
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(id);
+            if (entry != null) {
+                mTotalSize -= entry.size;
+                mEntries.remove(id);
+            }
         }
         mDb.delete(ContactsDatabaseHelper.Tables.PHOTO_FILES, PhotoFilesColumns.CONCRETE_ID + "=?",
                 new String[]{String.valueOf(id)});
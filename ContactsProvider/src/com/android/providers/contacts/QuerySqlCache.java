@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of fully built SQL for frequently queried URIs. Entries are keyed by the URI match
+ * code and everything else the SQL is built from: projection, selection, sort order etc.
+ * Cached queries skip {@link android.database.sqlite.SQLiteQueryBuilder} altogether and,
+ * because the SQL strings are identical, hit the compiled statement cache of the database
+ * connection.
+ * <p>
+ * Keeps hit rate and build time statistics per match code, which are logged periodically
+ * if the {@link #TAG} tag is loggable at the DEBUG level.
+ */
+public class QuerySqlCache {
+    public static final String TAG = "ContactsQuerySqlCache";
+
+    private static final int MAX_ENTRIES = 64;
+    private static final int LOG_INTERVAL = 1000;
+
+    // Separates the components of a key; cannot occur in a URI or SQL written by a caller
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    /**
+     * Statistics for one URI match code.
+     */
+    private static final class Stats {
+        int hits;
+        int misses;
+        long buildTimeNanos;
+
+        long getAverageBuildTimeNanos() {
+            return misses == 0 ? 0 : buildTimeNanos / misses;
+        }
+    }
+
+    private final LinkedHashMap<String, String> mSqlByKey =
+            new LinkedHashMap<String, String>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final SparseArray<Stats> mStats = new SparseArray<Stats>();
+    private int mLookupCount;
+
+    /**
+     * Builds a cache key out of the parameters of a query.
+     */
+    public static String buildKey(int match, boolean profile, long directoryId,
+            String encodedQuery, String[] projection, String selection, String sortOrder,
+            String limit) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(match).append(KEY_SEPARATOR);
+        sb.append(profile ? '1' : '0').append(KEY_SEPARATOR);
+        sb.append(directoryId).append(KEY_SEPARATOR);
+        sb.append(encodedQuery).append(KEY_SEPARATOR);
+        if (projection == null) {
+            sb.append('*');
+        } else {
+            sb.append(projection.length);
+            for (String column : projection) {
+                sb.append(KEY_SEPARATOR).append(column);
+            }
+        }
+        sb.append(KEY_SEPARATOR).append(selection);
+        sb.append(KEY_SEPARATOR).append(sortOrder);
+        sb.append(KEY_SEPARATOR).append(limit);
+        return sb.toString();
+    }
+
+    /**
+     * Returns the cached SQL for the key or null, counting a hit or a miss for the match code.
+     */
+    public synchronized String get(int match, String key) {
+        String sql = mSqlByKey.get(key);
+        Stats stats = getStats(match);
+        if (sql != null) {
+            stats.hits++;
+        } else {
+            stats.misses++;
+        }
+
+        if (++mLookupCount % LOG_INTERVAL == 0 && Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, getStatistics());
+        }
+        return sql;
+    }
+
+    /**
+     * Stores the SQL built for a key after a miss.
+     *
+     * @param buildTimeNanos time it took to build the SQL, which is saved by later hits
+     */
+    public synchronized void put(int match, String key, String sql, long buildTimeNanos) {
+        mSqlByKey.put(key, sql);
+        getStats(match).buildTimeNanos += buildTimeNanos;
+    }
+
+    public synchronized void clear() {
+        mSqlByKey.clear();
+    }
+
+    private Stats getStats(int match) {
+        Stats stats = mStats.get(match);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(match, stats);
+        }
+        return stats;
+    }
+
+    /* package */ synchronized int getHitCountForTest(int match) {
+        Stats stats = mStats.get(match);
+        return stats == null ? 0 : stats.hits;
+    }
+
+    /* package */ synchronized int sizeForTest() {
+        return mSqlByKey.size();
+    }
+
+    /**
+     * Returns hit rate and saved build time for each match code, for logging.
+     */
+    public synchronized String getStatistics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Query SQL cache: ").append(mSqlByKey.size()).append(" entries");
+        for (int i = 0; i < mStats.size(); i++) {
+            Stats stats = mStats.valueAt(i);
+            int lookups = stats.hits + stats.misses;
+            long savedMicros = stats.hits * stats.getAverageBuildTimeNanos() / 1000;
+            sb.append("\n  match ").append(mStats.keyAt(i))
+                    .append(": hit rate ").append(lookups == 0 ? 0 : stats.hits * 100 / lookups)
+                    .append("% (")
+                    .append(stats.hits).append('/').append(lookups)
+                    .append("), saved ").append(savedMicros).append("us");
+        }
+        return sb.toString();
+    }
+}
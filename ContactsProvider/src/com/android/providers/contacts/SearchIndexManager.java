@@ -28,11 +28,12 @@ import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Nickname;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
-import android.provider.ContactsContract.ProviderStatus;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -46,6 +47,27 @@ public class SearchIndexManager {
     public static final String PROPERTY_SEARCH_INDEX_VERSION = "search_index";
     private static final int SEARCH_INDEX_VERSION = 1;
 
+    /**
+     * Highest contact ID covered by a search index rebuild in progress, or -1 if the index
+     * is not being rebuilt. Stored along with each chunk, so that an interrupted rebuild
+     * can resume where it left off.
+     */
+    public static final String PROPERTY_SEARCH_INDEX_WATERMARK = "search_index_watermark";
+    private static final long NO_WATERMARK = -1;
+
+    /**
+     * Number of contacts indexed in each transaction of a rebuild.
+     */
+    private static final int REBUILD_CHUNK_SIZE = 500;
+
+    private interface RebuildChunkQuery {
+        String SQL = "SELECT MAX(" + Contacts._ID + ")"
+                + " FROM (SELECT " + Contacts._ID + " FROM " + Tables.CONTACTS
+                + " WHERE " + Contacts._ID + ">?"
+                + " ORDER BY " + Contacts._ID
+                + " LIMIT " + REBUILD_CHUNK_SIZE + ")";
+    }
+
     private static final class ContactIndexQuery {
         public static final String[] COLUMNS = {
                 Data.CONTACT_ID,
@@ -58,6 +80,40 @@ public class SearchIndexManager {
         public static final int MIMETYPE = 1;
     }
 
+    private interface SearchIndexQuery {
+        String[] COLUMNS = {
+                "docid",
+                SearchIndexColumns.CONTACT_ID,
+                SearchIndexColumns.CONTENT,
+                SearchIndexColumns.NAME,
+                SearchIndexColumns.TOKENS,
+        };
+
+        int DOCID = 0;
+        int CONTACT_ID = 1;
+        int CONTENT = 2;
+        int NAME = 3;
+        int TOKENS = 4;
+    }
+
+    /**
+     * Search index row computed for a contact, which has not been written yet.
+     */
+    private static final class PendingIndexRow {
+        final long contactId;
+        final String content;
+        final String name;
+        final String tokens;
+        boolean exists;
+
+        public PendingIndexRow(long contactId, IndexBuilder builder) {
+            this.contactId = contactId;
+            this.content = builder.getContent();
+            this.name = builder.getName();
+            this.tokens = builder.getTokens();
+        }
+    }
+
     public static class IndexBuilder {
         public static final int SEPARATOR_SPACE = 0;
         public static final int SEPARATOR_PARENTHESES = 1;
@@ -211,43 +267,107 @@ public class SearchIndexManager {
     private IndexBuilder mIndexBuilder = new IndexBuilder();
     private ContentValues mValues = new ContentValues();
     private String[] mSelectionArgs1 = new String[1];
+    private HashMap<Long, PendingIndexRow> mPendingIndexRows =
+            new HashMap<Long, PendingIndexRow>();
+
+    // Cached value of PROPERTY_SEARCH_INDEX_WATERMARK, only accessed in transactions
+    private long mRebuildWatermark;
+    private boolean mRebuildWatermarkLoaded;
 
     public SearchIndexManager(ContactsProvider2 contactsProvider) {
         this.mContactsProvider = contactsProvider;
         mDbHelper = (ContactsDatabaseHelper) mContactsProvider.getDatabaseHelper();
     }
 
+    /**
+     * Rebuilds the search index if its version is out of date. The index is rebuilt in chunks
+     * of contacts, each in its own transaction, so that the database remains available to
+     * other threads and queries run against the partially built index in the meantime.
+     */
     public void updateIndex() {
         if (getSearchIndexVersion() == SEARCH_INDEX_VERSION) {
             return;
         }
+
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        db.beginTransaction();
-        try {
-            if (getSearchIndexVersion() != SEARCH_INDEX_VERSION) {
-                rebuildIndex(db);
-                setSearchIndexVersion(SEARCH_INDEX_VERSION);
+        long start = SystemClock.currentThreadTimeMillis();
+        int count = 0;
+        boolean done = false;
+        while (!done) {
+            boolean successful = false;
+            db.beginTransaction();
+            try {
+                if (getSearchIndexVersion() == SEARCH_INDEX_VERSION) {
+                    return;
+                }
+                mRebuildWatermark = loadRebuildWatermark();
+                mRebuildWatermarkLoaded = true;
+                if (mRebuildWatermark == NO_WATERMARK) {
+                    mDbHelper.createSearchIndexTable(db);
+                    setRebuildWatermark(0);
+                } else {
+                    long nextWatermark = getNextRebuildWatermark(db, mRebuildWatermark);
+                    if (nextWatermark == NO_WATERMARK) {
+                        setSearchIndexVersion(SEARCH_INDEX_VERSION);
+                        setRebuildWatermark(NO_WATERMARK);
+                        done = true;
+                    } else {
+                        count += buildIndex(db, Data.CONTACT_ID + ">" + mRebuildWatermark
+                                + " AND " + Data.CONTACT_ID + "<=" + nextWatermark, false);
+                        setRebuildWatermark(nextWatermark);
+                    }
+                }
                 db.setTransactionSuccessful();
+                successful = true;
+            } finally {
+                db.endTransaction();
+
+                // The cached watermark is out of sync if the transaction was rolled back
+                if (!successful) {
+                    mRebuildWatermarkLoaded = false;
+                }
             }
-        } finally {
-            db.endTransaction();
         }
+
+        long end = SystemClock.currentThreadTimeMillis();
+        Log.i(TAG, "Rebuild contact search index in " + (end - start) + "ms, "
+                + count + " contacts");
     }
 
-    private void rebuildIndex(SQLiteDatabase db) {
-        mContactsProvider.setProviderStatus(ProviderStatus.STATUS_UPGRADING);
-        long start = SystemClock.currentThreadTimeMillis();
-        int count = 0;
+    /**
+     * Returns the highest contact ID in the chunk following the specified one or
+     * {@link #NO_WATERMARK} if there are no more contacts to index.
+     */
+    private long getNextRebuildWatermark(SQLiteDatabase db, long watermark) {
+        mSelectionArgs1[0] = String.valueOf(watermark);
+        Cursor cursor = db.rawQuery(RebuildChunkQuery.SQL, mSelectionArgs1);
         try {
-            mDbHelper.createSearchIndexTable(db);
-            count = buildIndex(db, null, false);
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
         } finally {
-            mContactsProvider.setProviderStatus(ProviderStatus.STATUS_NORMAL);
+            cursor.close();
+        }
+        return NO_WATERMARK;
+    }
 
-            long end = SystemClock.currentThreadTimeMillis();
-            Log.i(TAG, "Rebuild contact search index in " + (end - start) + "ms, "
-                    + count + " contacts");
+    private long getRebuildWatermark() {
+        if (!mRebuildWatermarkLoaded) {
+            mRebuildWatermark = loadRebuildWatermark();
+            mRebuildWatermarkLoaded = true;
         }
+        return mRebuildWatermark;
+    }
+
+    private long loadRebuildWatermark() {
+        return Long.parseLong(mDbHelper.getProperty(PROPERTY_SEARCH_INDEX_WATERMARK,
+                String.valueOf(NO_WATERMARK)));
+    }
+
+    private void setRebuildWatermark(long watermark) {
+        mDbHelper.setProperty(PROPERTY_SEARCH_INDEX_WATERMARK, String.valueOf(watermark));
+        mRebuildWatermark = watermark;
+        mRebuildWatermarkLoaded = true;
     }
 
     public void updateIndexForRawContacts(Set<Long> contactIds, Set<Long> rawContactIds) {
@@ -275,6 +395,12 @@ public class SearchIndexManager {
         }
 
         mSb.append(")");
+
+        // Contacts beyond the watermark of a rebuild in progress will be indexed by the rebuild
+        long watermark = getRebuildWatermark();
+        if (watermark != NO_WATERMARK) {
+            mSb.append(" AND " + Data.CONTACT_ID + "<=").append(watermark);
+        }
         buildIndex(mDbHelper.getWritableDatabase(), mSb.toString(), true);
     }
 
@@ -327,28 +453,89 @@ public class SearchIndexManager {
         } finally {
             cursor.close();
         }
+
+        if (replace) {
+            replaceContactIndexes(db);
+        }
         return count;
     }
 
     private void saveContactIndex(
             SQLiteDatabase db, long contactId, IndexBuilder builder, boolean replace) {
+        if (replace) {
+            mPendingIndexRows.put(contactId, new PendingIndexRow(contactId, builder));
+            return;
+        }
+
         mValues.clear();
+        mValues.put(SearchIndexColumns.CONTACT_ID, contactId);
         mValues.put(SearchIndexColumns.CONTENT, builder.getContent());
         mValues.put(SearchIndexColumns.NAME, builder.getName());
         mValues.put(SearchIndexColumns.TOKENS, builder.getTokens());
-        if (replace) {
-            mSelectionArgs1[0] = String.valueOf(contactId);
-            int count = db.update(Tables.SEARCH_INDEX, mValues,
-                    SearchIndexColumns.CONTACT_ID + "=CAST(? AS int)", mSelectionArgs1);
-            if (count == 0) {
-                mValues.put(SearchIndexColumns.CONTACT_ID, contactId);
+        db.insert(Tables.SEARCH_INDEX, null, mValues);
+    }
+
+    /**
+     * Writes the pending search index rows, looking up all existing rows in a single pass.
+     * Rows whose content, name and tokens have not changed are not written at all, which
+     * saves rewriting the FTS segments.
+     */
+    private void replaceContactIndexes(SQLiteDatabase db) {
+        if (mPendingIndexRows.isEmpty()) {
+            return;
+        }
+
+        mSb.setLength(0);
+        mSb.append(SearchIndexColumns.CONTACT_ID + " IN (");
+        for (Long contactId : mPendingIndexRows.keySet()) {
+            mSb.append(contactId).append(',');
+        }
+        mSb.setLength(mSb.length() - 1);
+        mSb.append(')');
+
+        try {
+            Cursor cursor = db.query(Tables.SEARCH_INDEX, SearchIndexQuery.COLUMNS,
+                    mSb.toString(), null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    long contactId = cursor.getLong(SearchIndexQuery.CONTACT_ID);
+                    PendingIndexRow row = mPendingIndexRows.get(contactId);
+                    row.exists = true;
+                    if (TextUtils.equals(row.content, cursor.getString(SearchIndexQuery.CONTENT))
+                            && TextUtils.equals(row.name, cursor.getString(SearchIndexQuery.NAME))
+                            && TextUtils.equals(
+                                    row.tokens, cursor.getString(SearchIndexQuery.TOKENS))) {
+                        continue;
+                    }
+
+                    mValues.clear();
+                    mValues.put(SearchIndexColumns.CONTENT, row.content);
+                    mValues.put(SearchIndexColumns.NAME, row.name);
+                    mValues.put(SearchIndexColumns.TOKENS, row.tokens);
+                    mSelectionArgs1[0] = cursor.getString(SearchIndexQuery.DOCID);
+                    db.update(Tables.SEARCH_INDEX, mValues, "docid=?", mSelectionArgs1);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (PendingIndexRow row : mPendingIndexRows.values()) {
+                if (row.exists) {
+                    continue;
+                }
+
+                mValues.clear();
+                mValues.put(SearchIndexColumns.CONTACT_ID, row.contactId);
+                mValues.put(SearchIndexColumns.CONTENT, row.content);
+                mValues.put(SearchIndexColumns.NAME, row.name);
+                mValues.put(SearchIndexColumns.TOKENS, row.tokens);
                 db.insert(Tables.SEARCH_INDEX, null, mValues);
             }
-        } else {
-            mValues.put(SearchIndexColumns.CONTACT_ID, contactId);
-            db.insert(Tables.SEARCH_INDEX, null, mValues);
+        } finally {
+            mPendingIndexRows.clear();
         }
     }
+
     private int getSearchIndexVersion() {
         return Integer.parseInt(mDbHelper.getProperty(PROPERTY_SEARCH_INDEX_VERSION, "0"));
     }
@@ -38,6 +38,7 @@ public class TransactionContext  {
     private HashSet<Long> mStaleSearchIndexRawContacts = Sets.newHashSet();
     private HashSet<Long> mStaleSearchIndexContacts = Sets.newHashSet();
     private HashMap<Long, Object> mUpdatedSyncStates = Maps.newHashMap();
+    private HashMap<Long, byte[]> mPendingPhotos = Maps.newHashMap();
 
     public TransactionContext(boolean forProfile) {
         mForProfile = forProfile;
@@ -63,6 +64,14 @@ public class TransactionContext  {
         mUpdatedSyncStates.put(rowId, data);
     }
 
+    /**
+     * Records a photo data row whose photo still has to be processed. Returns the photo that
+     * was previously pending for the row, if any.
+     */
+    public byte[] photoPendingProcessing(long dataId, byte[] photo) {
+        return mPendingPhotos.put(dataId, photo);
+    }
+
     public void invalidateSearchIndexForRawContact(long rawContactId) {
         mStaleSearchIndexRawContacts.add(rawContactId);
     }
@@ -95,6 +104,10 @@ public class TransactionContext  {
         return mUpdatedSyncStates.entrySet();
     }
 
+    public Set<Entry<Long, byte[]>> getPendingPhotos() {
+        return mPendingPhotos.entrySet();
+    }
+
     public AccountWithDataSet getAccountWithDataSetForRawContact(long rawContactId) {
         return mInsertedRawContacts.get(rawContactId);
     }
@@ -110,6 +123,10 @@ public class TransactionContext  {
         mDirtyRawContacts.clear();
     }
 
+    public void clearPendingPhotos() {
+        mPendingPhotos.clear();
+    }
+
     public void clearSearchIndexUpdates() {
         mStaleSearchIndexRawContacts.clear();
         mStaleSearchIndexContacts.clear();
@@ -29,6 +29,7 @@ import android.net.Uri;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.AggregationExceptions;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.Photo;
@@ -38,6 +39,8 @@ import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.StatusUpdates;
 import android.test.suitebuilder.annotation.LargeTest;
 
+import java.util.ArrayList;
+
 /**
  * Unit tests for {@link ContactAggregator}.
  *
@@ -139,6 +142,29 @@ public class ContactAggregatorTest extends BaseContactsProvider2Test {
         assertAggregated(rawContactId1, rawContactId2, "Johnb Smithb");
     }
 
+    public void testAggregationWithNameLookupIndexAfterDeletion() {
+        ContactsDatabaseHelper helper =
+                (ContactsDatabaseHelper) getContactsProvider().getDatabaseHelper();
+        helper.setNameLookupIndexEnabled(true);
+        try {
+            // More raw contacts with the name than the aggregator looks at, deleted along with
+            // their name lookup rows
+            for (int i = 0; i < 20; i++) {
+                long rawContactId = createRawContactWithName("Johnc", "Smithc", ACCOUNT_1);
+                mResolver.delete(ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId)
+                        .buildUpon()
+                        .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+                        .build(), null, null);
+            }
+
+            long rawContactId1 = createRawContactWithName("Johnc", "Smithc", ACCOUNT_1);
+            long rawContactId2 = createRawContactWithName("Johnc", "Smithc", ACCOUNT_2);
+            assertAggregated(rawContactId1, rawContactId2, "Johnc Smithc");
+        } finally {
+            helper.setNameLookupIndexEnabled(false);
+        }
+    }
+
     public void testAggregationIgnoresInvisibleContact() {
         Account account = new Account("accountName", "accountType");
         createAutoAddGroup(account);
@@ -1260,6 +1286,60 @@ public class ContactAggregatorTest extends BaseContactsProvider2Test {
         cursor.close();
     }
 
+    public void testBatchAggregation() throws Exception {
+        long rawContactId1 = createRawContactWithName("Johnd", "Smithd", ACCOUNT_1);
+        long rawContactId2 = createRawContact(ACCOUNT_1);
+        insertPhoneNumber(rawContactId2, "(888)555-1236");
+
+        // Enough raw contacts in one transaction to trigger batch aggregation
+        ArrayList<ContentProviderOperation> operations = Lists.newArrayList();
+        for (int i = 0; i < 60; i++) {
+            addRawContactOperations(operations, ACCOUNT_2, "Batch" + i, "Contact");
+        }
+        int nameMatchIndex = addRawContactOperations(operations, ACCOUNT_2, "Johnd", "Smithd");
+        int phoneMatchIndex = addRawContactOperations(operations, ACCOUNT_2, null, null);
+        operations.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                .withValueBackReference(Data.RAW_CONTACT_ID, phoneMatchIndex)
+                .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                .withValue(Phone.NUMBER, "8885551236")
+                .build());
+        int batchMatchIndex1 = addRawContactOperations(operations, ACCOUNT_2, "Johne", "Smithe");
+        int batchMatchIndex2 = addRawContactOperations(operations, ACCOUNT_3, "Johne", "Smithe");
+
+        ContentProviderResult[] results =
+                mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+
+        assertAggregated(rawContactId1, ContentUris.parseId(results[nameMatchIndex].uri),
+                "Johnd Smithd");
+        assertAggregated(rawContactId2, ContentUris.parseId(results[phoneMatchIndex].uri));
+        assertAggregated(ContentUris.parseId(results[batchMatchIndex1].uri),
+                ContentUris.parseId(results[batchMatchIndex2].uri), "Johne Smithe");
+        assertNotAggregated(ContentUris.parseId(results[0].uri),
+                ContentUris.parseId(results[2].uri));
+    }
+
+    /**
+     * Adds operations inserting a raw contact with the specified name and returns the index
+     * of the raw contact insert operation.
+     */
+    private int addRawContactOperations(ArrayList<ContentProviderOperation> operations,
+            Account account, String givenName, String familyName) {
+        int index = operations.size();
+        operations.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                .withValue(RawContacts.ACCOUNT_NAME, account.name)
+                .withValue(RawContacts.ACCOUNT_TYPE, account.type)
+                .build());
+        if (givenName != null) {
+            operations.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, index)
+                    .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                    .withValue(StructuredName.GIVEN_NAME, givenName)
+                    .withValue(StructuredName.FAMILY_NAME, familyName)
+                    .build());
+        }
+        return index;
+    }
+
     private void assertSuggestions(long contactId, long... suggestions) {
         final Uri aggregateUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
         Uri uri = Uri.withAppendedPath(aggregateUri,
@@ -39,6 +39,9 @@ public class ContactLocaleUtilsTest extends AndroidTestCase {
     private static final String[] CHINESE_LATIN_MIX_NAME_2_KEY = {"\u9D51", "\u675C\u9D51",
         "MARY \u675C\u9D51", "JUAN", "DUJUAN", "MARY DUJUAN", "J", "DJ", "MDJ"};
     private static final String[] LATIN_NAME_KEY = {"John Smith", "Smith", "JS", "S"};
+    private static final String POLYPHONIC_SURNAME_NAME = "\u5355\u7530";
+    private static final String[] POLYPHONIC_SURNAME_NAME_KEY = {"SHANTIAN", "DANTIAN",
+            "CHANTIAN", "ST", "DT", "CT"};
 
 
     private ContactLocaleUtils mContactLocaleUtils = ContactLocaleUtils.getIntance();
@@ -77,6 +80,19 @@ public class ContactLocaleUtilsTest extends AndroidTestCase {
         verifyKeys(keys, CHINESE_LATIN_MIX_NAME_2_KEY);
     }
 
+    public void testPolyphonicSurname() throws Exception {
+        if (!hasChineseCollator()) {
+            return;
+        }
+        Iterator<String> keys = mContactLocaleUtils.getNameLookupKeys(POLYPHONIC_SURNAME_NAME,
+                FullNameStyle.CHINESE);
+        HashSet<String> allKeys = new HashSet<String>();
+        while (keys.hasNext()) {
+            allKeys.add(keys.next());
+        }
+        assertTrue(allKeys.containsAll(Arrays.asList(POLYPHONIC_SURNAME_NAME_KEY)));
+    }
+
     public void testChineseStyleNameWithDifferentLocale() throws Exception {
         if (!hasChineseCollator()) {
             return;
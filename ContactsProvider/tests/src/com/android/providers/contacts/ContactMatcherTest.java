@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import com.android.providers.contacts.ContactMatcher.MatchScore;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ContactMatcher}.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class com.android.providers.contacts.ContactMatcherTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@SmallTest
+public class ContactMatcherTest extends TestCase {
+
+    private ContactMatcher mMatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mMatcher = new ContactMatcher();
+    }
+
+    public void testPickBestMatchAmongManyCandidates() {
+        for (long contactId = 1; contactId <= 500; contactId++) {
+            mMatcher.updateScoreWithPhoneNumberMatch(contactId * 1024);
+        }
+        mMatcher.matchIdentity(42 * 1024);
+
+        assertEquals(42 * 1024, mMatcher.pickBestMatch(ContactMatcher.SCORE_THRESHOLD_PRIMARY,
+                false));
+
+        mMatcher.matchIdentity(7 * 1024);
+        assertEquals(ContactMatcher.MULTIPLE_MATCHES,
+                mMatcher.pickBestMatch(ContactMatcher.SCORE_THRESHOLD_PRIMARY, false));
+    }
+
+    public void testSecondaryMatchCandidates() {
+        mMatcher.updateScoreWithEmailMatch(1);
+        mMatcher.updateScoreWithPhoneNumberMatch(2);
+        mMatcher.keepOut(2);
+
+        List<Long> contactIds =
+                mMatcher.prepareSecondaryMatchCandidates(ContactMatcher.SCORE_THRESHOLD_PRIMARY);
+        assertEquals(1, contactIds.size());
+        assertEquals(1, (long) contactIds.get(0));
+        assertEquals(1, mMatcher.pickBestMatch(ContactMatcher.SCORE_THRESHOLD_SECONDARY, false));
+    }
+
+    public void testPickBestMatchesInDescendingOrder() {
+        mMatcher.updateScoreWithEmailMatch(1);
+        mMatcher.matchIdentity(2);
+        mMatcher.updateScoreWithEmailMatch(3);
+        mMatcher.updateScoreWithPhoneNumberMatch(3);
+
+        List<MatchScore> matches = mMatcher.pickBestMatches(ContactMatcher.SCORE_THRESHOLD_PRIMARY);
+        assertEquals(3, matches.size());
+        assertEquals(2, matches.get(0).getContactId());
+        assertEquals(3, matches.get(1).getContactId());
+        assertEquals(1, matches.get(2).getContactId());
+    }
+
+    public void testClear() {
+        for (long contactId = 1; contactId <= 100; contactId++) {
+            mMatcher.updateScoreWithPhoneNumberMatch(contactId);
+        }
+        mMatcher.clear();
+        mMatcher.updateScoreWithEmailMatch(7);
+
+        List<MatchScore> matches = mMatcher.pickBestMatches(ContactMatcher.SCORE_THRESHOLD_PRIMARY);
+        assertEquals(1, matches.size());
+        assertEquals(7, matches.get(0).getContactId());
+        assertEquals("[7: 0/71(1)]", mMatcher.toString());
+    }
+}
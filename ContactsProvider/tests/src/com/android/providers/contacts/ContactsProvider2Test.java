@@ -30,6 +30,7 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Entity;
 import android.content.EntityIterator;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
@@ -1000,6 +1001,57 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertEquals(2, getCount(lookupUri2, null, null));
     }
 
+    public void testChangeToken() {
+        ContactsProvider2 cp = (ContactsProvider2) getProvider();
+        String token = getChangeToken(cp);
+        assertEquals(token, getChangeToken(cp));
+
+        long rawContactId = createRawContactWithName("Hot", "Tamale");
+        String insertedToken = getChangeToken(cp);
+        MoreAsserts.assertNotEqual(token, insertedToken);
+
+        insertPhoneNumber(rawContactId, "18004664411");
+        MoreAsserts.assertNotEqual(insertedToken, getChangeToken(cp));
+    }
+
+    public void testChangeTokenStoredInDatabase() {
+        ContactsProvider2 cp = (ContactsProvider2) getProvider();
+        ContactsDatabaseHelper helper = (ContactsDatabaseHelper) cp.getDatabaseHelper();
+        long rawContactId = createRawContactWithName("Hot", "Tamale");
+        insertPhoneNumber(rawContactId, "18004664411");
+
+        // Read back from the database, so that a restarted provider returns the same token.
+        assertEquals(helper.getProperty(ContactsProvider2.PROPERTY_CHANGE_TOKEN, null),
+                getChangeToken(cp));
+    }
+
+    public void testChangeTokenKeptForChangesNotAffectingCallerIds() {
+        ContactsProvider2 cp = (ContactsProvider2) getProvider();
+        long rawContactId = createRawContactWithName("Hot", "Tamale");
+        insertPhoneNumber(rawContactId, "18004664411");
+        insertImHandle(rawContactId, Im.PROTOCOL_GOOGLE_TALK, null, "gtalk");
+        String token = getChangeToken(cp);
+
+        sendFeedback("18004664411", DataUsageFeedback.USAGE_TYPE_CALL, null);
+        insertStatusUpdate(Im.PROTOCOL_GOOGLE_TALK, null, "gtalk", StatusUpdates.IDLE, "Busy",
+                StatusUpdates.CAPABILITY_HAS_CAMERA);
+        assertEquals(token, getChangeToken(cp));
+    }
+
+    public void testChangeTokenRequiresReadPermission() {
+        mActor.removePermissions("android.permission.READ_CONTACTS");
+        try {
+            getChangeToken((ContactsProvider2) getProvider());
+            fail("Reading the change token without READ_CONTACTS access should fail.");
+        } catch (SecurityException expected) {
+        }
+    }
+
+    private String getChangeToken(ContactsProvider2 cp) {
+        return cp.call(ContactsProvider2.CHANGE_TOKEN_METHOD, null, null)
+                .getString(ContactsProvider2.KEY_CHANGE_TOKEN);
+    }
+
     public void testPhoneLookupUseCases() {
         ContentValues values = new ContentValues();
         Uri rawContactUri;
@@ -2032,6 +2084,23 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
                 Contacts.openContactPhotoInputStream(mResolver, Profile.CONTENT_URI, true));
     }
 
+    public void testQuerySqlCacheForPhoneIds() {
+        QuerySqlCache cache = getContactsProvider().getQuerySqlCache();
+        cache.clear();
+
+        long rawContactId = createRawContactWithName("Hot", "Tamale");
+        long dataId1 = ContentUris.parseId(insertPhoneNumber(rawContactId, "18004664411"));
+        long dataId2 = ContentUris.parseId(insertPhoneNumber(rawContactId, "18005555555"));
+
+        // The second query is served from the cache and must still use its own ID
+        assertEquals("18004664411", getStoredValue(
+                ContentUris.withAppendedId(Phone.CONTENT_URI, dataId1), Phone.NUMBER));
+        int size = cache.sizeForTest();
+        assertEquals("18005555555", getStoredValue(
+                ContentUris.withAppendedId(Phone.CONTENT_URI, dataId2), Phone.NUMBER));
+        assertEquals(size, cache.sizeForTest());
+    }
+
     public void testPhonesWithStatusUpdate() {
 
         ContentValues values = new ContentValues();
@@ -5089,7 +5158,7 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
 
         long rawContactId2 = createRawContactWithName();
         long contactId2 = queryContactId(rawContactId2);
-        long dataId2 = ContentUris.parseId(insertPhoto(rawContactId2, R.drawable.earth_normal));
+        long dataId2 = ContentUris.parseId(insertPhoto(rawContactId2, R.drawable.earth_large));
         long photoFileId2 =
                 getStoredLongValue(ContentUris.withAppendedId(Data.CONTENT_URI, dataId2),
                         Photo.PHOTO_FILE_ID);
@@ -5125,8 +5194,12 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         Uri streamItemUri =
                 insertStreamItem(rawContactId4, buildGenericStreamItemValues(), socialAccount);
         long streamItemId = ContentUris.parseId(streamItemUri);
-        Uri streamItemPhotoUri = insertStreamItemPhoto(
-                streamItemId, buildGenericStreamItemPhotoValues(0), socialAccount);
+        values = buildGenericStreamItemPhotoValues(0);
+
+        // Use a photo nobody else has, since identical photos share a photo store entry.
+        values.put(StreamItemPhotos.PHOTO,
+                loadPhotoFromResource(R.drawable.earth_small, PhotoSize.ORIGINAL));
+        Uri streamItemPhotoUri = insertStreamItemPhoto(streamItemId, values, socialAccount);
         long streamItemPhotoFileId = getStoredLongValue(streamItemPhotoUri,
                 StreamItemPhotos.PHOTO_FILE_ID);
         photoStore.remove(streamItemPhotoFileId);
@@ -5166,6 +5239,48 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
                 new ContentValues[0]);
     }
 
+    public void testPhotoStoreSharesIdenticalPhotos() {
+        SynchronousContactsProvider2 provider = (SynchronousContactsProvider2) mActor.provider;
+        PhotoStore photoStore = provider.getPhotoStore();
+
+        // Trigger an initial cleanup so another one won't happen while we're running this test.
+        provider.cleanupPhotoStore();
+
+        // Insert the same photo into two raw contacts.
+        long rawContactId1 = createRawContactWithName();
+        long dataId1 = ContentUris.parseId(insertPhoto(rawContactId1, R.drawable.earth_normal));
+        long photoFileId1 =
+                getStoredLongValue(ContentUris.withAppendedId(Data.CONTENT_URI, dataId1),
+                        Photo.PHOTO_FILE_ID);
+
+        long rawContactId2 = createRawContactWithName();
+        long contactId2 = queryContactId(rawContactId2);
+        long dataId2 = ContentUris.parseId(insertPhoto(rawContactId2, R.drawable.earth_normal));
+        long photoFileId2 =
+                getStoredLongValue(ContentUris.withAppendedId(Data.CONTENT_URI, dataId2),
+                        Photo.PHOTO_FILE_ID);
+
+        // Both raw contacts should refer to the same photo file.
+        assertEquals(photoFileId1, photoFileId2);
+
+        // Delete the first raw contact.  The photo is still in use by the second one.
+        mResolver.delete(ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId1)
+                .buildUpon().appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+                .build(), null, null);
+        provider.cleanupPhotoStore();
+        assertNotNull(photoStore.get(photoFileId1));
+        assertEquals(photoFileId2, (long) getStoredLongValue(
+                ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId2),
+                Contacts.PHOTO_FILE_ID));
+
+        // Once the second raw contact is gone as well, the photo file is removed.
+        mResolver.delete(ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId2)
+                .buildUpon().appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+                .build(), null, null);
+        provider.cleanupPhotoStore();
+        assertNull(photoStore.get(photoFileId1));
+    }
+
     public void testPhotoStoreCleanupForProfile() {
         SynchronousContactsProvider2 provider = (SynchronousContactsProvider2) mActor.provider;
         PhotoStore profilePhotoStore = provider.getProfilePhotoStore();
@@ -5220,6 +5335,124 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
 
     }
 
+    public void testAsyncPhotoProcessing() throws Exception {
+        PhotoProcessingQueue queue = getContactsProvider().getPhotoProcessingQueue();
+        queue.setEnabled(true);
+        try {
+            long rawContactId = createRawContactWithName();
+            long contactId = queryContactId(rawContactId);
+            Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
+            long dataId = ContentUris.parseId(insertPhoto(rawContactId, R.drawable.earth_normal));
+            queue.waitForIdle();
+
+            // The original photo should have been replaced with the processed photos.
+            Long photoFileId = getStoredLongValue(contactUri, Contacts.PHOTO_FILE_ID);
+            assertTrue(photoFileId != null && photoFileId > 0);
+            assertEquals(dataId, (long) getStoredLongValue(contactUri, Contacts.PHOTO_ID));
+            assertInputStreamContent(
+                    loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.THUMBNAIL),
+                    Contacts.openContactPhotoInputStream(mResolver, contactUri, false));
+            assertInputStreamContent(
+                    loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.DISPLAY_PHOTO),
+                    Contacts.openContactPhotoInputStream(mResolver, contactUri, true));
+        } finally {
+            queue.setEnabled(false);
+        }
+    }
+
+    public void testLargePhotoNotDeferred() throws Exception {
+        PhotoProcessingQueue queue = getContactsProvider().getPhotoProcessingQueue();
+        queue.setEnabled(true);
+        try {
+            // Too large to be stored in the row until the queue gets to it.
+            long rawContactId = createRawContactWithName();
+            Uri dataUri = insertPhoto(rawContactId, R.drawable.earth_large);
+
+            // Processed before the insert returned.
+            Long photoFileId = getStoredLongValue(dataUri, Photo.PHOTO_FILE_ID);
+            assertTrue(photoFileId != null && photoFileId > 0);
+        } finally {
+            queue.setEnabled(false);
+        }
+    }
+
+    public void testAsyncPhotoProcessingFailure() throws Exception {
+        PhotoProcessingQueue queue = getContactsProvider().getPhotoProcessingQueue();
+        queue.setEnabled(true);
+        try {
+            // A photo cut short: its size can be read, so it is left to the queue, but it
+            // cannot be decoded
+            byte[] photo = loadTestPhoto();
+            long rawContactId = createRawContactWithName();
+            ContentValues values = new ContentValues();
+            values.put(Data.RAW_CONTACT_ID, rawContactId);
+            values.put(Data.MIMETYPE, Photo.CONTENT_ITEM_TYPE);
+            values.put(Photo.PHOTO, Arrays.copyOf(photo, photo.length / 2));
+            Uri dataUri = mResolver.insert(Data.CONTENT_URI, values);
+            queue.waitForIdle();
+
+            // The original photo should not have been left as the thumbnail.
+            assertNull(getStoredValue(dataUri, Photo.PHOTO));
+            assertNull(getStoredValue(dataUri, Photo.PHOTO_FILE_ID));
+        } finally {
+            queue.setEnabled(false);
+        }
+    }
+
+    public void testAsyncPhotoProcessingRollback() throws Exception {
+        PhotoProcessingQueue queue = getContactsProvider().getPhotoProcessingQueue();
+        queue.setEnabled(true);
+        try {
+            long rawContactId = createRawContactWithName();
+            ContentValues values = new ContentValues();
+            values.put(Data.RAW_CONTACT_ID, rawContactId);
+            values.put(Data.MIMETYPE, Photo.CONTENT_ITEM_TYPE);
+            values.put(Photo.PHOTO, loadPhotoFromResource(R.drawable.earth_normal,
+                    PhotoSize.ORIGINAL));
+            ArrayList<ContentProviderOperation> ops = Lists.newArrayList(
+                    ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                            .withValues(values).build(),
+                    ContentProviderOperation.newAssertQuery(RawContacts.CONTENT_URI)
+                            .withSelection(RawContacts._ID + "=" + rawContactId, null)
+                            .withExpectedCount(2).build());
+            try {
+                mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+                fail("Expected the batch to fail");
+            } catch (OperationApplicationException expected) {
+            }
+
+            // The slot reserved for the photo should have been given back, and nothing written.
+            queue.waitForIdle();
+            assertEquals(0, getCount(Data.CONTENT_URI,
+                    Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
+                    new String[] { String.valueOf(rawContactId), Photo.CONTENT_ITEM_TYPE }));
+        } finally {
+            queue.setEnabled(false);
+        }
+    }
+
+    public void testPendingPhotosProcessedOnStart() throws Exception {
+        // A photo left to the queue by a process that died before processing it.
+        long rawContactId = createRawContactWithName();
+        ContentValues values = new ContentValues();
+        values.put(Data.RAW_CONTACT_ID, rawContactId);
+        values.put(Data.MIMETYPE, Photo.CONTENT_ITEM_TYPE);
+        values.put(Photo.PHOTO, loadPhotoFromResource(R.drawable.earth_normal,
+                PhotoSize.ORIGINAL));
+        values.put(DataRowHandlerForPhoto.SKIP_PROCESSING_KEY, true);
+        Uri dataUri = mResolver.insert(Data.CONTENT_URI, values);
+
+        ContactsProvider2 provider = getContactsProvider();
+        provider.switchToContactMode();
+        ContactsDatabaseHelper helper = (ContactsDatabaseHelper) provider.getDatabaseHelper();
+        helper.setProperty(ContactsProvider2.PROPERTY_PHOTOS_PENDING, "1");
+        provider.processPendingPhotos();
+
+        Long photoFileId = getStoredLongValue(dataUri, Photo.PHOTO_FILE_ID);
+        assertTrue(photoFileId != null && photoFileId > 0);
+        assertEquals("0", helper.getProperty(ContactsProvider2.PROPERTY_PHOTOS_PENDING, null));
+    }
+
     public void testOverwritePhotoWithThumbnail() throws IOException {
         long rawContactId = createRawContactWithName();
         long contactId = queryContactId(rawContactId);
@@ -70,4 +70,33 @@ public class HanziToPinyinTest extends TestCase {
         assertEquals(tokens.get(5).type, Token.UNKNOWN);
         assertEquals(tokens.get(6).type, Token.PINYIN);
     }
+
+    @SmallTest
+    public void testAppendPinyin() throws Exception {
+        if (!Arrays.asList(Collator.getAvailableLocales()).contains(Locale.CHINA)) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        assertTrue(HanziToPinyin.getInstance().appendPinyin(TWO_HANZI.charAt(0), sb));
+        assertTrue(HanziToPinyin.getInstance().appendPinyin(TWO_HANZI.charAt(1), sb));
+        assertTrue(sb.toString().equalsIgnoreCase("DUJUAN"));
+
+        // Converted again from the table
+        sb.setLength(0);
+        assertTrue(HanziToPinyin.getInstance().appendPinyin(TWO_HANZI.charAt(0), sb));
+        assertTrue(sb.toString().equalsIgnoreCase("DU"));
+
+        sb.setLength(0);
+        assertFalse(HanziToPinyin.getInstance().appendPinyin('t', sb));
+        assertFalse(HanziToPinyin.getInstance().appendPinyin(ONE_UNKNOWN.charAt(0), sb));
+        assertEquals(0, sb.length());
+    }
+
+    @SmallTest
+    public void testGetPolyphonicReadings() throws Exception {
+        String[] readings = HanziToPinyin.getInstance().getPolyphonicReadings('\u5355');
+        assertTrue(Arrays.asList(readings).contains("SHAN"));
+        assertTrue(Arrays.asList(readings).contains("DAN"));
+        assertNull(HanziToPinyin.getInstance().getPolyphonicReadings(ONE_HANZI.charAt(0)));
+    }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Performance test for {@link NameDistance}. Compares the plain distance computation with
+ * the threshold-aware and the packed batch variants on Latin, pinyin and mixed name corpora.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument \
+ *         -e class com.android.providers.contacts.NameDistancePerformanceTest \
+ *         -w com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+public class NameDistancePerformanceTest extends TestCase {
+
+    private static final String TAG = "NameDistancePerformanceTest";
+
+    private static final int CORPUS_SIZE = 2000;
+    private static final int QUERY_COUNT = 50;
+    private static final int ITERATIONS = 5;
+
+    private static final String[] LATIN_GIVEN_NAMES = {
+            "james", "john", "robert", "michael", "william", "david", "richard", "joseph",
+            "thomas", "charles", "mary", "patricia", "jennifer", "linda", "elizabeth",
+            "barbara", "susan", "jessica", "sarah", "karen", "dwayne", "duane", "martha",
+    };
+
+    private static final String[] LATIN_FAMILY_NAMES = {
+            "smith", "johnson", "williams", "brown", "jones", "miller", "davis", "garcia",
+            "rodriguez", "wilson", "martinez", "anderson", "taylor", "thomas", "hernandez",
+            "moore", "martin", "jackson", "thompson", "white", "dixon", "dickson",
+    };
+
+    private static final String[] PINYIN_FAMILY_NAMES = {
+            "wang", "li", "zhang", "liu", "chen", "yang", "huang", "zhao", "wu", "zhou",
+            "xu", "sun", "ma", "zhu", "hu", "guo", "he", "gao", "lin", "luo",
+    };
+
+    private static final String[] PINYIN_GIVEN_NAMES = {
+            "wei", "fang", "na", "xiuying", "min", "jing", "li", "qiang", "lei", "jun",
+            "yang", "yong", "yan", "jie", "juan", "tao", "ming", "chao", "xiulan", "xia",
+    };
+
+    private final NameDistance mNameDistance =
+            new NameDistance(ContactMatcher.MAX_MATCHED_NAME_LENGTH);
+
+    public void testLatinNames() {
+        runBenchmark("latin", createCorpus(new Random(1), 0));
+    }
+
+    public void testPinyinNames() {
+        runBenchmark("pinyin", createCorpus(new Random(2), 1));
+    }
+
+    public void testMixedNames() {
+        runBenchmark("mixed", createCorpus(new Random(3), -1));
+    }
+
+    /**
+     * Creates a corpus of normalized names.
+     *
+     * @param kind 0 for Latin names, 1 for pinyin names, -1 for a mix of the two
+     */
+    private byte[][] createCorpus(Random random, int kind) {
+        byte[][] corpus = new byte[CORPUS_SIZE][];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            boolean pinyin = kind == -1 ? random.nextBoolean() : kind == 1;
+            String name;
+            if (pinyin) {
+                name = pick(random, PINYIN_FAMILY_NAMES) + pick(random, PINYIN_GIVEN_NAMES);
+                if (random.nextBoolean()) {
+                    name += pick(random, PINYIN_GIVEN_NAMES);
+                }
+            } else {
+                name = pick(random, LATIN_GIVEN_NAMES) + pick(random, LATIN_FAMILY_NAMES);
+            }
+            corpus[i] = Hex.decodeHex(NameNormalizer.normalize(name));
+        }
+        return corpus;
+    }
+
+    private static String pick(Random random, String[] names) {
+        return names[random.nextInt(names.length)];
+    }
+
+    private void runBenchmark(String corpusName, byte[][] corpus) {
+        final float threshold = ContactMatcher.APPROXIMATE_MATCH_THRESHOLD;
+
+        NameDistance.PackedNames packedCorpus = new NameDistance.PackedNames();
+        for (byte[] name : corpus) {
+            packedCorpus.add(name);
+        }
+        float[] distances = new float[packedCorpus.size()];
+
+        int expectedMatches = 0;
+        int matches = 0;
+        int batchMatches = 0;
+        long plainTime = 0;
+        long thresholdTime = 0;
+        long batchTime = 0;
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            long start = System.nanoTime();
+            for (int q = 0; q < QUERY_COUNT; q++) {
+                for (byte[] name : corpus) {
+                    if (mNameDistance.getDistance(corpus[q], name) >= threshold) {
+                        expectedMatches++;
+                    }
+                }
+            }
+            plainTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int q = 0; q < QUERY_COUNT; q++) {
+                for (byte[] name : corpus) {
+                    if (mNameDistance.getDistance(corpus[q], name, threshold) >= threshold) {
+                        matches++;
+                    }
+                }
+            }
+            thresholdTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int q = 0; q < QUERY_COUNT; q++) {
+                batchMatches += mNameDistance.getDistances(
+                        corpus[q], packedCorpus, threshold, distances);
+            }
+            batchTime += System.nanoTime() - start;
+        }
+
+        assertEquals(expectedMatches, matches);
+        assertEquals(expectedMatches, batchMatches);
+
+        long comparisons = (long) ITERATIONS * QUERY_COUNT * corpus.length;
+        Log.i(TAG, corpusName + ": " + comparisons + " comparisons, "
+                + (expectedMatches / ITERATIONS) + " matches; ns per comparison: plain "
+                + (plainTime / comparisons) + ", threshold " + (thresholdTime / comparisons)
+                + ", batch " + (batchTime / comparisons));
+    }
+}
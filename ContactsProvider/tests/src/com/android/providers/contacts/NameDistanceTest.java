@@ -63,6 +63,43 @@ public class NameDistanceTest extends TestCase {
         assertFloat(0, "Abcd", "Efgh");
     }
 
+    public void testThresholdAboveDistance() {
+        assertEquals(0f, mNameDistance.getDistance(decode("Johny"), decode("Duane"), 0.82f), 0f);
+        assertEquals(0f, mNameDistance.getDistance(decode("Jo"), decode("Johnathan"), 0.82f), 0f);
+    }
+
+    public void testThresholdBelowDistance() {
+        assertEquals(mNameDistance.getDistance(decode("Martha"), decode("Marhta")),
+                mNameDistance.getDistance(decode("Martha"), decode("Marhta"), 0.82f), 0f);
+        assertEquals(mNameDistance.getDistance(decode("Dwayne"), decode("Duane")),
+                mNameDistance.getDistance(decode("Dwayne"), decode("Duane"), 0.82f), 0f);
+    }
+
+    public void testPackedNames() {
+        NameDistance.PackedNames names = new NameDistance.PackedNames();
+        String[] candidates = new String[] { "Marhta", "Duane", "Dwayne", "Efgh" };
+        for (String candidate : candidates) {
+            names.add(decode(candidate));
+        }
+        assertEquals(candidates.length, names.size());
+
+        byte[] name = decode("Dwayne");
+        float[] distances = new float[names.size()];
+        assertEquals(2, mNameDistance.getDistances(name, names, 0.82f, distances));
+        assertTrue(distances[0] < 0.82f);
+        assertEquals(mNameDistance.getDistance(name, decode("Duane")), distances[1], 0f);
+        assertEquals(1f, distances[2], 0f);
+        assertTrue(distances[3] < 0.82f);
+
+        names.clear();
+        assertEquals(0, names.size());
+        assertEquals(0, mNameDistance.getDistances(name, names, 0.82f, distances));
+    }
+
+    private static byte[] decode(String name) {
+        return Hex.decodeHex(NameNormalizer.normalize(name));
+    }
+
     private void assertFloat(float expected, String name1, String name2) {
         byte[] s1 = Hex.decodeHex(NameNormalizer.normalize(name1));
         byte[] s2 = Hex.decodeHex(NameNormalizer.normalize(name2));
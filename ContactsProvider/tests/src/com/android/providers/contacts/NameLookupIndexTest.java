@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
+
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link NameLookupIndex}.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class com.android.providers.contacts.NameLookupIndexTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@SmallTest
+public class NameLookupIndexTest extends TestCase {
+
+    private static final int ALL_NAME_TYPES = 0xFFFF;
+
+    private NameLookupIndex mIndex;
+    private ArrayList<NameLookupIndex.Entry> mResult;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new NameLookupIndex();
+        mResult = new ArrayList<NameLookupIndex.Entry>();
+
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                "raw_contact_id", "data_id", "name_type", "normalized_name" });
+        cursor.addRow(new Object[] {
+                1, 10, NameLookupType.NAME_COLLATION_KEY, encode("johnsmith") });
+        cursor.addRow(new Object[] {
+                1, 10, NameLookupType.NAME_SHORTHAND, encode("smith") });
+        cursor.addRow(new Object[] {
+                2, 20, NameLookupType.NAME_COLLATION_KEY, encode("johnsmyth") });
+        cursor.addRow(new Object[] {
+                3, 30, NameLookupType.NICKNAME, encode("jack") });
+        mIndex.load(cursor, false);
+    }
+
+    public void testLoad() {
+        assertTrue(mIndex.isLoaded());
+        assertEquals(4, mIndex.sizeForTest());
+    }
+
+    public void testFindExactMatches() {
+        mIndex.findExactMatches(encode("johnsmith"), mResult);
+        assertEquals(1, mResult.size());
+        assertEquals(1, mResult.get(0).rawContactId);
+
+        mResult.clear();
+        mIndex.findExactMatches(encode("john"), mResult);
+        assertTrue(mResult.isEmpty());
+    }
+
+    public void testFindPrefixMatches() {
+        mIndex.findPrefixMatches(encode("jo"), ALL_NAME_TYPES, 10, mResult);
+        assertEquals(2, mResult.size());
+
+        mResult.clear();
+        mIndex.findPrefixMatches(encode("j"), 1 << NameLookupType.NICKNAME, 10, mResult);
+        assertEquals(1, mResult.size());
+        assertEquals(3, mResult.get(0).rawContactId);
+
+        mResult.clear();
+        mIndex.findPrefixMatches(encode("j"), ALL_NAME_TYPES, 1, mResult);
+        assertEquals(1, mResult.size());
+    }
+
+    public void testFindApproximateMatches() {
+        NameDistance.PackedNames candidates = new NameDistance.PackedNames();
+        candidates.add("johnsmith".getBytes());
+        mIndex.findApproximateMatches(encode("jo"), ALL_NAME_TYPES, candidates,
+                new NameDistance(30), ContactMatcher.APPROXIMATE_MATCH_THRESHOLD, 10, mResult);
+        assertEquals(2, mResult.size());
+
+        mResult.clear();
+        candidates.clear();
+        candidates.add("jozef".getBytes());
+        mIndex.findApproximateMatches(encode("jo"), ALL_NAME_TYPES, candidates,
+                new NameDistance(30), ContactMatcher.APPROXIMATE_MATCH_THRESHOLD, 10, mResult);
+        assertTrue(mResult.isEmpty());
+    }
+
+    public void testInsertAndDeleteCommitted() {
+        mIndex.insert(4, 40, NameLookupType.NAME_COLLATION_KEY, encode("jane"));
+        mIndex.deleteData(10);
+        mIndex.onTransactionCommitted();
+
+        assertEquals(3, mIndex.sizeForTest());
+        mIndex.findExactMatches(encode("jane"), mResult);
+        assertEquals(1, mResult.size());
+
+        mResult.clear();
+        mIndex.findExactMatches(encode("smith"), mResult);
+        assertTrue(mResult.isEmpty());
+    }
+
+    public void testInsertAndDeleteRolledBack() {
+        mIndex.deleteData(10);
+        mIndex.insert(1, 10, NameLookupType.NAME_COLLATION_KEY, encode("jonsmith"));
+        mIndex.onTransactionRolledBack();
+
+        assertTrue(mIndex.isLoaded());
+        assertEquals(4, mIndex.sizeForTest());
+        mIndex.findExactMatches(encode("johnsmith"), mResult);
+        assertEquals(1, mResult.size());
+
+        mResult.clear();
+        mIndex.findExactMatches(encode("jonsmith"), mResult);
+        assertTrue(mResult.isEmpty());
+    }
+
+    public void testRollbackOfTransactionIndexWasLoadedIn() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                "raw_contact_id", "data_id", "name_type", "normalized_name" });
+        mIndex.load(cursor, true);
+        mIndex.onTransactionRolledBack();
+        assertFalse(mIndex.isLoaded());
+    }
+
+    public void testInvalidate() {
+        mIndex.invalidate();
+        assertFalse(mIndex.isLoaded());
+        assertEquals(0, mIndex.sizeForTest());
+
+        // Changes are ignored until the index is reloaded
+        mIndex.insert(4, 40, NameLookupType.NAME_COLLATION_KEY, encode("jane"));
+        assertEquals(0, mIndex.sizeForTest());
+    }
+
+    private static String encode(String name) {
+        return Hex.encodeHex(name.getBytes(), false);
+    }
+}
@@ -128,6 +128,29 @@ public class PhotoStoreTest extends PhotoLoadingTestCase {
         assertEquals(expectedStoredVersion.length, mPhotoStore.getTotalSize());
     }
 
+    public void testStoreIdenticalPhotos() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId = mPhotoStore.insert(new PhotoProcessor(photo, 256, 96));
+        long totalSize = mPhotoStore.getTotalSize();
+
+        // The second insert of the same photo should share the stored file.
+        assertEquals(photoFileId, mPhotoStore.insert(new PhotoProcessor(photo, 256, 96)));
+        assertEquals(totalSize, mPhotoStore.getTotalSize());
+
+        // A different photo gets its own file.
+        byte[] otherPhoto = loadPhotoFromResource(R.drawable.earth_large, PhotoSize.ORIGINAL);
+        long otherPhotoFileId = mPhotoStore.insert(new PhotoProcessor(otherPhoto, 256, 96));
+        assertTrue(otherPhotoFileId != 0);
+        assertTrue(otherPhotoFileId != photoFileId);
+
+        // Once the shared file is removed, the photo is stored again under a new ID.
+        mPhotoStore.remove(photoFileId);
+        long newPhotoFileId = mPhotoStore.insert(new PhotoProcessor(photo, 256, 96));
+        assertTrue(newPhotoFileId != 0);
+        assertTrue(newPhotoFileId != photoFileId);
+        assertNotNull(mPhotoStore.get(newPhotoFileId));
+    }
+
     public void testRemoveEntry() throws IOException {
         byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
         long photoFileId = mPhotoStore.insert(new PhotoProcessor(photo, 256, 96));
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link QuerySqlCache}.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class com.android.providers.contacts.QuerySqlCacheTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@SmallTest
+public class QuerySqlCacheTest extends TestCase {
+
+    private static final int MATCH = 1;
+
+    private QuerySqlCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new QuerySqlCache();
+    }
+
+    public void testBuildKey() {
+        String key = QuerySqlCache.buildKey(MATCH, false, 0, null,
+                new String[] { "a", "b" }, "x=?", "a", null);
+        assertEquals(key, QuerySqlCache.buildKey(MATCH, false, 0, null,
+                new String[] { "a", "b" }, "x=?", "a", null));
+
+        assertFalse(key.equals(QuerySqlCache.buildKey(MATCH + 1, false, 0, null,
+                new String[] { "a", "b" }, "x=?", "a", null)));
+        assertFalse(key.equals(QuerySqlCache.buildKey(MATCH, true, 0, null,
+                new String[] { "a", "b" }, "x=?", "a", null)));
+        assertFalse(key.equals(QuerySqlCache.buildKey(MATCH, false, 1, null,
+                new String[] { "a", "b" }, "x=?", "a", null)));
+        assertFalse(key.equals(QuerySqlCache.buildKey(MATCH, false, 0, "limit=1",
+                new String[] { "a", "b" }, "x=?", "a", null)));
+        assertFalse(key.equals(QuerySqlCache.buildKey(MATCH, false, 0, null,
+                new String[] { "ab" }, "x=?", "a", null)));
+        assertFalse(key.equals(QuerySqlCache.buildKey(MATCH, false, 0, null,
+                null, "x=?", "a", null)));
+        assertFalse(key.equals(QuerySqlCache.buildKey(MATCH, false, 0, null,
+                new String[] { "a", "b" }, "y=?", "a", null)));
+        assertFalse(key.equals(QuerySqlCache.buildKey(MATCH, false, 0, null,
+                new String[] { "a", "b" }, "x=?", "b", null)));
+        assertFalse(key.equals(QuerySqlCache.buildKey(MATCH, false, 0, null,
+                new String[] { "a", "b" }, "x=?", "a", "10")));
+    }
+
+    public void testGetAndPut() {
+        assertNull(mCache.get(MATCH, "key"));
+        mCache.put(MATCH, "key", "SELECT 1", 1000);
+        assertEquals("SELECT 1", mCache.get(MATCH, "key"));
+        assertEquals("SELECT 1", mCache.get(MATCH, "key"));
+        assertEquals(2, mCache.getHitCountForTest(MATCH));
+        assertEquals(0, mCache.getHitCountForTest(MATCH + 1));
+    }
+
+    public void testEviction() {
+        for (int i = 0; i < 100; i++) {
+            mCache.put(MATCH, "key" + i, "SELECT " + i, 0);
+
+            // Keep the first entry recently used
+            assertNotNull(mCache.get(MATCH, "key0"));
+        }
+        assertEquals(64, mCache.sizeForTest());
+        assertNotNull(mCache.get(MATCH, "key0"));
+        assertNotNull(mCache.get(MATCH, "key99"));
+        assertNull(mCache.get(MATCH, "key1"));
+    }
+
+    public void testClear() {
+        mCache.put(MATCH, "key", "SELECT 1", 0);
+        mCache.clear();
+        assertEquals(0, mCache.sizeForTest());
+        assertNull(mCache.get(MATCH, "key"));
+    }
+
+    public void testStatistics() {
+        mCache.get(MATCH, "key");
+        mCache.put(MATCH, "key", "SELECT 1", 2000000);
+        mCache.get(MATCH, "key");
+        mCache.get(MATCH, "key");
+        mCache.get(MATCH, "key");
+        String statistics = mCache.getStatistics();
+        assertTrue(statistics, statistics.contains("match 1: hit rate 75% (3/4), saved 6000us"));
+    }
+}
@@ -21,6 +21,7 @@ import android.net.Uri;
 import android.net.Uri.Builder;
 import android.provider.ContactsContract.CommonDataKinds.Im;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.provider.ContactsContract.Contacts;
@@ -196,6 +197,25 @@ public class SearchIndexManagerTest extends BaseContactsProvider2Test {
         assertSearchIndex(contactId, null, null, "8005554664 +18005554664 8005551234 +18005551234");
     }
 
+    public void testUpdateSearchIndexForPhoneNumber() {
+        long rawContactId = createRawContact();
+        long contactId = queryContactId(rawContactId);
+        Uri phoneUri = insertPhoneNumber(rawContactId, "8005551234");
+
+        // Only the type changes, the number is the same
+        ContentValues values = new ContentValues();
+        values.put(Phone.NUMBER, "8005551234");
+        values.put(Phone.TYPE, Phone.TYPE_WORK);
+        mResolver.update(phoneUri, values, null, null);
+        assertSearchIndex(contactId, null, null, "8005551234 +18005551234");
+
+        values.clear();
+        values.put(Phone.NUMBER, "8005554321");
+        values.put(Phone.TYPE, Phone.TYPE_WORK);
+        mResolver.update(phoneUri, values, null, null);
+        assertSearchIndex(contactId, null, null, "8005554321 +18005554321");
+    }
+
     public void testSearchIndexForEmail() {
         long rawContactId = createRawContact();
         long contactId = queryContactId(rawContactId);
@@ -438,6 +458,56 @@ public class SearchIndexManagerTest extends BaseContactsProvider2Test {
                 "...doe.com\nthe eighteenth episode of Seinfeld, [650]-[253]-0000");
     }
 
+    public void testRebuildIndex() {
+        long rawContactId1 = createRawContact();
+        long contactId1 = queryContactId(rawContactId1);
+        insertNote(rawContactId1, "giraffe");
+        long rawContactId2 = createRawContact();
+        long contactId2 = queryContactId(rawContactId2);
+        insertNote(rawContactId2, "zebra");
+
+        ContactsDatabaseHelper dbHelper = (ContactsDatabaseHelper) getContactsProvider()
+                .getDatabaseHelper();
+        dbHelper.createSearchIndexTable(dbHelper.getWritableDatabase());
+        dbHelper.setProperty(SearchIndexManager.PROPERTY_SEARCH_INDEX_VERSION, "0");
+        assertEquals(0, getCount(buildSearchUri("giraffe"), null, null));
+
+        getContactsProvider().updateSearchIndexInBackground();
+
+        assertSearchIndex(contactId1, "giraffe", null, null);
+        assertSearchIndex(contactId2, "zebra", null, null);
+        assertEquals("-1", dbHelper.getProperty(
+                SearchIndexManager.PROPERTY_SEARCH_INDEX_WATERMARK, null));
+    }
+
+    public void testResumeRebuildIndex() {
+        long rawContactId1 = createRawContact();
+        long contactId1 = queryContactId(rawContactId1);
+        insertNote(rawContactId1, "giraffe");
+        long rawContactId2 = createRawContact();
+        long contactId2 = queryContactId(rawContactId2);
+        insertNote(rawContactId2, "zebra");
+        assertTrue(contactId1 < contactId2);
+
+        // Simulate a rebuild interrupted after indexing the first contact
+        ContactsDatabaseHelper dbHelper = (ContactsDatabaseHelper) getContactsProvider()
+                .getDatabaseHelper();
+        dbHelper.createSearchIndexTable(dbHelper.getWritableDatabase());
+        dbHelper.setProperty(SearchIndexManager.PROPERTY_SEARCH_INDEX_VERSION, "0");
+        dbHelper.setProperty(SearchIndexManager.PROPERTY_SEARCH_INDEX_WATERMARK,
+                String.valueOf(contactId1));
+
+        getContactsProvider().updateSearchIndexInBackground();
+
+        // The first contact is not indexed again
+        assertEquals(0, getCount(buildSearchUri("giraffe"), null, null));
+        assertSearchIndex(contactId2, "zebra", null, null);
+
+        // Once the rebuild is complete, updates are indexed for all contacts
+        insertNote(rawContactId1, "lion");
+        assertSearchIndex(contactId1, "giraffe\nlion", null, null);
+    }
+
     private Uri buildSearchUri(String filter) {
         return buildSearchUri(filter, false);
     }
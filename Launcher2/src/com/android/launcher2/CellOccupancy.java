@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import java.util.Arrays;
+
+/**
+ * Tracks which cells of a grid are occupied.
+ *
+ * Each row is stored as a bit mask, and a summed-area table of the occupied cells is kept
+ * alongside, so that whether a span of cells is vacant is answered in constant time whatever
+ * its size. The table is brought up to date lazily, starting from the first row that changed.
+ */
+public class CellOccupancy {
+    private final int mCountX;
+    private final int mCountY;
+
+    /** Number of longs used for each row of {@link #mRows}. */
+    private final int mWordsPerRow;
+    private final long[] mRows;
+
+    /**
+     * mTable[(y * (mCountX + 1)) + x] is the number of occupied cells above and to the left of
+     * the cell (x, y), that is in the columns before x and the rows before y.
+     */
+    private final int[] mTable;
+
+    /** The first row of {@link #mTable} that is out of date, mCountY if none. */
+    private int mDirtyRow;
+
+    public CellOccupancy(int countX, int countY) {
+        mCountX = countX;
+        mCountY = countY;
+        mWordsPerRow = (countX + 63) >> 6;
+        mRows = new long[mWordsPerRow * countY];
+        mTable = new int[(countX + 1) * (countY + 1)];
+        mDirtyRow = countY;
+    }
+
+    public int getCountX() {
+        return mCountX;
+    }
+
+    public int getCountY() {
+        return mCountY;
+    }
+
+    public boolean isOccupied(int x, int y) {
+        return (mRows[y * mWordsPerRow + (x >> 6)] & (1L << x)) != 0;
+    }
+
+    public void setOccupied(int x, int y, boolean occupied) {
+        final int index = y * mWordsPerRow + (x >> 6);
+        final long row = occupied ? mRows[index] | (1L << x) : mRows[index] & ~(1L << x);
+        if (row != mRows[index]) {
+            mRows[index] = row;
+            mDirtyRow = Math.min(mDirtyRow, y);
+        }
+    }
+
+    /**
+     * Marks the cells of a span as occupied or vacant. The parts of the span that are outside
+     * of the grid are ignored.
+     */
+    public void markCells(int cellX, int cellY, int spanX, int spanY, boolean occupied) {
+        final int startX = Math.max(cellX, 0);
+        final int endX = Math.min(cellX + spanX, mCountX);
+        final int startY = Math.max(cellY, 0);
+        final int endY = Math.min(cellY + spanY, mCountY);
+        if (startX >= endX || startY >= endY) {
+            return;
+        }
+
+        for (int y = startY; y < endY; y++) {
+            for (int word = startX >> 6; word <= (endX - 1) >> 6; word++) {
+                final int from = Math.max(startX - (word << 6), 0);
+                final int to = Math.min(endX - (word << 6), 64);
+                final long mask = (to == 64 ? -1L : (1L << to) - 1) & (-1L << from);
+                final int index = y * mWordsPerRow + word;
+                mRows[index] = occupied ? mRows[index] | mask : mRows[index] & ~mask;
+            }
+        }
+        mDirtyRow = Math.min(mDirtyRow, startY);
+    }
+
+    public void clear() {
+        Arrays.fill(mRows, 0);
+        Arrays.fill(mTable, 0);
+        mDirtyRow = mCountY;
+    }
+
+    /**
+     * Recomputes the rows of the summed-area table after the first one that changed.
+     */
+    private void updateTable() {
+        final int stride = mCountX + 1;
+        for (int y = mDirtyRow; y < mCountY; y++) {
+            final int above = y * stride;
+            final int current = above + stride;
+            int rowCount = 0;
+            for (int x = 0; x < mCountX; x++) {
+                if (isOccupied(x, y)) {
+                    rowCount++;
+                }
+                mTable[current + x + 1] = mTable[above + x + 1] + rowCount;
+            }
+        }
+        mDirtyRow = mCountY;
+    }
+
+    /**
+     * Returns the number of occupied cells in a span, which must be inside the grid.
+     */
+    public int countOccupied(int cellX, int cellY, int spanX, int spanY) {
+        if (mDirtyRow < mCountY) {
+            updateTable();
+        }
+        final int stride = mCountX + 1;
+        final int top = cellY * stride;
+        final int bottom = (cellY + spanY) * stride;
+        return mTable[bottom + cellX + spanX] - mTable[bottom + cellX]
+                - mTable[top + cellX + spanX] + mTable[top + cellX];
+    }
+
+    /**
+     * Returns whether all the cells of a span are vacant. A span that does not fit inside the
+     * grid is never vacant.
+     */
+    public boolean isVacant(int cellX, int cellY, int spanX, int spanY) {
+        if (cellX < 0 || cellY < 0 || cellX + spanX > mCountX || cellY + spanY > mCountY) {
+            return false;
+        }
+        return countOccupied(cellX, cellY, spanX, spanY) == 0;
+    }
+
+    /**
+     * Finds the first vacant span of the given size, going through the rows from the top and
+     * each row from the left.
+     *
+     * @param vacant Receives the position of the top left cell of the span, if one was found.
+     *        May be null.
+     * @return True if a vacant span was found.
+     */
+    public boolean findVacantCell(int[] vacant, int spanX, int spanY) {
+        for (int y = 0; y + spanY <= mCountY; y++) {
+            for (int x = 0; x + spanX <= mCountX; x++) {
+                if (isVacant(x, y, spanX, spanY)) {
+                    if (vacant != null) {
+                        vacant[0] = x;
+                        vacant[1] = y;
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the span of the given size whose top left cell has its center nearest to a point.
+     * Cells are laid out from (originX, originY), every pitchX pixels horizontally and every
+     * pitchY pixels vertically. When several spans are as near, the last one in row order wins.
+     *
+     * @param ignoreOccupied If false, the result can be an occupied span.
+     * @param result Receives the position of the top left cell of the span, or -1, -1 if
+     *        none was found.
+     */
+    public void findNearestArea(int pixelX, int pixelY, int originX, int originY,
+            int pitchX, int pitchY, int spanX, int spanY, boolean ignoreOccupied, int[] result) {
+        long bestDistance = Long.MAX_VALUE;
+        result[0] = -1;
+        result[1] = -1;
+
+        for (int y = 0; y + spanY <= mCountY; y++) {
+            final long dy = originY + (long) y * pitchY - pixelY;
+            final long dy2 = dy * dy;
+            if (dy2 > bestDistance) {
+                if (dy > 0) {
+                    // The rows below are only farther away
+                    break;
+                }
+                continue;
+            }
+
+            for (int x = 0; x + spanX <= mCountX; x++) {
+                final long dx = originX + (long) x * pitchX - pixelX;
+                final long distance = dx * dx + dy2;
+                if (distance > bestDistance) {
+                    if (dx > 0) {
+                        // The cells to the right are only farther away
+                        break;
+                    }
+                    continue;
+                }
+                if (ignoreOccupied && !isVacant(x, y, spanX, spanY)) {
+                    continue;
+                }
+                bestDistance = distance;
+                result[0] = x;
+                result[1] = y;
+            }
+        }
+    }
+}
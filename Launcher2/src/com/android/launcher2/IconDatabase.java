@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.content.ComponentName;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Stores the icons and titles made by {@link IconCache}, so that they do not have to be
+ * loaded from the packages again when the launcher process restarts.
+ */
+class IconDatabase extends SQLiteOpenHelper {
+    private static final String TAG = "Launcher.IconDatabase";
+
+    private static final String DATABASE_NAME = "icons.db";
+    // Version 2: icons made before are drawn without bitmap filtering
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_ICONS = "icons";
+
+    private static final String COMPONENT = "component";
+    private static final String LAST_UPDATED = "lastUpdated";
+    private static final String CONFIGURATION = "configuration";
+    private static final String TITLE = "title";
+    private static final String ICON = "icon";
+
+    private static final String[] COLUMNS = new String[] {
+            COMPONENT, LAST_UPDATED, CONFIGURATION, TITLE, ICON };
+
+    static class Entry {
+        /** The lastUpdateTime of the package when the entry was made. */
+        public long lastUpdated;
+        /** The locale and density the entry was made for. */
+        public String configuration;
+        public String title;
+        /** The icon, compressed as a PNG. */
+        public byte[] icon;
+    }
+
+    IconDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_ICONS + " (" +
+                COMPONENT + " TEXT PRIMARY KEY," +
+                LAST_UPDATED + " INTEGER NOT NULL DEFAULT 0," +
+                CONFIGURATION + " TEXT," +
+                TITLE + " TEXT," +
+                ICON + " BLOB" +
+                ");");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The icons can always be made again
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_ICONS);
+        onCreate(db);
+    }
+
+    /**
+     * Reads all the stored entries. Returns an empty map if they cannot be read.
+     */
+    HashMap<ComponentName, Entry> loadEntries() {
+        final HashMap<ComponentName, Entry> entries = new HashMap<ComponentName, Entry>();
+        Cursor c = null;
+        try {
+            c = getReadableDatabase().query(TABLE_ICONS, COLUMNS, null, null, null, null, null);
+            while (c.moveToNext()) {
+                final ComponentName component = ComponentName.unflattenFromString(c.getString(0));
+                if (component == null) {
+                    continue;
+                }
+                Entry entry = new Entry();
+                entry.lastUpdated = c.getLong(1);
+                entry.configuration = c.getString(2);
+                entry.title = c.getString(3);
+                entry.icon = c.getBlob(4);
+                if (entry.title != null && entry.icon != null) {
+                    entries.put(component, entry);
+                }
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Could not read the stored icons", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Deletes the entries of the removed components, then stores the given entries, in a
+     * single transaction.
+     */
+    void updateEntries(Collection<ComponentName> removed, HashMap<ComponentName, Entry> entries) {
+        if (removed.isEmpty() && entries.isEmpty()) {
+            return;
+        }
+        try {
+            final SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                final String[] args = new String[1];
+                for (ComponentName component : removed) {
+                    args[0] = component.flattenToString();
+                    db.delete(TABLE_ICONS, COMPONENT + "=?", args);
+                }
+
+                final ContentValues values = new ContentValues();
+                for (ComponentName component : entries.keySet()) {
+                    final Entry entry = entries.get(component);
+                    values.put(COMPONENT, component.flattenToString());
+                    values.put(LAST_UPDATED, entry.lastUpdated);
+                    values.put(CONFIGURATION, entry.configuration);
+                    values.put(TITLE, entry.title);
+                    values.put(ICON, entry.icon);
+                    db.replace(TABLE_ICONS, null, values);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Could not store the icons", e);
+        }
+    }
+}
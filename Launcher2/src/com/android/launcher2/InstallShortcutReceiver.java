@@ -95,7 +95,7 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
     private static boolean findEmptyCell(Context context, int[] xy, int screen) {
         final int xCount = LauncherModel.getCellCountX();
         final int yCount = LauncherModel.getCellCountY();
-        boolean[][] occupied = new boolean[xCount][yCount];
+        CellOccupancy occupied = new CellOccupancy(xCount, yCount);
 
         ArrayList<ItemInfo> items = LauncherModel.getItemsInLocalCoordinates(context);
         ItemInfo item = null;
@@ -108,15 +108,11 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
                     cellY = item.cellY;
                     spanX = item.spanX;
                     spanY = item.spanY;
-                    for (int x = cellX; x < cellX + spanX && x < xCount; x++) {
-                        for (int y = cellY; y < cellY + spanY && y < yCount; y++) {
-                            occupied[x][y] = true;
-                        }
-                    }
+                    occupied.markCells(cellX, cellY, spanX, spanY, true);
                 }
             }
         }
 
-        return CellLayout.findVacantCell(xy, 1, 1, xCount, yCount, occupied);
+        return occupied.findVacantCell(xy, 1, 1);
     }
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2.benchmark;
+
+import com.android.launcher2.CellOccupancy;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares {@link CellOccupancy} with the brute force search over a boolean[][] grid that
+ * CellLayout used before, on grids up to the size of custom tablet layouts, and checks
+ * that both find the same cells.
+ */
+@LargeTest
+public class CellOccupancyBenchmark extends TestCase {
+    private static final String LOG_TAG = "CellOccupancyBenchmark";
+
+    private static final int[][] GRID_SIZES = { { 4, 4 }, { 8, 5 }, { 12, 12 }, { 24, 24 } };
+    private static final int[][] SPANS = { { 1, 1 }, { 2, 2 }, { 4, 2 }, { 4, 4 } };
+    private static final int ITERATIONS = 2000;
+
+    private static final int CELL_WIDTH = 80;
+    private static final int CELL_HEIGHT = 100;
+    private static final int ORIGIN_X = CELL_WIDTH / 2;
+    private static final int ORIGIN_Y = CELL_HEIGHT / 2;
+
+    private final Random mRandom = new Random(42);
+
+    /**
+     * Fills about a third of the grid with randomly placed items.
+     */
+    private void fillRandomly(CellOccupancy occupancy, boolean[][] occupied) {
+        final int countX = occupied.length;
+        final int countY = occupied[0].length;
+        for (int i = 0; i < countX * countY / 6; i++) {
+            final int x = mRandom.nextInt(countX);
+            final int y = mRandom.nextInt(countY);
+            final int spanX = 1 + mRandom.nextInt(2);
+            final int spanY = 1 + mRandom.nextInt(2);
+            occupancy.markCells(x, y, spanX, spanY, true);
+            for (int cx = x; cx < x + spanX && cx < countX; cx++) {
+                for (int cy = y; cy < y + spanY && cy < countY; cy++) {
+                    occupied[cx][cy] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * The search CellLayout.findNearestArea used to do.
+     */
+    private static void findNearestAreaBruteForce(boolean[][] occupied, int pixelX, int pixelY,
+            int spanX, int spanY, int[] result) {
+        final int countX = occupied.length;
+        final int countY = occupied[0].length;
+        double bestDistance = Double.MAX_VALUE;
+        result[0] = -1;
+        result[1] = -1;
+        for (int y = 0; y < countY - (spanY - 1); y++) {
+            inner:
+            for (int x = 0; x < countX - (spanX - 1); x++) {
+                for (int i = 0; i < spanX; i++) {
+                    for (int j = 0; j < spanY; j++) {
+                        if (occupied[x + i][y + j]) {
+                            x += i;
+                            continue inner;
+                        }
+                    }
+                }
+                final int centerX = ORIGIN_X + x * CELL_WIDTH;
+                final int centerY = ORIGIN_Y + y * CELL_HEIGHT;
+                double distance = Math.sqrt(Math.pow(centerX - pixelX, 2)
+                        + Math.pow(centerY - pixelY, 2));
+                if (distance <= bestDistance) {
+                    bestDistance = distance;
+                    result[0] = x;
+                    result[1] = y;
+                }
+            }
+        }
+    }
+
+    public void testFindNearestArea() {
+        final int[] expected = new int[2];
+        final int[] actual = new int[2];
+        for (int[] size : GRID_SIZES) {
+            final int countX = size[0];
+            final int countY = size[1];
+            final CellOccupancy occupancy = new CellOccupancy(countX, countY);
+            final boolean[][] occupied = new boolean[countX][countY];
+            fillRandomly(occupancy, occupied);
+
+            final int[] pixels = new int[ITERATIONS * 2];
+            for (int i = 0; i < pixels.length; i += 2) {
+                pixels[i] = mRandom.nextInt(countX * CELL_WIDTH);
+                pixels[i + 1] = mRandom.nextInt(countY * CELL_HEIGHT);
+            }
+
+            for (int[] span : SPANS) {
+                for (int i = 0; i < pixels.length; i += 2) {
+                    findNearestAreaBruteForce(occupied, pixels[i], pixels[i + 1],
+                            span[0], span[1], expected);
+                    occupancy.findNearestArea(pixels[i], pixels[i + 1], ORIGIN_X, ORIGIN_Y,
+                            CELL_WIDTH, CELL_HEIGHT, span[0], span[1], true, actual);
+                    assertEquals(expected[0], actual[0]);
+                    assertEquals(expected[1], actual[1]);
+                }
+
+                long start = System.nanoTime();
+                for (int i = 0; i < pixels.length; i += 2) {
+                    findNearestAreaBruteForce(occupied, pixels[i], pixels[i + 1],
+                            span[0], span[1], expected);
+                }
+                final long bruteForceTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < pixels.length; i += 2) {
+                    occupancy.findNearestArea(pixels[i], pixels[i + 1], ORIGIN_X, ORIGIN_Y,
+                            CELL_WIDTH, CELL_HEIGHT, span[0], span[1], true, actual);
+                }
+                final long occupancyTime = System.nanoTime() - start;
+
+                Log.i(LOG_TAG, "findNearestArea " + countX + "x" + countY
+                        + " span " + span[0] + "x" + span[1] + ": brute force "
+                        + (bruteForceTime / ITERATIONS) + "ns, occupancy "
+                        + (occupancyTime / ITERATIONS) + "ns");
+            }
+        }
+    }
+
+    public void testFindVacantCell() {
+        final int[] actual = new int[2];
+        for (int[] size : GRID_SIZES) {
+            final int countX = size[0];
+            final int countY = size[1];
+            final CellOccupancy occupancy = new CellOccupancy(countX, countY);
+            final boolean[][] occupied = new boolean[countX][countY];
+            fillRandomly(occupancy, occupied);
+
+            for (int[] span : SPANS) {
+                long start = System.nanoTime();
+                boolean expectedFound = false;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    expectedFound = false;
+                    search:
+                    for (int y = 0; y + span[1] <= countY; y++) {
+                        for (int x = 0; x + span[0] <= countX; x++) {
+                            boolean vacant = true;
+                            for (int cx = x; cx < x + span[0] && vacant; cx++) {
+                                for (int cy = y; cy < y + span[1] && vacant; cy++) {
+                                    vacant = !occupied[cx][cy];
+                                }
+                            }
+                            if (vacant) {
+                                expectedFound = true;
+                                break search;
+                            }
+                        }
+                    }
+                }
+                final long bruteForceTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                boolean found = false;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    found = occupancy.findVacantCell(actual, span[0], span[1]);
+                }
+                final long occupancyTime = System.nanoTime() - start;
+
+                assertEquals(expectedFound, found);
+                Log.i(LOG_TAG, "findVacantCell " + countX + "x" + countY
+                        + " span " + span[0] + "x" + span[1] + ": brute force "
+                        + (bruteForceTime / ITERATIONS) + "ns, occupancy "
+                        + (occupancyTime / ITERATIONS) + "ns");
+            }
+        }
+    }
+
+    public void testMarkCells() {
+        for (int[] size : GRID_SIZES) {
+            final CellOccupancy occupancy = new CellOccupancy(size[0], size[1]);
+            final long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                final int x = mRandom.nextInt(size[0]);
+                final int y = mRandom.nextInt(size[1]);
+                // What a drag over the layout does for the dragged item on every move
+                occupancy.markCells(x, y, 2, 2, false);
+                occupancy.isVacant(0, 0, size[0], size[1]);
+                occupancy.markCells(x, y, 2, 2, true);
+            }
+            Log.i(LOG_TAG, "markCells " + size[0] + "x" + size[1] + ": "
+                    + ((System.nanoTime() - start) / ITERATIONS) + "ns");
+        }
+    }
+}
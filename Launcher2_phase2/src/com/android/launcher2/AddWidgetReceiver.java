@@ -111,7 +111,7 @@ public class AddWidgetReceiver extends BroadcastReceiver {
     private static boolean findEmptyCells(Context context, int[] xy, int[] span, int screen) {
         final int xCount = LauncherModel.getCellCountX();
         final int yCount = LauncherModel.getCellCountY();
-        boolean[][] occupied = new boolean[xCount][yCount];
+        CellOccupancy occupied = new CellOccupancy(xCount, yCount);
 
         ArrayList<ItemInfo> items = LauncherModel.getItemsInLocalCoordinates(context);
         ItemInfo item = null;
@@ -124,16 +124,12 @@ public class AddWidgetReceiver extends BroadcastReceiver {
                     cellY = item.cellY;
                     spanX = item.spanX;
                     spanY = item.spanY;
-                    for (int x = cellX; x < cellX + spanX && x < xCount; x++) {
-                        for (int y = cellY; y < cellY + spanY && y < yCount; y++) {
-                            occupied[x][y] = true;
-                        }
-                    }
+                    occupied.markCells(cellX, cellY, spanX, spanY, true);
                 }
             }
         }
 
-        return CellLayout.findVacantCell(xy, span[0], span[1], xCount, yCount, occupied);
+        return occupied.findVacantCell(xy, span[0], span[1]);
     }
 
 }
@@ -84,7 +84,7 @@ public class CellLayout extends ViewGroup {
     private final PointF mTmpPointF = new PointF();
     int[] mTempLocation = new int[2];
 
-    boolean[][] mOccupied;
+    CellOccupancy mOccupied;
     private boolean mLastDownOnOccupiedCell = false;
 
     private OnTouchListener mInterceptTouchListener;
@@ -167,7 +167,7 @@ public class CellLayout extends ViewGroup {
         mMaxGap = a.getDimensionPixelSize(R.styleable.CellLayout_maxGap, 0);
         mCountX = LauncherModel.getCellCountX();
         mCountY = LauncherModel.getCellCountY();
-        mOccupied = new boolean[mCountX][mCountY];
+        mOccupied = new CellOccupancy(mCountX, mCountY);
 
         a.recycle();
 
@@ -295,7 +295,7 @@ public class CellLayout extends ViewGroup {
     public void setGridSize(int x, int y) {
         mCountX = x;
         mCountY = y;
-        mOccupied = new boolean[mCountX][mCountY];
+        mOccupied = new CellOccupancy(mCountX, mCountY);
         requestLayout();
     }
 
@@ -977,7 +977,7 @@ public class CellLayout extends ViewGroup {
     public boolean animateChildToPosition(final View child, int cellX, int cellY, int duration,
             int delay) {
         CellLayoutChildren clc = getChildrenLayout();
-        if (clc.indexOfChild(child) != -1 && !mOccupied[cellX][cellY]) {
+        if (clc.indexOfChild(child) != -1 && !mOccupied.isOccupied(cellX, cellY)) {
             final LayoutParams lp = (LayoutParams) child.getLayoutParams();
             final ItemInfo info = (ItemInfo) child.getTag();
 
@@ -989,8 +989,8 @@ public class CellLayout extends ViewGroup {
 
             int oldX = lp.x;
             int oldY = lp.y;
-            mOccupied[lp.cellX][lp.cellY] = false;
-            mOccupied[cellX][cellY] = true;
+            mOccupied.setOccupied(lp.cellX, lp.cellY, false);
+            mOccupied.setOccupied(cellX, cellY, true);
 
             lp.isLockedToGrid = true;
             lp.cellX = info.cellX = cellX;
@@ -1190,49 +1190,16 @@ public class CellLayout extends ViewGroup {
         pixelX -= (mCellWidth + mWidthGap) * (spanX - 1) / 2f;
         pixelY -= (mCellHeight + mHeightGap) * (spanY - 1) / 2f;
 
-        // Keep track of best-scoring drop area
+        // Keep track of best-scoring drop area, -1, -1 if no suitable location is found
         final int[] bestXY = result != null ? result : new int[2];
-        double bestDistance = Double.MAX_VALUE;
+        final int[] originXY = mTmpXY;
+        cellToCenterPoint(0, 0, originXY);
+        mOccupied.findNearestArea(pixelX, pixelY, originXY[0], originXY[1],
+                mCellWidth + mWidthGap, mCellHeight + mHeightGap, spanX, spanY,
+                ignoreOccupied, bestXY);
 
-        final int countX = mCountX;
-        final int countY = mCountY;
-        final boolean[][] occupied = mOccupied;
-
-        for (int y = 0; y < countY - (spanY - 1); y++) {
-            inner:
-            for (int x = 0; x < countX - (spanX - 1); x++) {
-                if (ignoreOccupied) {
-                    for (int i = 0; i < spanX; i++) {
-                        for (int j = 0; j < spanY; j++) {
-                            if (occupied[x + i][y + j]) {
-                                // small optimization: we can skip to after the column we
-                                // just found an occupied cell
-                                x += i;
-                                continue inner;
-                            }
-                        }
-                    }
-                }
-                final int[] cellXY = mTmpXY;
-                cellToCenterPoint(x, y, cellXY);
-
-                double distance = Math.sqrt(Math.pow(cellXY[0] - pixelX, 2)
-                        + Math.pow(cellXY[1] - pixelY, 2));
-                if (distance <= bestDistance) {
-                    bestDistance = distance;
-                    bestXY[0] = x;
-                    bestXY[1] = y;
-                }
-            }
-        }
         // re-mark space taken by ignoreView as occupied
         markCellsAsOccupiedForView(ignoreView);
-
-        // Return -1, -1 if no suitable location found
-        if (bestDistance == Double.MAX_VALUE) {
-            bestXY[0] = -1;
-            bestXY[1] = -1;
-        }
         return bestXY;
     }
 
@@ -1353,17 +1320,9 @@ public class CellLayout extends ViewGroup {
             }
 
             for (int y = startY; y < endY && !foundCell; y++) {
-                inner:
                 for (int x = startX; x < endX; x++) {
-                    for (int i = 0; i < spanX; i++) {
-                        for (int j = 0; j < spanY; j++) {
-                            if (mOccupied[x + i][y + j]) {
-                                // small optimization: we can skip to after the column we just found
-                                // an occupied cell
-                                x += i;
-                                continue inner;
-                            }
-                        }
+                    if (!mOccupied.isVacant(x, y, spanX, spanY)) {
+                        continue;
                     }
                     if (cellXY != null) {
                         cellXY[0] = x;
@@ -1542,68 +1501,11 @@ public class CellLayout extends ViewGroup {
      * @return True if a vacant cell was found
      */
     public boolean getVacantCell(int[] vacant, int spanX, int spanY) {
-
-        return findVacantCell(vacant, spanX, spanY, mCountX, mCountY, mOccupied);
-    }
-
-    static boolean findVacantCell(int[] vacant, int spanX, int spanY,
-            int xCount, int yCount, boolean[][] occupied) {
-
-        //Modified by yongan.qiu on 2012.3.20 begin. (here has a bug, so just fix it.)
-        /* old:
-        for (int y = 0; y < yCount; y++) {
-            for (int x = 0; x < xCount; x++) {
-                boolean available = !occupied[x][y];
-out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
-                    for (int j = y; j < y + spanY - 1 && y < yCount; j++) {
-                        available = available && !occupied[i][j];
-                        if (!available) break out;
-                    }
-                }
-
-                if (available) {
-                    vacant[0] = x;
-                    vacant[1] = y;
-                    return true;
-                }
-            }
-        }*/
-        // new:
-        for (int y = 0; y < yCount; y++) {
-            if (y + spanY > yCount) {
-                continue;
-            }
-            for (int x = 0; x < xCount; x++) {
-                if (x + spanX > xCount) {
-                    continue;
-                }
-                boolean available = !occupied[x][y];
-out:            for (int i = x; i < x + spanX && i < xCount; i++) {
-                    for (int j = y; j < y + spanY && j < yCount; j++) {
-                        available = available && !occupied[i][j];
-                        Log.i(TAG, x + " " + y + " " + i + " " + j + " " + occupied[i][j]);
-                        if (!available) break out;
-                    }
-                }
-
-                if (available) {
-                    vacant[0] = x;
-                    vacant[1] = y;
-                    return true;
-                }
-            }
-        }
-        //Modified by yongan.qiu on 2012.3.20 end.
-
-        return false;
+        return mOccupied.findVacantCell(vacant, spanX, spanY);
     }
 
     private void clearOccupiedCells() {
-        for (int x = 0; x < mCountX; x++) {
-            for (int y = 0; y < mCountY; y++) {
-                mOccupied[x][y] = false;
-            }
-        }
+        mOccupied.clear();
     }
 
     /**
@@ -1613,45 +1515,28 @@ out:            for (int i = x; i < x + spanX && i < xCount; i++) {
      */
     public void getExpandabilityArrayForView(View view, int[] expandability) {
         final LayoutParams lp = (LayoutParams) view.getLayoutParams();
-        boolean flag;
 
         expandability[AppWidgetResizeFrame.LEFT] = 0;
         for (int x = lp.cellX - 1; x >= 0; x--) {
-            flag = false;
-            for (int y = lp.cellY; y < lp.cellY + lp.cellVSpan; y++) {
-                if (mOccupied[x][y]) flag = true;
-            }
-            if (flag) break;
+            if (!mOccupied.isVacant(x, lp.cellY, 1, lp.cellVSpan)) break;
             expandability[AppWidgetResizeFrame.LEFT]++;
         }
 
         expandability[AppWidgetResizeFrame.TOP] = 0;
         for (int y = lp.cellY - 1; y >= 0; y--) {
-            flag = false;
-            for (int x = lp.cellX; x < lp.cellX + lp.cellHSpan; x++) {
-                if (mOccupied[x][y]) flag = true;
-            }
-            if (flag) break;
+            if (!mOccupied.isVacant(lp.cellX, y, lp.cellHSpan, 1)) break;
             expandability[AppWidgetResizeFrame.TOP]++;
         }
 
         expandability[AppWidgetResizeFrame.RIGHT] = 0;
         for (int x = lp.cellX + lp.cellHSpan; x < mCountX; x++) {
-            flag = false;
-            for (int y = lp.cellY; y < lp.cellY + lp.cellVSpan; y++) {
-                if (mOccupied[x][y]) flag = true;
-            }
-            if (flag) break;
+            if (!mOccupied.isVacant(x, lp.cellY, 1, lp.cellVSpan)) break;
             expandability[AppWidgetResizeFrame.RIGHT]++;
         }
 
         expandability[AppWidgetResizeFrame.BOTTOM] = 0;
         for (int y = lp.cellY + lp.cellVSpan; y < mCountY; y++) {
-            flag = false;
-            for (int x = lp.cellX; x < lp.cellX + lp.cellHSpan; x++) {
-                if (mOccupied[x][y]) flag = true;
-            }
-            if (flag) break;
+            if (!mOccupied.isVacant(lp.cellX, y, lp.cellHSpan, 1)) break;
             expandability[AppWidgetResizeFrame.BOTTOM]++;
         }
     }
@@ -1675,11 +1560,7 @@ out:            for (int i = x; i < x + spanX && i < xCount; i++) {
     }
 
     private void markCellsForView(int cellX, int cellY, int spanX, int spanY, boolean value) {
-        for (int x = cellX; x < cellX + spanX && x < mCountX; x++) {
-            for (int y = cellY; y < cellY + spanY && y < mCountY; y++) {
-                mOccupied[x][y] = value;
-            }
-        }
+        mOccupied.markCells(cellX, cellY, spanX, spanY, value);
     }
 
     public int getDesiredWidth() {
@@ -1694,7 +1575,7 @@ out:            for (int i = x; i < x + spanX && i < xCount; i++) {
 
     public boolean isOccupied(int x, int y) {
         if (x < mCountX && y < mCountY) {
-            return mOccupied[x][y];
+            return mOccupied.isOccupied(x, y);
         } else {
             throw new RuntimeException("Position exceeds the bound of this CellLayout");
         }
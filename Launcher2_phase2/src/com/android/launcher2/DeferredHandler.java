@@ -22,29 +22,70 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Log;
 
 /**
  * Queue of things to run on a looper thread.  Items posted with {@link #post} will not
  * be actually enqued on the handler until after the last one has run, to keep from
  * starving the thread.
  *
+ * Each message runs as many items as fit in {@link #FRAME_BUDGET_MS}, measured with the
+ * uptime clock, then yields to the looper so that frames are still drawn on time.  An item
+ * that takes longer than the budget on its own still runs whole.
+ *
  * This class is fifo.
  */
 public class DeferredHandler {
+    /** Time the items can take per message, about half of a frame at 60fps. */
+    private static final long FRAME_BUDGET_MS = 8;
+
     private LinkedList<Runnable> mQueue = new LinkedList<Runnable>();
     private MessageQueue mMessageQueue = Looper.myQueue();
     private Impl mHandler = new Impl();
 
+    // Timing of the items run since the last call to resetStats(), only used on the looper
+    private int mRunCount;
+    private int mSliceCount;
+    private int mOverBudgetCount;
+    private long mBusyTime;
+    private long mLongestRunTime;
+    private long mLongestSliceTime;
+
     private class Impl extends Handler implements MessageQueue.IdleHandler {
         public void handleMessage(Message msg) {
-            Runnable r;
-            synchronized (mQueue) {
-                if (mQueue.size() == 0) {
-                    return;
+            final long start = SystemClock.uptimeMillis();
+            long now = start;
+            int count = 0;
+            while (now - start < FRAME_BUDGET_MS) {
+                Runnable r;
+                synchronized (mQueue) {
+                    if (mQueue.size() == 0) {
+                        break;
+                    }
+                    if (count > 0 && mQueue.getFirst() instanceof IdleRunnable) {
+                        // Wait for the queue to go idle
+                        break;
+                    }
+                    r = mQueue.removeFirst();
+                }
+                final long runStart = now;
+                r.run();
+                count++;
+
+                now = SystemClock.uptimeMillis();
+                mLongestRunTime = Math.max(mLongestRunTime, now - runStart);
+                if (now - runStart > FRAME_BUDGET_MS) {
+                    mOverBudgetCount++;
                 }
-                r = mQueue.removeFirst();
             }
-            r.run();
+
+            if (count > 0) {
+                mRunCount += count;
+                mSliceCount++;
+                mBusyTime += now - start;
+                mLongestSliceTime = Math.max(mLongestSliceTime, now - start);
+            }
             synchronized (mQueue) {
                 scheduleNextLocked();
             }
@@ -98,6 +139,24 @@ public class DeferredHandler {
         }
     }
 
+    /** Forgets the timing of the items run so far.  Must be called on the looper thread. */
+    public void resetStats() {
+        mRunCount = 0;
+        mSliceCount = 0;
+        mOverBudgetCount = 0;
+        mBusyTime = 0;
+        mLongestRunTime = 0;
+        mLongestSliceTime = 0;
+    }
+
+    /** Logs the timing of the items run so far.  Must be called on the looper thread. */
+    public void dumpStats(String tag) {
+        Log.d(tag, "DeferredHandler ran " + mRunCount + " items in " + mSliceCount
+                + " slices, busy for " + mBusyTime + "ms, longest item " + mLongestRunTime
+                + "ms, longest slice " + mLongestSliceTime + "ms, " + mOverBudgetCount
+                + " items over the " + FRAME_BUDGET_MS + "ms budget");
+    }
+
     void scheduleNextLocked() {
         if (mQueue.size() > 0) {
             Runnable peek = mQueue.getFirst();
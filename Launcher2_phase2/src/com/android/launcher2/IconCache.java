@@ -22,14 +22,22 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
 import android.util.DisplayMetrics;
+import android.util.Log;
 
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
+ *
+ * The icons and titles are also stored in an {@link IconDatabase}, so that after the process
+ * restarts they are only loaded again from the packages that were updated since.
  */
 public class IconCache {
     private static final String TAG = "Launcher.IconCache";
@@ -48,6 +56,18 @@ public class IconCache {
             new HashMap<ComponentName, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
     private int mIconDpi;
 
+    private final IconDatabase mDatabase;
+    /** The stored entries that were not used yet, null until they are read. */
+    private HashMap<ComponentName, IconDatabase.Entry> mStoredEntries;
+    /** The entries made since the last call to {@link #writeStoredEntries()}. */
+    private final HashMap<ComponentName, CacheEntry> mEntriesToStore =
+            new HashMap<ComponentName, CacheEntry>();
+    private final HashSet<ComponentName> mEntriesToDelete = new HashSet<ComponentName>();
+    private final HashMap<String, Long> mPackageUpdateTimes = new HashMap<String, Long>();
+    private String mConfiguration;
+    /** Incremented whenever entries are removed, so that entries made meanwhile are not kept. */
+    private int mGeneration;
+
     public IconCache(LauncherApplication context) {
         mContext = context;
         mPackageManager = context.getPackageManager();
@@ -68,6 +88,7 @@ public class IconCache {
         }
         // need to set mIconDpi before getting default icon
         mDefaultIcon = makeDefaultIcon();
+        mDatabase = new IconDatabase(context);
     }
 
     public Drawable getFullResDefaultActivityIcon() {
@@ -135,7 +156,15 @@ public class IconCache {
      */
     public void remove(ComponentName componentName) {
         synchronized (mCache) {
+            mGeneration++;
             mCache.remove(componentName);
+            mEntriesToStore.remove(componentName);
+            if (mStoredEntries != null) {
+                mStoredEntries.remove(componentName);
+            }
+            mEntriesToDelete.add(componentName);
+            // The package may have been updated
+            mPackageUpdateTimes.remove(componentName.getPackageName());
         }
     }
 
@@ -144,7 +173,37 @@ public class IconCache {
      */
     public void flush() {
         synchronized (mCache) {
+            mGeneration++;
             mCache.clear();
+            // They may have been made for the previous locale
+            mEntriesToStore.clear();
+            mStoredEntries = null;
+            mPackageUpdateTimes.clear();
+            mConfiguration = null;
+        }
+    }
+
+    /**
+     * Puts in labelCache the titles of the given activities that are already known, so
+     * that they do not have to be loaded from the packages to sort the activities.
+     */
+    public void fillLabelCache(List<ResolveInfo> infos, HashMap<Object, CharSequence> labelCache) {
+        synchronized (mCache) {
+            for (ResolveInfo info : infos) {
+                final ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
+                if (labelCache.containsKey(key)) {
+                    continue;
+                }
+                final CacheEntry entry = mCache.get(key);
+                if (entry != null) {
+                    labelCache.put(key, entry.title);
+                    continue;
+                }
+                final IconDatabase.Entry stored = getStoredEntriesLocked().get(key);
+                if (stored != null && isUpToDateLocked(stored, info)) {
+                    labelCache.put(key, stored.title);
+                }
+            }
         }
     }
 
@@ -153,9 +212,9 @@ public class IconCache {
      */
     public void getTitleAndIcon(ApplicationInfo application, ResolveInfo info,
             HashMap<Object, CharSequence> labelCache) {
-        synchronized (mCache) {
-            CacheEntry entry = cacheLocked(application.componentName, info, labelCache);
+        CacheEntry entry = getEntry(application.componentName, info, labelCache);
 
+        synchronized (mCache) {
             application.title = entry.title;
             // {added by zhong.chen 2012-7-12 for launcher apps sort begin
             application.letterIndex = Utilities.getSearchLetterIndexByTitle(application.title.toString());
@@ -165,50 +224,73 @@ public class IconCache {
     }
 
     public Bitmap getIcon(Intent intent) {
-        synchronized (mCache) {
-            final ResolveInfo resolveInfo = mPackageManager.resolveActivity(intent, 0);
-            ComponentName component = intent.getComponent();
+        final ResolveInfo resolveInfo = mPackageManager.resolveActivity(intent, 0);
+        ComponentName component = intent.getComponent();
 
-            if (resolveInfo == null || component == null) {
-                return mDefaultIcon;
-            }
-
-            CacheEntry entry = cacheLocked(component, resolveInfo, null);
-            return entry.icon;
+        if (resolveInfo == null || component == null) {
+            return mDefaultIcon;
         }
+
+        CacheEntry entry = getEntry(component, resolveInfo, null);
+        return entry.icon;
     }
 
     public Bitmap getIcon(ComponentName component, ResolveInfo resolveInfo,
             HashMap<Object, CharSequence> labelCache) {
-        synchronized (mCache) {
-            if (resolveInfo == null || component == null) {
-                return null;
-            }
-
-            CacheEntry entry = cacheLocked(component, resolveInfo, labelCache);
-            return entry.icon;
+        if (resolveInfo == null || component == null) {
+            return null;
         }
+
+        CacheEntry entry = getEntry(component, resolveInfo, labelCache);
+        return entry.icon;
     }
 
     public boolean isDefaultIcon(Bitmap icon) {
         return mDefaultIcon == icon;
     }
 
-    private CacheEntry cacheLocked(ComponentName componentName, ResolveInfo info,
+    /**
+     * Returns the cached entry for a component, making it if needed.  The titles and icons are
+     * loaded without holding the lock on the cache, so that several threads can make entries
+     * at the same time.  labelCache is locked while it is used.
+     */
+    private CacheEntry getEntry(ComponentName componentName, ResolveInfo info,
             HashMap<Object, CharSequence> labelCache) {
-        CacheEntry entry = mCache.get(componentName);
-        if (entry == null) {
-            entry = new CacheEntry();
-
-            mCache.put(componentName, entry);
+        final IconDatabase.Entry stored;
+        final int generation;
+        synchronized (mCache) {
+            CacheEntry entry = mCache.get(componentName);
+            if (entry != null) {
+                return entry;
+            }
+            stored = takeStoredEntryLocked(componentName, info);
+            generation = mGeneration;
+        }
 
-            ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
-            if (labelCache != null && labelCache.containsKey(key)) {
-                entry.title = labelCache.get(key).toString();
+        CacheEntry entry = new CacheEntry();
+        ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
+        boolean loaded = stored != null && loadStoredEntry(stored, entry);
+        if (loaded) {
+            if (labelCache != null) {
+                synchronized (labelCache) {
+                    labelCache.put(key, entry.title);
+                }
+            }
+        } else {
+            CharSequence title = null;
+            if (labelCache != null) {
+                synchronized (labelCache) {
+                    title = labelCache.get(key);
+                }
+            }
+            if (title != null) {
+                entry.title = title.toString();
             } else {
                 entry.title = info.loadLabel(mPackageManager).toString();
                 if (labelCache != null) {
-                    labelCache.put(key, entry.title);
+                    synchronized (labelCache) {
+                        labelCache.put(key, entry.title);
+                    }
                 }
             }
             if (entry.title == null) {
@@ -218,9 +300,142 @@ public class IconCache {
             entry.icon = Utilities.createIconBitmap(
                     getFullResIcon(info), mContext);
         }
+
+        synchronized (mCache) {
+            CacheEntry existing = mCache.get(componentName);
+            if (existing != null) {
+                // Another thread made it meanwhile
+                return existing;
+            }
+            if (generation != mGeneration) {
+                // The component was removed meanwhile, the entry may be out of date
+                return entry;
+            }
+            mCache.put(componentName, entry);
+
+            if (!loaded && getPackageUpdateTimeLocked(info.activityInfo.packageName) != 0) {
+                mEntriesToStore.put(componentName, entry);
+                mEntriesToDelete.remove(componentName);
+            }
+        }
         return entry;
     }
 
+    /**
+     * Removes the stored entry of a component, and returns it if it is up to date.
+     */
+    private IconDatabase.Entry takeStoredEntryLocked(ComponentName componentName,
+            ResolveInfo info) {
+        final IconDatabase.Entry stored = getStoredEntriesLocked().remove(componentName);
+        if (stored == null || !isUpToDateLocked(stored, info)) {
+            return null;
+        }
+        return stored;
+    }
+
+    /**
+     * Fills in the entry from the stored one.
+     */
+    private static boolean loadStoredEntry(IconDatabase.Entry stored, CacheEntry entry) {
+        final Bitmap icon = BitmapFactory.decodeByteArray(stored.icon, 0, stored.icon.length);
+        if (icon == null) {
+            return false;
+        }
+        entry.title = stored.title;
+        entry.icon = icon;
+        return true;
+    }
+
+    private HashMap<ComponentName, IconDatabase.Entry> getStoredEntriesLocked() {
+        if (mStoredEntries == null) {
+            mStoredEntries = mDatabase.loadEntries();
+        }
+        return mStoredEntries;
+    }
+
+    private boolean isUpToDateLocked(IconDatabase.Entry stored, ResolveInfo info) {
+        return stored.configuration != null
+                && stored.configuration.equals(getConfigurationLocked())
+                && stored.lastUpdated == getPackageUpdateTimeLocked(info.activityInfo.packageName);
+    }
+
+    /**
+     * Returns the configuration the titles and icons are made for.
+     */
+    private String getConfigurationLocked() {
+        if (mConfiguration == null) {
+            mConfiguration = Locale.getDefault().toString() + "-" + mIconDpi + "dpi";
+        }
+        return mConfiguration;
+    }
+
+    /**
+     * Returns the lastUpdateTime of a package, or 0 if it is not installed.
+     */
+    private long getPackageUpdateTimeLocked(String packageName) {
+        Long updateTime = mPackageUpdateTimes.get(packageName);
+        if (updateTime == null) {
+            try {
+                updateTime = mPackageManager.getPackageInfo(packageName, 0).lastUpdateTime;
+            } catch (PackageManager.NameNotFoundException e) {
+                updateTime = 0L;
+            }
+            mPackageUpdateTimes.put(packageName, updateTime);
+        }
+        return updateTime;
+    }
+
+    /**
+     * Forgets the stored entries that were not used since they were read, which are those of
+     * the activities that are gone. Should be called once all the applications are loaded.
+     */
+    public void pruneStoredEntries() {
+        synchronized (mCache) {
+            if (mStoredEntries != null) {
+                mEntriesToDelete.addAll(mStoredEntries.keySet());
+                mStoredEntries.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the entries made and removed since the last call to the database.  Should be
+     * called from a background thread, since the icons are compressed here.
+     */
+    public void writeStoredEntries() {
+        final HashMap<ComponentName, IconDatabase.Entry> entries =
+                new HashMap<ComponentName, IconDatabase.Entry>();
+        final HashMap<ComponentName, Bitmap> icons = new HashMap<ComponentName, Bitmap>();
+        final HashSet<ComponentName> removed;
+        synchronized (mCache) {
+            for (ComponentName componentName : mEntriesToStore.keySet()) {
+                final CacheEntry entry = mEntriesToStore.get(componentName);
+                IconDatabase.Entry stored = new IconDatabase.Entry();
+                stored.lastUpdated = getPackageUpdateTimeLocked(componentName.getPackageName());
+                stored.configuration = getConfigurationLocked();
+                stored.title = entry.title;
+                entries.put(componentName, stored);
+                icons.put(componentName, entry.icon);
+            }
+            mEntriesToStore.clear();
+            removed = new HashSet<ComponentName>(mEntriesToDelete);
+            mEntriesToDelete.clear();
+        }
+
+        for (ComponentName componentName : icons.keySet()) {
+            final byte[] data = ItemInfo.flattenBitmap(icons.get(componentName));
+            if (data != null) {
+                entries.get(componentName).icon = data;
+            } else {
+                entries.remove(componentName);
+            }
+        }
+        mDatabase.updateEntries(removed, entries);
+        if (LauncherModel.DEBUG_LOADERS) {
+            Log.d(TAG, "stored " + entries.size() + " icons, deleted " + removed.size());
+        }
+    }
+
     public HashMap<ComponentName,Bitmap> getAllIcons() {
         synchronized (mCache) {
             HashMap<ComponentName,Bitmap> set = new HashMap<ComponentName,Bitmap>();
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.os.Handler;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Write-behind queue for the changes LauncherModel makes to the favorites.  The changes made
+ * to the same item are coalesced, and at most FLUSH_DELAY after the first pending change the
+ * queue is written to LauncherProvider in a single transaction, with at most one change
+ * notification.  Later changes do not postpone the write.
+ *
+ * The changes are queued on the worker thread of LauncherModel, but the queue can be flushed
+ * from any thread, so that the code reading the favorites directly sees the pending changes.
+ */
+class ItemWriteQueue {
+    private static final String TAG = "Launcher.ItemWriteQueue";
+
+    /** How long the first pending change waits for the next ones before being written. */
+    private static final long FLUSH_DELAY = 100;
+
+    private static final int INSERT = 0;
+    private static final int UPDATE = 1;
+    private static final int DELETE = 2;
+
+    private static class PendingWrite {
+        int type;
+        ContentValues values;
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    /** The pending changes by item id, in the order the items were first changed. */
+    private final LinkedHashMap<Long, PendingWrite> mWrites = new LinkedHashMap<Long, PendingWrite>();
+    /** Pending deletions of the contents of folders, which come after the other changes. */
+    private final ArrayList<Long> mDeletedFolders = new ArrayList<Long>();
+    private boolean mNotify;
+    /** The uptime at which the posted flush runs, or 0 if none is posted. */
+    private long mFlushTime;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    ItemWriteQueue(ContentResolver resolver, Handler handler) {
+        mResolver = resolver;
+        mHandler = handler;
+    }
+
+    /**
+     * Queues the insertion of an item, whose id must be in values.
+     */
+    synchronized void insert(ContentValues values, boolean notify) {
+        final long id = values.getAsLong(LauncherSettings.Favorites._ID);
+        PendingWrite write = new PendingWrite();
+        write.type = INSERT;
+        write.values = new ContentValues(values);
+        mWrites.put(id, write);
+        mNotify |= notify;
+        // Items added from outside the launcher are written right away, since whoever adds
+        // the next one looks in the database for a place to put it
+        scheduleFlush(notify ? 0 : FLUSH_DELAY);
+    }
+
+    /**
+     * Queues the update of some values of an item.
+     */
+    synchronized void update(long id, ContentValues values) {
+        PendingWrite write = mWrites.get(id);
+        if (write == null) {
+            write = new PendingWrite();
+            write.type = UPDATE;
+            write.values = new ContentValues(values);
+            mWrites.put(id, write);
+        } else if (write.type != DELETE) {
+            // Fold it into the pending insertion or update
+            write.values.putAll(values);
+        }
+        scheduleFlush(FLUSH_DELAY);
+    }
+
+    /**
+     * Queues the deletion of an item.
+     */
+    synchronized void delete(long id) {
+        PendingWrite write = mWrites.get(id);
+        if (write != null && write.type == INSERT) {
+            // It never reached the database
+            mWrites.remove(id);
+            return;
+        }
+        if (write == null) {
+            write = new PendingWrite();
+            mWrites.put(id, write);
+        }
+        write.type = DELETE;
+        write.values = null;
+        scheduleFlush(FLUSH_DELAY);
+    }
+
+    /**
+     * Queues the deletion of all the items in a folder.
+     */
+    synchronized void deleteFolderContents(long folderId) {
+        mDeletedFolders.add(folderId);
+        scheduleFlush(FLUSH_DELAY);
+    }
+
+    /**
+     * Makes sure the queue is written within delay.  Never postpones a flush that is already
+     * posted.
+     */
+    private void scheduleFlush(long delay) {
+        final long flushTime = SystemClock.uptimeMillis() + delay;
+        if (mFlushTime == 0 || flushTime < mFlushTime) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.postAtTime(mFlushRunnable, flushTime);
+            mFlushTime = flushTime;
+        }
+    }
+
+    /**
+     * Writes the pending changes now, on the calling thread.  The lock is held while they are
+     * written, so that the changes queued after them cannot be written first.
+     */
+    synchronized void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushTime = 0;
+        if (mWrites.isEmpty() && mDeletedFolders.isEmpty()) {
+            return;
+        }
+
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(
+                mWrites.size() + mDeletedFolders.size());
+        for (Long id : mWrites.keySet()) {
+            final PendingWrite write = mWrites.get(id);
+            switch (write.type) {
+                case INSERT:
+                    ops.add(ContentProviderOperation.newInsert(
+                            LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION)
+                            .withValues(write.values).build());
+                    break;
+                case UPDATE:
+                    ops.add(ContentProviderOperation.newUpdate(
+                            LauncherSettings.Favorites.getContentUri(id, false))
+                            .withValues(write.values).build());
+                    break;
+                case DELETE:
+                    ops.add(ContentProviderOperation.newDelete(
+                            LauncherSettings.Favorites.getContentUri(id, false)).build());
+                    break;
+            }
+        }
+        for (Long folderId : mDeletedFolders) {
+            ops.add(ContentProviderOperation.newDelete(
+                    LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION)
+                    .withSelection(LauncherSettings.Favorites.CONTAINER + "=" + folderId, null)
+                    .build());
+        }
+        final boolean notify = mNotify;
+        mWrites.clear();
+        mDeletedFolders.clear();
+        mNotify = false;
+
+        try {
+            mResolver.applyBatch(LauncherProvider.AUTHORITY, ops);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Could not write " + ops.size() + " changes", e);
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "Could not write " + ops.size() + " changes", e);
+        }
+        if (notify) {
+            mResolver.notifyChange(LauncherSettings.Favorites.CONTENT_URI, null);
+        }
+    }
+}
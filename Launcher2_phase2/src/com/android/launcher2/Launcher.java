@@ -643,6 +643,8 @@ public final class Launcher extends Activity
         super.onPause();
         mPaused = true;
         mDragController.cancelDrag();
+        // We may be killed once in the background
+        LauncherModel.flushPendingWrites();
     }
 
     @Override
@@ -95,6 +95,7 @@ public class LauncherApplication extends Application {
     public void onTerminate() {
         super.onTerminate();
 
+        LauncherModel.flushPendingWrites();
         unregisterReceiver(mModel);
 
         ContentResolver resolver = getContentResolver();
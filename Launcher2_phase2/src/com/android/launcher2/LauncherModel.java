@@ -37,7 +37,6 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -58,6 +57,14 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Maintains in-memory state of the Launcher. It is expected that there should be only one
@@ -84,6 +91,27 @@ public class LauncherModel extends BroadcastReceiver {
     }
     private static final Handler sWorker = new Handler(sWorkerThread.getLooper());
 
+    // The icons of all apps are made on these threads while the loader thread waits for them,
+    // one per core, and the threads go away once they are done.
+    private static final int ICON_LOADER_THREAD_COUNT =
+            Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final ThreadPoolExecutor sIconLoader = new ThreadPoolExecutor(
+            ICON_LOADER_THREAD_COUNT, ICON_LOADER_THREAD_COUNT, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "launcher-icon-loader-" + mCount.incrementAndGet());
+                }
+            });
+    static {
+        sIconLoader.allowCoreThreadTimeOut(true);
+    }
+
+    // The changes to the favorites are written through this queue, made and filled on
+    // sWorkerThread
+    private static volatile ItemWriteQueue sWriteQueue;
+
     // We start off with everything not loaded.  After that, we assume that
     // our monitoring of the package manager provides all updates and we never
     // need to do a requery.  These are only ever touched from the loader thread.
@@ -192,6 +220,49 @@ public class LauncherModel extends BroadcastReceiver {
         return workspaceItems;
     }
 
+    /**
+     * Returns the queue the changes to the favorites are written through.  Must be called on
+     * the worker thread.
+     */
+    private static ItemWriteQueue getWriteQueue(Context context) {
+        if (sWriteQueue == null) {
+            sWriteQueue = new ItemWriteQueue(context.getContentResolver(), sWorker);
+        }
+        return sWriteQueue;
+    }
+
+    /**
+     * Writes the changes to the favorites that are still queued, for instance because the
+     * process may be killed soon.  Does not wait for them to be written unless it is called
+     * on the worker thread.
+     */
+    static void flushPendingWrites() {
+        Runnable r = new Runnable() {
+            public void run() {
+                if (sWriteQueue != null) {
+                    sWriteQueue.flush();
+                }
+            }
+        };
+        if (sWorkerThread.getThreadId() == Process.myTid()) {
+            r.run();
+        } else {
+            sWorker.post(r);
+        }
+    }
+
+    /**
+     * Writes the queued changes to the favorites on the calling thread, so that the query
+     * that follows sees them.  Unlike flushPendingWrites, does not wait for the worker thread,
+     * which may be busy loading.
+     */
+    private static void flushPendingWritesNow() {
+        final ItemWriteQueue writeQueue = sWriteQueue;
+        if (writeQueue != null) {
+            writeQueue.flush();
+        }
+    }
+
     /**
      * Adds an item to the DB if it was not created previously, or move it to a new
      * <container, screen, cellX, cellY>
@@ -210,12 +281,11 @@ public class LauncherModel extends BroadcastReceiver {
     static void updateItemInDatabaseHelper(Context context, final ContentValues values,
             final ItemInfo item, final String callingFunction) {
         final long itemId = item.id;
-        final Uri uri = LauncherSettings.Favorites.getContentUri(itemId, false);
-        final ContentResolver cr = context.getContentResolver();
+        final Context appContext = context.getApplicationContext();
 
         Runnable r = new Runnable() {
             public void run() {
-                cr.update(uri, values, null, null);
+                getWriteQueue(appContext).update(itemId, values);
 
                 ItemInfo modelItem = sItemsIdMap.get(itemId);
                 if (item != modelItem) {
@@ -309,6 +379,7 @@ public class LauncherModel extends BroadcastReceiver {
      * we identify a shortcut by its title and intent.
      */
     static boolean shortcutExists(Context context, String title, Intent intent) {
+        flushPendingWritesNow();
         final ContentResolver cr = context.getContentResolver();
         Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI,
             new String[] { "title", "intent" }, "title=? and intent=?",
@@ -327,6 +398,7 @@ public class LauncherModel extends BroadcastReceiver {
      * The ItemInfo.id is not set through this function.
      */
     static ArrayList<ItemInfo> getItemsInLocalCoordinates(Context context) {
+        flushPendingWritesNow();
         ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
         final ContentResolver cr = context.getContentResolver();
         Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI, new String[] {
@@ -368,6 +440,7 @@ public class LauncherModel extends BroadcastReceiver {
      * Find a folder in the db, creating the FolderInfo if necessary, and adding it to folderList.
      */
     FolderInfo getFolderById(Context context, HashMap<Long,FolderInfo> folderList, long id) {
+        flushPendingWritesNow();
         final ContentResolver cr = context.getContentResolver();
         Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI, null,
                 "_id=? and (itemType=? or itemType=?)",
@@ -425,7 +498,7 @@ public class LauncherModel extends BroadcastReceiver {
         }
 
         final ContentValues values = new ContentValues();
-        final ContentResolver cr = context.getContentResolver();
+        final Context appContext = context.getApplicationContext();
         item.onAddToDatabase(values);
 
         LauncherApplication app = (LauncherApplication) context.getApplicationContext();
@@ -435,8 +508,7 @@ public class LauncherModel extends BroadcastReceiver {
 
         Runnable r = new Runnable() {
             public void run() {
-                cr.insert(notify ? LauncherSettings.Favorites.CONTENT_URI :
-                        LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION, values);
+                getWriteQueue(appContext).insert(values, notify);
 
                 if (sItemsIdMap.containsKey(item.id)) {
                     // we should not be adding new items in the db with the same id
@@ -501,11 +573,10 @@ public class LauncherModel extends BroadcastReceiver {
      * @param item
      */
     static void deleteItemFromDatabase(Context context, final ItemInfo item) {
-        final ContentResolver cr = context.getContentResolver();
-        final Uri uriToDelete = LauncherSettings.Favorites.getContentUri(item.id, false);
+        final Context appContext = context.getApplicationContext();
         Runnable r = new Runnable() {
             public void run() {
-                cr.delete(uriToDelete, null, null);
+                getWriteQueue(appContext).delete(item.id);
                 switch (item.itemType) {
                     case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
                         sFolders.remove(item.id);
@@ -534,18 +605,18 @@ public class LauncherModel extends BroadcastReceiver {
      * Remove the contents of the specified folder from the database
      */
     static void deleteFolderContentsFromDatabase(Context context, final FolderInfo info) {
-        final ContentResolver cr = context.getContentResolver();
+        final Context appContext = context.getApplicationContext();
 
         Runnable r = new Runnable() {
             public void run() {
-                cr.delete(LauncherSettings.Favorites.getContentUri(info.id, false), null, null);
+                final ItemWriteQueue writeQueue = getWriteQueue(appContext);
+                writeQueue.delete(info.id);
                 sItemsIdMap.remove(info.id);
                 sFolders.remove(info.id);
                 sDbIconCache.remove(info);
                 sWorkspaceItems.remove(info);
 
-                cr.delete(LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION,
-                        LauncherSettings.Favorites.CONTAINER + "=" + info.id, null);
+                writeQueue.deleteFolderContents(info.id);
                 for (ItemInfo childInfo : info.contents) {
                     sItemsIdMap.remove(childInfo.id);
                     sDbIconCache.remove(childInfo);
@@ -975,6 +1046,9 @@ public class LauncherModel extends BroadcastReceiver {
             final AppWidgetManager widgets = AppWidgetManager.getInstance(context);
             final boolean isSafeMode = manager.isSafeMode();
 
+            // The model is about to be read back from the database, which must be up to date
+            flushPendingWrites();
+
             sWorkspaceItems.clear();
             sAppWidgets.clear();
             sFolders.clear();
@@ -1244,6 +1318,7 @@ public class LauncherModel extends BroadcastReceiver {
             // Tell the workspace that we're about to start firing items at it
             mHandler.post(new Runnable() {
                 public void run() {
+                    mHandler.resetStats();
                     Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
                         callbacks.startBinding();
@@ -1251,7 +1326,18 @@ public class LauncherModel extends BroadcastReceiver {
                 }
             });
 
-            final ArrayList<ItemInfo> workspaceItems = unbindWorkspaceItemsOnMainThread();
+            // WARNING: this is calling into the workspace from the background thread,
+            // but since getCurrentScreen() just returns the int, we should be okay.  This
+            // is just a hint for the order, and if it's wrong, we'll be okay.
+            // TODO: instead, we should have that push the current screen into here.
+            final int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
+
+            // Bind what is visible first: the current screen, then the hotseat, then the
+            // screens next to the current one, which the user can scroll to.
+            // The list is sorted as a copy, since the main thread is unbinding the one returned
+            final ArrayList<ItemInfo> workspaceItems =
+                    new ArrayList<ItemInfo>(unbindWorkspaceItemsOnMainThread());
+            Collections.sort(workspaceItems, new VisibilityComparator(currentScreen));
 
             // Add the items to the workspace.
             N = workspaceItems.size();
@@ -1285,40 +1371,21 @@ public class LauncherModel extends BroadcastReceiver {
                     }
                 }
             });
-            // Bind the widgets, one at a time.
-            // WARNING: this is calling into the workspace from the background thread,
-            // but since getCurrentScreen() just returns the int, we should be okay.  This
-            // is just a hint for the order, and if it's wrong, we'll be okay.
-            // TODO: instead, we should have that push the current screen into here.
-            final int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
-            N = sAppWidgets.size();
-            // once for the current screen
+            // Bind the widgets, one at a time, in the same order as the items.
+            final ArrayList<LauncherAppWidgetInfo> appWidgets =
+                    new ArrayList<LauncherAppWidgetInfo>(sAppWidgets);
+            Collections.sort(appWidgets, new VisibilityComparator(currentScreen));
+            N = appWidgets.size();
             for (int i=0; i<N; i++) {
-                final LauncherAppWidgetInfo widget = sAppWidgets.get(i);
-                if (widget.screen == currentScreen) {
-                    mHandler.post(new Runnable() {
-                        public void run() {
-                            Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                            if (callbacks != null) {
-                                callbacks.bindAppWidget(widget);
-                            }
-                        }
-                    });
-                }
-            }
-            // once for the other screens
-            for (int i=0; i<N; i++) {
-                final LauncherAppWidgetInfo widget = sAppWidgets.get(i);
-                if (widget.screen != currentScreen) {
-                    mHandler.post(new Runnable() {
-                        public void run() {
-                            Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                            if (callbacks != null) {
-                                callbacks.bindAppWidget(widget);
-                            }
+                final LauncherAppWidgetInfo widget = appWidgets.get(i);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null) {
+                            callbacks.bindAppWidget(widget);
                         }
-                    });
-                }
+                    }
+                });
             }
             // Tell the workspace that we're done.
             mHandler.post(new Runnable() {
@@ -1335,6 +1402,7 @@ public class LauncherModel extends BroadcastReceiver {
                     if (DEBUG_LOADERS) {
                         Log.d(TAG, "bound workspace in "
                             + (SystemClock.uptimeMillis()-t) + "ms");
+                        mHandler.dumpStats(TAG);
                     }
                 }
             });
@@ -1434,6 +1502,7 @@ public class LauncherModel extends BroadcastReceiver {
                     }
 
                     final long sortTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+                    mIconCache.fillLabelCache(apps, mLabelCache);
                     Collections.sort(apps,
                             new LauncherModel.ShortcutNameComparator(packageManager, mLabelCache));
                     if (DEBUG_LOADERS) {
@@ -1445,12 +1514,8 @@ public class LauncherModel extends BroadcastReceiver {
                 final long t2 = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
 
                 startIndex = i;
-                for (int j=0; i<N && j<batchSize; j++) {
-                    // This builds the icon bitmaps.
-                    mAllAppsList.add(new ApplicationInfo(packageManager, apps.get(i),
-                            mIconCache, mLabelCache));
-                    i++;
-                }
+                // This builds the icon bitmaps.
+                i = loadApplicationInfos(packageManager, apps, i, Math.min(i + batchSize, N));
 
                 final boolean first = i <= batchSize;
                 final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
@@ -1491,6 +1556,12 @@ public class LauncherModel extends BroadcastReceiver {
                 }
             }
 
+            if (!mStopped) {
+                // Everything is bound, now store the icons that were loaded from the packages
+                mIconCache.pruneStoredEntries();
+            }
+            mIconCache.writeStoredEntries();
+
             if (DEBUG_LOADERS) {
                 Log.d(TAG, "cached all " + N + " apps in "
                         + (SystemClock.uptimeMillis()-t) + "ms"
@@ -1498,6 +1569,70 @@ public class LauncherModel extends BroadcastReceiver {
             }
         }
 
+        private boolean isStopped() {
+            synchronized (LoaderTask.this) {
+                return mStopped;
+            }
+        }
+
+        /**
+         * Makes the ApplicationInfos of apps from start to end on {@link #sIconLoader}, and adds
+         * them to mAllAppsList in order.  Stops early if the task is stopped.
+         *
+         * @return The index after the last app that was added.
+         */
+        private int loadApplicationInfos(final PackageManager packageManager,
+                List<ResolveInfo> apps, int start, int end) {
+            // The icon loader threads run at the priority of the loader thread
+            final int priority = Process.getThreadPriority(Process.myTid());
+            final ArrayList<Future<ApplicationInfo>> futures =
+                    new ArrayList<Future<ApplicationInfo>>(end - start);
+            for (int i = start; i < end; i++) {
+                final ResolveInfo info = apps.get(i);
+                futures.add(sIconLoader.submit(new Callable<ApplicationInfo>() {
+                    public ApplicationInfo call() {
+                        if (isStopped()) {
+                            return null;
+                        }
+                        Process.setThreadPriority(priority);
+                        return new ApplicationInfo(packageManager, info, mIconCache,
+                                mLabelCache);
+                    }
+                }));
+            }
+
+            int i = start;
+            for (Future<ApplicationInfo> future : futures) {
+                final ApplicationInfo app = getUninterruptibly(future);
+                if (app == null) {
+                    break;
+                }
+                mAllAppsList.add(app);
+                i++;
+            }
+            return i;
+        }
+
+        private <T> T getUninterruptibly(Future<T> future) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return future.get();
+                    } catch (InterruptedException e) {
+                        // Keep waiting, and let the caller see the interrupt afterwards
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException(e.getCause());
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
         public void dumpState() {
             Log.d(TAG, "mLoaderTask.mContext=" + mContext);
             Log.d(TAG, "mLoaderTask.mWaitThread=" + mWaitThread);
@@ -1574,6 +1709,7 @@ public class LauncherModel extends BroadcastReceiver {
                 modified = mAllAppsList.modified;
                 mAllAppsList.modified = new ArrayList<ApplicationInfo>();
             }
+            mIconCache.writeStoredEntries();
 
             final Callbacks callbacks = mCallbacks != null ? mCallbacks.get() : null;
             if (callbacks == null) {
@@ -2138,6 +2274,34 @@ public class LauncherModel extends BroadcastReceiver {
             return new ComponentName(info.serviceInfo.packageName, info.serviceInfo.name);
         }
     }
+    /**
+     * Orders the workspace items by how soon the user can see them: the items of the current
+     * screen, then those of the hotseat, then those of the screens next to the current one,
+     * then the others.  The sort is stable, so items keep their order within each group.
+     */
+    static class VisibilityComparator implements Comparator<ItemInfo> {
+        private final int mCurrentScreen;
+
+        VisibilityComparator(int currentScreen) {
+            mCurrentScreen = currentScreen;
+        }
+
+        private int getRank(ItemInfo item) {
+            if (item.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+                return 1;
+            } else if (item.screen == mCurrentScreen) {
+                return 0;
+            } else if (Math.abs(item.screen - mCurrentScreen) == 1) {
+                return 2;
+            }
+            return 3;
+        }
+
+        public final int compare(ItemInfo a, ItemInfo b) {
+            return getRank(a) - getRank(b);
+        }
+    }
+
     public static class ShortcutNameComparator implements Comparator<ResolveInfo> {
         private PackageManager mPackageManager;
         private HashMap<Object, CharSequence> mLabelCache;
@@ -2205,6 +2369,7 @@ public class LauncherModel extends BroadcastReceiver {
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.added", mAllAppsList.added);
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.removed", mAllAppsList.removed);
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.modified", mAllAppsList.modified);
+        mHandler.dumpStats(TAG);
         if (mLoaderTask != null) {
             mLoaderTask.dumpState();
         } else {
@@ -22,11 +22,14 @@ import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
@@ -186,6 +189,31 @@ public class LauncherProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Applies the operations in a single transaction.  As when they are applied one by one,
+     * an operation that fails is skipped and does not prevent the others from being written.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) {
+        final int numOperations = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < numOperations; i++) {
+                try {
+                    results[i] = operations.get(i).apply(this, results, i);
+                } catch (OperationApplicationException e) {
+                    Log.w(TAG, "Could not apply " + operations.get(i), e);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return results;
+    }
+
     private void sendNotify(Uri uri) {
         String notify = uri.getQueryParameter(PARAMETER_NOTIFY);
         if (notify == null || "true".equals(notify)) {
@@ -603,6 +603,10 @@ public class CallNotifier extends Handler
                 if (VDBG) log("- Starting query, posting timeout message.");
                 sendEmptyMessageDelayed(RINGER_CUSTOM_RINGTONE_QUERY_TIMEOUT,
                         RINGTONE_QUERY_WAIT_TIME);
+
+                // The caller info cached by the Contacts app is usually ready sooner,
+                // so look it up too; whichever completes first sets up the ringer.
+                PhoneUtils.startCachedCallerInfoQuery(mApplication, c, this, c);
             }
             // The call to showIncomingCall() will happen after the
             // queries are complete (or time out).
@@ -979,6 +983,14 @@ public class CallNotifier extends Handler
 
             mApplication.notificationMgr.notifyMissedCall(ci.name, ci.phoneNumber,
                     ci.phoneLabel, ((Long) cookie).longValue());
+        } else if (cookie instanceof Connection) {
+            // The cached caller info of an incoming call.  Only use it if the call
+            // is still the one ringing, and its regular query has not completed yet.
+            Connection c = mCM.getFirstActiveRingingCall().getLatestConnection();
+            if (cookie == c) {
+                if (VDBG) log("Cached CallerInfo found, updating state for incoming call..");
+                onQueryComplete(token, this, ci);
+            }
         } else if (cookie instanceof CallNotifier) {
             if (VDBG) log("CallerInfo query complete (for CallNotifier), "
                           + "updating state for incoming call..");
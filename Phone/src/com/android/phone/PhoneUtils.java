@@ -19,6 +19,7 @@ package com.android.phone;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
+import android.content.AsyncQueryHandler;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -27,6 +28,7 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.media.AudioManager;
 import android.net.Uri;
@@ -37,6 +39,7 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteException;
 import android.os.SystemProperties;
+import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
@@ -1307,6 +1310,110 @@ public class PhoneUtils {
         return startGetCallerInfo(context, conn, listener, cookie);
     }
 
+    /**
+     * The caller ids cached by the Contacts app, which keeps the contacts its call log looked
+     * up.  Followed by the number, returns the same columns as PhoneLookup, or no row if the
+     * number is not cached as a contact.
+     */
+    private static final Uri CALLER_ID_CACHE_URI =
+            Uri.parse("content://com.android.contacts.callerid/lookup");
+
+    /** Runs the queries of startCachedCallerInfoQuery() off the main thread. */
+    private static CachedCallerInfoQueryHandler sCachedCallerInfoQueryHandler;
+
+    /** What a query of the caller id cache needs once it completes. */
+    private static class CachedCallerInfoQuery {
+        public Connection connection;
+        public String number;
+        public CallerInfoAsyncQuery.OnQueryCompleteListener listener;
+        public Object cookie;
+    }
+
+    private static class CachedCallerInfoQueryHandler extends AsyncQueryHandler {
+        private final Context mContext;
+
+        public CachedCallerInfoQueryHandler(Context context) {
+            super(context.getContentResolver());
+            mContext = context;
+        }
+
+        @Override
+        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+            // A null cursor means the query failed, e.g. because the Contacts app is not
+            // installed.  The regular caller info query goes on regardless.
+            if (cursor == null) {
+                return;
+            }
+            CachedCallerInfoQuery query = (CachedCallerInfoQuery) cookie;
+            CallerInfo info = null;
+            try {
+                if (cursor.getCount() > 0) {
+                    Uri contactRef = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
+                            Uri.encode(query.number));
+                    info = CallerInfo.getCallerInfo(mContext, contactRef, cursor);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (info == null || !info.contactExists) {
+                return;
+            }
+
+            // Keep what the query listeners would have kept from the connection.
+            Connection c = query.connection;
+            info.phoneNumber = PhoneNumberUtils.formatNumber(query.number);
+            info.cnapName = c.getCnapName();
+            info.numberPresentation = c.getNumberPresentation();
+            info.namePresentation = c.getCnapNamePresentation();
+            if (DBG) log("CachedCallerInfoQueryHandler: found cached caller info " + info);
+            query.listener.onQueryComplete(token, query.cookie, info);
+        }
+    }
+
+    /**
+     * Looks up the number of a connection in the caller ids cached by the Contacts app, as a
+     * faster alternative to the CallerInfoAsyncQuery started by startGetCallerInfo().  The
+     * listener is only called if the number is cached as a contact, on the main thread.
+     *
+     * The result is not attached to the connection: the regular query still completes and
+     * provides the caller info the in-call UI shows, so a stale cache entry does not stay.
+     *
+     * Only connections with an allowed number presentation are looked up.  Emergency and
+     * voicemail numbers are left to CallerInfoAsyncQuery, which handles them specially.
+     *
+     * NOTE: Must be called on the main thread.
+     */
+    static void startCachedCallerInfoQuery(Context context, Connection c,
+            CallerInfoAsyncQuery.OnQueryCompleteListener listener, Object cookie) {
+        if (c == null || c.getNumberPresentation() != Connection.PRESENTATION_ALLOWED) {
+            return;
+        }
+        CallerInfo cnapInfo = new CallerInfo();
+        cnapInfo.numberPresentation = c.getNumberPresentation();
+        String number = modifyForSpecialCnapCases(context, cnapInfo, c.getAddress(),
+                cnapInfo.numberPresentation);
+        if (TextUtils.isEmpty(number)
+                || cnapInfo.numberPresentation != Connection.PRESENTATION_ALLOWED
+                || PhoneNumberUtils.isUriNumber(number)
+                || PhoneNumberUtils.isLocalEmergencyNumber(number, context)
+                || PhoneNumberUtils.isVoiceMailNumber(number)) {
+            return;
+        }
+
+        if (sCachedCallerInfoQueryHandler == null) {
+            sCachedCallerInfoQueryHandler =
+                    new CachedCallerInfoQueryHandler(context.getApplicationContext());
+        }
+        CachedCallerInfoQuery query = new CachedCallerInfoQuery();
+        query.connection = c;
+        query.number = number;
+        query.listener = listener;
+        query.cookie = cookie;
+        sCachedCallerInfoQueryHandler.startQuery(QUERY_TOKEN, query,
+                Uri.withAppendedPath(CALLER_ID_CACHE_URI, Uri.encode(number)),
+                null, null, null, null);
+    }
+
     /**
      * place a temporary callerinfo object in the hands of the caller and notify
      * caller when the actual query is done.